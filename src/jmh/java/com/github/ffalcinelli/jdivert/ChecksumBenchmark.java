@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert;
+
+import com.github.ffalcinelli.jdivert.exceptions.WinDivertException;
+import com.github.ffalcinelli.jdivert.windivert.InMemoryWinDivertBackend;
+import com.github.ffalcinelli.jdivert.windivert.WinDivert;
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checksum of a whole IPv4/UDP packet: {@link Checksum} over heap, direct and native memory against the former
+ * word-per-iteration {@link Util#computeChecksumLocal(byte[], int, int, int, int) local} path and the round trip
+ * through the native helper, whose computation is stubbed out to only account for the JNA call and copies.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChecksumBenchmark {
+
+    private static final int UDP_START = 20;
+    private static final int UDP_CHECKSUM = UDP_START + 6;
+
+    @Param({"64", "576", "1500", "9000", "65535"})
+    public int size;
+
+    private byte[] heap;
+    private ByteBuffer heapBuffer;
+    private ByteBuffer direct;
+    private Memory memory;
+    private Packet packet;
+    private int pseudoSum;
+    private StubBackend stub;
+
+    @Setup
+    public void setUp() {
+        heap = new byte[size];
+        new Random(size).nextBytes(heap);
+        // A well formed IPv4/UDP packet, checksums aside
+        heap[0] = 0x45;
+        heap[2] = (byte) (size >> 8);
+        heap[3] = (byte) size;
+        heap[9] = 17;
+        heap[UDP_START + 4] = (byte) ((size - UDP_START) >> 8);
+        heap[UDP_START + 5] = (byte) (size - UDP_START);
+
+        heapBuffer = ByteBuffer.wrap(heap.clone());
+        direct = ByteBuffer.allocateDirect(size);
+        direct.put(heap);
+        memory = new Memory(size);
+        memory.write(0, heap, 0, size);
+        packet = new Packet(heap.clone(), null);
+        pseudoSum = packet.getIpv4().getVirtualHeaderTotal();
+        stub = new StubBackend();
+    }
+
+    @Benchmark
+    public int local() {
+        return Util.computeChecksumLocal(heap, UDP_START, UDP_CHECKSUM, size, pseudoSum);
+    }
+
+    @Benchmark
+    public int engineHeap() {
+        return Checksum.compute(heapBuffer, UDP_START, size, UDP_CHECKSUM, pseudoSum);
+    }
+
+    @Benchmark
+    public int engineDirect() {
+        return Checksum.compute(direct, UDP_START, size, UDP_CHECKSUM, pseudoSum);
+    }
+
+    @Benchmark
+    public int engineMemory() {
+        return Checksum.fold(Checksum.sum(memory, UDP_START, size - UDP_START) + pseudoSum);
+    }
+
+    @Benchmark
+    public Packet nativeHelper() throws WinDivertException {
+        WinDivert.recalculateChecksum(stub, packet);
+        return packet;
+    }
+
+    /**
+     * Leaves checksums untouched, only the cost of reaching the helper is measured.
+     */
+    private static class StubBackend extends InMemoryWinDivertBackend {
+        @Override
+        public void calcChecksums(Pointer pPacket, int packetLen, Pointer pAddr, long flags) {
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.ffalcinelli.jdivert.nat;
+
+import com.github.ffalcinelli.jdivert.FlowKey;
+import com.github.ffalcinelli.jdivert.IpLiterals;
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.PacketBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Translation of a TCP packet by a {@link Nat} at steady state, all of the mappings being already made: the packets
+ * of the flows lie in memory, only their headers being restored before each translation, which {@link #restore()}
+ * accounts for alone. {@link #handRolled()} is the usual ad-hoc SNAT: a map of the original ports, addresses set as
+ * literals and checksums computed again.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NatBenchmark {
+
+    private static final int SLOT = 64;
+    private static final int LENGTH = 60;
+    private static final int HEADERS = 40;
+    private static final int LAN = 0xC0A80000;
+    private static final int PUBLIC = 0x0A000001;
+    private static final int SERVER = 0x08080808;
+
+    @Param({"16", "1024", "50000"})
+    public int flows;
+
+    private byte[] pristine;
+    private ByteBuffer work;
+    private Packet packet;
+    private Nat nat;
+    private HashMap<FlowKey, Integer> ports;
+    private String publicLiteral;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        // Outbound packets in the even slots, their replies in the odd ones
+        pristine = new byte[2 * flows * SLOT];
+        PacketBuilder builder = new PacketBuilder(SLOT);
+        byte[] payload = new byte[LENGTH - HEADERS];
+        nat = new Nat(flows, 1024, 0xFFFF);
+        nat.addRule(NatRule.snat(LAN, 16, PUBLIC));
+        ports = new HashMap<FlowKey, Integer>();
+        for (int flow = 0; flow < flows; flow++) {
+            int client = LAN + 1 + flow % 250;
+            int port = 10000 + flow / 250;
+            Packet out = builder.ipv4(client, SERVER).tcp(port, 443).seq(flow).tcpFlags(0x10).payload(payload).build();
+            System.arraycopy(out.getRaw(true), 0, pristine, 2 * flow * SLOT, LENGTH);
+            Packet translated = new Packet(out.getRaw(true), null);
+            nat.translate(translated, 0);
+            int mapped = translated.getSrcPort();
+            ports.put(out.extractFlowKey(null), mapped);
+            Packet reply = builder.ipv4(SERVER, PUBLIC).tcp(443, mapped).payload(payload).build();
+            System.arraycopy(reply.getRaw(true), 0, pristine, (2 * flow + 1) * SLOT, LENGTH);
+        }
+        work = ByteBuffer.wrap(pristine.clone());
+        packet = new Packet();
+        publicLiteral = IpLiterals.appendIpv4(new StringBuilder(), PUBLIC).toString();
+    }
+
+    /**
+     * Puts back the headers of the packet of the next flow.
+     */
+    private int nextSlot(int direction) {
+        int flow = next;
+        if (++next == flows)
+            next = 0;
+        int slot = (2 * flow + direction) * SLOT;
+        System.arraycopy(pristine, slot, work.array(), slot, HEADERS);
+        return slot;
+    }
+
+    @Benchmark
+    public Packet restore() {
+        return packet.rebind(work, nextSlot(0), LENGTH, null);
+    }
+
+    @Benchmark
+    public boolean outbound() {
+        return nat.translate(packet.rebind(work, nextSlot(0), LENGTH, null), 0);
+    }
+
+    @Benchmark
+    public boolean inbound() {
+        return nat.translate(packet.rebind(work, nextSlot(1), LENGTH, null), 0);
+    }
+
+    @Benchmark
+    public Packet handRolled() throws UnknownHostException {
+        packet.rebind(work, nextSlot(0), LENGTH, null);
+        Integer port = ports.get(packet.extractFlowKey(null));
+        packet.setSrcAddr(publicLiteral);
+        packet.setSrcPort(port);
+        packet.calculateAllCheckSumsLocal();
+        return packet;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.windivert;
+
+import com.sun.jna.Memory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Borrow/return cycle of a packet buffer under contention: the blocking queue pools {@link WinDivert} used to have
+ * against {@link NativeBufferAllocator}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class BufferPoolBenchmark {
+
+    @Param({"1500", "9000"})
+    public int size;
+
+    private BlockingQueue<Memory> queue;
+    private NativeBufferAllocator allocator;
+
+    @Setup
+    public void setUp() {
+        // One buffer per thread, as recommended for the former pools
+        queue = new ArrayBlockingQueue<Memory>(4);
+        for (int i = 0; i < 4; i++)
+            queue.add(new Memory(size));
+        allocator = new NativeBufferAllocator();
+    }
+
+    @Benchmark
+    public Memory blockingQueue() throws InterruptedException {
+        Memory buffer = queue.take();
+        buffer.setByte(0, (byte) 1);
+        queue.add(buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public Memory allocator() {
+        Memory buffer = allocator.allocate(size);
+        buffer.setByte(0, (byte) 1);
+        allocator.release(buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public Memory unpooled() {
+        Memory buffer = new Memory(size);
+        buffer.setByte(0, (byte) 1);
+        return buffer;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert;
+
+import com.sun.jna.Pointer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Internet checksum (RFC 1071) engine reading 64 bits at a time.
+ * <p>
+ * Each long is added as two 32-bit halves to a 64-bit accumulator, so carries are folded only once at the end: as
+ * 2<sup>16</sup> is 1 modulo 0xFFFF, the folded sum equals the one's complement sum of the 16-bit words. Words are
+ * taken in network order whatever the order of the buffer, and counted from the start of the summed range.
+ * </p>
+ * <p>
+ * Partial {@link #sum(ByteBuffer, int, int) sums} can be added together (as long as every range but the last has an
+ * even length) and with a pseudo-header sum before being {@link #fold(long) folded}.
+ * </p>
+ */
+public final class Checksum {
+
+    private Checksum() {
+    }
+
+    /**
+     * Sums the bytes of the given buffer in the range [from, to), an odd trailing byte being padded with zero.
+     *
+     * @param buffer The buffer to read, either heap or direct; its position and limit are ignored.
+     * @param from   The index of the first byte.
+     * @param to     The index after the last byte.
+     * @return The unfolded sum.
+     */
+    public static long sum(ByteBuffer buffer, int from, int to) {
+        boolean swap = buffer.order() != ByteOrder.BIG_ENDIAN;
+        long sum = 0;
+        int i = from;
+        for (int last = to - 8; i <= last; i += 8) {
+            long word = buffer.getLong(i);
+            if (swap)
+                word = Long.reverseBytes(word);
+            sum += (word >>> 32) + (word & 0xFFFFFFFFL);
+        }
+        if (to - i >= 4) {
+            int word = buffer.getInt(i);
+            sum += (swap ? Integer.reverseBytes(word) : word) & 0xFFFFFFFFL;
+            i += 4;
+        }
+        if (to - i >= 2) {
+            short word = buffer.getShort(i);
+            sum += (swap ? Short.reverseBytes(word) : word) & 0xFFFF;
+            i += 2;
+        }
+        if (i < to) {
+            sum += (buffer.get(i) & 0xFF) << 8;
+        }
+        return sum;
+    }
+
+    /**
+     * Sums the bytes of the given array in the range [from, to), see {@link #sum(ByteBuffer, int, int)}.
+     *
+     * @param data The array to read.
+     * @param from The index of the first byte.
+     * @param to   The index after the last byte.
+     * @return The unfolded sum.
+     */
+    public static long sum(byte[] data, int from, int to) {
+        return sum(ByteBuffer.wrap(data), from, to);
+    }
+
+    /**
+     * Sums the given range of native memory, see {@link #sum(ByteBuffer, int, int)}.
+     *
+     * @param pointer The native memory to read.
+     * @param offset  The offset of the first byte.
+     * @param length  How many bytes to sum.
+     * @return The unfolded sum.
+     */
+    public static long sum(Pointer pointer, long offset, int length) {
+        return sum(pointer.getByteBuffer(offset, length), 0, length);
+    }
+
+    /**
+     * Folds a sum to 16 bits, adding the carries back.
+     *
+     * @param sum The unfolded sum.
+     * @return The one's complement sum, not complemented.
+     */
+    public static int fold(long sum) {
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return (int) sum;
+    }
+
+    /**
+     * Computes the checksum of the given range, skipping the checksum field itself, and stores it into the field.
+     *
+     * @param buffer        The buffer holding the header.
+     * @param from          The index of the header.
+     * @param to            The index after the last byte covered by the checksum.
+     * @param checksumIndex The index of the checksum field, at an even distance from {@code from}.
+     * @param pseudoSum     The sum of the pseudo-header, 0 if none.
+     * @return The checksum.
+     */
+    public static int compute(ByteBuffer buffer, int from, int to, int checksumIndex, long pseudoSum) {
+        long sum = sum(buffer, from, checksumIndex) + sum(buffer, checksumIndex + 2, to) + pseudoSum;
+        int checksum = ~fold(sum) & 0xFFFF;
+        buffer.put(checksumIndex, (byte) (checksum >> 8));
+        buffer.put(checksumIndex + 1, (byte) checksum);
+        return checksum;
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert;
+
+/**
+ * The 5-tuple identifying a flow, held in primitive fields: IP version, upper layer protocol number, addresses and
+ * ports. Ports are 0 for protocols without them.
+ * <p>
+ * IPv6 addresses are split into their high and low 64 bits; IPv4 addresses sit in the low 32 bits of the low half,
+ * the high half being 0. The hash is computed whenever the key changes, so looking a key up costs no more than
+ * comparing its fields.
+ * </p>
+ * <p>
+ * Keys are mutable, to be {@link Packet#extractFlowKey(FlowKey) refilled} for each packet: store a {@link #copy()}
+ * rather than the reused instance. A {@link #canonicalize() canonical} key is the same for both directions of a
+ * connection.
+ * </p>
+ */
+public final class FlowKey {
+
+    private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+    private int version;
+    private int protocol;
+    private long srcHigh;
+    private long srcLow;
+    private long dstHigh;
+    private long dstLow;
+    private int srcPort;
+    private int dstPort;
+    private boolean reversed;
+    private int hash;
+
+    public FlowKey() {
+        rehash();
+    }
+
+    /**
+     * Sets all of the fields, the key being no more {@link #isReversed() reversed}.
+     *
+     * @return This key.
+     */
+    public FlowKey set(int version, int protocol, long srcHigh, long srcLow, int srcPort,
+                       long dstHigh, long dstLow, int dstPort) {
+        this.version = version;
+        this.protocol = protocol;
+        this.srcHigh = srcHigh;
+        this.srcLow = srcLow;
+        this.srcPort = srcPort;
+        this.dstHigh = dstHigh;
+        this.dstLow = dstLow;
+        this.dstPort = dstPort;
+        this.reversed = false;
+        rehash();
+        return this;
+    }
+
+    /**
+     * Copies all of the fields of another key.
+     *
+     * @param other The key to copy.
+     * @return This key.
+     */
+    public FlowKey set(FlowKey other) {
+        version = other.version;
+        protocol = other.protocol;
+        srcHigh = other.srcHigh;
+        srcLow = other.srcLow;
+        srcPort = other.srcPort;
+        dstHigh = other.dstHigh;
+        dstLow = other.dstLow;
+        dstPort = other.dstPort;
+        reversed = other.reversed;
+        hash = other.hash;
+        return this;
+    }
+
+    /**
+     * @return A new key equal to this one, suitable for storing.
+     */
+    public FlowKey copy() {
+        return new FlowKey().set(this);
+    }
+
+    /**
+     * Swaps the source and destination endpoints.
+     *
+     * @return This key.
+     */
+    public FlowKey reverse() {
+        long high = srcHigh, low = srcLow;
+        int port = srcPort;
+        srcHigh = dstHigh;
+        srcLow = dstLow;
+        srcPort = dstPort;
+        dstHigh = high;
+        dstLow = low;
+        dstPort = port;
+        reversed = !reversed;
+        rehash();
+        return this;
+    }
+
+    /**
+     * Orders the endpoints so that the source one is the lowest, by address then port: both directions of a
+     * connection share the same canonical key. {@link #isReversed()} then tells which direction the key came from.
+     *
+     * @return This key.
+     */
+    public FlowKey canonicalize() {
+        if (!isCanonical())
+            reverse();
+        return this;
+    }
+
+    /**
+     * @return Whether the source endpoint is not greater than the destination one.
+     */
+    public boolean isCanonical() {
+        int cmp = Long.compareUnsigned(srcHigh, dstHigh);
+        if (cmp == 0)
+            cmp = Long.compareUnsigned(srcLow, dstLow);
+        return cmp < 0 || (cmp == 0 && srcPort <= dstPort);
+    }
+
+    /**
+     * @return Whether the endpoints have been swapped since the key was last {@link #set}.
+     */
+    public boolean isReversed() {
+        return reversed;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getProtocol() {
+        return protocol;
+    }
+
+    public long getSrcAddrHigh() {
+        return srcHigh;
+    }
+
+    public long getSrcAddrLow() {
+        return srcLow;
+    }
+
+    public int getSrcPort() {
+        return srcPort;
+    }
+
+    public long getDstAddrHigh() {
+        return dstHigh;
+    }
+
+    public long getDstAddrLow() {
+        return dstLow;
+    }
+
+    public int getDstPort() {
+        return dstPort;
+    }
+
+    private void rehash() {
+        long h = version | protocol << 8 | (long) srcPort << 16 | (long) dstPort << 32;
+        h = (h ^ srcHigh) * GOLDEN;
+        h = (h ^ srcLow) * GOLDEN;
+        h = (h ^ dstHigh) * GOLDEN;
+        h = (h ^ dstLow) * GOLDEN;
+        // MurmurHash3 finalizer, so that every bit of the tuple reaches the low bits used by hash tables
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        hash = (int) h;
+    }
+
+    /**
+     * Keys are equal when their 5-tuples are, whether {@link #isReversed() reversed} or not.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        FlowKey other = (FlowKey) o;
+        return hash == other.hash
+                && srcLow == other.srcLow && dstLow == other.dstLow
+                && srcPort == other.srcPort && dstPort == other.dstPort
+                && protocol == other.protocol && version == other.version
+                && srcHigh == other.srcHigh && dstHigh == other.dstHigh;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("FlowKey {version=").append(version)
+                .append(", protocol=").append(protocol).append(", src=");
+        appendEndpoint(sb, srcHigh, srcLow, srcPort).append(", dst=");
+        return appendEndpoint(sb, dstHigh, dstLow, dstPort).append('}').toString();
+    }
+
+    private StringBuilder appendEndpoint(StringBuilder sb, long high, long low, int port) {
+        if (version == 4)
+            IpLiterals.appendIpv4(sb, (int) low);
+        else
+            IpLiterals.appendIpv6(sb.append('['), high, low).append(']');
+        return sb.append(':').append(port);
+    }
+}
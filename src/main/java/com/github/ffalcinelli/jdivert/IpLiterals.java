@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert;
+
+/**
+ * Parses and formats IP address literals without {@link java.net.InetAddress}: nothing is ever resolved, and
+ * addresses are held as primitives, an {@code int} for IPv4 and two {@code long} (high and low 64 bits) for IPv6.
+ * <p>
+ * Formatting follows {@link java.net.InetAddress#getHostAddress()}: IPv6 addresses are written as eight groups of
+ * lowercase hexadecimal digits, without compression.
+ * </p>
+ */
+public final class IpLiterals {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private IpLiterals() {
+    }
+
+    /**
+     * Parses a dotted decimal IPv4 literal.
+     *
+     * @param literal The literal, e.g. {@code 192.168.1.1}.
+     * @return The address, most significant byte first.
+     * @throws IllegalArgumentException If the literal is not a valid IPv4 address.
+     */
+    public static int parseIpv4(CharSequence literal) {
+        return parseIpv4(literal, 0, literal.length());
+    }
+
+    private static int parseIpv4(CharSequence literal, int from, int to) {
+        int address = 0;
+        int octets = 0;
+        int i = from;
+        while (true) {
+            int value = 0;
+            int digits = 0;
+            char c;
+            while (i < to && (c = literal.charAt(i)) >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                if (++digits > 3 || value > 255)
+                    throw invalid(literal);
+                i++;
+            }
+            if (digits == 0 || ++octets > 4)
+                throw invalid(literal);
+            address = (address << 8) | value;
+            if (i == to)
+                break;
+            if (literal.charAt(i++) != '.')
+                throw invalid(literal);
+        }
+        if (octets != 4)
+            throw invalid(literal);
+        return address;
+    }
+
+    /**
+     * Parses an IPv6 literal, with {@code ::} compression and an optional IPv4 suffix, but no scope.
+     *
+     * @param literal The literal, e.g. {@code fe80::1} or {@code ::ffff:10.0.0.1}.
+     * @param address Receives the high 64 bits at index 0 and the low ones at index 1.
+     * @throws IllegalArgumentException If the literal is not a valid IPv6 address.
+     */
+    public static void parseIpv6(CharSequence literal, long[] address) {
+        int length = literal.length();
+        // Groups before and after "::", each shifted in as a 128-bit register
+        long headHigh = 0, headLow = 0, tailHigh = 0, tailLow = 0;
+        int head = 0, tail = 0;
+        boolean compressed = false;
+        int i = 0;
+        if (length >= 2 && literal.charAt(0) == ':') {
+            if (literal.charAt(1) != ':')
+                throw invalid(literal);
+            compressed = true;
+            i = 2;
+        }
+        while (i < length) {
+            int groupStart = i;
+            int value = 0;
+            int digits = 0;
+            int digit;
+            while (i < length && (digit = hexDigit(literal.charAt(i))) >= 0) {
+                value = (value << 4) | digit;
+                digits++;
+                i++;
+            }
+            int groups = 1;
+            if (i < length && literal.charAt(i) == '.') {
+                // The last 32 bits as an IPv4 literal
+                value = parseIpv4(literal, groupStart, length);
+                groups = 2;
+                i = length;
+            } else if (digits == 0 || digits > 4) {
+                throw invalid(literal);
+            }
+            long bits = groups == 2 ? value & 0xFFFFFFFFL : value;
+            if (compressed) {
+                tail += groups;
+                tailHigh = (tailHigh << (16 * groups)) | (tailLow >>> (64 - 16 * groups));
+                tailLow = (tailLow << (16 * groups)) | bits;
+            } else {
+                head += groups;
+                headHigh = (headHigh << (16 * groups)) | (headLow >>> (64 - 16 * groups));
+                headLow = (headLow << (16 * groups)) | bits;
+            }
+            if (head + tail > 8)
+                throw invalid(literal);
+            if (i == length)
+                break;
+            if (literal.charAt(i++) != ':' || i == length)
+                throw invalid(literal);
+            if (literal.charAt(i) == ':') {
+                if (compressed)
+                    throw invalid(literal);
+                compressed = true;
+                i++;
+            }
+        }
+        if (compressed ? head + tail > 7 : head != 8)
+            throw invalid(literal);
+        // Move the head groups to the top, "::" standing for the zero groups in between
+        for (int shift = head; shift < 8; shift++) {
+            headHigh = (headHigh << 16) | (headLow >>> 48);
+            headLow <<= 16;
+        }
+        address[0] = headHigh | tailHigh;
+        address[1] = headLow | tailLow;
+    }
+
+    /**
+     * Appends an IPv4 address in dotted decimal notation.
+     *
+     * @param sb      The builder to append to.
+     * @param address The address, most significant byte first.
+     * @return The given builder.
+     */
+    public static StringBuilder appendIpv4(StringBuilder sb, int address) {
+        return sb.append(address >>> 24).append('.')
+                .append((address >>> 16) & 0xFF).append('.')
+                .append((address >>> 8) & 0xFF).append('.')
+                .append(address & 0xFF);
+    }
+
+    /**
+     * Appends an IPv6 address as eight groups of hexadecimal digits.
+     *
+     * @param sb   The builder to append to.
+     * @param high The high 64 bits of the address.
+     * @param low  The low 64 bits of the address.
+     * @return The given builder.
+     */
+    public static StringBuilder appendIpv6(StringBuilder sb, long high, long low) {
+        appendGroups(sb, high);
+        sb.append(':');
+        return appendGroups(sb, low);
+    }
+
+    private static StringBuilder appendGroups(StringBuilder sb, long bits) {
+        for (int shift = 48; shift >= 0; shift -= 16) {
+            int group = (int) (bits >>> shift) & 0xFFFF;
+            boolean leading = true;
+            for (int nibble = 12; nibble >= 0; nibble -= 4) {
+                int digit = (group >>> nibble) & 0xF;
+                if (leading && digit == 0 && nibble > 0)
+                    continue;
+                leading = false;
+                sb.append(HEX_DIGITS[digit]);
+            }
+            if (shift > 0)
+                sb.append(':');
+        }
+        return sb;
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9')
+            return c - '0';
+        if (c >= 'a' && c <= 'f')
+            return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F')
+            return c - 'A' + 10;
+        return -1;
+    }
+
+    private static IllegalArgumentException invalid(CharSequence literal) {
+        return new IllegalArgumentException(String.format("Not an IP address literal: %s", literal));
+    }
+}
@@ -20,14 +20,20 @@ package com.github.ffalcinelli.jdivert;
 import com.github.ffalcinelli.jdivert.exceptions.WinDivertException;
 import com.github.ffalcinelli.jdivert.headers.*;
 import com.github.ffalcinelli.jdivert.windivert.WinDivertAddress;
+import com.github.ffalcinelli.jdivert.windivert.WinDivertAddressCodec;
 import com.github.ffalcinelli.jdivert.windivert.WinDivertDLL;
+import com.github.ffalcinelli.jdivert.windivert.WinDivertDataNetwork;
 import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
 
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.github.ffalcinelli.jdivert.Enums.CalcChecksumsOption;
 import com.github.ffalcinelli.jdivert.Enums.Protocol;
 
 import static com.github.ffalcinelli.jdivert.Util.printHexBinary;
@@ -45,10 +51,48 @@ import static com.sun.jna.platform.win32.WinDef.USHORT;
  */
 public class Packet {
 
+    // Bits of decoded, telling which headers have been materialised
+    private static final int IP_DECODED = 1;
+    private static final int PROTO_DECODED = 1 << 1;
+
+    public static final int DEFAULT_HEADROOM = 0;
+    public static final int DEFAULT_TAILROOM = 128;
+
+    // Identification of IPv6 fragments, starting at a random value
+    private static final AtomicInteger FRAGMENT_IDS = new AtomicInteger(new Random().nextInt());
+
     private ByteBuffer raw;
+    private int offset;
+    private int length;
+    // The bounds of the bytes of the buffer owned by the packet, which resizes may use
+    private int roomStart;
+    private int roomEnd;
+    private boolean duplicateBuffer;
+    // Scanned once per packet, from the raw bytes
+    private int version;
+    private Protocol protocol;
+    // Decoded on first access only
+    private int decoded;
     private Ip ipHdr;
     private Header protoHeader;
+    // Header instances reused by rebind, one per kind
+    private Ipv4 ipv4;
+    private Ipv6 ipv6;
+    private Tcp tcp;
+    private Udp udp;
+    private Icmpv4 icmpv4;
+    private Icmpv6 icmpv6;
+    // Built on demand, then the fields below are derived from it
     private WinDivertAddress addr;
+    private long timestamp;
+    private int addrFlags;
+    private int ifIdx;
+    private int subIfIdx;
+    private Runnable releaser;
+    private boolean incrementalChecksums;
+    private int reservedHeadroom = DEFAULT_HEADROOM;
+    private int reservedTailroom = DEFAULT_TAILROOM;
+    private int mtu;
 
     /**
      * Construct a {@link Packet} from the given byte array and for the given metadata.
@@ -58,21 +102,223 @@ public class Packet {
      * @param duplicateBuffer	Indicate whether to duplicate the raw buffer stored in this object
      */
     public Packet(byte[] raw, WinDivertAddress addr, boolean duplicateBuffer) {
-    	this.addr = addr;
-        this.raw = ByteBuffer.wrap(raw);
+        this(ByteBuffer.wrap(raw), addr, duplicateBuffer, null);
+    }
+    
+    public Packet(byte[] raw, WinDivertAddress addr) {
+    	this(raw, addr, false);
+    }
+
+    /**
+     * Construct a {@link Packet} viewing the given buffer, from index 0 to its capacity.
+     * <p>
+     * The buffer is not copied: it may be a slice of a larger (even native) buffer holding several packets.
+     * </p>
+     *
+     * @param raw      The buffer holding exactly one packet.
+     * @param addr     The WinDivertAddress helper object, may be {@code null} and later decoded with
+     *                 {@link #readAddress(Pointer, long)}.
+     * @param releaser Invoked once by {@link #release()}, may be {@code null}.
+     */
+    public Packet(ByteBuffer raw, WinDivertAddress addr, Runnable releaser) {
+        this(raw, addr, false, releaser);
+    }
+
+    public Packet(ByteBuffer raw, WinDivertAddress addr) {
+        this(raw, addr, null);
+    }
+
+    /**
+     * Construct an empty {@link Packet}, to be {@link #rebind(ByteBuffer, int, int, WinDivertAddress) bound} to
+     * packets later on.
+     */
+    public Packet() {
+    }
+
+    private Packet(ByteBuffer raw, WinDivertAddress addr, boolean duplicateBuffer, Runnable releaser) {
+        this.addr = addr;
+        this.raw = raw;
         this.raw.order(ByteOrder.BIG_ENDIAN);
-       
-        for (Header header : Header.buildHeaders(raw, duplicateBuffer)) {
-            if (header instanceof Ip) {
-                ipHdr = (Ip) header;
+        this.length = raw.capacity();
+        this.roomEnd = length;
+        this.releaser = releaser;
+        this.duplicateBuffer = duplicateBuffer;
+        scan();
+    }
+
+    /**
+     * Makes this {@link Packet} view another packet, without allocating: the header instances of this packet are
+     * reused, only their offsets and the protocols are derived again.
+     * <p>
+     * Headers handed out before are reused: they view the new packet once accessed again through this one. The
+     * previous packet is not {@link #release() released}. The packet owns no room around it, since the buffer may
+     * hold other packets: growing its payload copies it.
+     * </p>
+     *
+     * @param buffer The buffer holding the packet, not copied.
+     * @param offset The index of the packet into the buffer.
+     * @param length The length of the packet.
+     * @param addr   The WinDivertAddress helper object, may be {@code null} and later decoded with
+     *               {@link #readAddress(Pointer, long)}.
+     * @return This packet, to allow call chaining.
+     */
+    public Packet rebind(ByteBuffer buffer, int offset, int length, WinDivertAddress addr) {
+        return rebind(buffer, offset, length, addr, 0, 0);
+    }
+
+    /**
+     * Makes this {@link Packet} view another packet, see {@link #rebind(ByteBuffer, int, int, WinDivertAddress)},
+     * owning the given room around it for resizes.
+     *
+     * @param buffer   The buffer holding the packet, not copied.
+     * @param offset   The index of the packet into the buffer.
+     * @param length   The length of the packet.
+     * @param addr     The WinDivertAddress helper object, may be {@code null}.
+     * @param headroom The bytes before the packet it may grow into.
+     * @param tailroom The bytes after the packet it may grow into.
+     * @return This packet, to allow call chaining.
+     */
+    public Packet rebind(ByteBuffer buffer, int offset, int length, WinDivertAddress addr, int headroom, int tailroom) {
+        if (offset < 0 || length <= 0 || offset + length > buffer.capacity()) {
+            throw new IllegalArgumentException("The packet does not fit the buffer");
+        }
+        if (headroom < 0 || tailroom < 0 || headroom > offset || offset + length + tailroom > buffer.capacity()) {
+            throw new IllegalArgumentException("The room does not fit the buffer");
+        }
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        this.raw = buffer;
+        this.offset = offset;
+        this.length = length;
+        this.roomStart = offset - headroom;
+        this.roomEnd = offset + length + tailroom;
+        this.addr = addr;
+        this.timestamp = 0;
+        this.addrFlags = 0;
+        this.ifIdx = 0;
+        this.subIfIdx = 0;
+        this.releaser = null;
+
+        this.duplicateBuffer = false;
+        scan();
+        return this;
+    }
+
+    /**
+     * Makes the header setters adjust the checksums in place as fields change, see
+     * {@link Header#setIncrementalChecksum(boolean)}. The checksums of the packet must be correct beforehand: this
+     * spares {@link #recalculateChecksum()} when rewriting addresses, ports or flags of a received packet.
+     *
+     * @param incrementalChecksums Whether header setters adjust checksums
+     */
+    public void setIncrementalChecksums(boolean incrementalChecksums) {
+        this.incrementalChecksums = incrementalChecksums;
+        applyIncrementalChecksums();
+    }
+
+    public boolean isIncrementalChecksums() {
+        return incrementalChecksums;
+    }
+
+    /**
+     * Reads the version and the upper layer protocol, leaving the headers to be decoded on first access.
+     */
+    private void scan() {
+        decoded = 0;
+        ipHdr = null;
+        protoHeader = null;
+        int first = raw.get(offset);
+        version = (first >> 4) & 0x0F;
+        if (version == 4) {
+            protocol = Protocol.fromValue(raw.get(offset + 9));
+        } else {
+            int type = raw.get(offset + 6) & 0xFF;
+            // Seldom seen: the header walks the extension headers chain
+            protocol = Ipv6.isExtensionHeader(type) ? ip().getNextHeaderProtocol() : Protocol.fromValue(type);
+        }
+    }
+
+    private ByteBuffer headerBuffer() {
+        return duplicateBuffer ? raw.duplicate() : raw;
+    }
+
+    private Ip ip() {
+        if ((decoded & IP_DECODED) == 0) {
+            ByteBuffer buffer = headerBuffer();
+            Ip ip;
+            if (version == 4) {
+                if (ipv4 == null)
+                    ipv4 = new Ipv4(buffer);
+                ip = ipv4;
             } else {
-            	protoHeader = header;
+                if (ipv6 == null)
+                    ipv6 = new Ipv6(buffer);
+                ip = ipv6;
             }
+            ip.rebind(buffer, offset, offset + length);
+            ip.setIncrementalChecksum(incrementalChecksums);
+            ipHdr = ip;
+            decoded |= IP_DECODED;
+            // The upper header registers itself, to have its checksum adjusted along with the pseudo-header
+            if (incrementalChecksums)
+                proto();
         }
+        return ipHdr;
     }
-    
-    public Packet(byte[] raw, WinDivertAddress addr) {
-    	this(raw, addr, false);
+
+    private Header proto() {
+        Ip ip = ip();
+        if ((decoded & PROTO_DECODED) == 0) {
+            ByteBuffer buffer = headerBuffer();
+            int start = offset + ip.getUpperLayerOffset();
+            int end = offset + length;
+            Protocol next = ip.getNextHeaderProtocol();
+            Header header;
+            if (next == Protocol.TCP) {
+                if (tcp == null)
+                    tcp = new Tcp(buffer, ip, start);
+                tcp.rebind(buffer, ip, start, end);
+                header = tcp;
+            } else if (next == Protocol.UDP) {
+                if (udp == null)
+                    udp = new Udp(buffer, ip, start);
+                udp.rebind(buffer, ip, start, end);
+                header = udp;
+            } else if (next == Protocol.ICMP) {
+                if (icmpv4 == null)
+                    icmpv4 = new Icmpv4(buffer, start);
+                icmpv4.rebind(buffer, start, end);
+                header = icmpv4;
+            } else if (next == Protocol.ICMPV6) {
+                if (icmpv6 == null)
+                    icmpv6 = new Icmpv6(buffer, ip, start);
+                icmpv6.rebind(buffer, ip, start, end);
+                header = icmpv6;
+            } else {
+                header = null;
+            }
+            if (header != null)
+                header.setIncrementalChecksum(incrementalChecksums);
+            protoHeader = header;
+            decoded |= PROTO_DECODED;
+        }
+        return protoHeader;
+    }
+
+    /**
+     * @return The protocol of the upper layer header, without decoding any header.
+     */
+    private Protocol protocol() {
+        return (decoded & IP_DECODED) != 0 ? ipHdr.getNextHeaderProtocol() : protocol;
+    }
+
+    private void applyIncrementalChecksums() {
+        if (ipHdr != null) {
+            ipHdr.setIncrementalChecksum(incrementalChecksums);
+            if (incrementalChecksums)
+                proto();
+        }
+        if (protoHeader != null)
+            protoHeader.setIncrementalChecksum(incrementalChecksums);
     }
 
     /**
@@ -81,7 +327,7 @@ public class Packet {
      * @return True if packet is an Ipv4 one.
      */
     public boolean isIpv4() {
-        return ipHdr.getVersion() == 4;
+        return version == 4;
     }
 
     /**
@@ -90,7 +336,7 @@ public class Packet {
      * @return True if packet is an Ipv6 one.
      */
     public boolean isIpv6() {
-        return ipHdr.getVersion() == 6;
+        return version == 6;
     }
 
     /**
@@ -99,7 +345,7 @@ public class Packet {
      * @return True if packet is an Icmpv4 one
      */
     public boolean isIcmpv4() {
-    	return ipHdr.getNextHeaderProtocol() == Protocol.ICMP;
+    	return protocol() == Protocol.ICMP;
     }
 
     /**
@@ -108,7 +354,7 @@ public class Packet {
      * @return True if packet is an Icmpv6 one.
      */
     public boolean isIcmpv6() {
-        return ipHdr.getNextHeaderProtocol() == Protocol.ICMPV6;
+        return protocol() == Protocol.ICMPV6;
     }
 
     /**
@@ -117,7 +363,7 @@ public class Packet {
      * @return True if packet is an Udp one.
      */
     public boolean isUdp() {
-        return ipHdr.getNextHeaderProtocol() == Protocol.UDP;
+        return protocol() == Protocol.UDP;
     }
 
     /**
@@ -126,7 +372,7 @@ public class Packet {
      * @return True if packet is an Tcp one.
      */
     public boolean isTcp() {
-        return ipHdr.getNextHeaderProtocol() == Protocol.TCP;
+        return protocol() == Protocol.TCP;
     }
 
     /**
@@ -135,7 +381,7 @@ public class Packet {
      * @return The {@link com.github.ffalcinelli.jdivert.headers.Tcp} if present, {@code null} otherwise.
      */
     public Tcp getTcp() {
-        return isTcp() ? (Tcp) protoHeader : null;
+        return isTcp() ? (Tcp) proto() : null;
     }
 
     /**
@@ -144,7 +390,7 @@ public class Packet {
      * @return The {@link com.github.ffalcinelli.jdivert.headers.Udp} if present, {@code null} otherwise.
      */
     public Udp getUdp() {
-        return isUdp() ? (Udp) protoHeader : null;
+        return isUdp() ? (Udp) proto() : null;
     }
 
     /**
@@ -153,7 +399,7 @@ public class Packet {
      * @return The {@link com.github.ffalcinelli.jdivert.headers.Icmpv4} if present, {@code null} otherwise.
      */
     public Icmpv4 getIcmpv4() {
-        return isIcmpv4() ? (Icmpv4) protoHeader : null;
+        return isIcmpv4() ? (Icmpv4) proto() : null;
     }
 
     /**
@@ -162,7 +408,7 @@ public class Packet {
      * @return The {@link com.github.ffalcinelli.jdivert.headers.Icmpv6} if present, {@code null} otherwise.
      */
     public Icmpv6 getIcmpv6() {
-        return isIcmpv6() ? (Icmpv6) protoHeader : null;
+        return isIcmpv6() ? (Icmpv6) proto() : null;
     }
 
     /**
@@ -171,7 +417,7 @@ public class Packet {
      * @return The {@link com.github.ffalcinelli.jdivert.headers.Ipv4} if present, {@code null} otherwise.
      */
     public Ipv4 getIpv4() {
-        return isIpv4() ? (Ipv4) ipHdr : null;
+        return isIpv4() ? (Ipv4) ip() : null;
     }
 
     /**
@@ -180,15 +426,15 @@ public class Packet {
      * @return The {@link com.github.ffalcinelli.jdivert.headers.Ipv6} if present, {@code null} otherwise.
      */
     public Ipv6 getIpv6() {
-        return isIpv6() ? (Ipv6) ipHdr : null;
+        return isIpv6() ? (Ipv6) ip() : null;
     }
     
     public Ip getIpHeader() {
-    	return ipHdr;
+    	return ip();
     }
     
     public Header getProtocolHeader() {
-    	return this.protoHeader;
+    	return proto();
     }
 
     /**
@@ -197,17 +443,17 @@ public class Packet {
      * @return The source address String.
      */
     public String getSrcAddr() {
-        return ipHdr.getSrcAddrStr();
+        return ip().getSrcAddrStr();
     }
 
     /**
      * Convenience method to set the source address.
      *
-     * @param address The String representing the source address to set.
-     * @throws UnknownHostException Unlikely to be thrown...
+     * @param address The literal of the source address to set, never resolved.
+     * @throws UnknownHostException If the address is not a literal of the packet IP version.
      */
     public void setSrcAddr(String address) throws UnknownHostException {
-        ipHdr.setSrcAddrStr(address);
+        ip().setSrcAddrStr(address);
     }
 
     /**
@@ -216,17 +462,17 @@ public class Packet {
      * @return The destination address String.
      */
     public String getDstAddr() {
-        return ipHdr.getDstAddrStr();
+        return ip().getDstAddrStr();
     }
 
     /**
      * Convenience method to set the destination address.
      *
-     * @param address The String representing the destination address to set.
-     * @throws UnknownHostException Unlikely to be thrown...
+     * @param address The literal of the destination address to set, never resolved.
+     * @throws UnknownHostException If the address is not a literal of the packet IP version.
      */
     public void setDstAddr(String address) throws UnknownHostException {
-        ipHdr.setDstAddrStr(address);
+        ip().setDstAddrStr(address);
     }
 
     /**
@@ -235,7 +481,7 @@ public class Packet {
      * @return The source port number if present, {@code null} otherwise.
      */
     public Integer getSrcPort() {
-        return protoHeader.hasPorts() ? ((Transport) protoHeader).getSrcPort() : null;
+        return hasPorts() ? ((Transport) proto()).getSrcPort() : null;
     }
 
     /**
@@ -244,8 +490,8 @@ public class Packet {
      * @param port The port number to set for source service. If packet does not have such info an {@link java.lang.IllegalStateException} is thrown.
      */
     public void setSrcPort(int port) {
-        if (protoHeader.hasPorts())
-            ((Transport) protoHeader).setSrcPort(port);
+        if (hasPorts())
+            ((Transport) proto()).setSrcPort(port);
         else
             throw new IllegalStateException("A port number cannot be set");
     }
@@ -256,7 +502,7 @@ public class Packet {
      * @return The destination port number if present, {@code null} otherwise.
      */
     public Integer getDstPort() {
-        return protoHeader.hasPorts() ? ((Transport) protoHeader).getDstPort() : null;
+        return hasPorts() ? ((Transport) proto()).getDstPort() : null;
     }
 
     /**
@@ -265,32 +511,339 @@ public class Packet {
      * @param port The port number to set for destination service. If packet does not have such info an {@link java.lang.IllegalStateException} is thrown.
      */
     public void setDstPort(int port) {
-        if (protoHeader.hasPorts())
-            ((Transport) protoHeader).setDstPort(port);
+        if (hasPorts())
+            ((Transport) proto()).setDstPort(port);
         else
             throw new IllegalStateException("A port number cannot be set");
     }
 
+    private boolean hasPorts() {
+        Header header = proto();
+        return header != null && header.hasPorts();
+    }
+
+    /**
+     * Fills a {@link FlowKey} straight from the packet bytes, without decoding any header unless IPv6 extension
+     * headers have to be walked. Ports are 0 when there are none, as in non-first fragments.
+     * <p>
+     * The key keeps the packet direction: {@link FlowKey#canonicalize() canonicalize} it to match both directions
+     * of a connection.
+     * </p>
+     *
+     * @param reuse The key to fill, a new one being created if {@code null}.
+     * @return The filled key.
+     */
+    public FlowKey extractFlowKey(FlowKey reuse) {
+        FlowKey key = reuse != null ? reuse : new FlowKey();
+        int upper;
+        int type;
+        long srcHigh, srcLow, dstHigh, dstLow;
+        boolean fragment;
+        if (version == 4) {
+            upper = (raw.get(offset) & 0x0F) * 4;
+            type = raw.get(offset + 9) & 0xFF;
+            fragment = (raw.getShort(offset + 6) & 0x1FFF) != 0;
+            srcHigh = dstHigh = 0;
+            srcLow = raw.getInt(offset + 12) & 0xFFFFFFFFL;
+            dstLow = raw.getInt(offset + 16) & 0xFFFFFFFFL;
+        } else {
+            type = raw.get(offset + 6) & 0xFF;
+            if (Ipv6.isExtensionHeader(type)) {
+                Ipv6 ip = (Ipv6) ip();
+                upper = ip.getUpperLayerOffset();
+                // The last extension header names the upper layer one, even behind non-first fragments
+                if (ip.getExtensionCount() > 0)
+                    type = raw.get(offset + ip.getExtensionOffset(ip.getExtensionCount() - 1)) & 0xFF;
+                fragment = ip.getNextHeaderProtocol() == Protocol.FRAGMENT;
+            } else {
+                upper = 40;
+                fragment = false;
+            }
+            srcHigh = raw.getLong(offset + 8);
+            srcLow = raw.getLong(offset + 16);
+            dstHigh = raw.getLong(offset + 24);
+            dstLow = raw.getLong(offset + 32);
+        }
+        int srcPort = 0, dstPort = 0;
+        if ((type == Protocol.TCP.getValue() || type == Protocol.UDP.getValue()) && !fragment && upper + 4 <= length) {
+            srcPort = raw.getShort(offset + upper) & 0xFFFF;
+            dstPort = raw.getShort(offset + upper + 2) & 0xFFFF;
+        }
+        return key.set(version, type, srcHigh, srcLow, srcPort, dstHigh, dstLow, dstPort);
+    }
+
     /**
      * Get the {@link Packet} payload.
      *
      * @return The payload's array of bytes.
      */
     public byte[] getPayload() {
-        return Util.getBytesAtOffset(raw, getHeadersLength(), raw.capacity() - getHeadersLength());
+        return Util.getBytesAtOffset(raw, offset + getHeadersLength(), length - getHeadersLength());
     }
 
     /**
-     * Sets the given byte array as {@link Packet} payload.
+     * Sets the given byte array as {@link Packet} payload, resizing the packet, see
+     * {@link #replacePayload(int, int, byte[], int, int)}.
      *
      * @param payload The byte array to use as payload.
      */
     public void setPayload(byte[] payload) {
-        //TODO: adjust length!
-    	System.out.println("headers offset: "+getHeadersLength());
-    	System.out.println("total length: "+raw.capacity());
-    	System.out.println("payload length: "+payload.length);
-        Util.setBytesAtOffset(raw, getHeadersLength(), payload.length, payload);
+        replacePayload(0, length - getHeadersLength(), payload, 0, payload.length);
+    }
+
+    /**
+     * Inserts bytes into the payload, see {@link #replacePayload(int, int, byte[], int, int)}.
+     *
+     * @param index The index into the payload to insert at.
+     * @param data  The bytes to insert.
+     */
+    public void insertPayload(int index, byte[] data) {
+        replacePayload(index, 0, data, 0, data.length);
+    }
+
+    /**
+     * Removes bytes from the payload, see {@link #replacePayload(int, int, byte[], int, int)}.
+     *
+     * @param index  The index into the payload of the first byte to remove.
+     * @param length How many bytes to remove.
+     */
+    public void removePayload(int index, int length) {
+        replacePayload(index, length, null, 0, 0);
+    }
+
+    /**
+     * Replaces a range of the payload with other bytes, growing or shrinking the packet.
+     * <p>
+     * The fewest bytes are moved: those before the range into the headroom, or those after it into the tailroom.
+     * When neither has room enough the packet is copied to a new buffer, keeping the
+     * {@link #setReservedRoom(int, int) reserved} headroom and tailroom; the packet is then no longer a view of the
+     * former buffer. The IP and UDP lengths are then updated and all of the checksums computed again.
+     * </p>
+     *
+     * @param index   The index into the payload of the range to replace.
+     * @param removed The length of the range to replace.
+     * @param data    The bytes replacing the range, may be {@code null} if {@code count} is 0.
+     * @param from    The index of the first byte of {@code data} to use.
+     * @param count   How many bytes of {@code data} to use.
+     */
+    public void replacePayload(int index, int removed, byte[] data, int from, int count) {
+        int headers = getHeadersLength();
+        if (index < 0 || removed < 0 || count < 0 || index + removed > length - headers) {
+            throw new IndexOutOfBoundsException("The range does not fit the payload");
+        }
+        int delta = count - removed;
+        int before = headers + index;
+        int after = length - before - removed;
+        if (delta > 0) {
+            if (getHeadroom() >= delta && before <= after) {
+                Util.moveBytes(raw, offset, offset - delta, before);
+                offset -= delta;
+            } else {
+                if (getTailroom() < delta)
+                    relocate(length + delta);
+                Util.moveBytes(raw, offset + before + removed, offset + before + count, after);
+            }
+        } else if (delta < 0) {
+            if (before < after) {
+                Util.moveBytes(raw, offset, offset - delta, before);
+                offset -= delta;
+            } else {
+                Util.moveBytes(raw, offset + before + removed, offset + before + count, after);
+            }
+        }
+        for (int i = 0; i < count; i++)
+            raw.put(offset + before + i, data[from + i]);
+        length += delta;
+        fixLengths();
+    }
+
+    /**
+     * Copies the packet to a new buffer of the same kind, with the reserved headroom and tailroom.
+     */
+    private void relocate(int newLength) {
+        int capacity = reservedHeadroom + Math.max(length, newLength) + reservedTailroom;
+        ByteBuffer buffer = raw.isDirect() ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        for (int i = 0; i < length; i++)
+            buffer.put(reservedHeadroom + i, raw.get(offset + i));
+        raw = buffer;
+        offset = reservedHeadroom;
+        roomStart = 0;
+        roomEnd = capacity;
+        duplicateBuffer = false;
+    }
+
+    /**
+     * Updates the lengths and the checksums of the headers after a resize.
+     */
+    private void fixLengths() {
+        scan();
+        Ip ip = ip();
+        if (version == 4)
+            ((Ipv4) ip).setTotalLength(length);
+        else
+            ((Ipv6) ip).setPayloadLength((short) (length - ip.getHeaderLength()));
+        Header header = proto();
+        if (header instanceof Udp)
+            ((Udp) header).setLength(length - ip.getUpperLayerOffset());
+        calculateAllCheckSumsLocal();
+    }
+
+    /**
+     * Sets the room left before and after the packet whenever a resize copies it to a new buffer, so that later
+     * resizes seldom need another copy. Defaults to {@value #DEFAULT_HEADROOM} and {@value #DEFAULT_TAILROOM} bytes.
+     *
+     * @param headroom The room before the packet.
+     * @param tailroom The room after the packet.
+     */
+    public void setReservedRoom(int headroom, int tailroom) {
+        if (headroom < 0 || tailroom < 0) {
+            throw new IllegalArgumentException("The reserved room cannot be negative");
+        }
+        this.reservedHeadroom = headroom;
+        this.reservedTailroom = tailroom;
+    }
+
+    /**
+     * @return The room owned by the packet before it.
+     */
+    public int getHeadroom() {
+        return offset - roomStart;
+    }
+
+    /**
+     * @return The room owned by the packet after it.
+     */
+    public int getTailroom() {
+        return roomEnd - offset - length;
+    }
+
+    /**
+     * Sets the MTU {@link #fragment()} splits packets to, 0 (the default) meaning no limit.
+     *
+     * @param mtu The largest packet length.
+     */
+    public void setMtu(int mtu) {
+        if (mtu < 0) {
+            throw new IllegalArgumentException("The MTU cannot be negative");
+        }
+        this.mtu = mtu;
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    /**
+     * Splits the packet into fragments fitting the {@link #setMtu(int) configured} MTU.
+     *
+     * @return This packet alone if it fits, its fragments otherwise.
+     * @see #fragment(int)
+     */
+    public Packet[] fragment() {
+        return mtu == 0 ? new Packet[]{this} : fragment(mtu);
+    }
+
+    /**
+     * Splits the packet into fragments of at most {@code mtu} bytes, each in its own heap buffer and with the
+     * metadata of this packet.
+     * <p>
+     * IPv4 fragments repeat the whole header, options included; fragments of fragments are supported. IPv6 fragments
+     * repeat the unfragmentable part, up to the last hop-by-hop or routing header, followed by a new fragment header.
+     * Checksums of the upper layer must be correct beforehand, as after any resize.
+     * </p>
+     *
+     * @param mtu The largest fragment length.
+     * @return This packet alone if it fits, its fragments otherwise.
+     * @throws IllegalStateException If the packet cannot be fragmented: IPv4 with the don't fragment flag, or IPv6
+     *                               already fragmented.
+     */
+    public Packet[] fragment(int mtu) {
+        if (length <= mtu)
+            return new Packet[]{this};
+        return version == 4 ? fragmentIpv4(mtu) : fragmentIpv6(mtu);
+    }
+
+    private Packet[] fragmentIpv4(int mtu) {
+        int headerLength = (raw.get(offset) & 0x0F) * 4;
+        int flags = raw.getShort(offset + 6) & 0xFFFF;
+        if ((flags & 0x4000) != 0) {
+            throw new IllegalStateException("The don't fragment flag is set");
+        }
+        int chunk = (mtu - headerLength) & ~7;
+        if (chunk <= 0) {
+            throw new IllegalArgumentException("The MTU is too small");
+        }
+        int dataLength = length - headerLength;
+        int fragmentOffset = (flags & 0x1FFF) * 8;
+        Packet[] fragments = new Packet[(dataLength + chunk - 1) / chunk];
+        for (int i = 0; i < fragments.length; i++) {
+            int size = Math.min(chunk, dataLength - i * chunk);
+            boolean more = i < fragments.length - 1 || (flags & 0x2000) != 0;
+            ByteBuffer buffer = ByteBuffer.allocate(headerLength + size);
+            copyTo(buffer, 0, offset, headerLength);
+            copyTo(buffer, headerLength, offset + headerLength + i * chunk, size);
+            buffer.putShort(2, (short) (headerLength + size));
+            buffer.putShort(6, (short) ((more ? 0x2000 : 0) | ((fragmentOffset + i * chunk) / 8)));
+            Checksum.compute(buffer, 0, headerLength, 10, 0);
+            fragments[i] = newFragment(buffer);
+        }
+        return fragments;
+    }
+
+    private Packet[] fragmentIpv6(int mtu) {
+        Ipv6 ip = (Ipv6) ip();
+        if (ip.isFragment()) {
+            throw new IllegalStateException("The packet is already a fragment");
+        }
+        // The unfragmentable part ends after the last hop-by-hop or routing header
+        int unfragmentable = ip.getHeaderLength();
+        int nextIndex = 6;
+        for (int i = 0; i < ip.getExtensionCount(); i++) {
+            int type = ip.getExtensionType(i);
+            if (type == Protocol.HOPOPT.getValue() || type == Protocol.ROUTING.getValue()) {
+                nextIndex = ip.getExtensionOffset(i);
+                unfragmentable = i + 1 < ip.getExtensionCount() ? ip.getExtensionOffset(i + 1) : ip.getUpperLayerOffset();
+            }
+        }
+        int chunk = (mtu - unfragmentable - 8) & ~7;
+        if (chunk <= 0) {
+            throw new IllegalArgumentException("The MTU is too small");
+        }
+        int nextHeader = raw.get(offset + nextIndex) & 0xFF;
+        int identification = FRAGMENT_IDS.incrementAndGet();
+        int dataLength = length - unfragmentable;
+        Packet[] fragments = new Packet[(dataLength + chunk - 1) / chunk];
+        for (int i = 0; i < fragments.length; i++) {
+            int size = Math.min(chunk, dataLength - i * chunk);
+            boolean more = i < fragments.length - 1;
+            ByteBuffer buffer = ByteBuffer.allocate(unfragmentable + 8 + size);
+            copyTo(buffer, 0, offset, unfragmentable);
+            copyTo(buffer, unfragmentable + 8, offset + unfragmentable + i * chunk, size);
+            buffer.putShort(4, (short) (buffer.capacity() - 40));
+            buffer.put(nextIndex, (byte) Protocol.FRAGMENT.getValue());
+            buffer.put(unfragmentable, (byte) nextHeader);
+            buffer.putShort(unfragmentable + 2, (short) ((i * chunk) | (more ? 1 : 0)));
+            buffer.putInt(unfragmentable + 4, identification);
+            fragments[i] = newFragment(buffer);
+        }
+        return fragments;
+    }
+
+    private void copyTo(ByteBuffer buffer, int index, int from, int count) {
+        for (int i = 0; i < count; i++)
+            buffer.put(index + i, raw.get(from + i));
+    }
+
+    private Packet newFragment(ByteBuffer buffer) {
+        Packet fragment = new Packet(buffer, addr);
+        fragment.timestamp = timestamp;
+        fragment.addrFlags = addrFlags;
+        fragment.ifIdx = ifIdx;
+        fragment.subIfIdx = subIfIdx;
+        fragment.setReservedRoom(reservedHeadroom, reservedTailroom);
+        fragment.mtu = mtu;
+        return fragment;
     }
 
     /**
@@ -298,39 +851,216 @@ public class Packet {
      * @return The overall {@link Packet} headers length
      */
     public int getHeadersLength() {
-    	return ipHdr.getHeaderLength() + protoHeader.getHeaderLength();
+    	Header header = proto();
+    	return ip().getUpperLayerOffset() + (header != null ? header.getHeaderLength() : 0);
     }
 
     /**
      * Get the {@link Packet} content (headers and payload) as an array of bytes.
+     * <p>
+     * Packets viewing a slice of a larger or native buffer always return a copy.
+     * </p>
      * @param copy Whether to copy the stored raw data or return the raw data as is
      * @return The packet's array of bytes.
      */
     public byte[] getRaw(boolean copy) {
-        return copy ? Util.getBytesAtOffset(raw, 0, raw.capacity()) : raw.array();
+        return copy || offset != 0 || !raw.hasArray() || raw.arrayOffset() != 0 || raw.array().length != length
+                ? Util.getBytesAtOffset(raw, offset, length) : raw.array();
+    }
+
+    /**
+     * Return the {@link java.nio.ByteBuffer} holding this {@link Packet}, from {@link #getOffset()} for
+     * {@link #getLength()} bytes.
+     *
+     * @return The internal {@link java.nio.ByteBuffer}
+     */
+    public ByteBuffer getByteBuffer() {
+        return raw;
+    }
+
+    /**
+     * @return The index of this {@link Packet} into its {@link #getByteBuffer() buffer}.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return The length of this {@link Packet}.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Hands the buffer backing this {@link Packet} back to its owner, e.g. the pool of batch buffers used by
+     * {@link com.github.ffalcinelli.jdivert.windivert.WinDivert#recvEx() recvEx}.
+     * <p>
+     * The packet must not be used after being released. Releasing twice has no effect.
+     * </p>
+     */
+    public void release() {
+        Runnable r = releaser;
+        releaser = null;
+        if (r != null)
+            r.run();
     }
 
     /**
      * Put the {@link Packet} metadata into a {@link com.github.ffalcinelli.jdivert.windivert.WinDivertAddress} structure.
+     * <p>
+     * The structure is built on first call, later changes to it are reflected by the packet.
+     * </p>
      *
      * @return The {@link com.github.ffalcinelli.jdivert.windivert.WinDivertAddress} representing the packet metadata.
      */
     public WinDivertAddress getWinDivertAddress() {
+        if (addr == null) {
+            addr = WinDivertAddressCodec.toStructure(timestamp, addrFlags, ifIdx, subIfIdx);
+        }
         return addr;
     }
+
+    /**
+     * Decodes the packet metadata from a native {@code WINDIVERT_ADDRESS}, without building a
+     * {@link com.github.ffalcinelli.jdivert.windivert.WinDivertAddress} structure.
+     *
+     * @param pAddr  The native buffer holding the address.
+     * @param offset The offset of the address in the buffer.
+     */
+    public void readAddress(Pointer pAddr, long offset) {
+        addr = null;
+        timestamp = WinDivertAddressCodec.getTimestamp(pAddr, offset);
+        addrFlags = WinDivertAddressCodec.getFlags(pAddr, offset);
+        ifIdx = WinDivertAddressCodec.getIfIdx(pAddr, offset);
+        subIfIdx = WinDivertAddressCodec.getSubIfIdx(pAddr, offset);
+    }
+
+    /**
+     * Encodes the packet metadata as a native {@code WINDIVERT_ADDRESS}.
+     *
+     * @param pAddr  The native buffer receiving the address.
+     * @param offset The offset of the address in the buffer.
+     */
+    public void writeAddress(Pointer pAddr, long offset) {
+        if (addr != null) {
+            WinDivertAddressCodec.write(pAddr, offset, addr);
+        } else {
+            WinDivertAddressCodec.write(pAddr, offset, timestamp, addrFlags, ifIdx, subIfIdx);
+        }
+    }
+
+    /**
+     * Sets the packet metadata, without building a
+     * {@link com.github.ffalcinelli.jdivert.windivert.WinDivertAddress} structure.
+     *
+     * @param timestamp The timestamp of the packet.
+     * @param flags     The flags bitfield, see {@link WinDivertAddressCodec}.
+     * @param ifIdx     The index of the interface.
+     * @param subIfIdx  The index of the sub-interface.
+     */
+    public void setAddress(long timestamp, int flags, int ifIdx, int subIfIdx) {
+        this.addr = null;
+        this.timestamp = timestamp;
+        this.addrFlags = flags;
+        this.ifIdx = ifIdx;
+        this.subIfIdx = subIfIdx;
+    }
+
+    private void syncAddress() {
+        WinDivertAddress a = addr;
+        if (a != null) {
+            timestamp = a.timestamp;
+            addrFlags = WinDivertAddressCodec.getFlags(a);
+            WinDivertDataNetwork network = a.LayerUnion != null ? a.LayerUnion.Network : null;
+            ifIdx = network != null && network.IfIdx != null ? network.IfIdx.intValue() : 0;
+            subIfIdx = network != null && network.SubIfIdx != null ? network.SubIfIdx.intValue() : 0;
+        }
+    }
+
+    /**
+     * @return The timestamp of the packet, as reported by the driver.
+     */
+    public long getTimestamp() {
+        syncAddress();
+        return timestamp;
+    }
+
+    /**
+     * @return The flags bitfield of the packet address, see {@link WinDivertAddressCodec} to decode it.
+     */
+    public int getAddressFlags() {
+        syncAddress();
+        return addrFlags;
+    }
+
+    /**
+     * @return True if the packet is outbound, false if inbound.
+     */
+    public boolean isOutbound() {
+        return WinDivertAddressCodec.isOutbound(getAddressFlags());
+    }
+
+    /**
+     * @return True if the packet is a loopback one.
+     */
+    public boolean isLoopback() {
+        return WinDivertAddressCodec.isLoopback(getAddressFlags());
+    }
+
+    /**
+     * @return The index of the interface the packet arrived on, or is to be sent to.
+     */
+    public int getInterfaceIndex() {
+        syncAddress();
+        return ifIdx;
+    }
+
+    /**
+     * @return The index of the sub-interface the packet arrived on, or is to be sent to.
+     */
+    public int getSubInterfaceIndex() {
+        syncAddress();
+        return subIfIdx;
+    }
     
-    public void calculateAllCheckSumsLocal() {    	    	
-    	protoHeader.calculateChecksum();
-    	ipHdr.calculateChecksum();
+    public void calculateAllCheckSumsLocal() {
+    	Header header = proto();
+    	if (header != null)
+    		header.calculateChecksum();
+    	ip().calculateChecksum();
+    }
+
+    /**
+     * Computes the checksums locally, but those the given options exclude, as the WinDivert helper does.
+     *
+     * @param flags The values of the {@link CalcChecksumsOption options} to apply, or-ed together.
+     */
+    public void calculateAllCheckSumsLocal(long flags) {
+        Header header = proto();
+        if (header != null && (flags & checksumOption(protocol()).getValue()) == 0)
+            header.calculateChecksum();
+        if (version == 4 && (flags & CalcChecksumsOption.NO_IP_CHECKSUM.getValue()) == 0)
+            ip().calculateChecksum();
+    }
+
+    private static CalcChecksumsOption checksumOption(Protocol protocol) {
+        if (protocol == Protocol.TCP)
+            return CalcChecksumsOption.NO_TCP_CHECKSUM;
+        if (protocol == Protocol.UDP)
+            return CalcChecksumsOption.NO_UDP_CHECKSUM;
+        if (protocol == Protocol.ICMPV6)
+            return CalcChecksumsOption.NO_ICMPV6_CHECKSUM;
+        return CalcChecksumsOption.NO_ICMP_CHECKSUM;
     }
     
 
     @Override
     public String toString() {
         return String.format("Packet {%s, %s, %s, raw=%s}"
-                , ipHdr
-                , protoHeader
-                , addr
+                , ip()
+                , proto()
+                , getWinDivertAddress()
                 , printHexBinary(getRaw(false))
         );
     }
@@ -341,15 +1071,21 @@ public class Packet {
         if (o == null || getClass() != o.getClass()) return false;
 
         Packet packet = (Packet) o;
-        return Arrays.equals(raw.array(), packet.raw.array()) &&
-                getWinDivertAddress().equals(packet.getWinDivertAddress());
+        return Arrays.equals(getRaw(false), packet.getRaw(false)) &&
+                getTimestamp() == packet.getTimestamp() &&
+                getAddressFlags() == packet.getAddressFlags() &&
+                getInterfaceIndex() == packet.getInterfaceIndex() &&
+                getSubInterfaceIndex() == packet.getSubInterfaceIndex();
     }
 
 
     @Override
     public int hashCode() {
-        int result = Arrays.hashCode(raw.array());
-        result = 31 * result + getWinDivertAddress().hashCode();
+        int result = Arrays.hashCode(getRaw(false));
+        result = 31 * result + Long.hashCode(getTimestamp());
+        result = 31 * result + getAddressFlags();
+        result = 31 * result + getInterfaceIndex();
+        result = 31 * result + getSubInterfaceIndex();
         return result;
     }
 
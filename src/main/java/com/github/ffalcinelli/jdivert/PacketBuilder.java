@@ -0,0 +1,391 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert;
+
+import com.github.ffalcinelli.jdivert.headers.Tcp;
+import com.github.ffalcinelli.jdivert.windivert.WinDivertAddress;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static com.github.ffalcinelli.jdivert.Enums.Protocol;
+
+/**
+ * Crafts IPv4/IPv6 packets carrying a TCP, UDP or ICMP header and a payload, straight into a reusable heap or direct
+ * buffer, checksums included.
+ * <p>
+ * The buffer doubles as a template: fields keep their value from one packet to the next, so that only the varying
+ * ones are set again before each {@link #build()}. Choosing another IP version clears the upper layer header and
+ * the payload, choosing another upper layer protocol writes its header afresh with zeroed fields; calling
+ * {@link #ipv4(int, int)}, {@link #tcp(int, int)} and the like again with the same protocols only patches the
+ * addresses or ports.
+ * </p>
+ * <pre>{@code
+ * PacketBuilder rst = new PacketBuilder(ByteBuffer.allocateDirect(1500))
+ *         .ipv4(src, dst).tcp(srcPort, dstPort).tcpFlag(RST, true).inbound(ifIdx, subIfIdx);
+ * for (...) {
+ *     windivert.send(rst.tcp(srcPort, dstPort).seq(seq).build(), false);
+ * }
+ * }</pre>
+ * <p>
+ * Nothing is allocated per packet: {@link #build()} returns the same {@link Packet}, rebound to the buffer, and
+ * valid until the next call.
+ * </p>
+ */
+public final class PacketBuilder {
+
+    public static final int DEFAULT_TTL = 64;
+
+    private static final int IPV4_HEADER_LENGTH = 20;
+    private static final int IPV6_HEADER_LENGTH = 40;
+    private static final int TCP_HEADER_LENGTH = 20;
+    private static final int UDP_HEADER_LENGTH = 8;
+    private static final int ICMP_HEADER_LENGTH = 8;
+
+    private final ByteBuffer buffer;
+    private final int offset;
+    private final Packet packet = new Packet();
+
+    private int version;
+    private int ipLength;
+    private Protocol protocol;
+    private int upperLength;
+    private int payloadLength;
+
+    private WinDivertAddress address;
+    private WinDivertAddress outbound;
+    private WinDivertAddress inbound;
+    private int inboundIfIdx;
+    private int inboundSubIfIdx;
+
+    /**
+     * @param buffer The buffer to write packets into, heap or direct, e.g. viewing native memory.
+     * @param offset The index of the packets into the buffer.
+     */
+    public PacketBuilder(ByteBuffer buffer, int offset) {
+        if (offset < 0 || offset >= buffer.capacity()) {
+            throw new IllegalArgumentException("The offset does not fit the buffer");
+        }
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        this.buffer = buffer;
+        this.offset = offset;
+        outbound();
+    }
+
+    public PacketBuilder(ByteBuffer buffer) {
+        this(buffer, 0);
+    }
+
+    /**
+     * @param capacity The size of the heap buffer to write packets into.
+     */
+    public PacketBuilder(int capacity) {
+        this(ByteBuffer.allocate(capacity));
+    }
+
+    /**
+     * Uses an IPv4 header, with the given addresses.
+     *
+     * @param src The source address, most significant byte first.
+     * @param dst The destination address, most significant byte first.
+     * @return This builder.
+     */
+    public PacketBuilder ipv4(int src, int dst) {
+        if (version != 4) {
+            setVersion(4, IPV4_HEADER_LENGTH);
+            buffer.putInt(offset, 0x45000000);
+            buffer.putInt(offset + 4, 0);
+            buffer.putInt(offset + 8, DEFAULT_TTL << 24);
+        }
+        buffer.putInt(offset + 12, src);
+        buffer.putInt(offset + 16, dst);
+        return this;
+    }
+
+    /**
+     * Uses an IPv6 header, without extension headers, with the given addresses.
+     *
+     * @return This builder.
+     */
+    public PacketBuilder ipv6(long srcHigh, long srcLow, long dstHigh, long dstLow) {
+        if (version != 6) {
+            setVersion(6, IPV6_HEADER_LENGTH);
+            buffer.putInt(offset, 0x60000000);
+            buffer.putInt(offset + 4, DEFAULT_TTL);
+        }
+        buffer.putLong(offset + 8, srcHigh);
+        buffer.putLong(offset + 16, srcLow);
+        buffer.putLong(offset + 24, dstHigh);
+        buffer.putLong(offset + 32, dstLow);
+        return this;
+    }
+
+    private void setVersion(int version, int ipLength) {
+        if (offset + ipLength > buffer.capacity()) {
+            throw new IllegalArgumentException("The IP header does not fit the buffer");
+        }
+        this.version = version;
+        this.ipLength = ipLength;
+        this.protocol = null;
+        this.upperLength = 0;
+        this.payloadLength = 0;
+    }
+
+    /**
+     * Sets the IPv4 time to live, or the IPv6 hop limit, {@value #DEFAULT_TTL} by default.
+     *
+     * @return This builder.
+     */
+    public PacketBuilder ttl(int ttl) {
+        checkVersion();
+        buffer.put(offset + (version == 4 ? 8 : 7), (byte) ttl);
+        return this;
+    }
+
+    /**
+     * Sets the IPv4 identification field, 0 by default.
+     *
+     * @return This builder.
+     */
+    public PacketBuilder identification(int id) {
+        if (version != 4) {
+            throw new IllegalStateException("Not an IPv4 packet");
+        }
+        buffer.putShort(offset + 4, (short) id);
+        return this;
+    }
+
+    /**
+     * Uses a TCP header without options, with the given ports.
+     *
+     * @return This builder.
+     */
+    public PacketBuilder tcp(int srcPort, int dstPort) {
+        if (protocol != Protocol.TCP) {
+            setProtocol(Protocol.TCP, TCP_HEADER_LENGTH);
+            int start = offset + ipLength;
+            buffer.putLong(start + 4, 0);
+            buffer.putLong(start + 12, 0);
+            buffer.put(start + 12, (byte) (5 << 4));
+        }
+        return ports(srcPort, dstPort);
+    }
+
+    /**
+     * Uses a UDP header, with the given ports.
+     *
+     * @return This builder.
+     */
+    public PacketBuilder udp(int srcPort, int dstPort) {
+        if (protocol != Protocol.UDP) {
+            setProtocol(Protocol.UDP, UDP_HEADER_LENGTH);
+            buffer.putInt(offset + ipLength + 4, 0);
+        }
+        return ports(srcPort, dstPort);
+    }
+
+    /**
+     * Uses an ICMP header, or an ICMPv6 one for IPv6 packets.
+     *
+     * @param type The message type.
+     * @param code The message code.
+     * @param rest The last 4 bytes of the header, e.g. identifier and sequence number of echo messages.
+     * @return This builder.
+     */
+    public PacketBuilder icmp(int type, int code, int rest) {
+        checkVersion();
+        Protocol icmp = version == 4 ? Protocol.ICMP : Protocol.ICMPV6;
+        if (protocol != icmp) {
+            setProtocol(icmp, ICMP_HEADER_LENGTH);
+        }
+        int start = offset + ipLength;
+        buffer.put(start, (byte) type);
+        buffer.put(start + 1, (byte) code);
+        buffer.putInt(start + 4, rest);
+        return this;
+    }
+
+    private void setProtocol(Protocol protocol, int upperLength) {
+        checkVersion();
+        if (offset + ipLength + upperLength > buffer.capacity()) {
+            throw new IllegalArgumentException("The upper layer header does not fit the buffer");
+        }
+        this.protocol = protocol;
+        this.upperLength = upperLength;
+        this.payloadLength = 0;
+        buffer.put(offset + (version == 4 ? 9 : 6), (byte) protocol.getValue());
+    }
+
+    private PacketBuilder ports(int srcPort, int dstPort) {
+        int start = offset + ipLength;
+        buffer.putShort(start, (short) srcPort);
+        buffer.putShort(start + 2, (short) dstPort);
+        return this;
+    }
+
+    public PacketBuilder seq(long seq) {
+        buffer.putInt(tcpStart() + 4, (int) seq);
+        return this;
+    }
+
+    public PacketBuilder ack(long ack) {
+        buffer.putInt(tcpStart() + 8, (int) ack);
+        return this;
+    }
+
+    /**
+     * Sets all of the TCP flags at once, laid out as in {@link Tcp#getFlags()}.
+     *
+     * @return This builder.
+     */
+    public PacketBuilder tcpFlags(int flags) {
+        int start = tcpStart();
+        buffer.put(start + 12, (byte) ((buffer.get(start + 12) & 0xFE) | ((flags >> 8) & 0x01)));
+        buffer.put(start + 13, (byte) flags);
+        return this;
+    }
+
+    public PacketBuilder tcpFlag(Tcp.Flag flag, boolean value) {
+        int index = tcpStart() + (flag == Tcp.Flag.NS ? 12 : 13);
+        int bit = flag == Tcp.Flag.NS ? 1 : 1 << (8 - flag.ordinal());
+        int b = buffer.get(index);
+        buffer.put(index, (byte) (value ? b | bit : b & ~bit));
+        return this;
+    }
+
+    public PacketBuilder window(int window) {
+        buffer.putShort(tcpStart() + 14, (short) window);
+        return this;
+    }
+
+    private int tcpStart() {
+        if (protocol != Protocol.TCP) {
+            throw new IllegalStateException("Not a TCP packet");
+        }
+        return offset + ipLength;
+    }
+
+    /**
+     * Copies the payload behind the headers, to be kept by later packets unless replaced.
+     *
+     * @return This builder.
+     */
+    public PacketBuilder payload(byte[] data, int from, int length) {
+        buffer.position(payloadStart(length));
+        buffer.put(data, from, length);
+        payloadLength = length;
+        return this;
+    }
+
+    public PacketBuilder payload(byte[] data) {
+        return payload(data, 0, data.length);
+    }
+
+    /**
+     * Copies the remaining bytes of the given buffer as payload, see {@link #payload(byte[], int, int)}.
+     *
+     * @param data The payload, whose position is moved to its limit.
+     * @return This builder.
+     */
+    public PacketBuilder payload(ByteBuffer data) {
+        int length = data.remaining();
+        buffer.position(payloadStart(length));
+        buffer.put(data);
+        payloadLength = length;
+        return this;
+    }
+
+    private int payloadStart(int length) {
+        if (protocol == null) {
+            throw new IllegalStateException("No upper layer header");
+        }
+        int start = offset + ipLength + upperLength;
+        if (length < 0 || start + length > buffer.capacity()) {
+            throw new IllegalArgumentException("The payload does not fit the buffer");
+        }
+        return start;
+    }
+
+    /**
+     * Sends packets towards the network, the default.
+     *
+     * @return This builder.
+     */
+    public PacketBuilder outbound() {
+        if (outbound == null) {
+            outbound = WinDivertAddress.createOutboundNetworkWinDivertAddress(false, true, true, true);
+        }
+        address = outbound;
+        return this;
+    }
+
+    /**
+     * Sends packets towards the local stack, as if received on the given interface.
+     *
+     * @return This builder.
+     */
+    public PacketBuilder inbound(int ifIdx, int subIfIdx) {
+        if (inbound == null || inboundIfIdx != ifIdx || inboundSubIfIdx != subIfIdx) {
+            inbound = WinDivertAddress.createInboundNetworkWinDivertAddress(ifIdx, subIfIdx, false, true, true, true);
+            inboundIfIdx = ifIdx;
+            inboundSubIfIdx = subIfIdx;
+        }
+        address = inbound;
+        return this;
+    }
+
+    /**
+     * Writes the lengths and the checksums of the packet.
+     *
+     * @return The packet, reused by later calls: to be sent without recalculating checksums.
+     */
+    public Packet build() {
+        if (protocol == null) {
+            throw new IllegalStateException("No upper layer header");
+        }
+        int upper = offset + ipLength;
+        int end = upper + upperLength + payloadLength;
+        int upperTotal = end - upper;
+        long pseudoSum;
+        if (version == 4) {
+            buffer.putShort(offset + 2, (short) (end - offset));
+            Checksum.compute(buffer, offset, upper, offset + 10, 0);
+            pseudoSum = protocol == Protocol.ICMP ? 0
+                    : Checksum.sum(buffer, offset + 12, offset + 20) + protocol.getValue() + upperTotal;
+        } else {
+            buffer.putShort(offset + 4, (short) upperTotal);
+            pseudoSum = Checksum.sum(buffer, offset + 8, offset + 40) + protocol.getValue() + upperTotal;
+        }
+        if (protocol == Protocol.TCP) {
+            Checksum.compute(buffer, upper, end, upper + 16, pseudoSum);
+        } else if (protocol == Protocol.UDP) {
+            buffer.putShort(upper + 4, (short) upperTotal);
+            int cksum = Checksum.compute(buffer, upper, end, upper + 6, pseudoSum);
+            buffer.putShort(upper + 6, (short) Util.udpChecksum(cksum));
+        } else {
+            Checksum.compute(buffer, upper, end, upper + 2, pseudoSum);
+        }
+        return packet.rebind(buffer, offset, end - offset, address, offset, buffer.capacity() - end);
+    }
+
+    private void checkVersion() {
+        if (version == 0) {
+            throw new IllegalStateException("No IP header");
+        }
+    }
+}
@@ -151,7 +151,37 @@ public class Util {
             buffer.position(position);
         }
     }
-    
+
+    /**
+     * Moves bytes within a {@link java.nio.ByteBuffer}, the source and destination ranges possibly overlapping.
+     *
+     * @param buffer The {@link java.nio.ByteBuffer} holding the bytes.
+     * @param from   The absolute offset of the bytes to move.
+     * @param to     The absolute offset to move them to.
+     * @param length How many bytes to move.
+     */
+    public static void moveBytes(ByteBuffer buffer, int from, int to, int length) {
+        if (from == to || length == 0)
+            return;
+        if (buffer.hasArray()) {
+            int base = buffer.arrayOffset();
+            System.arraycopy(buffer.array(), base + from, buffer.array(), base + to, length);
+        } else if (to < from) {
+            int i = 0;
+            for (; i + 8 <= length; i += 8)
+                buffer.putLong(to + i, buffer.getLong(from + i));
+            for (; i < length; i++)
+                buffer.put(to + i, buffer.get(from + i));
+        } else {
+            // Backwards, not to overwrite bytes still to be moved
+            int i = length;
+            for (; i >= 8; i -= 8)
+                buffer.putLong(to + i - 8, buffer.getLong(from + i - 8));
+            for (; i > 0; i--)
+                buffer.put(to + i - 1, buffer.get(from + i - 1));
+        }
+    }
+
     
 
     /**
@@ -183,7 +213,8 @@ public class Util {
       // Skip existing checksum.
       i = checksumOffset + 2;
 
-      imax = length - (length % 2);
+      // Pairs are counted from the header start, which may be odd inside a larger buffer
+      imax = length - ((length - i) % 2);
 
       while (i < imax) {
         total += (((_data_[i++] & 0xff) << 8) | (_data_[i++] & 0xff));
@@ -208,6 +239,44 @@ public class Util {
       return total;
     }
 
+    /**
+     * Incrementally updates a checksum as of RFC 1624 eqn. 3: {@code HC' = ~(~HC + ~m + m')}.
+     *
+     * @param checksum The current checksum.
+     * @param delta    The sum of {@code ~m + m'} over every changed 16-bit word.
+     * @return The updated checksum.
+     */
+    public static int adjustChecksum(int checksum, long delta) {
+        long sum = (~checksum & 0xFFFF) + delta;
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return (int) (~sum & 0xFFFF);
+    }
+
+    /**
+     * Maps a computed UDP checksum to the one to send: zero stands for no checksum, thus a computed zero is sent as
+     * all ones.
+     *
+     * @param checksum The computed checksum.
+     * @return The checksum to send.
+     */
+    public static int udpChecksum(int checksum) {
+        return checksum == 0 ? 0xFFFF : checksum;
+    }
+
+    /**
+     * Incrementally updates a UDP checksum, see {@link #adjustChecksum(int, long)}. A zero checksum means none has
+     * been computed and is left as is, see {@link #udpChecksum(int)}.
+     *
+     * @param checksum The current checksum.
+     * @param delta    The sum of {@code ~m + m'} over every changed 16-bit word.
+     * @return The updated checksum.
+     */
+    public static int adjustUdpChecksum(int checksum, long delta) {
+        return checksum == 0 ? 0 : udpChecksum(adjustChecksum(checksum, delta));
+    }
+
     /**
      * Convert a short into its unsigned representation as int.
      *
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.conntrack;
+
+/**
+ * The state of a tracked connection, each with its default idle timeout.
+ */
+public enum ConnState {
+    /**
+     * A flow without handshake, e.g. UDP, seen in the original direction only.
+     */
+    NEW(30000),
+    /**
+     * A flow without handshake seen in both directions.
+     */
+    REPLIED(180000),
+    SYN_SENT(120000),
+    SYN_RECEIVED(60000),
+    ESTABLISHED(5 * 24 * 3600 * 1000L),
+    /**
+     * One side sent a FIN.
+     */
+    FIN_WAIT(120000),
+    /**
+     * Both sides sent a FIN.
+     */
+    TIME_WAIT(120000),
+    /**
+     * A side sent a RST.
+     */
+    CLOSED(10000);
+
+    private static final ConnState[] VALUES = values();
+
+    private final long defaultTimeout;
+
+    ConnState(long defaultTimeout) {
+        this.defaultTimeout = defaultTimeout;
+    }
+
+    /**
+     * @return The default idle timeout, in milliseconds.
+     */
+    public long getDefaultTimeout() {
+        return defaultTimeout;
+    }
+
+    static ConnState fromOrdinal(int ordinal) {
+        return VALUES[ordinal];
+    }
+}
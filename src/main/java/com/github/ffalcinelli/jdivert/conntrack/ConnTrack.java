@@ -0,0 +1,417 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.conntrack;
+
+import com.github.ffalcinelli.jdivert.FlowKey;
+import com.github.ffalcinelli.jdivert.Packet;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static com.github.ffalcinelli.jdivert.Enums.Protocol;
+import static com.github.ffalcinelli.jdivert.headers.Tcp.Flag.*;
+
+/**
+ * A connection tracking table, held in direct memory so that millions of connections cost the garbage collector
+ * nothing.
+ * <p>
+ * Connections are keyed by the {@link FlowKey#canonicalize() canonical} form of their {@link FlowKey}, read from
+ * the raw packet bytes, so both directions share the entry. The table is split into shards, each an open addressing
+ * table with linear probing and its own lock: threads working on different shards never contend. Removals shift
+ * the following entries back instead of leaving tombstones.
+ * </p>
+ * <p>
+ * TCP connections follow a compact state machine driven by the SYN, ACK, FIN and RST flags; other protocols are
+ * {@link ConnState#NEW new} until a reply is seen. Each state has its own idle timeout: expired connections are
+ * swept by {@link #expire(long, int)} and replaced on lookup.
+ * </p>
+ */
+public class ConnTrack {
+
+    // Entry layout: the canonical key, then the state and the counters
+    private static final int SLOT = 64;
+    private static final int SRC_HIGH = 0;
+    private static final int SRC_LOW = 8;
+    private static final int DST_HIGH = 16;
+    private static final int DST_LOW = 24;
+    private static final int SRC_PORT = 32;
+    private static final int DST_PORT = 34;
+    private static final int PROTOCOL = 36;
+    private static final int VERSION = 37;
+    private static final int STATE = 38;
+    private static final int FLAGS = 39;
+    private static final int HASH = 40;
+    private static final int PACKETS = 44;
+    private static final int BYTES = 48;
+    private static final int LAST_SEEN = 56;
+
+    private static final int USED = 1;
+    // The connection was created by a packet going against the canonical key
+    private static final int ORIGIN_REVERSED = 2;
+    private static final int FIN_ORIGINAL = 4;
+    private static final int FIN_REPLY = 8;
+
+    private static final int TCP = Protocol.TCP.getValue();
+
+    private final Shard[] shards;
+    private final long[] timeouts = new long[ConnState.values().length];
+
+    /**
+     * @param capacity   How many connections may be tracked at once, split evenly among the shards: each shard
+     *                   refuses connections beyond its part, its table being at most three quarters full.
+     * @param shardCount How many shards, thus locks, split the table: rounded up to a power of two.
+     */
+    public ConnTrack(int capacity, int shardCount) {
+        if (capacity <= 0 || shardCount <= 0) {
+            throw new IllegalArgumentException("The capacity and the shard count must be positive");
+        }
+        int count = Integer.highestOneBit(shardCount * 2 - 1);
+        long perShard = ((long) capacity + count - 1) / count;
+        long slots = Long.highestOneBit(Math.max(perShard * 4 / 3, 2) * 2 - 1);
+        if (slots * SLOT > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many connections per shard, use more shards");
+        }
+        int shardBits = Integer.numberOfTrailingZeros(count);
+        this.shards = new Shard[count];
+        for (int i = 0; i < count; i++)
+            shards[i] = new Shard((int) slots, (int) perShard, shardBits);
+        for (ConnState state : ConnState.values())
+            timeouts[state.ordinal()] = state.getDefaultTimeout();
+    }
+
+    /**
+     * @param state   The state to set the idle timeout of.
+     * @param timeout The timeout, in milliseconds.
+     */
+    public void setTimeout(ConnState state, long timeout) {
+        timeouts[state.ordinal()] = timeout;
+    }
+
+    public long getTimeout(ConnState state) {
+        return timeouts[state.ordinal()];
+    }
+
+    /**
+     * Updates the connection of a packet, created if new, and its state.
+     *
+     * @param packet The packet to track.
+     * @param now    The current time, in milliseconds.
+     * @param reuse  The connection view to fill, a new one being created if {@code null}.
+     * @return The connection, {@code null} if the shard is full.
+     */
+    public Connection track(Packet packet, long now, Connection reuse) {
+        Connection conn = reuse != null ? reuse : new Connection();
+        FlowKey key = packet.extractFlowKey(conn.key);
+        int flags = key.getProtocol() == TCP && packet.isTcp() ? packet.getTcp().getFlags() : -1;
+        boolean swapped = !key.isCanonical();
+        if (swapped)
+            key.reverse();
+        try {
+            int hash = key.hashCode();
+            Shard shard = shard(hash);
+            synchronized (shard) {
+                int slot = shard.find(hash, key);
+                ByteBuffer table = shard.table;
+                boolean created = slot < 0 || isExpired(table, slot * SLOT, now);
+                if (created) {
+                    if (slot < 0) {
+                        if (shard.size == shard.maxSize)
+                            return null;
+                        slot = -slot - 1;
+                        shard.size++;
+                    }
+                    create(table, slot * SLOT, key, hash, swapped, flags);
+                }
+                int base = slot * SLOT;
+                boolean reply = swapped != ((table.get(base + FLAGS) & ORIGIN_REVERSED) != 0);
+                if (!created)
+                    update(table, base, reply, flags);
+                table.putInt(base + PACKETS, table.getInt(base + PACKETS) + 1);
+                table.putLong(base + BYTES, table.getLong(base + BYTES) + packet.getLength());
+                table.putLong(base + LAST_SEEN, now);
+                read(table, base, conn);
+                conn.reply = reply;
+                conn.created = created;
+                return conn;
+            }
+        } finally {
+            if (swapped)
+                key.reverse();
+        }
+    }
+
+    /**
+     * Looks a connection up, without updating it.
+     *
+     * @param key   The key of the connection, in either direction: left as is.
+     * @param now   The current time, in milliseconds, expired connections being missing.
+     * @param reuse The connection view to fill, a new one being created if {@code null}.
+     * @return The connection, {@code null} if missing.
+     */
+    public Connection lookup(FlowKey key, long now, Connection reuse) {
+        Connection conn = reuse != null ? reuse : new Connection();
+        boolean swapped = !key.isCanonical();
+        if (swapped)
+            key.reverse();
+        try {
+            int hash = key.hashCode();
+            Shard shard = shard(hash);
+            synchronized (shard) {
+                int slot = shard.find(hash, key);
+                if (slot < 0 || isExpired(shard.table, slot * SLOT, now))
+                    return null;
+                int base = slot * SLOT;
+                read(shard.table, base, conn);
+                conn.reply = swapped != ((shard.table.get(base + FLAGS) & ORIGIN_REVERSED) != 0);
+                conn.created = false;
+            }
+        } finally {
+            if (swapped)
+                key.reverse();
+        }
+        // The key may be the one of the connection view
+        conn.key.set(key);
+        return conn;
+    }
+
+    /**
+     * @param key The key of the connection, in either direction: left as is.
+     * @return Whether the connection was tracked.
+     */
+    public boolean remove(FlowKey key) {
+        boolean swapped = !key.isCanonical();
+        if (swapped)
+            key.reverse();
+        try {
+            int hash = key.hashCode();
+            Shard shard = shard(hash);
+            synchronized (shard) {
+                int slot = shard.find(hash, key);
+                if (slot < 0)
+                    return false;
+                shard.delete(slot);
+                return true;
+            }
+        } finally {
+            if (swapped)
+                key.reverse();
+        }
+    }
+
+    /**
+     * Sweeps part of each shard, removing the expired connections, so that the cost of a sweep stays bounded.
+     *
+     * @param now    The current time, in milliseconds.
+     * @param budget How many slots to visit in each shard, the next call resuming after them.
+     * @return How many connections were removed.
+     */
+    public int expire(long now, int budget) {
+        int removed = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                int mask = shard.mask;
+                int i = shard.cursor;
+                for (int n = Math.min(budget, mask + 1); n > 0; n--) {
+                    int base = i * SLOT;
+                    // A removal shifts the next entry back in place: look at it again
+                    while ((shard.table.get(base + FLAGS) & USED) != 0 && isExpired(shard.table, base, now)) {
+                        shard.delete(i);
+                        removed++;
+                    }
+                    i = (i + 1) & mask;
+                }
+                shard.cursor = i;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return How many connections are tracked, expired ones not swept yet included.
+     */
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                size += shard.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return How many bytes of direct memory the table takes.
+     */
+    public long getFootprint() {
+        long footprint = 0;
+        for (Shard shard : shards)
+            footprint += shard.table.capacity();
+        return footprint;
+    }
+
+    private Shard shard(int hash) {
+        return shards[hash & (shards.length - 1)];
+    }
+
+    private boolean isExpired(ByteBuffer table, int base, long now) {
+        return table.getLong(base + LAST_SEEN) + timeouts[table.get(base + STATE)] <= now;
+    }
+
+    private static void create(ByteBuffer table, int base, FlowKey key, int hash, boolean swapped, int flags) {
+        table.putLong(base + SRC_HIGH, key.getSrcAddrHigh());
+        table.putLong(base + SRC_LOW, key.getSrcAddrLow());
+        table.putLong(base + DST_HIGH, key.getDstAddrHigh());
+        table.putLong(base + DST_LOW, key.getDstAddrLow());
+        table.putShort(base + SRC_PORT, (short) key.getSrcPort());
+        table.putShort(base + DST_PORT, (short) key.getDstPort());
+        table.put(base + PROTOCOL, (byte) key.getProtocol());
+        table.put(base + VERSION, (byte) key.getVersion());
+        ConnState state;
+        if (flags < 0)
+            state = ConnState.NEW;
+        else if ((flags & RST.mask()) != 0)
+            state = ConnState.CLOSED;
+        else if ((flags & (SYN.mask() | ACK.mask())) == SYN.mask())
+            state = ConnState.SYN_SENT;
+        else
+            // Picked up midway
+            state = ConnState.ESTABLISHED;
+        table.put(base + STATE, (byte) state.ordinal());
+        table.put(base + FLAGS, (byte) (USED | (swapped ? ORIGIN_REVERSED : 0)));
+        table.putInt(base + HASH, hash);
+        table.putInt(base + PACKETS, 0);
+        table.putLong(base + BYTES, 0);
+    }
+
+    /**
+     * Moves a connection along the state machine.
+     *
+     * @param reply Whether the packet goes against the connection origin.
+     * @param flags The TCP flags of the packet, negative if not TCP.
+     */
+    private static void update(ByteBuffer table, int base, boolean reply, int flags) {
+        ConnState state = ConnState.fromOrdinal(table.get(base + STATE));
+        int bits = table.get(base + FLAGS);
+        if (flags < 0) {
+            if (state == ConnState.NEW && reply)
+                table.put(base + STATE, (byte) ConnState.REPLIED.ordinal());
+            return;
+        }
+        boolean syn = (flags & SYN.mask()) != 0;
+        boolean ack = (flags & ACK.mask()) != 0;
+        if ((flags & RST.mask()) != 0) {
+            state = ConnState.CLOSED;
+        } else if (syn && !ack && !reply && (state == ConnState.CLOSED || state == ConnState.TIME_WAIT)) {
+            // The ports are reused by a new connection
+            state = ConnState.SYN_SENT;
+            bits &= ~(FIN_ORIGINAL | FIN_REPLY);
+        } else if (state == ConnState.SYN_SENT) {
+            if (syn && ack && reply)
+                state = ConnState.SYN_RECEIVED;
+        } else if (state == ConnState.SYN_RECEIVED) {
+            if (ack && !syn && !reply)
+                state = ConnState.ESTABLISHED;
+        }
+        if ((flags & FIN.mask()) != 0 && state != ConnState.CLOSED) {
+            bits |= reply ? FIN_REPLY : FIN_ORIGINAL;
+            state = (bits & (FIN_ORIGINAL | FIN_REPLY)) == (FIN_ORIGINAL | FIN_REPLY)
+                    ? ConnState.TIME_WAIT : ConnState.FIN_WAIT;
+        }
+        table.put(base + STATE, (byte) state.ordinal());
+        table.put(base + FLAGS, (byte) bits);
+    }
+
+    private static void read(ByteBuffer table, int base, Connection conn) {
+        conn.state = ConnState.fromOrdinal(table.get(base + STATE));
+        conn.packets = table.getInt(base + PACKETS) & 0xFFFFFFFFL;
+        conn.bytes = table.getLong(base + BYTES);
+        conn.lastSeen = table.getLong(base + LAST_SEEN);
+    }
+
+    private static final class Shard {
+        final ByteBuffer table;
+        final int mask;
+        final int maxSize;
+        private final int shardBits;
+        int size;
+        int cursor;
+
+        Shard(int slots, int maxSize, int shardBits) {
+            this.table = ByteBuffer.allocateDirect(slots * SLOT).order(ByteOrder.nativeOrder());
+            this.mask = slots - 1;
+            this.maxSize = maxSize;
+            this.shardBits = shardBits;
+        }
+
+        private int home(int hash) {
+            // The low bits picked the shard, the same for every entry: skip them
+            return Integer.rotateRight(hash, shardBits) & mask;
+        }
+
+        /**
+         * @return The slot of the key, or minus one minus the free slot where it belongs.
+         */
+        int find(int hash, FlowKey key) {
+            int i = home(hash);
+            while (true) {
+                int base = i * SLOT;
+                if ((table.get(base + FLAGS) & USED) == 0)
+                    return -i - 1;
+                if (table.getInt(base + HASH) == hash && matches(base, key))
+                    return i;
+                i = (i + 1) & mask;
+            }
+        }
+
+        private boolean matches(int base, FlowKey key) {
+            return table.getLong(base + SRC_LOW) == key.getSrcAddrLow()
+                    && table.getLong(base + DST_LOW) == key.getDstAddrLow()
+                    && table.getLong(base + SRC_HIGH) == key.getSrcAddrHigh()
+                    && table.getLong(base + DST_HIGH) == key.getDstAddrHigh()
+                    && (table.getShort(base + SRC_PORT) & 0xFFFF) == key.getSrcPort()
+                    && (table.getShort(base + DST_PORT) & 0xFFFF) == key.getDstPort()
+                    && (table.get(base + PROTOCOL) & 0xFF) == key.getProtocol()
+                    && table.get(base + VERSION) == key.getVersion();
+        }
+
+        /**
+         * Removes the entry of a slot, shifting back the following entries which would no longer be found.
+         */
+        void delete(int slot) {
+            int hole = slot;
+            int i = slot;
+            while (true) {
+                i = (i + 1) & mask;
+                int base = i * SLOT;
+                if ((table.get(base + FLAGS) & USED) == 0)
+                    break;
+                int home = home(table.getInt(base + HASH));
+                // The entry stays if its home lies cyclically within (hole, i]
+                boolean stays = hole <= i ? home > hole && home <= i : home > hole || home <= i;
+                if (!stays) {
+                    int from = base, to = hole * SLOT;
+                    for (int k = 0; k < SLOT; k += 8)
+                        table.putLong(to + k, table.getLong(from + k));
+                    hole = i;
+                }
+            }
+            table.put(hole * SLOT + FLAGS, (byte) 0);
+            size--;
+        }
+    }
+}
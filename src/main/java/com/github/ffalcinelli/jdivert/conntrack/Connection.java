@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.conntrack;
+
+import com.github.ffalcinelli.jdivert.FlowKey;
+
+/**
+ * A snapshot of a tracked connection, filled by {@link ConnTrack} and meant to be reused across lookups.
+ */
+public final class Connection {
+
+    final FlowKey key = new FlowKey();
+    ConnState state;
+    boolean reply;
+    boolean created;
+    long packets;
+    long bytes;
+    long lastSeen;
+
+    /**
+     * @return The key of the last packet tracked or of the last lookup, in its own direction.
+     */
+    public FlowKey getKey() {
+        return key;
+    }
+
+    public ConnState getState() {
+        return state;
+    }
+
+    /**
+     * @return Whether the key goes the opposite way of the packet which created the connection.
+     */
+    public boolean isReply() {
+        return reply;
+    }
+
+    /**
+     * @return Whether the connection was created by the packet just tracked.
+     */
+    public boolean isCreated() {
+        return created;
+    }
+
+    /**
+     * @return How many packets were tracked, both directions together.
+     */
+    public long getPackets() {
+        return packets;
+    }
+
+    /**
+     * @return How many bytes were tracked, headers included, both directions together.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    @Override
+    public String toString() {
+        return "Connection{" +
+                "key=" + key +
+                ", state=" + state +
+                ", reply=" + reply +
+                ", packets=" + packets +
+                ", bytes=" + bytes +
+                '}';
+    }
+}
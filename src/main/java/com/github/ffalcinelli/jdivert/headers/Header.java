@@ -17,11 +17,13 @@
 
 package com.github.ffalcinelli.jdivert.headers;
 
+import com.github.ffalcinelli.jdivert.Enums.Protocol;
 import com.github.ffalcinelli.jdivert.Util;
 
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+import static com.github.ffalcinelli.jdivert.Util.unsigned;
 import static java.nio.ByteOrder.BIG_ENDIAN;
 
 /**
@@ -33,7 +35,10 @@ public abstract class Header {
 
     protected ByteBuffer raw;
     protected int start;
+    // End (exclusive) of the packet this header belongs to
+    protected int end;
     protected boolean hasPorts;
+    protected boolean incrementalChecksum;
 
     public Header(ByteBuffer raw) {
         this(raw, 0, true);
@@ -47,6 +52,21 @@ public abstract class Header {
         this.raw = duplicateBuffer ? raw.duplicate() : raw;
         this.raw.order(BIG_ENDIAN);
         this.start = start;
+        this.end = this.raw.capacity();
+    }
+
+    /**
+     * Makes this header view another packet, reusing this instance.
+     *
+     * @param raw   The buffer holding the packet, used as is.
+     * @param start The index of this header into the buffer.
+     * @param end   The index right after the last byte of the packet.
+     */
+    public void rebind(ByteBuffer raw, int start, int end) {
+        this.raw = raw;
+        this.raw.order(BIG_ENDIAN);
+        this.start = start;
+        this.end = end;
     }
 
     /**
@@ -58,7 +78,17 @@ public abstract class Header {
      * is either a {@link com.github.ffalcinelli.jdivert.headers.Transport} or {@link com.github.ffalcinelli.jdivert.headers.Icmp} header
      */
     public static Header[] buildHeaders(byte[] data, boolean duplicateBuffer) {
-        ByteBuffer raw = ByteBuffer.wrap(data);
+        return buildHeaders(ByteBuffer.wrap(data), duplicateBuffer);
+    }
+
+    /**
+     * Build headers viewing the given buffer, the packet starting at index 0.
+     *
+     * @param raw The buffer holding the packet
+     * @param duplicateBuffer	Whether to duplicate the raw data buffer stored in this object
+     * @return A pair of headers, see {@link #buildHeaders(byte[], boolean)}
+     */
+    public static Header[] buildHeaders(ByteBuffer raw, boolean duplicateBuffer) {
         raw.order(BIG_ENDIAN);
         Ip ipHdr;
         Header[] headers = new Header[2];
@@ -68,18 +98,21 @@ public abstract class Header {
             ipHdr = new Ipv6(raw);
         }
         headers[0] = ipHdr;
-        switch (ipHdr.getNextHeaderProtocol()) {
+        Protocol protocol = ipHdr.getNextHeaderProtocol();
+        if (protocol == null)
+            return headers;
+        switch (protocol) {
             case TCP:
-                headers[1] = new Tcp(raw, ipHdr, ipHdr.getHeaderLength(), duplicateBuffer);
+                headers[1] = new Tcp(raw, ipHdr, ipHdr.getUpperLayerOffset(), duplicateBuffer);
                 break;
             case UDP:
-                headers[1] = new Udp(raw, ipHdr, ipHdr.getHeaderLength(), duplicateBuffer);
+                headers[1] = new Udp(raw, ipHdr, ipHdr.getUpperLayerOffset(), duplicateBuffer);
                 break;
             case ICMP:
-                headers[1] = new Icmpv4(raw, ipHdr.getHeaderLength(), duplicateBuffer);
+                headers[1] = new Icmpv4(raw, ipHdr.getUpperLayerOffset(), duplicateBuffer);
                 break;
             case ICMPV6:
-                headers[1] = new Icmpv6(raw, ipHdr.getHeaderLength(), duplicateBuffer);
+                headers[1] = new Icmpv6(raw, ipHdr, ipHdr.getUpperLayerOffset(), duplicateBuffer);
         }
         return headers;
     }
@@ -104,6 +137,120 @@ public abstract class Header {
     	this.hasPorts = hasPorts;
     }
 
+    /**
+     * Makes setters adjust the checksums covering the fields they change, in O(1) as of RFC 1624, instead of leaving
+     * them stale until {@link #calculateChecksum()} is called. Checksums are assumed to be correct beforehand.
+     * <p>
+     * Besides its own checksum, an IP header also adjusts the checksum of the upper layer header covering the
+     * pseudo-header, when changing addresses or protocol.
+     * </p>
+     *
+     * @param incrementalChecksum Whether setters adjust checksums
+     */
+    public void setIncrementalChecksum(boolean incrementalChecksum) {
+        this.incrementalChecksum = incrementalChecksum;
+    }
+
+    public boolean isIncrementalChecksum() {
+        return incrementalChecksum;
+    }
+
+    /**
+     * @return The index of the checksum field of this header into the buffer, -1 if it has none.
+     */
+    protected int getChecksumIndex() {
+        return -1;
+    }
+
+    /**
+     * @return Whether the checksum of this header covers the IP pseudo-header.
+     */
+    protected boolean coversPseudoHeader() {
+        return false;
+    }
+
+    /**
+     * Adjusts the checksum of this header after some of the words it covers changed.
+     *
+     * @param delta The sum of {@code ~old + new} over the changed 16-bit words.
+     */
+    protected void adjustChecksum(long delta) {
+        int index = getChecksumIndex();
+        if (index >= 0) {
+            raw.putShort(index, (short) Util.adjustChecksum(unsigned(raw.getShort(index)), delta));
+        }
+    }
+
+    /**
+     * Sums the 16-bit words, aligned on the header start, overlapping the given range.
+     */
+    private long sumWords(int index, int length, boolean complement) {
+        long sum = 0;
+        for (int i = start + ((index - start) & ~1); i < index + length; i += 2) {
+            int word = ((raw.get(i) & 0xFF) << 8) | (i + 1 < end ? raw.get(i + 1) & 0xFF : 0);
+            sum += complement ? ~word & 0xFFFF : word;
+        }
+        return sum;
+    }
+
+    /**
+     * To be called before changing the given range of bytes, see {@link #updateChecksum(int, int, long)}.
+     *
+     * @param index  The index of the first byte to change.
+     * @param length How many bytes are changed.
+     * @return The complemented words about to change, 0 if checksums are not adjusted.
+     */
+    protected long checksumWords(int index, int length) {
+        return incrementalChecksum ? sumWords(index, length, true) : 0;
+    }
+
+    /**
+     * To be called after changing the given range of bytes: adjusts the checksum of this header.
+     *
+     * @param index    The index of the first changed byte.
+     * @param length   How many bytes changed.
+     * @param oldWords The value returned by {@link #checksumWords(int, int)} before the change.
+     * @return The checksum delta, 0 if checksums are not adjusted.
+     */
+    protected long updateChecksum(int index, int length, long oldWords) {
+        if (!incrementalChecksum) {
+            return 0;
+        }
+        long delta = oldWords + sumWords(index, length, false);
+        adjustChecksum(delta);
+        return delta;
+    }
+
+    protected long putByte(int index, byte value) {
+        long old = checksumWords(index, 1);
+        raw.put(index, value);
+        return updateChecksum(index, 1, old);
+    }
+
+    protected long putShort(int index, short value) {
+        long old = checksumWords(index, 2);
+        raw.putShort(index, value);
+        return updateChecksum(index, 2, old);
+    }
+
+    protected long putInt(int index, int value) {
+        long old = checksumWords(index, 4);
+        raw.putInt(index, value);
+        return updateChecksum(index, 4, old);
+    }
+
+    protected long putLong(int index, long value) {
+        long old = checksumWords(index, 8);
+        raw.putLong(index, value);
+        return updateChecksum(index, 8, old);
+    }
+
+    protected long putBytes(int index, int length, byte[] data) {
+        long old = checksumWords(index, length);
+        Util.setBytesAtOffset(raw, index, length, data);
+        return updateChecksum(index, length, old);
+    }
+
     /**
      * Convenience method to get a given range of bytes
      *
@@ -150,7 +297,7 @@ public abstract class Header {
             value |= 1 << pos;
         else
             value &= ~(1 << pos);
-        raw.put(index, (byte) value);
+        putByte(index, (byte) value);
     }
 
     /**
@@ -39,7 +39,7 @@ public abstract class Icmp extends Header {
     }
 
     public void setType(byte type) {
-        raw.put(start, type);
+        putByte(start, type);
     }
 
     public byte getCode() {
@@ -47,7 +47,7 @@ public abstract class Icmp extends Header {
     }
 
     public void setCode(byte code) {
-        raw.put(start + 1, code);
+        putByte(start + 1, code);
     }
 
     public int getChecksum() {
@@ -63,4 +63,9 @@ public abstract class Icmp extends Header {
     public int getHeaderLength() {
         return 4;
     }
+
+    @Override
+    protected int getChecksumIndex() {
+        return start + 2;
+    }
 }
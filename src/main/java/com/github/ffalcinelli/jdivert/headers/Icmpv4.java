@@ -19,7 +19,7 @@ package com.github.ffalcinelli.jdivert.headers;
 
 import java.nio.ByteBuffer;
 
-import com.github.ffalcinelli.jdivert.Util;
+import com.github.ffalcinelli.jdivert.Checksum;
 
 import static com.github.ffalcinelli.jdivert.Util.printHexBinary;
 
@@ -41,7 +41,7 @@ public class Icmpv4 extends Icmp {
     }
 
     public void setRestOfHeader(byte[] restOfHeader) {
-        setBytesAtOffset(start + 4, restOfHeader.length, restOfHeader);
+        putBytes(start + 4, restOfHeader.length, restOfHeader);
     }
 
     @Override
@@ -56,6 +56,6 @@ public class Icmpv4 extends Icmp {
 
     @Override
 	public void calculateChecksum() {
-		Util.computeChecksumLocal(raw.array(), 0, start+2, raw.capacity(), 0);
+		Checksum.compute(raw, start, end, start + 2, 0);
 	}
 }
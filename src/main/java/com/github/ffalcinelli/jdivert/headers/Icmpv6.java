@@ -19,6 +19,9 @@ package com.github.ffalcinelli.jdivert.headers;
 
 import java.nio.ByteBuffer;
 
+import com.github.ffalcinelli.jdivert.Checksum;
+import com.github.ffalcinelli.jdivert.Enums.Protocol;
+
 import static com.github.ffalcinelli.jdivert.Util.printHexBinary;
 
 /**
@@ -26,12 +29,51 @@ import static com.github.ffalcinelli.jdivert.Util.printHexBinary;
  */
 public class Icmpv6 extends Icmp {
 
-    public Icmpv6(ByteBuffer raw, int start, boolean duplicateBuffer) {
+    protected Ip ipHdr;
+
+    public Icmpv6(ByteBuffer raw, Ip ipHdr, int start, boolean duplicateBuffer) {
         super(raw, start, duplicateBuffer);
+        this.ipHdr = ipHdr;
+        if (ipHdr != null)
+            ipHdr.upperHeader = this;
+    }
+
+    public Icmpv6(ByteBuffer raw, Ip ipHdr, int start) {
+        this(raw, ipHdr, start, false);
+    }
+
+    /**
+     * Builds an ICMPv6 header without its IP header: the checksum cannot be computed, lacking the pseudo-header.
+     */
+    public Icmpv6(ByteBuffer raw, int start, boolean duplicateBuffer) {
+        this(raw, null, start, duplicateBuffer);
     }
     
     public Icmpv6(ByteBuffer raw, int start) {
-        super(raw, start, false);
+        this(raw, null, start, false);
+    }
+
+    /**
+     * Makes this header view another packet, reusing this instance.
+     *
+     * @param raw   The buffer holding the packet, used as is.
+     * @param ipHdr The IP header of the packet.
+     * @param start The index of this header into the buffer.
+     * @param end   The index right after the last byte of the packet.
+     */
+    public void rebind(ByteBuffer raw, Ip ipHdr, int start, int end) {
+        rebind(raw, start, end);
+        this.ipHdr = ipHdr;
+        if (ipHdr != null)
+            ipHdr.upperHeader = this;
+    }
+
+    /**
+     * Unlike ICMPv4, the checksum covers the IPv6 pseudo-header.
+     */
+    @Override
+    protected boolean coversPseudoHeader() {
+        return true;
     }
 
     public byte[] getMessageBody() {
@@ -39,7 +81,7 @@ public class Icmpv6 extends Icmp {
     }
 
     public void setMessageBody(byte[] messageBody) {
-        setBytesAtOffset(start + 4, messageBody.length, messageBody);
+        putBytes(start + 4, messageBody.length, messageBody);
     }
 
     @Override
@@ -54,6 +96,8 @@ public class Icmpv6 extends Icmp {
 
 	@Override
 	public void calculateChecksum() {
-		throw new RuntimeException("Don't handle ipv6 local checksum yet");
+		if (ipHdr == null)
+			throw new IllegalStateException("No IP header to compute the pseudo-header from");
+		Checksum.compute(raw, start, end, start + 2, ipHdr.getPseudoHeaderSum(Protocol.ICMPV6, end - start));
 	}
 }
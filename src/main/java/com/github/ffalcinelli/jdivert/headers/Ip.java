@@ -35,11 +35,31 @@ public abstract class Ip<T extends InetAddress> extends Header {
     private int dstAddrOffset = 16;
     private int addrLen = 4;
     
+    // The protocol and offset of the upper layer header, past any extension header
     Protocol nextProtocol;
+    int upperOffset;
+    // The header following this one, registered by itself
+    Header upperHeader;
 
     public Ip(ByteBuffer raw, boolean duplicateBuffer) {
         super(raw, duplicateBuffer);
+        parseUpperLayer();
+    }
+
+    @Override
+    public void rebind(ByteBuffer raw, int start, int end) {
+        super.rebind(raw, start, end);
+        parseUpperLayer();
+        upperHeader = null;
+    }
+
+    /**
+     * Finds the upper layer header, setting {@link #nextProtocol} and {@link #upperOffset}. By default it follows
+     * right after this header.
+     */
+    protected void parseUpperLayer() {
         nextProtocol = getNextHeader();
+        upperOffset = getHeaderLength();
     }
     
     public Ip(ByteBuffer raw) {
@@ -51,11 +71,11 @@ public abstract class Ip<T extends InetAddress> extends Header {
     }
     
     public byte[] getSrcAddrBytes() {
-    	return getBytesAtOffset(srcAddrOffset, addrLen);
+    	return getBytesAtOffset(start + srcAddrOffset, addrLen);
     }
     
     public byte[] getDstAddrBytes() {
-    	return getBytesAtOffset(dstAddrOffset, addrLen);
+    	return getBytesAtOffset(start + dstAddrOffset, addrLen);
     }
 
     public T getInetAddressAtOffset(int offset) throws UnknownHostException {
@@ -64,69 +84,129 @@ public abstract class Ip<T extends InetAddress> extends Header {
 
     public void setInetAddressAtOffset(int offset, T address) {
         byte[] addressBytes = address.getAddress();
-        setBytesAtOffset(offset, addressBytes.length, addressBytes);
+        setAddressBytes(offset, addressBytes);
+    }
+
+    private void setAddressBytes(int offset, byte[] addr) {
+        adjustUpperChecksum(putBytes(offset, addr.length, addr));
+    }
+
+    /**
+     * Adjusts the checksum of the upper layer header after a change of the pseudo-header.
+     *
+     * @param delta The sum of {@code ~old + new} over the changed 16-bit words.
+     */
+    protected void adjustUpperChecksum(long delta) {
+        Header upper = upperHeader;
+        if (incrementalChecksum && upper != null && upper.coversPseudoHeader()) {
+            upper.adjustChecksum(delta);
+        }
     }
 
     public T getSrcAddr() {
         try {
-            return getInetAddressAtOffset(srcAddrOffset);
+            return getInetAddressAtOffset(start + srcAddrOffset);
         } catch (UnknownHostException e) {
             return null;
         }
     }
 
     public void setSrcAddr(T address) {
-        setInetAddressAtOffset(srcAddrOffset, address);
+        setInetAddressAtOffset(start + srcAddrOffset, address);
     }
 
     public T getDstAddr() {
         try {
-            return getInetAddressAtOffset(dstAddrOffset);
+            return getInetAddressAtOffset(start + dstAddrOffset);
         } catch (UnknownHostException e) {
             return null;
         }
     }
 
     public void setDstAddr(T address) {
-        setInetAddressAtOffset(dstAddrOffset, address);
+        setInetAddressAtOffset(start + dstAddrOffset, address);
     }
 
     public String getSrcAddrStr() {
-        InetAddress address = getSrcAddr();
-        return address != null ? address.getHostAddress() : null;
+        return appendSrcAddr(new StringBuilder(39)).toString();
     }
 
+    /**
+     * Sets the source address from its literal, which is never resolved.
+     *
+     * @param srcAddr The literal of an address of the same version as this header.
+     * @throws UnknownHostException If the given string is not such a literal.
+     */
     public void setSrcAddrStr(String srcAddr) throws UnknownHostException {
-        setSrcAddr((T) InetAddress.getByName(srcAddr));
+        setAddrLiteral(start + srcAddrOffset, srcAddr);
     }
 
     public String getDstAddrStr() {
-        InetAddress address = getDstAddr();
-        return address != null ? address.getHostAddress() : null;
+        return appendDstAddr(new StringBuilder(39)).toString();
     }
 
+    /**
+     * Sets the destination address from its literal, which is never resolved.
+     *
+     * @param dstAddr The literal of an address of the same version as this header.
+     * @throws UnknownHostException If the given string is not such a literal.
+     */
     public void setDstAddrStr(String dstAddr) throws UnknownHostException {
-        setDstAddr((T) InetAddress.getByName(dstAddr));
+        setAddrLiteral(start + dstAddrOffset, dstAddr);
+    }
+
+    /**
+     * Appends the literal of the source address, without allocating any {@link InetAddress}.
+     *
+     * @param sb The builder to append to.
+     * @return The given builder.
+     */
+    public StringBuilder appendSrcAddr(StringBuilder sb) {
+        return appendAddr(start + srcAddrOffset, sb);
+    }
+
+    /**
+     * Appends the literal of the destination address, without allocating any {@link InetAddress}.
+     *
+     * @param sb The builder to append to.
+     * @return The given builder.
+     */
+    public StringBuilder appendDstAddr(StringBuilder sb) {
+        return appendAddr(start + dstAddrOffset, sb);
     }
+
+    protected abstract StringBuilder appendAddr(int index, StringBuilder sb);
+
+    protected abstract void setAddrLiteral(int index, String literal) throws UnknownHostException;
     
     public void setDstAddr(byte[] addr) {
-    	setBytesAtOffset(dstAddrOffset, addr.length, addr);
+    	setAddressBytes(start + dstAddrOffset, addr);
     }
     
     public void setSrcAddr(byte[] addr) {
-    	setBytesAtOffset(srcAddrOffset, addr.length, addr);
+    	setAddressBytes(start + srcAddrOffset, addr);
     }
 
     public int getVersion() {
-        return raw.get(0) >> 4;
+        return raw.get(start) >> 4;
     }
 
     protected abstract Protocol getNextHeader();
     
+    /**
+     * @return The protocol of the upper layer header, following any extension header.
+     */
     public Protocol getNextHeaderProtocol() {
     	return nextProtocol;
     }
 
+    /**
+     * @return The offset of the upper layer header from the start of this one, past any extension header.
+     */
+    public int getUpperLayerOffset() {
+        return upperOffset;
+    }
+
     /**
      * Set the source address field offset.
      * Only to ease test writing.
@@ -157,5 +237,20 @@ public abstract class Ip<T extends InetAddress> extends Header {
         this.addrLen = addrLen;
     }
     
-    public abstract int getVirtualHeaderTotal();
+    /**
+     * Sums the pseudo-header the checksum of an upper layer header covers.
+     *
+     * @param protocol    The protocol of the upper layer header, which may follow extension headers.
+     * @param upperLength The length of the upper layer header and its payload.
+     * @return The unfolded sum, see {@link com.github.ffalcinelli.jdivert.Checksum}.
+     */
+    public abstract long getPseudoHeaderSum(Protocol protocol, int upperLength);
+
+    /**
+     * @return The pseudo-header sum for the protocol in the next header field, the upper layer header
+     * following this one.
+     */
+    public int getVirtualHeaderTotal() {
+        return (int) getPseudoHeaderSum(getNextHeaderProtocol(), end - start - getUpperLayerOffset());
+    }
 }
@@ -18,9 +18,11 @@
 package com.github.ffalcinelli.jdivert.headers;
 
 import java.net.Inet4Address;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 
-import com.github.ffalcinelli.jdivert.Util;
+import com.github.ffalcinelli.jdivert.Checksum;
+import com.github.ffalcinelli.jdivert.IpLiterals;
 
 import static com.github.ffalcinelli.jdivert.Enums.Protocol;
 import static com.github.ffalcinelli.jdivert.Util.unsigned;
@@ -45,66 +47,112 @@ public class Ipv4 extends Ip<Inet4Address> {
     }
 
     public void setVersion(int version) {
-        raw.put(0, (byte) ((version << 4) | getIHL()));
+        putByte(start, (byte) ((version << 4) | getIHL()));
     }
 
     public int getIHL() {
-        return (raw.get(0) & 0x0F);
+        return (raw.get(start) & 0x0F);
     }
 
     public void setIHL(int length) {
         byte first = (byte) (getVersion() << 4);
         byte second = (byte) (length & 0x0F);
-        raw.put(0, (byte) (first | second));
+        putByte(start, (byte) (first | second));
     }
 
 
     public int getTotalLength() {
-        return unsigned(raw.getShort(2));
+        return unsigned(raw.getShort(start + 2));
     }
 
     public void setTotalLength(int length) {
-        raw.putShort(2, (short) length);
+        putShort(start + 2, (short) length);
     }
 
     public int getTTL() {
-        return unsigned(raw.get(8));
+        return unsigned(raw.get(start + 8));
     }
 
     public void setTTL(int ttl) {
-        raw.put(8, (byte) ttl);
+        putByte(start + 8, (byte) ttl);
     }
 
     @Override
     protected Protocol getNextHeader() {
-        return Protocol.fromValue(raw.get(9));
+        return Protocol.fromValue(raw.get(start + 9));
     }
 
     public void setProtocol(Protocol protocol) {
-        raw.put(9, (byte) protocol.getValue());
+        int old = unsigned(raw.get(start + 9));
+        putByte(start + 9, (byte) protocol.getValue());
         this.nextProtocol = protocol;
+        // The pseudo-header holds the protocol as a word on its own
+        adjustUpperChecksum((~old & 0xFFFF) + protocol.getValue());
     }
 
     public int getChecksum() {
-        return unsigned(raw.getShort(10));
+        return unsigned(raw.getShort(start + 10));
+    }
+
+    /**
+     * @return The source address, most significant byte first.
+     */
+    public int getSrcAddrV4() {
+        return raw.getInt(start + 12);
+    }
+
+    public void setSrcAddrV4(int addr) {
+        adjustUpperChecksum(putInt(start + 12, addr));
+    }
+
+    /**
+     * @return The destination address, most significant byte first.
+     */
+    public int getDstAddrV4() {
+        return raw.getInt(start + 16);
+    }
+
+    public void setDstAddrV4(int addr) {
+        adjustUpperChecksum(putInt(start + 16, addr));
+    }
+
+    @Override
+    protected StringBuilder appendAddr(int index, StringBuilder sb) {
+        return IpLiterals.appendIpv4(sb, raw.getInt(index));
+    }
+
+    @Override
+    protected void setAddrLiteral(int index, String literal) throws UnknownHostException {
+        int addr;
+        try {
+            addr = IpLiterals.parseIpv4(literal);
+        } catch (IllegalArgumentException e) {
+            throw new UnknownHostException(e.getMessage());
+        }
+        adjustUpperChecksum(putInt(index, addr));
+    }
+
+    @Override
+    protected int getChecksumIndex() {
+        return start + 10;
     }
 
     public void setChecksum(int cksum) {
-        raw.putShort(10, (short) cksum);
+        raw.putShort(start + 10, (short) cksum);
     }
 
     public boolean is(Flag flag) {
-        return getFlag(6, flag.ordinal() + 5);
+        return getFlag(start + 6, 7 - flag.ordinal());
     }
 
     public void set(Flag flag, boolean value) {
-        setFlag(6, flag.ordinal() + 5, value);
+        setFlag(start + 6, 7 - flag.ordinal(), value);
     }
 
 
     public byte[] getOptions() {
         if (getHeaderLength() - 20 > 0)
-            return getBytesAtOffset(20, getHeaderLength() - 20);
+            return getBytesAtOffset(start + 20, getHeaderLength() - 20);
         return null;
     }
 
@@ -113,15 +161,15 @@ public class Ipv4 extends Ip<Inet4Address> {
         if (delta <= 0) {
             throw new IllegalStateException("Packet is too short for options.");
         }
-        setBytesAtOffset(20, delta, zeroPadArray(options, delta));
+        putBytes(start + 20, delta, zeroPadArray(options, delta));
     }
 
     public int getID() {
-        return unsigned(raw.getShort(4));
+        return unsigned(raw.getShort(start + 4));
     }
 
     public void setID(int id) {
-        raw.putShort(4, (short) id);
+        putShort(start + 4, (short) id);
     }
 
     /**
@@ -130,7 +178,7 @@ public class Ipv4 extends Ip<Inet4Address> {
      * @return The bitmask representing flags
      */
     public int getFlags() {
-        return ((raw.get(6) & 0x00FF) >> 5) & 0x00FF;
+        return ((raw.get(start + 6) & 0x00FF) >> 5) & 0x00FF;
     }
 
     /**
@@ -141,33 +189,33 @@ public class Ipv4 extends Ip<Inet4Address> {
     public void setFlags(int flags) {
         byte first = (byte) (flags << 5);
         byte second = (byte) (getFragmentOffset() & 0xFF00);
-        raw.put(6, (byte) (first | second));
+        putByte(start + 6, (byte) (first | second));
     }
 
     public int getFragmentOffset() {
-        return raw.getShort(6) & 0x00001FFF;
+        return raw.getShort(start + 6) & 0x00001FFF;
     }
 
     public void setFragmentOffset(int fragOff) {
         int first = getFlags() << 13;
         int second = fragOff & 0x00001FFF;
-        raw.putShort(6, (short) (first | second));
+        putShort(start + 6, (short) (first | second));
     }
 
     public int getDSCP() {
-        return (raw.get(1) & 0xFC) >> 2;
+        return (raw.get(start + 1) & 0xFC) >> 2;
     }
 
     public void setDSCP(int dscp) {
-        raw.put(1, (byte) ((dscp << 2) | getECN()));
+        putByte(start + 1, (byte) ((dscp << 2) | getECN()));
     }
 
     public int getECN() {
-        return raw.get(1) & 0x03;
+        return raw.get(start + 1) & 0x03;
     }
 
     public void setECN(int ecn) {
-        raw.put(1, (byte) ((getDSCP() << 2) | (ecn & 0x03)));
+        putByte(start + 1, (byte) ((getDSCP() << 2) | (ecn & 0x03)));
     }
 
     public int getDiffServ() {
@@ -179,11 +227,11 @@ public class Ipv4 extends Ip<Inet4Address> {
     }
 
     public int getTOS() {
-        return raw.get(1) & 0x00FF;
+        return raw.get(start + 1) & 0x00FF;
     }
 
     public void setTOS(int tos) {
-        raw.put(1, (byte) tos);
+        putByte(start + 1, (byte) tos);
     }
 
     @Override
@@ -218,22 +266,12 @@ public class Ipv4 extends Ip<Inet4Address> {
 
 	@Override
 	public void calculateChecksum() {
-		Util.computeChecksumLocal(raw.array(), 0, 10, getHeaderLength(), 0);
+		Checksum.compute(raw, start, start + getHeaderLength(), start + 10, 0);
 	}
 	
 	@Override
-	public int getVirtualHeaderTotal() {
-		
-		byte[] bytes = getSrcAddrBytes();
-		
-		int s1 = ((bytes[0] & 0xff) << 8) | (bytes[1] & 0xff);
-        s1 = (s1 << 16) | ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
-        
-        bytes = getDstAddrBytes();
-        
-        int d1 = ((bytes[0] & 0xff) << 8) | (bytes[1] & 0xff);
-        d1 = (d1 << 16) | ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
-        
-        return s1 + d1 + this.getNextHeaderProtocol().getValue() + raw.capacity() - this.getHeaderLength();
+	public long getPseudoHeaderSum(Protocol protocol, int upperLength) {
+		// Source and destination addresses, then protocol and length as 16-bit words
+		return Checksum.sum(raw, start + 12, start + 20) + protocol.getValue() + upperLength;
 	}
 }
@@ -18,8 +18,12 @@
 package com.github.ffalcinelli.jdivert.headers;
 
 import java.net.Inet6Address;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
+import com.github.ffalcinelli.jdivert.Checksum;
+import com.github.ffalcinelli.jdivert.IpLiterals;
 import com.github.ffalcinelli.jdivert.Util;
 
 import static com.github.ffalcinelli.jdivert.Enums.Protocol;
@@ -30,6 +34,15 @@ import static com.github.ffalcinelli.jdivert.Util.unsigned;
  */
 public class Ipv6 extends Ip<Inet6Address> {
 
+    private static final int FRAGMENT_TYPE = Protocol.FRAGMENT.getValue();
+    private static final int AH_TYPE = Protocol.AH.getValue();
+
+    // Filled in while the super constructor runs: no initializer must reset them
+    private int[] extensionOffsets;
+    private int[] extensionTypes;
+    private int extensionCount;
+    private boolean fragmented;
+    private long[] literalScratch;
 
     public Ipv6(ByteBuffer raw, boolean duplicateBuffer) {
         super(raw, duplicateBuffer);
@@ -48,33 +61,217 @@ public class Ipv6 extends Ip<Inet6Address> {
     }
 
     public void setVersion(int version) {
-        raw.put(0, (byte) ((version << 4)));
+        putByte(start, (byte) ((version << 4)));
     }
 
     public int getPayloadLength() {
-        return unsigned(raw.getShort(4));
+        return unsigned(raw.getShort(start + 4));
     }
 
     public void setPayloadLength(short length) {
-        raw.putShort(4, length);
+        putShort(start + 4, length);
     }
 
     @Override
     protected Protocol getNextHeader() {
-        return Protocol.fromValue(raw.get(6));
+        return Protocol.fromValue(raw.get(start + 6));
     }
 
+    /**
+     * Sets the protocol of the upper layer header, into the last extension header if any.
+     *
+     * @param protocol The protocol of the upper layer header.
+     */
     public void setProtocol(Protocol protocol) {
-        raw.put(6, (byte) protocol.getValue());
+        int index = extensionCount == 0 ? start + 6 : start + extensionOffsets[extensionCount - 1];
+        int old = unsigned(raw.get(index));
+        putByte(index, (byte) protocol.getValue());
         this.nextProtocol = protocol;
+        adjustUpperChecksum((~old & 0xFFFF) + protocol.getValue());
+    }
+
+    /**
+     * Walks the extension headers chain in a single pass, recording their offsets.
+     * <p>
+     * The walk stops at the first header which is not a known extension, or at the end of the packet. The upper
+     * layer header is missing behind a fragment header whose fragment offset is not zero: the protocol is then the
+     * one of the {@link Protocol#FRAGMENT fragment} header.
+     * </p>
+     */
+    @Override
+    protected void parseUpperLayer() {
+        if (extensionOffsets == null) {
+            extensionOffsets = new int[4];
+            extensionTypes = new int[4];
+        }
+        extensionCount = 0;
+        fragmented = false;
+        int type = raw.get(start + 6) & 0xFF;
+        int offset = getHeaderLength();
+        int length;
+        while ((length = getExtensionLength(type, offset)) > 0 && start + offset + length <= end) {
+            if (extensionCount == extensionOffsets.length) {
+                extensionOffsets = Arrays.copyOf(extensionOffsets, extensionCount * 2);
+                extensionTypes = Arrays.copyOf(extensionTypes, extensionCount * 2);
+            }
+            extensionOffsets[extensionCount] = offset;
+            extensionTypes[extensionCount++] = type;
+            if (type == FRAGMENT_TYPE) {
+                fragmented = true;
+                if ((raw.getShort(start + offset + 2) & 0xFFF8) != 0) {
+                    // Only the first fragment carries the upper layer header
+                    offset += length;
+                    break;
+                }
+            }
+            type = raw.get(start + offset) & 0xFF;
+            offset += length;
+        }
+        nextProtocol = Protocol.fromValue(type);
+        upperOffset = offset;
+    }
+
+    /**
+     * @return The length of the extension header of the given type at the given offset, 0 if the type is not the
+     * one of an extension header.
+     */
+    private int getExtensionLength(int type, int offset) {
+        if (!isExtensionHeader(type))
+            return 0;
+        if (type == FRAGMENT_TYPE)
+            return 8;
+        if (start + offset + 2 > end)
+            return 0;
+        int length = raw.get(start + offset + 1) & 0xFF;
+        // The authentication header length is in 4-octet units, minus 2
+        return type == AH_TYPE ? (length + 2) * 4 : (length + 1) * 8;
+    }
+
+    /**
+     * @param type A next header value.
+     * @return Whether the value stands for an extension header this class walks through.
+     */
+    public static boolean isExtensionHeader(int type) {
+        switch (type) {
+            case 0:   // Hop-by-hop options
+            case 43:  // Routing
+            case 44:  // Fragment
+            case 51:  // Authentication header
+            case 60:  // Destination options
+            case 135: // Mobility
+            case 139: // Host identity protocol
+            case 140: // Shim6
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return How many extension headers follow the fixed header.
+     */
+    public int getExtensionCount() {
+        return extensionCount;
+    }
+
+    /**
+     * @param i The position of the extension header into the chain.
+     * @return The offset of the extension header from the start of this header.
+     */
+    public int getExtensionOffset(int i) {
+        if (i < 0 || i >= extensionCount)
+            throw new IndexOutOfBoundsException("No extension header " + i);
+        return extensionOffsets[i];
+    }
+
+    /**
+     * @param i The position of the extension header into the chain.
+     * @return The type of the extension header, as a protocol number.
+     */
+    public int getExtensionType(int i) {
+        if (i < 0 || i >= extensionCount)
+            throw new IndexOutOfBoundsException("No extension header " + i);
+        return extensionTypes[i];
+    }
+
+    /**
+     * @param protocol The type of extension header to look for.
+     * @return The offset of the first extension header of the given type from the start of this header, -1 if none.
+     */
+    public int findExtension(Protocol protocol) {
+        for (int i = 0; i < extensionCount; i++) {
+            if (extensionTypes[i] == protocol.getValue())
+                return extensionOffsets[i];
+        }
+        return -1;
+    }
+
+    /**
+     * @return Whether a fragment header is present, even for a first fragment.
+     */
+    public boolean isFragment() {
+        return fragmented;
+    }
+
+    /**
+     * @return The high 64 bits of the source address.
+     */
+    public long getSrcAddrHigh() {
+        return raw.getLong(start + 8);
+    }
+
+    /**
+     * @return The low 64 bits of the source address.
+     */
+    public long getSrcAddrLow() {
+        return raw.getLong(start + 16);
+    }
+
+    public void setSrcAddr(long high, long low) {
+        adjustUpperChecksum(putLong(start + 8, high) + putLong(start + 16, low));
+    }
+
+    /**
+     * @return The high 64 bits of the destination address.
+     */
+    public long getDstAddrHigh() {
+        return raw.getLong(start + 24);
+    }
+
+    /**
+     * @return The low 64 bits of the destination address.
+     */
+    public long getDstAddrLow() {
+        return raw.getLong(start + 32);
+    }
+
+    public void setDstAddr(long high, long low) {
+        adjustUpperChecksum(putLong(start + 24, high) + putLong(start + 32, low));
+    }
+
+    @Override
+    protected StringBuilder appendAddr(int index, StringBuilder sb) {
+        return IpLiterals.appendIpv6(sb, raw.getLong(index), raw.getLong(index + 8));
+    }
+
+    @Override
+    protected void setAddrLiteral(int index, String literal) throws UnknownHostException {
+        if (literalScratch == null)
+            literalScratch = new long[2];
+        try {
+            IpLiterals.parseIpv6(literal, literalScratch);
+        } catch (IllegalArgumentException e) {
+            throw new UnknownHostException(e.getMessage());
+        }
+        adjustUpperChecksum(putLong(index, literalScratch[0]) + putLong(index + 8, literalScratch[1]));
     }
 
     public int getHopLimit() {
-        return raw.get(7);
+        return raw.get(start + 7);
     }
 
     public void setHopLimit(int hopLimit) {
-        raw.put(7, (byte) hopLimit);
+        putByte(start + 7, (byte) hopLimit);
     }
 
     @Override
@@ -89,13 +286,23 @@ public class Ipv6 extends Ip<Inet6Address> {
         );
     }
     
+    /**
+     * IPv6 headers have no checksum: nothing to compute.
+     */
     @Override
 	public void calculateChecksum() {
-    	throw new RuntimeException("Do not handle local ipv6 checksums yet");
 	}
 
+	/**
+	 * Sums the pseudo-header of RFC 8200 section 8.1, where the length is a 32-bit word.
+	 * <p>
+	 * The destination is the one of this header: when a routing header is present, the final destination it holds
+	 * is not looked for.
+	 * </p>
+	 */
 	@Override
-	public int getVirtualHeaderTotal() {
-		throw new RuntimeException("Don't handle getVirtualHeaderTotal for ipv6 yet");
+	public long getPseudoHeaderSum(Protocol protocol, int upperLength) {
+		return Checksum.sum(raw, start + 8, start + 40) + (upperLength >>> 16) + (upperLength & 0xFFFF)
+				+ protocol.getValue();
 	}
 }
@@ -19,7 +19,8 @@ package com.github.ffalcinelli.jdivert.headers;
 
 import java.nio.ByteBuffer;
 
-import com.github.ffalcinelli.jdivert.Util;
+import com.github.ffalcinelli.jdivert.Checksum;
+import com.github.ffalcinelli.jdivert.Enums.Protocol;
 
 import static com.github.ffalcinelli.jdivert.Util.unsigned;
 import static com.github.ffalcinelli.jdivert.Util.zeroPadArray;
@@ -30,6 +31,8 @@ import static com.github.ffalcinelli.jdivert.headers.Tcp.Flag.NS;
  */
 public class Tcp extends Transport {
 
+    private TcpOptions options;
+
     public Tcp(ByteBuffer raw, Ip ipHdr, int offset, boolean duplicateBuffer) {
         super(raw, ipHdr, offset, duplicateBuffer);
     }
@@ -43,12 +46,17 @@ public class Tcp extends Transport {
         return getDataOffset() * 4;
     }
 
+    @Override
+    protected int getChecksumIndex() {
+        return start + 16;
+    }
+
     public int getSeqNumber() {
         return raw.getInt(start + 4);
     }
 
     public void setSeqNumber(int seqNum) {
-        raw.putInt(start + 4, seqNum);
+        putInt(start + 4, seqNum);
     }
 
     public int getAckNumber() {
@@ -56,7 +64,7 @@ public class Tcp extends Transport {
     }
 
     public void setAckNumber(int ackNum) {
-        raw.putInt(start + 8, ackNum);
+        putInt(start + 8, ackNum);
     }
 
     public int getDataOffset() {
@@ -66,7 +74,7 @@ public class Tcp extends Transport {
     public void setDataOffset(int dataOffset) {
         if (dataOffset < 5 || dataOffset > 15)
             throw new IllegalArgumentException("TCP data offset must be greater or equal than 5 and less or equal than 15. You passed " + dataOffset);
-        raw.put(start + 12, (byte) (((dataOffset << 4) | (getReserved() << 1) | (is(NS) ? 0x01 : 0x00))));
+        putByte(start + 12, (byte) (((dataOffset << 4) | (getReserved() << 1) | (is(NS) ? 0x01 : 0x00))));
     }
 
     public int getReserved() {
@@ -74,7 +82,7 @@ public class Tcp extends Transport {
     }
 
     public void setReserved(int reserved) {
-        raw.put(start + 12, (byte) ((getDataOffset() << 4) | (reserved << 1) | (is(NS) ? 0x01 : 0x00)));
+        putByte(start + 12, (byte) ((getDataOffset() << 4) | (reserved << 1) | (is(NS) ? 0x01 : 0x00)));
     }
     
     public boolean isAny(Flag[] flags) {
@@ -105,7 +113,7 @@ public class Tcp extends Transport {
     }
 
     public void setFlags(int flags) {
-        raw.putShort(start + 12, (short) ((getDataOffset() << 12) | (getReserved() << 5) | (flags & 0x01FF)));
+        putShort(start + 12, (short) ((getDataOffset() << 12) | (getReserved() << 5) | (flags & 0x01FF)));
     }
 
     public int getWindowSize() {
@@ -113,7 +121,7 @@ public class Tcp extends Transport {
     }
 
     public void setWindowSize(int windowSize) {
-        raw.putShort(start + 14, (short) windowSize);
+        putShort(start + 14, (short) windowSize);
     }
 
     public int getChecksum() {
@@ -129,30 +137,65 @@ public class Tcp extends Transport {
     }
 
     public void setUrgentPointer(int urgPtr) {
-        raw.putShort(start + 18, (short) urgPtr);
+        putShort(start + 18, (short) urgPtr);
     }
     
+    /**
+     * @return The cursor over the options of this header, rewound: the same instance on every call.
+     */
+    public TcpOptions options() {
+        if (options == null)
+            options = new TcpOptions(this);
+        return options.rewind();
+    }
+
+    /**
+     * @return The maximum segment size option, -1 if absent.
+     */
     public int getMSS() {
-    	byte[] options = getOptions();
-    	int index = 0;
-    	
-		while(index < options.length) {
-			if(options[index] == 0x02) {
-				ByteBuffer buff = ByteBuffer.allocate(2);
-				buff.put(options[index+2]);
-				buff.put(options[index+3]);
-				buff.flip();
-				return buff.getShort();
-			}else if(options[index] == 0x01) {
-				index++;
-				continue;
-			} else if(options[index] == 0x00) {
-				return -1;
-			} else {
-				index += options[index+1];
-			}
-		}
-		return -1;
+        TcpOptions cursor = options();
+        return cursor.find(TcpOptions.MSS) && cursor.getLength() == 4 ? cursor.getMss() : -1;
+    }
+
+    /**
+     * Lowers the maximum segment size option to the given value, if greater.
+     *
+     * @param mss The largest segment size to advertise.
+     * @return Whether the option was rewritten.
+     */
+    public boolean clampMSS(int mss) {
+        TcpOptions cursor = options();
+        if (cursor.find(TcpOptions.MSS) && cursor.getLength() == 4 && cursor.getMss() > mss) {
+            cursor.setMss(mss);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The window scale option shift count, -1 if absent.
+     */
+    public int getWindowScale() {
+        TcpOptions cursor = options();
+        return cursor.find(TcpOptions.WINDOW_SCALE) && cursor.getLength() == 3 ? cursor.getWindowScale() : -1;
+    }
+
+    public boolean isSackPermitted() {
+        return options().find(TcpOptions.SACK_PERMITTED);
+    }
+
+    /**
+     * Overwrites the timestamps option, if any, with padding.
+     *
+     * @return Whether there was one.
+     */
+    public boolean stripTimestamps() {
+        TcpOptions cursor = options();
+        if (cursor.find(TcpOptions.TIMESTAMPS)) {
+            cursor.remove();
+            return true;
+        }
+        return false;
     }
 
     public byte[] getOptions() {
@@ -166,7 +209,7 @@ public class Tcp extends Transport {
         if (delta <= 0) {
             throw new IllegalStateException("Packet is too short for options.");
         }
-        setBytesAtOffset(start + 20, delta, zeroPadArray(options, delta));
+        putBytes(start + 20, delta, zeroPadArray(options, delta));
     }
 
     @Override
@@ -193,11 +236,31 @@ public class Tcp extends Transport {
     
     @Override
 	public void calculateChecksum() {
-		Util.computeChecksumLocal(raw.array(), start, start+16, raw.capacity(), ipHdr.getVirtualHeaderTotal());
+		Checksum.compute(raw, start, end, start + 16, ipHdr.getPseudoHeaderSum(Protocol.TCP, end - start));
 	}
   
 
     public enum Flag {
-        NS, CWR, ECE, URG, ACK, PSH, RST, SYN, FIN
+        NS, CWR, ECE, URG, ACK, PSH, RST, SYN, FIN;
+
+        // NS is the lowest bit of the data offset byte, FIN the lowest of the next one
+        private final int mask = 1 << (8 - ordinal());
+
+        /**
+         * @return The bit of this flag in {@link Tcp#getFlags()}.
+         */
+        public int mask() {
+            return mask;
+        }
+
+        /**
+         * @return The bits of the given flags in {@link Tcp#getFlags()}, or-ed together.
+         */
+        public static int maskOf(Flag... flags) {
+            int mask = 0;
+            for (Flag flag : flags)
+                mask |= flag.mask;
+            return mask;
+        }
     }
 }
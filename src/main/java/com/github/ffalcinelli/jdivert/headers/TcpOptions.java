@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.headers;
+
+import java.util.Arrays;
+
+/**
+ * A cursor over the options of a {@link Tcp} header, reading and rewriting them in place without allocating.
+ * <p>
+ * Obtained through {@link Tcp#options()}, rewound on each call. {@link #next()} skips padding and stops at the end
+ * of the option list, at the end of the header, or at the first malformed option. Rewrites go through the header,
+ * so that its checksum is adjusted when {@link Header#setIncrementalChecksum(boolean) incremental checksums} are on.
+ * </p>
+ */
+public final class TcpOptions {
+
+    public static final int END = 0;
+    public static final int NOP = 1;
+    public static final int MSS = 2;
+    public static final int WINDOW_SCALE = 3;
+    public static final int SACK_PERMITTED = 4;
+    public static final int SACK = 5;
+    public static final int TIMESTAMPS = 8;
+
+    // Options cannot be longer than 40 bytes
+    private static final byte[] NOPS = new byte[40];
+
+    static {
+        Arrays.fill(NOPS, (byte) NOP);
+    }
+
+    private final Tcp tcp;
+    private int index;
+    private int kind;
+    private int length;
+    private int next;
+    private int limit;
+
+    TcpOptions(Tcp tcp) {
+        this.tcp = tcp;
+    }
+
+    /**
+     * Moves the cursor before the first option.
+     *
+     * @return This cursor.
+     */
+    TcpOptions rewind() {
+        next = tcp.start + 20;
+        limit = Math.min(tcp.start + tcp.getHeaderLength(), tcp.end);
+        index = -1;
+        return this;
+    }
+
+    /**
+     * Moves the cursor to the next option.
+     *
+     * @return Whether there is one.
+     */
+    public boolean next() {
+        while (next < limit) {
+            int k = tcp.raw.get(next) & 0xFF;
+            if (k == END)
+                break;
+            if (k == NOP) {
+                next++;
+                continue;
+            }
+            if (next + 1 >= limit)
+                break;
+            int len = tcp.raw.get(next + 1) & 0xFF;
+            if (len < 2 || next + len > limit)
+                break;
+            index = next;
+            kind = k;
+            length = len;
+            next += len;
+            return true;
+        }
+        next = limit;
+        index = -1;
+        return false;
+    }
+
+    /**
+     * Moves the cursor to the next option of the given kind.
+     *
+     * @param kind The kind of option to look for.
+     * @return Whether there is one.
+     */
+    public boolean find(int kind) {
+        while (next()) {
+            if (this.kind == kind)
+                return true;
+        }
+        return false;
+    }
+
+    public int getKind() {
+        checkCurrent();
+        return kind;
+    }
+
+    /**
+     * @return The length of the current option, kind and length bytes included.
+     */
+    public int getLength() {
+        checkCurrent();
+        return length;
+    }
+
+    /**
+     * @return The offset of the current option from the start of the TCP header.
+     */
+    public int getOffset() {
+        checkCurrent();
+        return index - tcp.start;
+    }
+
+    public int getMss() {
+        check(MSS, 4);
+        return tcp.raw.getShort(index + 2) & 0xFFFF;
+    }
+
+    public void setMss(int mss) {
+        check(MSS, 4);
+        tcp.putShort(index + 2, (short) mss);
+    }
+
+    public int getWindowScale() {
+        check(WINDOW_SCALE, 3);
+        return tcp.raw.get(index + 2) & 0xFF;
+    }
+
+    public void setWindowScale(int shift) {
+        check(WINDOW_SCALE, 3);
+        tcp.putByte(index + 2, (byte) shift);
+    }
+
+    /**
+     * @return How many blocks the current SACK option holds.
+     */
+    public int getSackBlockCount() {
+        checkKind(SACK);
+        return (length - 2) / 8;
+    }
+
+    public long getSackLeftEdge(int block) {
+        return tcp.raw.getInt(sackBlock(block)) & 0xFFFFFFFFL;
+    }
+
+    public long getSackRightEdge(int block) {
+        return tcp.raw.getInt(sackBlock(block) + 4) & 0xFFFFFFFFL;
+    }
+
+    private int sackBlock(int block) {
+        if (block < 0 || block >= getSackBlockCount()) {
+            throw new IndexOutOfBoundsException(String.format("No SACK block %d", block));
+        }
+        return index + 2 + block * 8;
+    }
+
+    public long getTimestampValue() {
+        check(TIMESTAMPS, 10);
+        return tcp.raw.getInt(index + 2) & 0xFFFFFFFFL;
+    }
+
+    public long getTimestampEchoReply() {
+        check(TIMESTAMPS, 10);
+        return tcp.raw.getInt(index + 6) & 0xFFFFFFFFL;
+    }
+
+    public void setTimestamps(long value, long echoReply) {
+        check(TIMESTAMPS, 10);
+        tcp.putLong(index + 2, (value << 32) | (echoReply & 0xFFFFFFFFL));
+    }
+
+    /**
+     * Overwrites the current option with padding, the header length being left untouched.
+     */
+    public void remove() {
+        checkCurrent();
+        tcp.putBytes(index, length, NOPS);
+    }
+
+    private void check(int kind, int length) {
+        checkKind(kind);
+        if (this.length != length) {
+            throw new IllegalStateException(String.format("Option %d has length %d", kind, this.length));
+        }
+    }
+
+    private void checkKind(int kind) {
+        checkCurrent();
+        if (this.kind != kind) {
+            throw new IllegalStateException(String.format("The current option is %d, not %d", this.kind, kind));
+        }
+    }
+
+    private void checkCurrent() {
+        if (index < 0) {
+            throw new IllegalStateException("No current option");
+        }
+    }
+}
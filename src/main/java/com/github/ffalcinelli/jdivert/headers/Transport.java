@@ -32,6 +32,28 @@ public abstract class Transport extends Header {
         super(raw, offset, duplicateBuffer);
         setHasPorts(true);
         this.ipHdr = ipHdr;
+        if (ipHdr != null)
+            ipHdr.upperHeader = this;
+    }
+
+    /**
+     * Makes this header view another packet, reusing this instance.
+     *
+     * @param raw   The buffer holding the packet, used as is.
+     * @param ipHdr The IP header of the packet.
+     * @param start The index of this header into the buffer.
+     * @param end   The index right after the last byte of the packet.
+     */
+    public void rebind(ByteBuffer raw, Ip ipHdr, int start, int end) {
+        rebind(raw, start, end);
+        this.ipHdr = ipHdr;
+        if (ipHdr != null)
+            ipHdr.upperHeader = this;
+    }
+
+    @Override
+    protected boolean coversPseudoHeader() {
+        return true;
     }
 
     public int getSrcPort() {
@@ -39,7 +61,7 @@ public abstract class Transport extends Header {
     }
 
     public void setSrcPort(int port) {
-        raw.putShort(start, (short) port);
+        putShort(start, (short) port);
     }
 
     public int getDstPort() {
@@ -47,7 +69,7 @@ public abstract class Transport extends Header {
     }
 
     public void setDstPort(int port) {
-        raw.putShort(start + 2, (short) port);
+        putShort(start + 2, (short) port);
     }
 
 }
@@ -19,6 +19,8 @@ package com.github.ffalcinelli.jdivert.headers;
 
 import java.nio.ByteBuffer;
 
+import com.github.ffalcinelli.jdivert.Checksum;
+import com.github.ffalcinelli.jdivert.Enums.Protocol;
 import com.github.ffalcinelli.jdivert.Util;
 
 import static com.github.ffalcinelli.jdivert.Util.printHexBinary;
@@ -42,7 +44,7 @@ public class Udp extends Transport {
     }
 
     public void setLength(int length) {
-        raw.putShort(start + 4, (short) length);
+        putShort(start + 4, (short) length);
     }
 
     public int getChecksum() {
@@ -58,12 +60,25 @@ public class Udp extends Transport {
         return 8;
     }
 
+    @Override
+    protected int getChecksumIndex() {
+        return start + 6;
+    }
+
+    /**
+     * A zero checksum means none has been computed and is left as is, see {@link Util#adjustUdpChecksum(int, long)}.
+     */
+    @Override
+    protected void adjustChecksum(long delta) {
+        setChecksum(Util.adjustUdpChecksum(getChecksum(), delta));
+    }
+
     public byte[] getData() {
         return getBytesAtOffset(start + getHeaderLength(), getLength() - getHeaderLength());
     }
 
     public void setData(byte[] data) {
-        setBytesAtOffset(start + getHeaderLength(), data.length, data);
+        putBytes(start + getHeaderLength(), data.length, data);
     }
 
     @Override
@@ -79,6 +94,7 @@ public class Udp extends Transport {
 
     @Override
    	public void calculateChecksum() {
-   		Util.computeChecksumLocal(raw.array(), start, start+6, raw.capacity(), ipHdr.getVirtualHeaderTotal());
+   		setChecksum(Util.udpChecksum(Checksum.compute(raw, start, end, start + 6,
+   				ipHdr.getPseudoHeaderSum(Protocol.UDP, end - start))));
    	}
 }
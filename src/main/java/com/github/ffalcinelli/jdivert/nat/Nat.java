@@ -0,0 +1,396 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.ffalcinelli.jdivert.nat;
+
+import com.github.ffalcinelli.jdivert.FlowKey;
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.Util;
+import com.github.ffalcinelli.jdivert.headers.Tcp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.github.ffalcinelli.jdivert.Enums.Protocol;
+
+/**
+ * A stateful IPv4 NAT for TCP and UDP flows, rewriting packets in place with incremental checksums.
+ * <p>
+ * The first packet of a flow is matched against the {@link NatRule rules}: the first {@link NatRule.Type#SNAT SNAT}
+ * rule and the first destination rule matching it are applied together, the source port being taken from a
+ * {@link PortAllocator} shared by all of the SNAT rules of the protocol. The resulting mapping is then found by both
+ * the key of the original flow and the key its replies have once translated, so that the replies are rewritten
+ * back. Lookups never lock: mappings live in a {@link ConcurrentHashMap} and {@link #translate(Packet, long)} may
+ * be called from several threads at once.
+ * </p>
+ * <p>
+ * Idle mappings expire, as RFC 4787 and RFC 5382 recommend for UDP and TCP, a TCP mapping only waiting for the
+ * transitory timeout after a FIN or a RST. They are swept by {@link #expire(long)} and replaced on lookup.
+ * Fragments are left untouched: reassemble them first, e.g. with an
+ * {@link com.github.ffalcinelli.jdivert.reassembly.Ipv4Reassembler}.
+ * </p>
+ */
+public class Nat {
+
+    /**
+     * The established TCP timeout of RFC 5382, in milliseconds.
+     */
+    public static final long DEFAULT_TCP_TIMEOUT = 124 * 60 * 1000L;
+    /**
+     * The UDP timeout of RFC 4787, in milliseconds.
+     */
+    public static final long DEFAULT_UDP_TIMEOUT = 2 * 60 * 1000L;
+    /**
+     * The transitory TCP timeout of RFC 5382, in milliseconds.
+     */
+    public static final long DEFAULT_CLOSING_TIMEOUT = 4 * 60 * 1000L;
+
+    private static final int TCP = Protocol.TCP.getValue();
+    private static final int UDP = Protocol.UDP.getValue();
+    private static final int CLOSING_FLAGS = Tcp.Flag.maskOf(Tcp.Flag.FIN, Tcp.Flag.RST);
+
+    private static final ThreadLocal<FlowKey> KEYS = ThreadLocal.withInitial(FlowKey::new);
+
+    private final ConcurrentHashMap<FlowKey, Mapping> mappings;
+    private final PortAllocator tcpPorts;
+    private final PortAllocator udpPorts;
+    private final int maxMappings;
+    private final AtomicInteger mappingCount = new AtomicInteger();
+    private volatile NatRule[] rules = new NatRule[0];
+
+    private volatile long tcpTimeout = DEFAULT_TCP_TIMEOUT;
+    private volatile long udpTimeout = DEFAULT_UDP_TIMEOUT;
+    private volatile long closingTimeout = DEFAULT_CLOSING_TIMEOUT;
+
+    private final AtomicLong exhausted = new AtomicLong();
+    private final AtomicLong collisions = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+
+    /**
+     * @param maxMappings How many flows may be translated at once.
+     * @param firstPort   The lowest source port handed out by SNAT.
+     * @param lastPort    The highest source port handed out by SNAT.
+     */
+    public Nat(int maxMappings, int firstPort, int lastPort) {
+        if (maxMappings <= 0) {
+            throw new IllegalArgumentException("The mappings limit must be positive");
+        }
+        this.maxMappings = maxMappings;
+        this.mappings = new ConcurrentHashMap<FlowKey, Mapping>(2 * maxMappings);
+        this.tcpPorts = new PortAllocator(firstPort, lastPort);
+        this.udpPorts = new PortAllocator(firstPort, lastPort);
+    }
+
+    /**
+     * SNAT hands out the non privileged ports.
+     *
+     * @param maxMappings How many flows may be translated at once.
+     */
+    public Nat(int maxMappings) {
+        this(maxMappings, 1024, 0xFFFF);
+    }
+
+    /**
+     * Appends a rule, only applied to the flows starting from now on.
+     *
+     * @param rule The rule to append.
+     */
+    public synchronized void addRule(NatRule rule) {
+        if (rule == null) {
+            throw new IllegalArgumentException("The rule cannot be null");
+        }
+        NatRule[] grown = Arrays.copyOf(rules, rules.length + 1);
+        grown[rules.length] = rule;
+        rules = grown;
+    }
+
+    public void setTcpTimeout(long tcpTimeout) {
+        this.tcpTimeout = tcpTimeout;
+    }
+
+    public long getTcpTimeout() {
+        return tcpTimeout;
+    }
+
+    public void setUdpTimeout(long udpTimeout) {
+        this.udpTimeout = udpTimeout;
+    }
+
+    public long getUdpTimeout() {
+        return udpTimeout;
+    }
+
+    /**
+     * @param closingTimeout How long a TCP mapping lasts, in milliseconds, once a FIN or a RST has been seen.
+     */
+    public void setClosingTimeout(long closingTimeout) {
+        this.closingTimeout = closingTimeout;
+    }
+
+    public long getClosingTimeout() {
+        return closingTimeout;
+    }
+
+    /**
+     * Rewrites the addresses and ports of a packet belonging to a translated flow, in either direction, the
+     * mapping being created if a rule matches the packet. Checksums are adjusted, not computed again: they must be
+     * correct beforehand. Headers already decoded by the packet see the new values.
+     *
+     * @param packet The packet to rewrite in place.
+     * @param now    The current time, in milliseconds.
+     * @return Whether the packet has been translated.
+     */
+    public boolean translate(Packet packet, long now) {
+        if (!packet.isIpv4()) {
+            return false;
+        }
+        ByteBuffer raw = packet.getByteBuffer();
+        int ip = packet.getOffset();
+        // Either more fragments follow or this is not the first one
+        if ((raw.getShort(ip + 6) & 0x3FFF) != 0) {
+            return false;
+        }
+        FlowKey key = packet.extractFlowKey(KEYS.get());
+        int protocol = key.getProtocol();
+        int upper = ip + (raw.get(ip) & 0x0F) * 4;
+        int checksum = upper + (protocol == TCP ? 16 : 6);
+        if (protocol != TCP && protocol != UDP || checksum + 2 > ip + packet.getLength()) {
+            return false;
+        }
+        Mapping mapping = mappings.get(key);
+        if (mapping != null && isExpired(mapping, now)) {
+            if (remove(mapping))
+                expired.incrementAndGet();
+            mapping = null;
+        }
+        if (mapping == null) {
+            mapping = create(key, now);
+            if (mapping == null)
+                return false;
+        }
+        if (mapping.original.equals(key)) {
+            rewrite(raw, ip, upper, checksum, protocol, key,
+                    mapping.srcAddr, mapping.srcPort, mapping.dstAddr, mapping.dstPort);
+        } else {
+            FlowKey original = mapping.original;
+            rewrite(raw, ip, upper, checksum, protocol, key,
+                    (int) original.getDstAddrLow(), original.getDstPort(),
+                    (int) original.getSrcAddrLow(), original.getSrcPort());
+        }
+        if (mapping.lastSeen != now)
+            mapping.lastSeen = now;
+        if (protocol == TCP && !mapping.closing && (raw.getShort(upper + 12) & CLOSING_FLAGS) != 0)
+            mapping.closing = true;
+        return true;
+    }
+
+    /**
+     * Writes the endpoints straight into the packet bytes, adjusting the checksums as of RFC 1624 without decoding
+     * any header: the addresses are covered by both the IP checksum and the pseudo-header one of the upper layer.
+     */
+    private static void rewrite(ByteBuffer raw, int ip, int upper, int checksum, int protocol, FlowKey key,
+                                int srcAddr, int srcPort, int dstAddr, int dstPort) {
+        long addrDelta = delta((int) key.getSrcAddrLow(), srcAddr) + delta((int) key.getDstAddrLow(), dstAddr);
+        long portDelta = (~key.getSrcPort() & 0xFFFF) + srcPort + (~key.getDstPort() & 0xFFFF) + dstPort;
+        raw.putInt(ip + 12, srcAddr);
+        raw.putInt(ip + 16, dstAddr);
+        raw.putShort(ip + 10, (short) Util.adjustChecksum(raw.getShort(ip + 10) & 0xFFFF, addrDelta));
+        raw.putShort(upper, (short) srcPort);
+        raw.putShort(upper + 2, (short) dstPort);
+        int cksum = raw.getShort(checksum) & 0xFFFF;
+        if (protocol == TCP) {
+            raw.putShort(checksum, (short) Util.adjustChecksum(cksum, addrDelta + portDelta));
+        } else {
+            raw.putShort(checksum, (short) Util.adjustUdpChecksum(cksum, addrDelta + portDelta));
+        }
+    }
+
+    /**
+     * @return The sum of {@code ~old + new} over the two 16-bit words of an address.
+     */
+    private static long delta(int old, int addr) {
+        return (~old >>> 16) + (~old & 0xFFFF) + (addr >>> 16) + (addr & 0xFFFF);
+    }
+
+    /**
+     * @return The new mapping, the one of a concurrent call if it won, {@code null} if no rule applies or the
+     * mapping cannot be made.
+     */
+    private Mapping create(FlowKey key, long now) {
+        NatRule source = null;
+        NatRule destination = null;
+        for (NatRule rule : rules) {
+            if (rule.getType() == NatRule.Type.SNAT) {
+                if (source == null && rule.matches(key))
+                    source = rule;
+            } else if (destination == null && rule.matches(key)) {
+                destination = rule;
+            }
+        }
+        if (source == null && destination == null) {
+            return null;
+        }
+        if (mappingCount.incrementAndGet() > maxMappings) {
+            mappingCount.decrementAndGet();
+            exhausted.incrementAndGet();
+            return null;
+        }
+        int srcAddr = (int) key.getSrcAddrLow();
+        int srcPort = key.getSrcPort();
+        int dstAddr = (int) key.getDstAddrLow();
+        int dstPort = key.getDstPort();
+        PortAllocator ports = null;
+        if (destination != null) {
+            dstAddr = destination.getToAddr();
+            if (destination.getType() == NatRule.Type.PORT_FORWARD)
+                dstPort = destination.getToPort();
+        }
+        if (source != null) {
+            ports = key.getProtocol() == TCP ? tcpPorts : udpPorts;
+            srcAddr = source.getToAddr();
+            srcPort = ports.allocate(srcPort);
+            if (srcPort < 0) {
+                mappingCount.decrementAndGet();
+                exhausted.incrementAndGet();
+                return null;
+            }
+        }
+        FlowKey reply = new FlowKey().set(4, key.getProtocol(), 0, dstAddr & 0xFFFFFFFFL, dstPort,
+                0, srcAddr & 0xFFFFFFFFL, srcPort);
+        Mapping mapping = new Mapping(key.copy(), reply, srcAddr, srcPort, dstAddr, dstPort, ports, now);
+        Mapping raced = mappings.putIfAbsent(mapping.original, mapping);
+        if (raced != null) {
+            release(mapping);
+            return raced;
+        }
+        if (mappings.putIfAbsent(reply, mapping) != null) {
+            // Another flow is translated to the same one, e.g. by DNAT without SNAT
+            mappings.remove(mapping.original, mapping);
+            release(mapping);
+            collisions.incrementAndGet();
+            return null;
+        }
+        return mapping;
+    }
+
+    private boolean isExpired(Mapping mapping, long now) {
+        long timeout = mapping.closing ? closingTimeout : mapping.original.getProtocol() == TCP ? tcpTimeout : udpTimeout;
+        return now - mapping.lastSeen >= timeout;
+    }
+
+    /**
+     * @return Whether this call removed the mapping, the port being released once both of its keys are gone.
+     */
+    private boolean remove(Mapping mapping) {
+        if (!mappings.remove(mapping.original, mapping)) {
+            return false;
+        }
+        mappings.remove(mapping.reply, mapping);
+        release(mapping);
+        return true;
+    }
+
+    private void release(Mapping mapping) {
+        if (mapping.ports != null)
+            mapping.ports.release(mapping.srcPort);
+        mappingCount.decrementAndGet();
+    }
+
+    /**
+     * Removes the mappings idle for longer than their timeout.
+     *
+     * @param now The current time, in milliseconds.
+     * @return How many mappings were removed.
+     */
+    public int expire(long now) {
+        int removed = 0;
+        for (Mapping mapping : mappings.values()) {
+            if (isExpired(mapping, now) && remove(mapping))
+                removed++;
+        }
+        expired.addAndGet(removed);
+        return removed;
+    }
+
+    /**
+     * Removes the mapping of a flow, in either direction and as seen on either side of the NAT.
+     *
+     * @param key The key of a packet of the flow.
+     * @return Whether there was a mapping.
+     */
+    public boolean remove(FlowKey key) {
+        Mapping mapping = mappings.get(key);
+        return mapping != null && remove(mapping);
+    }
+
+    /**
+     * @return How many flows are translated.
+     */
+    public int getMappingCount() {
+        return mappingCount.get();
+    }
+
+    /**
+     * @return How many flows were not translated for lack of mappings or ports.
+     */
+    public long getExhaustedCount() {
+        return exhausted.get();
+    }
+
+    /**
+     * @return How many flows were not translated as their replies would have been mistaken for another flow.
+     */
+    public long getCollisionCount() {
+        return collisions.get();
+    }
+
+    public long getExpiredCount() {
+        return expired.get();
+    }
+
+    private static final class Mapping {
+        // The flow before translation, in its original direction
+        final FlowKey original;
+        // The replies once the flow is translated
+        final FlowKey reply;
+        // The endpoints the original direction is rewritten to
+        final int srcAddr;
+        final int srcPort;
+        final int dstAddr;
+        final int dstPort;
+        // Where the source port was taken from, null if kept
+        final PortAllocator ports;
+        volatile long lastSeen;
+        volatile boolean closing;
+
+        Mapping(FlowKey original, FlowKey reply, int srcAddr, int srcPort, int dstAddr, int dstPort,
+                PortAllocator ports, long lastSeen) {
+            this.original = original;
+            this.reply = reply;
+            this.srcAddr = srcAddr;
+            this.srcPort = srcPort;
+            this.dstAddr = dstAddr;
+            this.dstPort = dstPort;
+            this.ports = ports;
+            this.lastSeen = lastSeen;
+        }
+    }
+}
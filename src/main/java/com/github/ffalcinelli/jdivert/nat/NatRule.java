@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.ffalcinelli.jdivert.nat;
+
+import com.github.ffalcinelli.jdivert.FlowKey;
+import com.github.ffalcinelli.jdivert.IpLiterals;
+
+import static com.github.ffalcinelli.jdivert.Enums.Protocol;
+
+/**
+ * A translation applied by {@link Nat} to the first packet of a flow, then to the whole flow. IPv4 addresses are
+ * given as ints, most significant byte first.
+ */
+public final class NatRule {
+
+    public enum Type {
+        /**
+         * Rewrites the source address of flows leaving a network, and the source port if already taken.
+         */
+        SNAT,
+        /**
+         * Rewrites the destination address of flows towards a network.
+         */
+        DNAT,
+        /**
+         * Rewrites the destination address and port of flows towards a service.
+         */
+        PORT_FORWARD
+    }
+
+    private final Type type;
+    private final int protocol;
+    private final int network;
+    private final int mask;
+    private final int port;
+    private final int toAddr;
+    private final int toPort;
+
+    private NatRule(Type type, int protocol, int network, int prefixLength, int port, int toAddr, int toPort) {
+        if (prefixLength < 0 || prefixLength > 32)
+            throw new IllegalArgumentException("Invalid prefix length " + prefixLength);
+        if (port < 0 || port > 0xFFFF || toPort < 0 || toPort > 0xFFFF)
+            throw new IllegalArgumentException("Invalid port");
+        this.type = type;
+        this.protocol = protocol;
+        this.mask = prefixLength == 0 ? 0 : -1 << (32 - prefixLength);
+        this.network = network & mask;
+        this.port = port;
+        this.toAddr = toAddr;
+        this.toPort = toPort;
+    }
+
+    /**
+     * @param network      The source network of the flows to translate.
+     * @param prefixLength The length of the network prefix, 0 matching any source.
+     * @param toAddr       The source address flows get.
+     */
+    public static NatRule snat(int network, int prefixLength, int toAddr) {
+        return new NatRule(Type.SNAT, 0, network, prefixLength, 0, toAddr, 0);
+    }
+
+    /**
+     * @param network      The destination network of the flows to translate.
+     * @param prefixLength The length of the network prefix, 0 matching any destination.
+     * @param toAddr       The destination address flows get.
+     */
+    public static NatRule dnat(int network, int prefixLength, int toAddr) {
+        return new NatRule(Type.DNAT, 0, network, prefixLength, 0, toAddr, 0);
+    }
+
+    /**
+     * @param protocol Either {@link Protocol#TCP} or {@link Protocol#UDP}.
+     * @param addr     The destination address of the flows to translate, 0 matching any destination.
+     * @param port     The destination port of the flows to translate.
+     * @param toAddr   The destination address flows get.
+     * @param toPort   The destination port flows get.
+     */
+    public static NatRule portForward(Protocol protocol, int addr, int port, int toAddr, int toPort) {
+        if (protocol != Protocol.TCP && protocol != Protocol.UDP)
+            throw new IllegalArgumentException("Ports cannot be forwarded for " + protocol);
+        return new NatRule(Type.PORT_FORWARD, protocol.getValue(), addr, addr == 0 ? 0 : 32, port, toAddr, toPort);
+    }
+
+    /**
+     * @return Whether the flow of the given IPv4 key is translated by this rule.
+     */
+    boolean matches(FlowKey key) {
+        switch (type) {
+            case SNAT:
+                return ((int) key.getSrcAddrLow() & mask) == network;
+            case DNAT:
+                return ((int) key.getDstAddrLow() & mask) == network;
+            default:
+                return key.getProtocol() == protocol && key.getDstPort() == port
+                        && ((int) key.getDstAddrLow() & mask) == network;
+        }
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public int getToAddr() {
+        return toAddr;
+    }
+
+    /**
+     * @return The destination port flows get, 0 unless forwarding a port.
+     */
+    public int getToPort() {
+        return toPort;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("NatRule{type=").append(type).append(", match=");
+        IpLiterals.appendIpv4(sb, network).append('/').append(Integer.bitCount(mask));
+        if (type == Type.PORT_FORWARD)
+            sb.append(':').append(port);
+        IpLiterals.appendIpv4(sb.append(", to="), toAddr);
+        if (type == Type.PORT_FORWARD)
+            sb.append(':').append(toPort);
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.ffalcinelli.jdivert.nat;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hands out the ports of a range without locking: each port is a bit of an {@link AtomicLongArray}, claimed and
+ * released by compare-and-set. The search starts from the word of the last successful claim, so that consecutive
+ * allocations do not rescan the ports already in use.
+ */
+public class PortAllocator {
+
+    private final int first;
+    private final int count;
+    private final AtomicLongArray used;
+    private final AtomicInteger available;
+    private final AtomicInteger hint = new AtomicInteger();
+
+    /**
+     * @param first The lowest port handed out.
+     * @param last  The highest port handed out.
+     */
+    public PortAllocator(int first, int last) {
+        if (first < 1 || last > 0xFFFF || first > last) {
+            throw new IllegalArgumentException("Invalid port range " + first + "-" + last);
+        }
+        this.first = first;
+        this.count = last - first + 1;
+        this.used = new AtomicLongArray((count + 63) >>> 6);
+        this.available = new AtomicInteger(count);
+        // The bits past the last port are never free
+        int tail = count & 63;
+        if (tail != 0)
+            used.set(used.length() - 1, -1L << tail);
+    }
+
+    /**
+     * Claims the preferred port if free, any other one otherwise.
+     *
+     * @param preferred The port to keep if possible, e.g. the original one, ignored when out of range.
+     * @return The port claimed, -1 if all of them are in use.
+     */
+    public int allocate(int preferred) {
+        int index = preferred - first;
+        if (index >= 0 && index < count) {
+            int word = index >>> 6;
+            long bit = 1L << index;
+            long bits;
+            while (((bits = used.get(word)) & bit) == 0) {
+                if (used.compareAndSet(word, bits, bits | bit)) {
+                    available.decrementAndGet();
+                    return preferred;
+                }
+            }
+        }
+        return allocate();
+    }
+
+    /**
+     * @return The port claimed, -1 if all of them are in use.
+     */
+    public int allocate() {
+        int words = used.length();
+        int start = hint.get();
+        for (int i = 0; i < words && available.get() > 0; i++) {
+            int word = start + i < words ? start + i : start + i - words;
+            long bits;
+            while ((bits = used.get(word)) != -1L) {
+                long bit = Long.lowestOneBit(~bits);
+                if (used.compareAndSet(word, bits, bits | bit)) {
+                    available.decrementAndGet();
+                    if (word != start)
+                        hint.lazySet(word);
+                    return first + (word << 6) + Long.numberOfTrailingZeros(bit);
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gives a port back, to be handed out again.
+     *
+     * @param port A port previously claimed.
+     */
+    public void release(int port) {
+        int index = checkPort(port);
+        int word = index >>> 6;
+        long bit = 1L << index;
+        long bits;
+        do {
+            bits = used.get(word);
+            if ((bits & bit) == 0)
+                throw new IllegalStateException("Port " + port + " is not allocated");
+        } while (!used.compareAndSet(word, bits, bits & ~bit));
+        available.incrementAndGet();
+    }
+
+    public boolean isAllocated(int port) {
+        int index = checkPort(port);
+        return (used.get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    private int checkPort(int port) {
+        int index = port - first;
+        if (index < 0 || index >= count)
+            throw new IllegalArgumentException("Port " + port + " is out of range");
+        return index;
+    }
+
+    /**
+     * @return How many ports are free, as of the last allocations and releases completed.
+     */
+    public int getAvailable() {
+        return available.get();
+    }
+
+    public int getFirst() {
+        return first;
+    }
+
+    public int getLast() {
+        return first + count - 1;
+    }
+}
@@ -0,0 +1,521 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.reassembly;
+
+import com.github.ffalcinelli.jdivert.Packet;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.github.ffalcinelli.jdivert.Enums.Protocol;
+
+/**
+ * The bookkeeping shared by the IP reassemblers: pending datagrams, their received ranges and their buffers.
+ * <p>
+ * All of the per-datagram state lives in arrays preallocated for {@code maxDatagrams} datagrams, among which at
+ * most {@value #MAX_RANGES} ranges of received data each: the holes are the gaps between them. Data is gathered in
+ * pooled heap buffers, behind a headroom for the header, whose total size is capped by {@code maxBytes}. When either
+ * limit is reached the oldest datagram is evicted, so every fragment costs O(1) even under a flood.
+ * </p>
+ * <p>
+ * The timeout is the same for every datagram, so deadlines follow the order in which datagrams were created: the
+ * pending datagrams are expired from the head of that list.
+ * </p>
+ * <p>
+ * Instances are not thread safe. Reassembled packets view a pooled buffer, handed back on
+ * {@link Packet#release()}.
+ * </p>
+ */
+public abstract class FragmentReassembler {
+
+    /**
+     * Most ranges of received data kept per datagram.
+     */
+    public static final int MAX_RANGES = 16;
+
+    static final int NONE = -1;
+    private static final int TCP = Protocol.TCP.getValue();
+    private static final int UDP = Protocol.UDP.getValue();
+
+    final int headroom;
+    private final int keyWords;
+    private final long timeout;
+    private final long maxBytes;
+    private final ReassemblyBuffers buffers;
+    private final long seed = new Random().nextLong();
+    OverlapPolicy overlapPolicy = OverlapPolicy.DROP;
+    private boolean refragment;
+
+    /**
+     * The key of the datagram to {@link #acquire(long) acquire}, filled by subclasses.
+     */
+    final long[] key;
+
+    // Hash chains of slots, by bucket
+    private final int[] buckets;
+    private final int[] chain;
+    // Slots in creation order, thus deadline order: the free ones are chained through next
+    private final int[] prev;
+    private final int[] next;
+    private int oldest = NONE;
+    private int newest = NONE;
+    private int free;
+
+    private final long[] keys;
+    private final long[] deadlines;
+    private final ByteBuffer[] data;
+    private final int[] totalLengths;
+    private final int[] headerLengths;
+    private final int[] largestFragments;
+    private final int[] rangeCounts;
+    private final int[] ranges;
+    private final long[] timestamps;
+    private final int[] addrFlags;
+    private final int[] ifIdxs;
+    private final int[] subIfIdxs;
+
+    private int pending;
+    private long usedBytes;
+    private long reassembled;
+    private long dropped;
+    private long timedOut;
+    private long evicted;
+
+    FragmentReassembler(int maxDatagrams, long maxBytes, long timeoutMillis, int headroom, int keyWords) {
+        if (maxDatagrams <= 0 || timeoutMillis <= 0) {
+            throw new IllegalArgumentException("The datagram count and the timeout must be positive");
+        }
+        if (maxBytes < headroom + ReassemblyBuffers.MAX_DATA_SIZE) {
+            throw new IllegalArgumentException("The memory cap must hold at least the largest datagram");
+        }
+        this.headroom = headroom;
+        this.keyWords = keyWords;
+        this.timeout = timeoutMillis;
+        this.maxBytes = maxBytes;
+        this.buffers = new ReassemblyBuffers(headroom, maxBytes);
+        this.key = new long[keyWords];
+        int bucketCount = Integer.highestOneBit(maxDatagrams * 2 - 1) << 1;
+        buckets = new int[bucketCount];
+        Arrays.fill(buckets, NONE);
+        chain = new int[maxDatagrams];
+        prev = new int[maxDatagrams];
+        next = new int[maxDatagrams];
+        for (int i = 0; i < maxDatagrams; i++)
+            next[i] = i + 1 < maxDatagrams ? i + 1 : NONE;
+        free = 0;
+        keys = new long[maxDatagrams * keyWords];
+        deadlines = new long[maxDatagrams];
+        data = new ByteBuffer[maxDatagrams];
+        totalLengths = new int[maxDatagrams];
+        headerLengths = new int[maxDatagrams];
+        largestFragments = new int[maxDatagrams];
+        rangeCounts = new int[maxDatagrams];
+        ranges = new int[maxDatagrams * MAX_RANGES * 2];
+        timestamps = new long[maxDatagrams];
+        addrFlags = new int[maxDatagrams];
+        ifIdxs = new int[maxDatagrams];
+        subIfIdxs = new int[maxDatagrams];
+    }
+
+    /**
+     * Makes reassembled packets carry the length of the largest fragment as {@link Packet#setMtu(int) MTU}, so that
+     * {@link Packet#fragment()} splits them again like they arrived before reinjection.
+     *
+     * @param refragment Whether to record the fragment size.
+     */
+    public void setRefragment(boolean refragment) {
+        this.refragment = refragment;
+    }
+
+    public boolean isRefragment() {
+        return refragment;
+    }
+
+    /**
+     * Feeds a packet, whose content is copied: it may be released afterwards.
+     *
+     * @param packet The packet to reassemble.
+     * @param now    The current time, in milliseconds, expiring pending datagrams.
+     * @return The packet itself if not a fragment of this IP version, the reassembled datagram if this fragment
+     * completed it, {@code null} otherwise.
+     */
+    public abstract Packet reassemble(Packet packet, long now);
+
+    /**
+     * Writes the lengths of a reassembled datagram, and whatever else tells it from its fragments.
+     *
+     * @param buffer       The buffer holding the datagram.
+     * @param start        The index of the datagram into the buffer.
+     * @param headerLength The length of the header in front of the data, ending at the headroom.
+     * @param dataLength   The length of the data.
+     */
+    abstract void finish(ByteBuffer buffer, int start, int headerLength, int dataLength);
+
+    /**
+     * @return The length of the transport header which the first fragment of a datagram must hold for filters to
+     * see the ports, as a defence against tiny fragments (RFC 1858).
+     */
+    static int minimumFirstFragment(int protocol) {
+        return protocol == TCP ? 20 : protocol == UDP ? 8 : 0;
+    }
+
+    /**
+     * @return The slot of the datagram whose {@link #key} is set, created if new.
+     */
+    int acquire(long now) {
+        int slot = find();
+        return slot != NONE ? slot : create(now);
+    }
+
+    /**
+     * Discards a datagram, if any, on account of an invalid fragment.
+     *
+     * @param slot The slot of the datagram, {@link #NONE} for none.
+     * @return {@code null}, for the convenience of callers.
+     */
+    Packet reject(int slot) {
+        if (slot != NONE)
+            discard(slot);
+        dropped++;
+        return null;
+    }
+
+    /**
+     * Adds the data of a fragment to its datagram, which is discarded if the fragment does not fit.
+     *
+     * @param slot           The slot of the datagram.
+     * @param raw            The buffer holding the fragment.
+     * @param from           The index of the fragment data.
+     * @param start          The offset of the fragment data into the datagram.
+     * @param end            The offset after the fragment data into the datagram.
+     * @param more           Whether more fragments follow.
+     * @param fragmentLength The length of the whole fragment.
+     * @return False if the datagram was discarded.
+     */
+    boolean add(int slot, ByteBuffer raw, int from, int start, int end, boolean more, int fragmentLength) {
+        if (!checkLength(slot, more, end) || !ensureCapacity(slot, end) || !insert(slot, raw, from, start, end)) {
+            reject(slot);
+            return false;
+        }
+        largestFragments[slot] = Math.max(largestFragments[slot], fragmentLength);
+        return true;
+    }
+
+    /**
+     * Copies the header of the first fragment in front of the data, unless already done, along with the metadata of
+     * the packet.
+     *
+     * @return The index of the header copy, {@link #NONE} if the header was already known.
+     */
+    int putHeader(int slot, ByteBuffer raw, int from, int length, Packet packet) {
+        if (headerLengths[slot] != 0)
+            return NONE;
+        int index = headroom - length;
+        copy(raw, from, data[slot].array(), index, length);
+        headerLengths[slot] = length;
+        timestamps[slot] = packet.getTimestamp();
+        addrFlags[slot] = packet.getAddressFlags();
+        ifIdxs[slot] = packet.getInterfaceIndex();
+        subIfIdxs[slot] = packet.getSubInterfaceIndex();
+        return index;
+    }
+
+    ByteBuffer buffer(int slot) {
+        return data[slot];
+    }
+
+    /**
+     * @return The reassembled datagram if all of its fragments arrived, {@code null} otherwise.
+     */
+    Packet complete(int slot) {
+        int base = rangeIndex(slot, 0);
+        int total = totalLengths[slot];
+        if (total < 0 || headerLengths[slot] == 0 || rangeCounts[slot] != 1 || ranges[base] != 0
+                || ranges[base + 1] != total)
+            return null;
+        ByteBuffer buffer = data[slot];
+        data[slot] = null;
+        usedBytes -= buffer.capacity();
+        Packet packet = emit(buffer, headroom - headerLengths[slot], total);
+        packet.setAddress(timestamps[slot], addrFlags[slot], ifIdxs[slot], subIfIdxs[slot]);
+        if (refragment)
+            packet.setMtu(largestFragments[slot]);
+        discard(slot);
+        return packet;
+    }
+
+    /**
+     * @return A pooled buffer with room for the headroom and the given data length, not counted against the cap.
+     */
+    ByteBuffer allocate(int dataLength) {
+        return buffers.allocate(dataLength);
+    }
+
+    /**
+     * Wraps a datagram, {@link #finish finished} first, into a packet handing its buffer back to the pool.
+     */
+    Packet emit(final ByteBuffer buffer, int start, int dataLength) {
+        finish(buffer, start, headroom - start, dataLength);
+        ByteBuffer view = buffer.duplicate();
+        view.limit(headroom + dataLength).position(start);
+        reassembled++;
+        return new Packet(view.slice(), null, new Runnable() {
+            @Override
+            public void run() {
+                buffers.release(buffer);
+            }
+        });
+    }
+
+    private boolean checkLength(int slot, boolean more, int end) {
+        int total = totalLengths[slot];
+        int count = rangeCounts[slot];
+        if (!more) {
+            if (total >= 0 && total != end)
+                return false;
+            if (count > 0 && ranges[rangeIndex(slot, count - 1) + 1] > end)
+                return false;
+            totalLengths[slot] = end;
+            return true;
+        }
+        return total < 0 || end <= total;
+    }
+
+    private boolean ensureCapacity(int slot, int end) {
+        ByteBuffer old = data[slot];
+        int oldCapacity = old != null ? old.capacity() : 0;
+        if (oldCapacity - headroom >= end)
+            return true;
+        int capacity = buffers.capacityFor(Math.max(end, totalLengths[slot]));
+        // Room is made by evicting the oldest datagrams, never the one being grown
+        while (usedBytes - oldCapacity + capacity > maxBytes) {
+            if (oldest == slot && next[slot] == NONE)
+                return false;
+            discard(oldest == slot ? next[slot] : oldest);
+            evicted++;
+        }
+        ByteBuffer buffer = buffers.allocate(capacity - headroom);
+        if (old != null) {
+            System.arraycopy(old.array(), 0, buffer.array(), 0, oldCapacity);
+            buffers.release(old);
+        }
+        data[slot] = buffer;
+        usedBytes += buffer.capacity() - oldCapacity;
+        return true;
+    }
+
+    private static int rangeIndex(int slot, int range) {
+        return (slot * MAX_RANGES + range) * 2;
+    }
+
+    /**
+     * Copies the fragment data and merges its range with the received ones, according to the overlap policy.
+     *
+     * @return False if the datagram is to be discarded.
+     */
+    private boolean insert(int slot, ByteBuffer raw, int from, int start, int end) {
+        int count = rangeCounts[slot];
+        int base = rangeIndex(slot, 0);
+        // Ranges i to j - 1 touch or overlap the new one
+        int i = 0;
+        while (i < count && ranges[base + 2 * i + 1] < start)
+            i++;
+        int j = i;
+        boolean overlap = false;
+        while (j < count && ranges[base + 2 * j] <= end) {
+            overlap |= ranges[base + 2 * j] < end && ranges[base + 2 * j + 1] > start;
+            j++;
+        }
+        int merged = count - (j - i) + 1;
+        if ((overlap && overlapPolicy == OverlapPolicy.DROP) || merged > MAX_RANGES)
+            return false;
+
+        byte[] buffer = data[slot].array();
+        if (overlap && overlapPolicy == OverlapPolicy.FIRST) {
+            int cursor = start;
+            for (int k = i; k < j; k++) {
+                int rangeStart = ranges[base + 2 * k];
+                if (rangeStart > cursor)
+                    copy(raw, from + cursor - start, buffer, headroom + cursor, rangeStart - cursor);
+                cursor = Math.max(cursor, ranges[base + 2 * k + 1]);
+            }
+            if (cursor < end)
+                copy(raw, from + cursor - start, buffer, headroom + cursor, end - cursor);
+        } else {
+            copy(raw, from, buffer, headroom + start, end - start);
+        }
+
+        int mergedStart = i < j ? Math.min(start, ranges[base + 2 * i]) : start;
+        int mergedEnd = i < j ? Math.max(end, ranges[base + 2 * (j - 1) + 1]) : end;
+        if (j - i != 1)
+            System.arraycopy(ranges, base + 2 * j, ranges, base + 2 * (i + 1), 2 * (count - j));
+        ranges[base + 2 * i] = mergedStart;
+        ranges[base + 2 * i + 1] = mergedEnd;
+        rangeCounts[slot] = merged;
+        return true;
+    }
+
+    static void copy(ByteBuffer src, int from, byte[] dst, int to, int length) {
+        if (src.hasArray()) {
+            System.arraycopy(src.array(), src.arrayOffset() + from, dst, to, length);
+        } else {
+            for (int i = 0; i < length; i++)
+                dst[to + i] = src.get(from + i);
+        }
+    }
+
+    /**
+     * Discards the datagrams whose timeout expired.
+     *
+     * @param now The current time, in milliseconds.
+     */
+    public void expire(long now) {
+        while (oldest != NONE && deadlines[oldest] <= now) {
+            discard(oldest);
+            timedOut++;
+        }
+    }
+
+    /**
+     * Discards all of the pending datagrams.
+     */
+    public void clear() {
+        while (oldest != NONE)
+            discard(oldest);
+    }
+
+    private int bucket(long[] words, int from) {
+        long h = seed;
+        for (int i = 0; i < keyWords; i++)
+            h = (h ^ words[from + i]) * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return (int) h & (buckets.length - 1);
+    }
+
+    private boolean matches(int slot) {
+        int from = slot * keyWords;
+        for (int i = 0; i < keyWords; i++) {
+            if (keys[from + i] != key[i])
+                return false;
+        }
+        return true;
+    }
+
+    private int find() {
+        for (int slot = buckets[bucket(key, 0)]; slot != NONE; slot = chain[slot]) {
+            if (matches(slot))
+                return slot;
+        }
+        return NONE;
+    }
+
+    private int create(long now) {
+        if (free == NONE) {
+            discard(oldest);
+            evicted++;
+        }
+        int slot = free;
+        free = next[slot];
+        System.arraycopy(key, 0, keys, slot * keyWords, keyWords);
+        deadlines[slot] = now + timeout;
+        totalLengths[slot] = -1;
+        headerLengths[slot] = 0;
+        largestFragments[slot] = 0;
+        rangeCounts[slot] = 0;
+        int bucket = bucket(key, 0);
+        chain[slot] = buckets[bucket];
+        buckets[bucket] = slot;
+        prev[slot] = newest;
+        next[slot] = NONE;
+        if (newest != NONE)
+            next[newest] = slot;
+        else
+            oldest = slot;
+        newest = slot;
+        pending++;
+        return slot;
+    }
+
+    private void discard(int slot) {
+        int bucket = bucket(keys, slot * keyWords);
+        if (buckets[bucket] == slot) {
+            buckets[bucket] = chain[slot];
+        } else {
+            int s = buckets[bucket];
+            while (chain[s] != slot)
+                s = chain[s];
+            chain[s] = chain[slot];
+        }
+        if (prev[slot] != NONE)
+            next[prev[slot]] = next[slot];
+        else
+            oldest = next[slot];
+        if (next[slot] != NONE)
+            prev[next[slot]] = prev[slot];
+        else
+            newest = prev[slot];
+        ByteBuffer buffer = data[slot];
+        if (buffer != null) {
+            usedBytes -= buffer.capacity();
+            buffers.release(buffer);
+            data[slot] = null;
+        }
+        next[slot] = free;
+        free = slot;
+        pending--;
+    }
+
+    /**
+     * @return How many datagrams are waiting for fragments.
+     */
+    public int getPendingCount() {
+        return pending;
+    }
+
+    /**
+     * @return How many bytes the buffers of pending datagrams take.
+     */
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public long getReassembledCount() {
+        return reassembled;
+    }
+
+    /**
+     * @return How many fragments were found invalid, their datagram being discarded.
+     */
+    public long getDroppedCount() {
+        return dropped;
+    }
+
+    public long getTimedOutCount() {
+        return timedOut;
+    }
+
+    /**
+     * @return How many datagrams were discarded to make room for others.
+     */
+    public long getEvictedCount() {
+        return evicted;
+    }
+}
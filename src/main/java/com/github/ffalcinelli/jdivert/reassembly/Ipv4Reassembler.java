@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.reassembly;
+
+import com.github.ffalcinelli.jdivert.Checksum;
+import com.github.ffalcinelli.jdivert.Packet;
+
+import java.nio.ByteBuffer;
+
+import static com.github.ffalcinelli.jdivert.Enums.Protocol;
+
+/**
+ * Reassembles IPv4 datagrams from their fragments, keyed by source, destination, identification and protocol.
+ * <p>
+ * A datagram is discarded when its timeout expires after the first fragment, or as soon as a fragment is
+ * malformed or looks like an evasion attempt: overlapping data (unless the {@link OverlapPolicy} says otherwise),
+ * conflicting lengths, tiny first fragments (RFC 1858) or too many holes. Memory and time bounds are described in
+ * {@link FragmentReassembler}.
+ * </p>
+ */
+public class Ipv4Reassembler extends FragmentReassembler {
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+
+    // Room for the largest header in front of the data
+    private static final int HEADROOM = 60;
+    private static final int MORE_FRAGMENTS = 0x2000;
+    private static final int TCP = Protocol.TCP.getValue();
+
+    /**
+     * @param maxDatagrams  How many datagrams may be pending at once.
+     * @param maxBytes      How many bytes the buffers of pending datagrams may take, at least 64 KiB.
+     * @param timeoutMillis How long a datagram may be pending.
+     */
+    public Ipv4Reassembler(int maxDatagrams, long maxBytes, long timeoutMillis) {
+        super(maxDatagrams, maxBytes, timeoutMillis, HEADROOM, 2);
+    }
+
+    public Ipv4Reassembler(int maxDatagrams, long maxBytes) {
+        this(maxDatagrams, maxBytes, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Sets how overlapping fragments are handled, {@link OverlapPolicy#DROP} by default.
+     *
+     * @param overlapPolicy The policy to apply.
+     */
+    public void setOverlapPolicy(OverlapPolicy overlapPolicy) {
+        this.overlapPolicy = overlapPolicy;
+    }
+
+    public OverlapPolicy getOverlapPolicy() {
+        return overlapPolicy;
+    }
+
+    @Override
+    public Packet reassemble(Packet packet, long now) {
+        expire(now);
+        if (!packet.isIpv4())
+            return packet;
+        ByteBuffer raw = packet.getByteBuffer();
+        int offset = packet.getOffset();
+        int field = raw.getShort(offset + 6) & 0xFFFF;
+        boolean more = (field & MORE_FRAGMENTS) != 0;
+        int fragmentOffset = (field & 0x1FFF) * 8;
+        if (!more && fragmentOffset == 0)
+            return packet;
+
+        int headerLength = (raw.get(offset) & 0x0F) * 4;
+        int length = Math.min(raw.getShort(offset + 2) & 0xFFFF, packet.getLength());
+        int dataLength = length - headerLength;
+        int end = fragmentOffset + dataLength;
+        if (headerLength < 20 || dataLength <= 0 || (more && (dataLength & 7) != 0) || end > 0xFFFF - headerLength)
+            return reject(NONE);
+        int protocol = raw.get(offset + 9) & 0xFF;
+        key[0] = raw.getLong(offset + 12);
+        key[1] = (raw.getShort(offset + 4) & 0xFFFF) << 8 | protocol;
+
+        int slot = acquire(now);
+        if (isTiny(protocol, fragmentOffset, more, dataLength))
+            return reject(slot);
+        if (!add(slot, raw, offset + headerLength, fragmentOffset, end, more, length))
+            return null;
+        if (fragmentOffset == 0)
+            putHeader(slot, raw, offset, headerLength, packet);
+        return complete(slot);
+    }
+
+    /**
+     * Tells tiny fragments apart, which may hide the TCP flags or the ports from filters (RFC 1858).
+     */
+    private static boolean isTiny(int protocol, int fragmentOffset, boolean more, int dataLength) {
+        if (protocol == TCP && fragmentOffset == 8)
+            return true;
+        return fragmentOffset == 0 && more && dataLength < minimumFirstFragment(protocol);
+    }
+
+    @Override
+    void finish(ByteBuffer buffer, int start, int headerLength, int dataLength) {
+        buffer.putShort(start + 2, (short) (headerLength + dataLength));
+        buffer.putShort(start + 6, (short) (buffer.getShort(start + 6) & 0xC000));
+        Checksum.compute(buffer, start, start + headerLength, start + 10, 0);
+    }
+}
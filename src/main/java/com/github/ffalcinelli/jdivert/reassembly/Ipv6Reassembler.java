@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.reassembly;
+
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.headers.Ipv6;
+
+import java.nio.ByteBuffer;
+
+import static com.github.ffalcinelli.jdivert.Enums.Protocol;
+
+/**
+ * Reassembles IPv6 datagrams from their fragments, keyed by source, destination and fragment identification.
+ * <p>
+ * The reassembled datagram keeps the unfragmentable part of the first fragment, up to the fragment header which is
+ * removed. Overlapping fragments always discard the datagram (RFC 5722), and so does a first fragment not holding
+ * the whole header chain (RFC 7112). Atomic fragments, with neither an offset nor more fragments, are stripped of
+ * their fragment header on their own, never mixed with pending datagrams (RFC 6946). Memory and time bounds are
+ * described in {@link FragmentReassembler}.
+ * </p>
+ */
+public class Ipv6Reassembler extends FragmentReassembler {
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 60000;
+
+    // Room for the unfragmentable part in front of the data: the fixed header and some extension headers
+    private static final int HEADROOM = 256;
+    private static final int HEADER_LENGTH = 40;
+
+    /**
+     * @param maxDatagrams  How many datagrams may be pending at once.
+     * @param maxBytes      How many bytes the buffers of pending datagrams may take, at least 64 KiB.
+     * @param timeoutMillis How long a datagram may be pending.
+     */
+    public Ipv6Reassembler(int maxDatagrams, long maxBytes, long timeoutMillis) {
+        super(maxDatagrams, maxBytes, timeoutMillis, HEADROOM, 5);
+    }
+
+    public Ipv6Reassembler(int maxDatagrams, long maxBytes) {
+        this(maxDatagrams, maxBytes, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    @Override
+    public Packet reassemble(Packet packet, long now) {
+        expire(now);
+        if (!packet.isIpv6() || !packet.getIpv6().isFragment())
+            return packet;
+        Ipv6 ip = packet.getIpv6();
+        ByteBuffer raw = packet.getByteBuffer();
+        int offset = packet.getOffset();
+        int fragment = 0;
+        while (ip.getExtensionType(fragment) != Protocol.FRAGMENT.getValue())
+            fragment++;
+        // The next header field pointing to the fragment header, replaced by the one of the fragment header
+        int nextIndex = fragment == 0 ? 6 : ip.getExtensionOffset(fragment - 1);
+        int unfragmentable = ip.getExtensionOffset(fragment);
+        int nextHeader = raw.get(offset + unfragmentable) & 0xFF;
+        int field = raw.getShort(offset + unfragmentable + 2) & 0xFFFF;
+        boolean more = (field & 1) != 0;
+        int fragmentOffset = field & 0xFFF8;
+
+        int length = Math.min(HEADER_LENGTH + ip.getPayloadLength(), packet.getLength());
+        int dataFrom = unfragmentable + 8;
+        int dataLength = length - dataFrom;
+        int end = fragmentOffset + dataLength;
+        if (unfragmentable > HEADROOM || dataLength <= 0 || (more && (dataLength & 7) != 0)
+                || end + unfragmentable - HEADER_LENGTH > 0xFFFF)
+            return reject(NONE);
+        if (!more && fragmentOffset == 0)
+            return atomic(packet, raw, offset, unfragmentable, nextIndex, nextHeader, dataLength);
+
+        key[0] = ip.getSrcAddrHigh();
+        key[1] = ip.getSrcAddrLow();
+        key[2] = ip.getDstAddrHigh();
+        key[3] = ip.getDstAddrLow();
+        key[4] = raw.getInt(offset + unfragmentable + 4) & 0xFFFFFFFFL;
+
+        int slot = acquire(now);
+        if (fragmentOffset == 0 && !holdsHeaderChain(ip, raw, offset, length))
+            return reject(slot);
+        if (!add(slot, raw, offset + dataFrom, fragmentOffset, end, more, length))
+            return null;
+        if (fragmentOffset == 0) {
+            int index = putHeader(slot, raw, offset, unfragmentable, packet);
+            if (index != NONE)
+                buffer(slot).put(index + nextIndex, (byte) nextHeader);
+        }
+        return complete(slot);
+    }
+
+    /**
+     * Tells whether a first fragment holds every extension header and the transport header, so that filters see
+     * the ports (RFC 7112).
+     */
+    private static boolean holdsHeaderChain(Ipv6 ip, ByteBuffer raw, int offset, int length) {
+        int last = ip.getExtensionCount() - 1;
+        int upper = raw.get(offset + ip.getExtensionOffset(last)) & 0xFF;
+        if (Ipv6.isExtensionHeader(upper))
+            return false;
+        return ip.getUpperLayerOffset() + minimumFirstFragment(upper) <= length;
+    }
+
+    private Packet atomic(Packet packet, ByteBuffer raw, int offset, int unfragmentable, int nextIndex,
+                          int nextHeader, int dataLength) {
+        ByteBuffer buffer = allocate(dataLength);
+        int start = HEADROOM - unfragmentable;
+        copy(raw, offset, buffer.array(), start, unfragmentable);
+        copy(raw, offset + unfragmentable + 8, buffer.array(), HEADROOM, dataLength);
+        buffer.put(start + nextIndex, (byte) nextHeader);
+        Packet datagram = emit(buffer, start, dataLength);
+        datagram.setAddress(packet.getTimestamp(), packet.getAddressFlags(), packet.getInterfaceIndex(),
+                packet.getSubInterfaceIndex());
+        return datagram;
+    }
+
+    @Override
+    void finish(ByteBuffer buffer, int start, int headerLength, int dataLength) {
+        buffer.putShort(start + 4, (short) (headerLength - HEADER_LENGTH + dataLength));
+    }
+}
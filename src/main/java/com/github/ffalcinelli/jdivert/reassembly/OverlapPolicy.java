@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.reassembly;
+
+/**
+ * What to do with a fragment overlapping data already received, a common way to make a reassembled datagram differ
+ * between an inspecting device and the destination host.
+ */
+public enum OverlapPolicy {
+    /**
+     * Keeps the data received first, only filling the holes.
+     */
+    FIRST,
+    /**
+     * Overwrites the data received before.
+     */
+    LAST,
+    /**
+     * Discards the whole datagram, as RFC 5722 mandates for IPv6.
+     */
+    DROP
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.reassembly;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+
+/**
+ * Heap buffers of power of two data sizes, from 1 KiB to 64 KiB, each preceded by a fixed headroom for the headers.
+ * <p>
+ * Released buffers are kept for reuse as long as the free ones do not exceed a byte budget. Buffers may be released
+ * by any thread, e.g. when a reassembled {@link com.github.ffalcinelli.jdivert.Packet} is released.
+ * </p>
+ */
+final class ReassemblyBuffers {
+
+    static final int MIN_DATA_SIZE = 1024;
+    static final int MAX_DATA_SIZE = 64 * 1024;
+
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_DATA_SIZE / MIN_DATA_SIZE) + 1;
+
+    private final int headroom;
+    private final long maxFreeBytes;
+    private final ArrayDeque<ByteBuffer>[] free;
+    private long freeBytes;
+
+    ReassemblyBuffers(int headroom, long maxFreeBytes) {
+        this.headroom = headroom;
+        this.maxFreeBytes = maxFreeBytes;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ArrayDeque<ByteBuffer>[] free = new ArrayDeque[CLASSES];
+        for (int i = 0; i < CLASSES; i++)
+            free[i] = new ArrayDeque<ByteBuffer>();
+        this.free = free;
+    }
+
+    /**
+     * @return The capacity of the buffer {@link #allocate(int) allocated} for the given data length.
+     */
+    int capacityFor(int dataLength) {
+        return headroom + (MIN_DATA_SIZE << sizeClass(dataLength));
+    }
+
+    private static int sizeClass(int dataLength) {
+        if (dataLength <= MIN_DATA_SIZE)
+            return 0;
+        if (dataLength > MAX_DATA_SIZE)
+            throw new IllegalArgumentException(String.format("No buffer holds %d bytes", dataLength));
+        return 32 - Integer.numberOfLeadingZeros((dataLength - 1) / MIN_DATA_SIZE);
+    }
+
+    /**
+     * @param dataLength The room needed after the headroom.
+     * @return A buffer with room for the headroom and the given data length, its content not cleared.
+     */
+    synchronized ByteBuffer allocate(int dataLength) {
+        int sizeClass = sizeClass(dataLength);
+        ByteBuffer buffer = free[sizeClass].pollFirst();
+        if (buffer != null) {
+            freeBytes -= buffer.capacity();
+            return buffer;
+        }
+        return ByteBuffer.allocate(headroom + (MIN_DATA_SIZE << sizeClass)).order(ByteOrder.BIG_ENDIAN);
+    }
+
+    synchronized void release(ByteBuffer buffer) {
+        if (freeBytes + buffer.capacity() <= maxFreeBytes) {
+            free[sizeClass(buffer.capacity() - headroom)].addFirst(buffer);
+            freeBytes += buffer.capacity();
+        }
+    }
+
+    synchronized long getFreeBytes() {
+        return freeBytes;
+    }
+}
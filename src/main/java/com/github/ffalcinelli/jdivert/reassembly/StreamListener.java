@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.reassembly;
+
+import com.github.ffalcinelli.jdivert.FlowKey;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the bytes of TCP streams, in order, from a {@link TcpReassembler}.
+ */
+public interface StreamListener {
+
+    /**
+     * Called with the next bytes of a stream. The buffer is either the one of the packet or a pooled one: its
+     * content is valid during the call only, and its position and limit are not meaningful.
+     *
+     * @param stream The key of the stream, its source being the sender: the same instance for the whole flow life.
+     * @param buffer The buffer holding the bytes.
+     * @param offset The index of the bytes into the buffer.
+     * @param length How many bytes follow.
+     */
+    void onData(FlowKey stream, ByteBuffer buffer, int offset, int length);
+
+    /**
+     * Called once a flow ends: after both FINs were delivered, on RST, on timeout or when evicted.
+     *
+     * @param flow The canonical key of the flow.
+     */
+    void onClose(FlowKey flow);
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.reassembly;
+
+import com.github.ffalcinelli.jdivert.FlowKey;
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.headers.Tcp;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Reassembles both directions of TCP connections into ordered byte streams, handed to a {@link StreamListener}.
+ * <p>
+ * Segments arriving in order are delivered straight from the packet buffer, without copying. Segments ahead of
+ * the expected sequence number are copied into pooled chunks of {@value #CHUNK_SIZE} bytes, contiguous ones sharing
+ * chunks, and delivered once the hole before them is filled. Data overlapping bytes already received or queued is
+ * ignored: the first copy wins.
+ * </p>
+ * <p>
+ * Memory is bounded per flow and overall: segments which do not fit are dropped, to be retransmitted. A flow is no
+ * longer inspected once its depth is reached, its queued chunks being freed. Idle flows expire after a timeout and
+ * the least recently seen flow is evicted when the table is full.
+ * </p>
+ * <p>
+ * Streams are picked up midway if their SYN was missed. Instances are not thread safe.
+ * </p>
+ */
+public class TcpReassembler {
+
+    public static final int CHUNK_SIZE = 2048;
+    public static final long DEFAULT_MAX_FLOW_BYTES = 256 * 1024;
+    public static final long DEFAULT_DEPTH = 1024 * 1024;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 120000;
+
+    private final StreamListener listener;
+    private final int maxFlows;
+    private final int maxChunks;
+    private long maxFlowBytes = DEFAULT_MAX_FLOW_BYTES;
+    private long depth = DEFAULT_DEPTH;
+    private long idleTimeout = DEFAULT_IDLE_TIMEOUT_MILLIS;
+
+    // Least recently seen flow first
+    private final LinkedHashMap<FlowKey, Flow> flows;
+    private final FlowKey scratch = new FlowKey();
+    private Chunk freeChunks;
+    private int allocatedChunks;
+    private int usedChunks;
+
+    private long dropped;
+    private long truncated;
+    private long timedOut;
+    private long evicted;
+
+    /**
+     * @param listener The listener of the streams.
+     * @param maxFlows How many flows may be tracked at once.
+     * @param maxBytes How many bytes the chunks queued for all of the flows may take.
+     */
+    public TcpReassembler(StreamListener listener, int maxFlows, long maxBytes) {
+        if (maxFlows <= 0 || maxBytes < CHUNK_SIZE) {
+            throw new IllegalArgumentException("The flow count and the memory cap must be positive");
+        }
+        this.listener = listener;
+        this.maxFlows = maxFlows;
+        this.maxChunks = (int) Math.min(Integer.MAX_VALUE, maxBytes / CHUNK_SIZE);
+        this.flows = new LinkedHashMap<FlowKey, Flow>(16, 0.75f, true);
+    }
+
+    /**
+     * Sets how many bytes may be queued for a single flow, both directions together.
+     *
+     * @param maxFlowBytes The cap, {@value #DEFAULT_MAX_FLOW_BYTES} by default.
+     */
+    public void setMaxFlowBytes(long maxFlowBytes) {
+        this.maxFlowBytes = maxFlowBytes;
+    }
+
+    public long getMaxFlowBytes() {
+        return maxFlowBytes;
+    }
+
+    /**
+     * Sets how many bytes of a flow, both directions together, are delivered before it is no longer inspected.
+     *
+     * @param depth The depth, {@value #DEFAULT_DEPTH} by default, {@link Long#MAX_VALUE} for no limit.
+     */
+    public void setDepth(long depth) {
+        this.depth = depth;
+    }
+
+    public long getDepth() {
+        return depth;
+    }
+
+    /**
+     * Sets how long a flow may go without packets before being forgotten.
+     *
+     * @param idleTimeoutMillis The timeout, {@value #DEFAULT_IDLE_TIMEOUT_MILLIS} milliseconds by default.
+     */
+    public void setIdleTimeout(long idleTimeoutMillis) {
+        this.idleTimeout = idleTimeoutMillis;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Feeds a packet, delivering the bytes it makes available. Packets which are not TCP are ignored.
+     *
+     * @param packet The packet, left untouched.
+     * @param now    The current time, in milliseconds, expiring idle flows.
+     * @return Whether the flow of the packet is still inspected, false if it is not TCP.
+     */
+    public boolean process(Packet packet, long now) {
+        expire(now);
+        if (!packet.isTcp())
+            return false;
+        Tcp tcp = packet.getTcp();
+        boolean syn = tcp.is(Tcp.Flag.SYN);
+        boolean fin = tcp.is(Tcp.Flag.FIN);
+        boolean rst = tcp.is(Tcp.Flag.RST);
+        int headersLength = packet.getHeadersLength();
+        int length = packet.getLength() - headersLength;
+
+        packet.extractFlowKey(scratch).canonicalize();
+        Flow flow = flows.get(scratch);
+        if (flow == null) {
+            // Neither resets nor bare acknowledgments, e.g. the last one of a connection, start a flow
+            if (rst || (!syn && length == 0))
+                return false;
+            flow = create();
+        }
+        flow.lastSeen = now;
+        if (rst) {
+            close(flow);
+            return false;
+        }
+
+        Stream stream = flow.streams[scratch.isReversed() ? 1 : 0];
+        int seq = tcp.getSeqNumber();
+        if (syn) {
+            if (!stream.synced) {
+                stream.synced = true;
+                stream.next = seq + 1;
+            }
+            // The SYN takes a sequence number before the data
+            seq++;
+        } else if (!stream.synced) {
+            stream.synced = true;
+            stream.next = seq;
+        }
+        if (length > 0 && flow.inspected)
+            segment(flow, stream, packet.getByteBuffer(), packet.getOffset() + headersLength, seq, length);
+        if (fin && !stream.finSeen) {
+            stream.finSeen = true;
+            stream.fin = seq + length;
+        }
+        if (stream.finSeen && !stream.closed && (!flow.inspected || stream.next == stream.fin)) {
+            stream.closed = true;
+            if (flow.streams[0].closed && flow.streams[1].closed) {
+                close(flow);
+                return false;
+            }
+        }
+        return flow.inspected;
+    }
+
+    private Flow create() {
+        if (flows.size() >= maxFlows) {
+            Iterator<Flow> eldest = flows.values().iterator();
+            Flow victim = eldest.next();
+            eldest.remove();
+            discard(victim);
+            evicted++;
+        }
+        FlowKey key = scratch.copy();
+        Flow flow = new Flow(key);
+        flows.put(key, flow);
+        return flow;
+    }
+
+    private void segment(Flow flow, Stream stream, ByteBuffer raw, int from, int seq, int length) {
+        int ahead = seq - stream.next;
+        if (ahead + length <= 0)
+            return;
+        if (ahead > 0) {
+            if (!enqueue(flow, stream, raw, from, seq, length))
+                dropped++;
+            return;
+        }
+        // Skip what was already delivered
+        deliver(flow, stream, raw, from - ahead, length + ahead);
+        while (flow.inspected && stream.head != null && stream.head.seq - stream.next <= 0) {
+            Chunk chunk = stream.head;
+            stream.head = chunk.next;
+            int skip = stream.next - chunk.seq;
+            if (skip < chunk.length)
+                deliver(flow, stream, chunk.view, skip, chunk.length - skip);
+            release(flow, chunk);
+        }
+    }
+
+    private void deliver(Flow flow, Stream stream, ByteBuffer buffer, int offset, int length) {
+        stream.next += length;
+        long room = depth - flow.delivered;
+        if (length >= room) {
+            length = (int) room;
+            flow.inspected = false;
+            truncated++;
+        }
+        flow.delivered += length;
+        if (length > 0)
+            listener.onData(stream.key, buffer, offset, length);
+        if (!flow.inspected)
+            freeQueues(flow);
+    }
+
+    /**
+     * Copies the bytes of a segment ahead of the expected one into the holes of the queue.
+     *
+     * @return False if some bytes did not fit.
+     */
+    private boolean enqueue(Flow flow, Stream stream, ByteBuffer raw, int from, int seq, int length) {
+        Chunk prev = null;
+        Chunk chunk = stream.head;
+        while (length > 0) {
+            while (chunk != null && chunk.seq + chunk.length - seq <= 0) {
+                prev = chunk;
+                chunk = chunk.next;
+            }
+            int gap = chunk == null ? length : Math.min(length, chunk.seq - seq);
+            if (gap <= 0) {
+                // Already queued: the first copy wins
+                int skip = Math.min(length, chunk.seq + chunk.length - seq);
+                seq += skip;
+                from += skip;
+                length -= skip;
+                continue;
+            }
+            while (gap > 0) {
+                Chunk target = prev;
+                if (target == null || target.seq + target.length != seq || target.length == CHUNK_SIZE) {
+                    target = allocate(flow);
+                    if (target == null)
+                        return false;
+                    target.seq = seq;
+                    target.next = chunk;
+                    if (prev == null)
+                        stream.head = target;
+                    else
+                        prev.next = target;
+                    prev = target;
+                }
+                int count = Math.min(gap, CHUNK_SIZE - target.length);
+                FragmentReassembler.copy(raw, from, target.data, target.length, count);
+                target.length += count;
+                seq += count;
+                from += count;
+                length -= count;
+                gap -= count;
+            }
+        }
+        return true;
+    }
+
+    private Chunk allocate(Flow flow) {
+        if ((long) (flow.chunks + 1) * CHUNK_SIZE > maxFlowBytes || usedChunks == maxChunks)
+            return null;
+        Chunk chunk = freeChunks;
+        if (chunk != null) {
+            freeChunks = chunk.next;
+        } else {
+            chunk = new Chunk();
+            allocatedChunks++;
+        }
+        chunk.length = 0;
+        chunk.next = null;
+        flow.chunks++;
+        usedChunks++;
+        return chunk;
+    }
+
+    private void release(Flow flow, Chunk chunk) {
+        chunk.next = freeChunks;
+        freeChunks = chunk;
+        flow.chunks--;
+        usedChunks--;
+    }
+
+    private void freeQueues(Flow flow) {
+        for (Stream stream : flow.streams) {
+            Chunk chunk = stream.head;
+            stream.head = null;
+            while (chunk != null) {
+                Chunk next = chunk.next;
+                release(flow, chunk);
+                chunk = next;
+            }
+        }
+    }
+
+    private void close(Flow flow) {
+        flows.remove(flow.key);
+        discard(flow);
+    }
+
+    private void discard(Flow flow) {
+        freeQueues(flow);
+        listener.onClose(flow.key);
+    }
+
+    /**
+     * Forgets the flows idle for longer than the timeout.
+     *
+     * @param now The current time, in milliseconds.
+     */
+    public void expire(long now) {
+        Iterator<Flow> it = flows.values().iterator();
+        while (it.hasNext()) {
+            Flow flow = it.next();
+            if (flow.lastSeen + idleTimeout > now)
+                break;
+            it.remove();
+            discard(flow);
+            timedOut++;
+        }
+    }
+
+    /**
+     * Forgets all of the flows, each being closed.
+     */
+    public void clear() {
+        Iterator<Flow> it = flows.values().iterator();
+        while (it.hasNext()) {
+            Flow flow = it.next();
+            it.remove();
+            discard(flow);
+        }
+    }
+
+    public int getFlowCount() {
+        return flows.size();
+    }
+
+    /**
+     * @return How many bytes the chunks queued for all of the flows take.
+     */
+    public long getQueuedBytes() {
+        return (long) usedChunks * CHUNK_SIZE;
+    }
+
+    /**
+     * @return How many bytes of chunks were ever allocated, the pool included.
+     */
+    public long getAllocatedBytes() {
+        return (long) allocatedChunks * CHUNK_SIZE;
+    }
+
+    /**
+     * @return How many segments could not be queued, in part or entirely, for lack of memory.
+     */
+    public long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * @return How many flows reached the depth.
+     */
+    public long getTruncatedCount() {
+        return truncated;
+    }
+
+    public long getTimedOutCount() {
+        return timedOut;
+    }
+
+    /**
+     * @return How many flows were forgotten to make room for others.
+     */
+    public long getEvictedCount() {
+        return evicted;
+    }
+
+    private static final class Chunk {
+        final byte[] data = new byte[CHUNK_SIZE];
+        final ByteBuffer view = ByteBuffer.wrap(data);
+        int seq;
+        int length;
+        Chunk next;
+    }
+
+    private static final class Stream {
+        final FlowKey key;
+        boolean synced;
+        int next;
+        boolean finSeen;
+        int fin;
+        boolean closed;
+        // Chunks queued ahead of next, by sequence number
+        Chunk head;
+
+        Stream(FlowKey key) {
+            this.key = key;
+        }
+    }
+
+    private static final class Flow {
+        final FlowKey key;
+        final Stream[] streams;
+        long lastSeen;
+        long delivered;
+        int chunks;
+        boolean inspected = true;
+
+        Flow(FlowKey key) {
+            this.key = key;
+            this.streams = new Stream[]{new Stream(key.copy()), new Stream(key.copy().reverse())};
+        }
+    }
+}
@@ -0,0 +1,483 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.shaping;
+
+import com.github.ffalcinelli.jdivert.FlowKey;
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.exceptions.WinDivertException;
+import com.github.ffalcinelli.jdivert.windivert.BufferPool;
+import com.github.ffalcinelli.jdivert.windivert.NativeBufferAllocator;
+import com.github.ffalcinelli.jdivert.windivert.WinDivert;
+import com.sun.jna.Memory;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Caps the bandwidth of flows, holding back the packets {@link #submit(Packet) submitted} to it and reinjecting them
+ * with {@link WinDivert#send(Packet, boolean, com.github.ffalcinelli.jdivert.Enums.CalcChecksumsOption...) send}
+ * as the token bucket of their {@link TrafficClass class} allows.
+ * <p>
+ * A packet allowed by its bucket, with nothing queued before it, is sent right away by the submitting thread.
+ * Others are copied into buffers of a {@link BufferPool}, so that the submitted packet may be released as soon as
+ * submit returns, and queued per bucket. Buckets are kept as the theoretical arrival time of the generic cell rate
+ * algorithm, a single long: idle ones need no refilling and are reclaimed once full again.
+ * </p>
+ * <p>
+ * A bucket with queued packets is a timer of a {@link TimingWheel}, due when its first packet is allowed. A single
+ * scheduler thread, see {@link #start()}, sends the packets of the due buckets and sleeps until the next one: idle
+ * flows cost neither memory beyond their bucket nor wakeups. Callers may {@link #poll()} instead.
+ * </p>
+ * Packets are sent as submitted: their checksums are not computed again.
+ */
+public class Shaper {
+
+    /**
+     * The resolution of the timing wheel, in nanoseconds.
+     */
+    public static final long DEFAULT_TICK = 1000000L;
+
+    // How many buckets are checked for idleness when a new one is made
+    private static final int RECLAIM_BUDGET = 4;
+    private static final int MAX_FREE_ENTRIES = 1024;
+    // Views the released packets while sent, for the threads polling besides the scheduler
+    private static final ThreadLocal<Packet> PACKETS = ThreadLocal.withInitial(Packet::new);
+
+    private final WinDivert divert;
+    private final PacketClassifier classifier;
+    private final BufferPool pool;
+    private final long tick;
+    private final long origin;
+    private final TimingWheel wheel;
+    private final Set<TrafficClass> classes = Collections.newSetFromMap(new IdentityHashMap<TrafficClass, Boolean>());
+    private final FlowKey scratch = new FlowKey();
+
+    private Entry freeEntries;
+    private int freeCount;
+    private Thread scheduler;
+    // The tick the scheduler sleeps until
+    private long wakeTick = Long.MAX_VALUE;
+    private volatile boolean closed;
+
+    private volatile long queuedPackets;
+    private volatile long sendErrors;
+    private volatile WinDivertException lastSendError;
+
+    /**
+     * Queues packets in buffers of a {@link NativeBufferAllocator}, with a {@link #DEFAULT_TICK default} timing
+     * resolution.
+     *
+     * @param divert     The handle reinjecting the packets.
+     * @param classifier Picks the class of each packet.
+     */
+    public Shaper(WinDivert divert, PacketClassifier classifier) {
+        this(divert, classifier, new NativeBufferAllocator(), DEFAULT_TICK);
+    }
+
+    /**
+     * @param divert     The handle reinjecting the packets.
+     * @param classifier Picks the class of each packet.
+     * @param pool       Holds the queued packets: native buffers are sent without any copy.
+     * @param tick       The resolution of the timing wheel, in nanoseconds.
+     */
+    public Shaper(WinDivert divert, PacketClassifier classifier, BufferPool pool, long tick) {
+        if (divert == null || classifier == null || pool == null) {
+            throw new IllegalArgumentException("The handle, the classifier and the pool cannot be null");
+        }
+        if (tick <= 0) {
+            throw new IllegalArgumentException("The tick must be positive");
+        }
+        this.divert = divert;
+        this.classifier = classifier;
+        this.pool = pool;
+        this.tick = tick;
+        this.origin = nanoTime();
+        this.wheel = new TimingWheel(0);
+    }
+
+    /**
+     * @return The current time, in nanoseconds.
+     */
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    private long elapsed() {
+        return nanoTime() - origin;
+    }
+
+    /**
+     * Sends a packet, right away or once its class allows.
+     *
+     * @param packet The packet, not retained.
+     * @return Whether the packet has been sent or queued, false if dropped.
+     * @throws WinDivertException   If sending right away fails.
+     * @throws InterruptedException Never thrown, see {@link WinDivert#send(Packet)}.
+     */
+    public boolean submit(Packet packet) throws WinDivertException, InterruptedException {
+        TrafficClass cls = classifier.classify(packet);
+        if (cls != null) {
+            long now = elapsed();
+            int length = packet.getLength();
+            long cost = cls.cost(length);
+            synchronized (this) {
+                if (closed) {
+                    throw new IllegalStateException("The shaper is closed");
+                }
+                Bucket bucket = bucket(cls, packet, now);
+                if (bucket == null) {
+                    cls.dropped++;
+                    return false;
+                }
+                if (bucket.head != null || bucket.inFlight > 0 || bucket.tat + cost - cls.allowance(cost) > now) {
+                    if (cls.queuedBytes + length > cls.getQueueLimit()) {
+                        cls.dropped++;
+                        return false;
+                    }
+                    enqueue(bucket, packet, length, cost, now);
+                    return true;
+                }
+                bucket.tat = Math.max(bucket.tat, now) + cost;
+            }
+        }
+        divert.send(packet, false);
+        return true;
+    }
+
+    /**
+     * @return The bucket of the packet, made if needed, {@code null} if the class holds too many.
+     */
+    private Bucket bucket(TrafficClass cls, Packet packet, long now) {
+        FlowKey key = cls.getKey().extract(packet, scratch);
+        Bucket bucket = cls.buckets.get(key);
+        if (bucket == null) {
+            reclaim(cls, now);
+            if (cls.buckets.size() >= cls.getMaxFlows())
+                return null;
+            classes.add(cls);
+            bucket = new Bucket(key.copy(), cls, now);
+            cls.buckets.put(bucket.key, bucket);
+        }
+        return bucket;
+    }
+
+    /**
+     * Removes the least recently used buckets which are full again, having nothing queued.
+     */
+    private static void reclaim(TrafficClass cls, long now) {
+        Iterator<Bucket> it = cls.buckets.values().iterator();
+        for (int i = 0; i < RECLAIM_BUDGET && it.hasNext(); i++) {
+            Bucket bucket = it.next();
+            if (bucket.head == null && bucket.inFlight == 0 && bucket.tat <= now)
+                it.remove();
+        }
+    }
+
+    private void enqueue(Bucket bucket, Packet packet, int length, long cost, long now) {
+        Entry entry = freeEntries;
+        if (entry != null) {
+            freeEntries = entry.next;
+            entry.next = null;
+            freeCount--;
+        } else {
+            entry = new Entry();
+        }
+        entry.bucket = bucket;
+        entry.buffer = pool.allocate(length);
+        entry.view = entry.buffer.getByteBuffer(0, length);
+        ByteBuffer src = packet.getByteBuffer().duplicate();
+        src.limit(packet.getOffset() + length).position(packet.getOffset());
+        entry.view.put(src);
+        entry.length = length;
+        entry.cost = cost;
+        entry.arrival = now;
+        entry.timestamp = packet.getTimestamp();
+        entry.flags = packet.getAddressFlags();
+        entry.ifIdx = packet.getInterfaceIndex();
+        entry.subIfIdx = packet.getSubInterfaceIndex();
+
+        TrafficClass cls = bucket.cls;
+        cls.queuedBytes += length;
+        queuedPackets++;
+        if (bucket.head == null) {
+            bucket.head = bucket.tail = entry;
+            schedule(bucket);
+        } else {
+            bucket.tail.next = entry;
+            bucket.tail = entry;
+        }
+    }
+
+    /**
+     * Files the bucket at the tick its first packet is allowed, waking the scheduler up if it sleeps past it.
+     */
+    private void schedule(Bucket bucket) {
+        long cost = bucket.head.cost;
+        long allowed = Math.max(bucket.tat + cost - bucket.cls.allowance(cost), 0);
+        long deadline = (allowed + tick - 1) / tick;
+        wheel.schedule(bucket, deadline);
+        if (scheduler != null && deadline < wakeTick) {
+            wakeTick = deadline;
+            LockSupport.unpark(scheduler);
+        }
+    }
+
+    /**
+     * Sends the queued packets their class now allows, from the calling thread.
+     *
+     * @return How many packets were sent.
+     */
+    public int poll() {
+        return poll(PACKETS.get());
+    }
+
+    /**
+     * @param packet Rebound to each released packet in turn.
+     */
+    private int poll(Packet packet) {
+        long now = elapsed();
+        Entry ready = null;
+        Entry last = null;
+        synchronized (this) {
+            TimingWheel.Timer timer = wheel.advance(now / tick);
+            while (timer != null) {
+                TimingWheel.Timer next = timer.next;
+                Bucket bucket = (Bucket) timer;
+                TrafficClass cls = bucket.cls;
+                Entry entry;
+                while ((entry = bucket.head) != null && bucket.tat + entry.cost - cls.allowance(entry.cost) <= now) {
+                    bucket.head = entry.next;
+                    // A queued packet arrived when it was queued, the bucket not losing the time spent waiting
+                    bucket.tat = Math.max(bucket.tat, entry.arrival) + entry.cost;
+                    bucket.inFlight++;
+                    cls.queuedBytes -= entry.length;
+                    queuedPackets--;
+                    entry.next = null;
+                    if (last == null)
+                        ready = entry;
+                    else
+                        last.next = entry;
+                    last = entry;
+                }
+                if (bucket.head != null)
+                    schedule(bucket);
+                else
+                    bucket.tail = null;
+                timer = next;
+            }
+        }
+        if (ready == null) {
+            return 0;
+        }
+        int sent = 0;
+        int errors = 0;
+        for (Entry entry = ready; entry != null; entry = entry.next) {
+            packet.rebind(entry.view, 0, entry.length, null);
+            packet.setAddress(entry.timestamp, entry.flags, entry.ifIdx, entry.subIfIdx);
+            try {
+                divert.send(packet, false);
+                sent++;
+            } catch (WinDivertException e) {
+                errors++;
+                lastSendError = e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            sendErrors += errors;
+            Entry entry = ready;
+            while (entry != null) {
+                Entry next = entry.next;
+                entry.bucket.inFlight--;
+                recycle(entry);
+                entry = next;
+            }
+        }
+        return sent;
+    }
+
+    private void recycle(Entry entry) {
+        pool.release(entry.buffer);
+        entry.buffer = null;
+        entry.view = null;
+        entry.bucket = null;
+        entry.next = null;
+        if (freeCount < MAX_FREE_ENTRIES) {
+            entry.next = freeEntries;
+            freeEntries = entry;
+            freeCount++;
+        }
+    }
+
+    /**
+     * Starts the scheduler thread, a daemon one, sending the queued packets on time until {@link #close() closed}.
+     */
+    public synchronized void start() {
+        if (closed) {
+            throw new IllegalStateException("The shaper is closed");
+        }
+        if (scheduler != null) {
+            throw new IllegalStateException("The scheduler is already running");
+        }
+        scheduler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runScheduler();
+            }
+        }, "jdivert-shaper");
+        scheduler.setDaemon(true);
+        scheduler.start();
+    }
+
+    private void runScheduler() {
+        Packet packet = new Packet();
+        while (!closed) {
+            poll(packet);
+            long delay;
+            synchronized (this) {
+                wakeTick = wheel.nextTick();
+                delay = wakeTick == Long.MAX_VALUE ? Long.MAX_VALUE : wakeTick * tick - elapsed();
+            }
+            if (delay == Long.MAX_VALUE)
+                LockSupport.park(this);
+            else if (delay > 0)
+                LockSupport.parkNanos(this, delay);
+        }
+    }
+
+    /**
+     * Stops the scheduler and drops the queued packets, handing their buffers back to the pool.
+     */
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            thread = scheduler;
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            LockSupport.unpark(thread);
+            boolean interrupted = false;
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (TrafficClass cls : classes) {
+                for (Bucket bucket : cls.buckets.values()) {
+                    wheel.cancel(bucket);
+                    Entry entry = bucket.head;
+                    while (entry != null) {
+                        Entry next = entry.next;
+                        cls.queuedBytes -= entry.length;
+                        cls.dropped++;
+                        recycle(entry);
+                        entry = next;
+                    }
+                    bucket.head = bucket.tail = null;
+                }
+                cls.buckets.clear();
+            }
+            classes.clear();
+            queuedPackets = 0;
+            freeEntries = null;
+            freeCount = 0;
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return How many packets wait in the queues, all classes together.
+     */
+    public long getQueuedPackets() {
+        return queuedPackets;
+    }
+
+    /**
+     * @return How many buckets are held, all classes together.
+     */
+    public synchronized int getFlowCount() {
+        int count = 0;
+        for (TrafficClass cls : classes)
+            count += cls.buckets.size();
+        return count;
+    }
+
+    /**
+     * @return How many queued packets could not be sent, see {@link #getLastSendError()}.
+     */
+    public long getSendErrorCount() {
+        return sendErrors;
+    }
+
+    public WinDivertException getLastSendError() {
+        return lastSendError;
+    }
+
+    /**
+     * The token bucket of a flow, and its queue.
+     */
+    static final class Bucket extends TimingWheel.Timer {
+        final FlowKey key;
+        final TrafficClass cls;
+        // The theoretical arrival time: when the bucket is full again, in nanoseconds
+        long tat;
+        Entry head;
+        Entry tail;
+        // Packets taken from the queue and being sent: later ones must wait for them
+        int inFlight;
+
+        Bucket(FlowKey key, TrafficClass cls, long now) {
+            this.key = key;
+            this.cls = cls;
+            this.tat = now;
+        }
+    }
+
+    /**
+     * A queued packet, its bytes and metadata.
+     */
+    private static final class Entry {
+        Entry next;
+        Bucket bucket;
+        Memory buffer;
+        ByteBuffer view;
+        int length;
+        long cost;
+        long arrival;
+        long timestamp;
+        int flags;
+        int ifIdx;
+        int subIfIdx;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.shaping;
+
+import com.github.ffalcinelli.jdivert.FlowKey;
+import com.github.ffalcinelli.jdivert.Packet;
+
+/**
+ * Tells which token bucket of a {@link TrafficClass} meters a packet: packets with equal keys share the bucket.
+ * <p>
+ * Any grouping fits in a {@link FlowKey}, e.g. a process id learnt from a {@code FLOW} layer handle may be set as
+ * its source address to shape per process.
+ * </p>
+ */
+public interface ShapingKey {
+
+    /**
+     * One bucket per direction of each flow.
+     */
+    ShapingKey FLOW = new ShapingKey() {
+        @Override
+        public FlowKey extract(Packet packet, FlowKey reuse) {
+            return packet.extractFlowKey(reuse);
+        }
+    };
+
+    /**
+     * One bucket per connection, both directions together.
+     */
+    ShapingKey CONNECTION = new ShapingKey() {
+        @Override
+        public FlowKey extract(Packet packet, FlowKey reuse) {
+            return packet.extractFlowKey(reuse).canonicalize();
+        }
+    };
+
+    /**
+     * One bucket per source address.
+     */
+    ShapingKey SOURCE = new ShapingKey() {
+        @Override
+        public FlowKey extract(Packet packet, FlowKey reuse) {
+            FlowKey key = packet.extractFlowKey(reuse);
+            return key.set(key.getVersion(), 0, key.getSrcAddrHigh(), key.getSrcAddrLow(), 0, 0, 0, 0);
+        }
+    };
+
+    /**
+     * One bucket per destination address.
+     */
+    ShapingKey DESTINATION = new ShapingKey() {
+        @Override
+        public FlowKey extract(Packet packet, FlowKey reuse) {
+            FlowKey key = packet.extractFlowKey(reuse);
+            return key.set(key.getVersion(), 0, 0, 0, 0, key.getDstAddrHigh(), key.getDstAddrLow(), 0);
+        }
+    };
+
+    /**
+     * @param packet The packet to meter.
+     * @param reuse  The key to fill, never {@code null}: it is copied when a new bucket is made.
+     * @return The filled key.
+     */
+    FlowKey extract(Packet packet, FlowKey reuse);
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.shaping;
+
+/**
+ * A hierarchical timing wheel of intrusive timers, for a single thread.
+ * <p>
+ * Each level has {@value #SLOTS} slots, a slot of a level spanning a whole turn of the level below: timers are
+ * filed by how far their deadline is and cascade to the lower levels as time gets closer, so that scheduling and
+ * cancelling are O(1) whatever the number of timers. Deadlines farther than the {@link #HORIZON horizon} are filed at
+ * its end, then filed again. Time is counted in ticks: advancing only visits the ticks where an occupied slot of
+ * any level is due, found from a bitmap of the occupied slots of each level, so that idle time costs nothing.
+ * </p>
+ */
+final class TimingWheel {
+
+    static final int SLOT_BITS = 6;
+    static final int SLOTS = 1 << SLOT_BITS;
+    static final int LEVELS = 4;
+    static final long HORIZON = 1L << (SLOT_BITS * LEVELS);
+
+    private static final long MASK = SLOTS - 1;
+
+    /**
+     * A timer, filed in at most one slot at a time.
+     */
+    static class Timer {
+        Timer prev;
+        Timer next;
+        long deadline;
+        // The index of the slot holding the timer, -1 when not scheduled
+        int slot = -1;
+
+        boolean isScheduled() {
+            return slot >= 0;
+        }
+
+        long getDeadline() {
+            return deadline;
+        }
+    }
+
+    private final Timer[] heads = new Timer[LEVELS * SLOTS];
+    private final long[] occupied = new long[LEVELS];
+    // The last tick processed
+    private long now;
+    private int size;
+
+    /**
+     * @param now The current tick.
+     */
+    TimingWheel(long now) {
+        this.now = now;
+    }
+
+    /**
+     * Files a timer, moving it if already scheduled.
+     *
+     * @param timer    The timer.
+     * @param deadline The tick the timer expires at: past ones expire on the next tick.
+     */
+    void schedule(Timer timer, long deadline) {
+        if (timer.slot >= 0)
+            unlink(timer);
+        else
+            size++;
+        timer.deadline = deadline;
+        insert(timer, now + 1);
+    }
+
+    void cancel(Timer timer) {
+        if (timer.slot >= 0) {
+            unlink(timer);
+            size--;
+        }
+    }
+
+    /**
+     * Expires the timers whose deadline is not after the given tick.
+     *
+     * @param tick The current tick.
+     * @return The expired timers, linked by {@link Timer#next}: to be read before scheduling any of them again.
+     */
+    Timer advance(long tick) {
+        Timer first = null;
+        Timer last = null;
+        while (now < tick) {
+            long next = size > 0 ? nextTick() : Long.MAX_VALUE;
+            if (next > tick) {
+                now = tick;
+                break;
+            }
+            now = next;
+            cascade(next);
+            int index = (int) (next & MASK);
+            Timer timer = heads[index];
+            if (timer == null)
+                continue;
+            heads[index] = null;
+            occupied[0] &= ~(1L << index);
+            if (last == null)
+                first = timer;
+            else
+                last.next = timer;
+            for (; timer != null; timer = timer.next) {
+                timer.slot = -1;
+                timer.prev = null;
+                last = timer;
+                size--;
+            }
+        }
+        return first;
+    }
+
+    /**
+     * @return The next tick where a timer may expire or a level cascades, {@link Long#MAX_VALUE} if there are no
+     * timers.
+     */
+    long nextTick() {
+        if (size == 0)
+            return Long.MAX_VALUE;
+        long tick = now + 1;
+        long next = Long.MAX_VALUE;
+        for (int level = 0; level < LEVELS; level++) {
+            long bits = occupied[level];
+            if (bits == 0)
+                continue;
+            int shift = SLOT_BITS * level;
+            // The first turn of a slot of this level not before the tick, then the first occupied slot from there
+            long first = (tick + (1L << shift) - 1) >>> shift;
+            long rotated = Long.rotateRight(bits, (int) (first & MASK));
+            next = Math.min(next, (first + Long.numberOfTrailingZeros(rotated)) << shift);
+        }
+        return next;
+    }
+
+    /**
+     * Files again the timers of the slots whose turn begins at the given tick, highest level first.
+     */
+    private void cascade(long tick) {
+        for (int level = LEVELS - 1; level > 0; level--) {
+            int shift = SLOT_BITS * level;
+            if ((tick & ((1L << shift) - 1)) != 0 || occupied[level] == 0)
+                continue;
+            int slot = (int) ((tick >>> shift) & MASK);
+            int index = level * SLOTS + slot;
+            Timer timer = heads[index];
+            heads[index] = null;
+            occupied[level] &= ~(1L << slot);
+            while (timer != null) {
+                Timer next = timer.next;
+                insert(timer, tick);
+                timer = next;
+            }
+        }
+    }
+
+    /**
+     * @param base The first tick not processed yet.
+     */
+    private void insert(Timer timer, long base) {
+        long delta = Math.max(timer.deadline - base, 0);
+        long tick = base + delta;
+        if (delta >= HORIZON) {
+            delta = HORIZON - 1;
+            tick = base + delta;
+        }
+        int level = 0;
+        while (delta >= 1L << (SLOT_BITS * (level + 1)))
+            level++;
+        int slot = (int) ((tick >>> (SLOT_BITS * level)) & MASK);
+        int index = level * SLOTS + slot;
+        Timer head = heads[index];
+        timer.prev = null;
+        timer.next = head;
+        if (head != null)
+            head.prev = timer;
+        heads[index] = timer;
+        timer.slot = index;
+        occupied[level] |= 1L << slot;
+    }
+
+    private void unlink(Timer timer) {
+        int index = timer.slot;
+        if (timer.prev != null)
+            timer.prev.next = timer.next;
+        else
+            heads[index] = timer.next;
+        if (timer.next != null)
+            timer.next.prev = timer.prev;
+        if (heads[index] == null)
+            occupied[index / SLOTS] &= ~(1L << (index & MASK));
+        timer.prev = null;
+        timer.next = null;
+        timer.slot = -1;
+    }
+
+    /**
+     * @return How many timers are scheduled.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return The last tick processed.
+     */
+    long now() {
+        return now;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.shaping;
+
+import com.github.ffalcinelli.jdivert.FlowKey;
+
+import java.util.LinkedHashMap;
+
+/**
+ * A rate limit, enforced by a {@link Shaper} with a token bucket per {@link ShapingKey key}: each bucket lets
+ * {@link #getBurst() burst} bytes through at once, then {@link #getRate() rate} bytes per second. Packets beyond
+ * are queued until the bucket allows them, those not fitting the {@link #setQueueLimit(long) queue limit} of the
+ * class being dropped.
+ * <p>
+ * A class holds the buckets and queues of its flows: it must be handed out by the classifier of a single shaper.
+ * </p>
+ */
+public class TrafficClass {
+
+    public static final long DEFAULT_QUEUE_LIMIT = 4 * 1024 * 1024;
+    public static final int DEFAULT_MAX_FLOWS = 1 << 18;
+
+    private static final long NANOS = 1000000000L;
+
+    private final long rate;
+    private final long burst;
+    private final ShapingKey key;
+    // How long refilling the burst takes, in nanoseconds
+    private final long burstTime;
+
+    private volatile long queueLimit = DEFAULT_QUEUE_LIMIT;
+    private volatile int maxFlows = DEFAULT_MAX_FLOWS;
+
+    // Guarded by the lock of the shaper, least recently used first
+    final LinkedHashMap<FlowKey, Shaper.Bucket> buckets = new LinkedHashMap<FlowKey, Shaper.Bucket>(16, 0.75f, true);
+    volatile long queuedBytes;
+    volatile long dropped;
+
+    /**
+     * @param rate  The bytes per second each bucket lets through, headers included.
+     * @param burst The bytes a bucket lets through at once after being idle.
+     * @param key   How packets are grouped into buckets.
+     */
+    public TrafficClass(long rate, long burst, ShapingKey key) {
+        if (rate <= 0 || burst < 0) {
+            throw new IllegalArgumentException("The rate must be positive and the burst not negative");
+        }
+        if (key == null) {
+            throw new IllegalArgumentException("The shaping key cannot be null");
+        }
+        this.rate = rate;
+        this.burst = burst;
+        this.key = key;
+        this.burstTime = burst / rate * NANOS + burst % rate * NANOS / rate;
+    }
+
+    /**
+     * @return How long sending the given bytes takes at the class rate, in nanoseconds.
+     */
+    long cost(int length) {
+        return length * NANOS / rate;
+    }
+
+    /**
+     * @return How far ahead of time a bucket may be for a packet of the given cost to be sent: packets larger
+     * than the burst go once the bucket is full.
+     */
+    long allowance(long cost) {
+        return Math.max(burstTime, cost);
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    public long getBurst() {
+        return burst;
+    }
+
+    public ShapingKey getKey() {
+        return key;
+    }
+
+    /**
+     * @param queueLimit How many bytes may wait in the queues of the class, all buckets together.
+     */
+    public void setQueueLimit(long queueLimit) {
+        this.queueLimit = queueLimit;
+    }
+
+    public long getQueueLimit() {
+        return queueLimit;
+    }
+
+    /**
+     * @param maxFlows How many buckets the class may hold: idle ones are reclaimed first, packets of new flows are
+     *                 dropped when there are none.
+     */
+    public void setMaxFlows(int maxFlows) {
+        this.maxFlows = maxFlows;
+    }
+
+    public int getMaxFlows() {
+        return maxFlows;
+    }
+
+    /**
+     * @return How many bytes wait in the queues of the class.
+     */
+    public long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * @return How many packets were dropped for lack of queue room or buckets.
+     */
+    public long getDroppedCount() {
+        return dropped;
+    }
+
+    @Override
+    public String toString() {
+        return "TrafficClass{" +
+                "rate=" + rate +
+                ", burst=" + burst +
+                ", queuedBytes=" + queuedBytes +
+                ", dropped=" + dropped +
+                '}';
+    }
+}
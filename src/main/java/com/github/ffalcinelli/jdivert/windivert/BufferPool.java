@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.windivert;
+
+import com.sun.jna.Memory;
+
+/**
+ * A source of native buffers for {@link WinDivert} I/O.
+ * <p>
+ * Implementations must never block and must be safe for use by multiple threads.
+ * </p>
+ */
+public interface BufferPool {
+
+    /**
+     * Returns a buffer of at least the given size. The buffer content is not cleared.
+     *
+     * @param size The minimum size of the buffer.
+     * @return A buffer to be handed back with {@link #release(Memory)}.
+     */
+    Memory allocate(long size);
+
+    /**
+     * Hands back a buffer obtained from {@link #allocate(long)}. The buffer must not be used afterwards.
+     *
+     * @param buffer The buffer to release.
+     */
+    void release(Memory buffer);
+
+    /**
+     * @return How many bytes of native memory this pool currently holds, counting both free and borrowed buffers.
+     */
+    long getNativeFootprint();
+}
@@ -0,0 +1,619 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.windivert;
+
+import com.github.ffalcinelli.jdivert.Enums.Flag;
+import com.github.ffalcinelli.jdivert.Enums.Layer;
+import com.github.ffalcinelli.jdivert.Enums.Param;
+import com.github.ffalcinelli.jdivert.Enums.ShutdownType;
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.exceptions.WinDivertException;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.IntByReference;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.sun.jna.platform.win32.WinNT.HANDLE;
+
+/**
+ * A pure Java {@link WinDivertBackend} that never touches the WinDivert driver.
+ * <p>
+ * Packets enter the emulated network stack through {@link #inject(byte[], WinDivertAddress)} and are handed to the
+ * open handles in priority order (higher priority first), as the real driver does:
+ * </p>
+ * <ul>
+ * <li>a {@link Flag#DEFAULT DEFAULT} handle diverts the packet into its queue;</li>
+ * <li>a {@link Flag#SNIFF SNIFF} handle queues a copy and lets the packet continue;</li>
+ * <li>a {@link Flag#DROP DROP} handle silently drops it.</li>
+ * </ul>
+ * Packets sent by a handle continue with the handles of lower priority and, once past all of them, reach the
+ * "network" where they can be collected with {@link #pollTransmitted()}. In loopback mode they are injected again
+ * instead, giving a closed loop useful to measure a forwarding pipeline.
+ * <p>
+ * Each handle queue honours {@link Param#QUEUE_LEN QUEUE_LEN}, {@link Param#QUEUE_SIZE QUEUE_SIZE} and
+ * {@link Param#QUEUE_TIME QUEUE_TIME}: packets arriving to a full queue are dropped and packets waiting longer than
+ * QUEUE_TIME are discarded. Both are accounted by {@link #getDroppedCount()}.
+ * </p>
+ * The filter language is not evaluated: the filter {@code "false"} matches nothing, any other filter matches
+ * everything.
+ * <p>
+ * Asynchronous operations run the blocking ones on an {@link ExecutorService}, cancelling a future interrupts its
+ * task.
+ * </p>
+ */
+public class InMemoryWinDivertBackend implements WinDivertBackend {
+
+    public static final int ERROR_INVALID_HANDLE = 6;
+    public static final int ERROR_INVALID_PARAMETER = 87;
+    public static final int ERROR_INSUFFICIENT_BUFFER = 122;
+    public static final int ERROR_NO_DATA = 232;
+    public static final int ERROR_OPERATION_ABORTED = 995;
+
+    private static final Comparator<Handle> BY_PRIORITY = new Comparator<Handle>() {
+        @Override
+        public int compare(Handle h1, Handle h2) {
+            return h2.priority != h1.priority ? h2.priority - h1.priority : Long.compare(h1.id, h2.id);
+        }
+    };
+
+    private final AtomicLong handleIds = new AtomicLong();
+    private final ConcurrentHashMap<Long, Handle> handles = new ConcurrentHashMap<Long, Handle>();
+    private volatile Handle[] byPriority = new Handle[0];
+    private final ConcurrentLinkedQueue<Frame> network = new ConcurrentLinkedQueue<Frame>();
+    private volatile boolean loopback;
+    private volatile byte[] defaultAddress;
+
+    private final ExecutorService executor;
+
+    private final AtomicLong injected = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong transmitted = new AtomicLong();
+
+    /**
+     * Creates a backend running asynchronous operations on a pool of daemon threads.
+     */
+    public InMemoryWinDivertBackend() {
+        this(Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "jdivert-in-memory-io");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+    }
+
+    /**
+     * Creates a backend running asynchronous operations on the given executor.
+     *
+     * @param executor The executor completing asynchronous operations.
+     */
+    public InMemoryWinDivertBackend(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * In loopback mode packets leaving the last handle are injected again from the top instead of being
+     * transmitted.
+     *
+     * @param loopback Whether to enable loopback mode.
+     */
+    public void setLoopback(boolean loopback) {
+        this.loopback = loopback;
+    }
+
+    public boolean isLoopback() {
+        return loopback;
+    }
+
+    /**
+     * Injects a packet into the emulated network stack as an outbound packet on interface 0.
+     *
+     * @param packet The packet bytes.
+     */
+    public void inject(byte[] packet) {
+        byte[] address = defaultAddress;
+        if (address == null) {
+            defaultAddress = address = toBytes(WinDivertAddress.createOutboundNetworkWinDivertAddress(false, true, true, true));
+        }
+        deliver(new Frame(packet, address, nanoTime()), Integer.MAX_VALUE, null);
+    }
+
+    /**
+     * Injects a packet into the emulated network stack.
+     *
+     * @param packet  The packet bytes.
+     * @param address The packet metadata.
+     */
+    public void inject(byte[] packet, WinDivertAddress address) {
+        deliver(new Frame(packet, toBytes(address), nanoTime()), Integer.MAX_VALUE, null);
+    }
+
+    /**
+     * Retrieves the next packet which made it to the emulated network.
+     *
+     * @return The next transmitted packet, or {@code null} if there is none.
+     */
+    public Packet pollTransmitted() {
+        Frame frame = network.poll();
+        if (frame == null) {
+            return null;
+        }
+        WinDivertAddress address = new WinDivertAddress();
+        address.getPointer().write(0, frame.address, 0, WinDivertAddress.SIZE);
+        address.read();
+        return new Packet(frame.packet, address);
+    }
+
+    /**
+     * @return How many packets have been injected so far.
+     */
+    public long getInjectedCount() {
+        return injected.get();
+    }
+
+    /**
+     * @return How many packets have been dropped because of full queues or expired QUEUE_TIME.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return How many packets reached the emulated network so far.
+     */
+    public long getTransmittedCount() {
+        return transmitted.get();
+    }
+
+    /**
+     * @param handle An open handle.
+     * @return How many packets are waiting in the handle queue.
+     * @throws WinDivertException If the handle is not open.
+     */
+    public int getQueueLength(HANDLE handle) throws WinDivertException {
+        Handle h = lookup(handle);
+        h.lock.lock();
+        try {
+            return h.queue.size();
+        } finally {
+            h.lock.unlock();
+        }
+    }
+
+    /**
+     * Time source used for QUEUE_TIME expiration, can be overridden to get reproducible runs.
+     *
+     * @return The current time in nanoseconds.
+     */
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public HANDLE open(String filter, Layer layer, short priority, long flags) throws WinDivertException {
+        if (filter == null || layer == null) {
+            throw new WinDivertException(ERROR_INVALID_PARAMETER, "Invalid filter or layer");
+        }
+        Handle h = new Handle(handleIds.incrementAndGet(), priority, flags, !"false".equals(filter.trim()));
+        synchronized (this) {
+            handles.put(h.id, h);
+            updatePriorities();
+        }
+        return new HANDLE(new Pointer(h.id));
+    }
+
+    @Override
+    public int recv(HANDLE handle, Pointer pPacket, int packetLen, Pointer pAddr) throws WinDivertException {
+        Handle h = lookup(handle);
+        List<Frame> frames = h.take(1, packetLen);
+        Frame frame = frames.get(0);
+        int length = Math.min(frame.packet.length, packetLen);
+        pPacket.write(0, frame.packet, 0, length);
+        if (pAddr != null) {
+            pAddr.write(0, frame.address, 0, WinDivertAddress.SIZE);
+        }
+        if (length < frame.packet.length) {
+            throw new WinDivertException(ERROR_INSUFFICIENT_BUFFER, "The packet is larger than the buffer");
+        }
+        return length;
+    }
+
+    @Override
+    public int recvEx(HANDLE handle, Pointer pPacket, int packetLen, long flags, Pointer pAddr, IntByReference pAddrLen,
+                      Pointer overlapped) throws WinDivertException {
+        if (overlapped != null) {
+            throw new WinDivertException(ERROR_INVALID_PARAMETER, "Overlapped I/O is not supported");
+        }
+        int maxPackets = pAddr != null && pAddrLen != null ? pAddrLen.getValue() / WinDivertAddress.SIZE : 1;
+        if (maxPackets < 1) {
+            throw new WinDivertException(ERROR_INSUFFICIENT_BUFFER, "The address buffer is too small");
+        }
+        Handle h = lookup(handle);
+        List<Frame> frames = h.take(maxPackets, packetLen);
+        int offset = 0;
+        for (int i = 0; i < frames.size(); i++) {
+            Frame frame = frames.get(i);
+            int length = Math.min(frame.packet.length, packetLen - offset);
+            pPacket.write(offset, frame.packet, 0, length);
+            if (pAddr != null) {
+                pAddr.write(i * WinDivertAddress.SIZE, frame.address, 0, WinDivertAddress.SIZE);
+            }
+            offset += length;
+        }
+        if (pAddrLen != null) {
+            pAddrLen.setValue(frames.size() * WinDivertAddress.SIZE);
+        }
+        if (offset < frames.get(0).packet.length) {
+            throw new WinDivertException(ERROR_INSUFFICIENT_BUFFER, "The packet is larger than the buffer");
+        }
+        return offset;
+    }
+
+    @Override
+    public int send(HANDLE handle, Pointer pPacket, int packetLen, Pointer pAddr) throws WinDivertException {
+        Handle h = lookup(handle);
+        h.checkSend();
+        if (pAddr == null || packetLen <= 0) {
+            throw new WinDivertException(ERROR_INVALID_PARAMETER, "Invalid packet or address");
+        }
+        deliver(new Frame(pPacket.getByteArray(0, packetLen), pAddr.getByteArray(0, WinDivertAddress.SIZE), nanoTime()),
+                h.priority, h);
+        return packetLen;
+    }
+
+    @Override
+    public int sendEx(HANDLE handle, Pointer pPacket, int packetLen, long flags, Pointer pAddr, int addrLen,
+                      Pointer overlapped) throws WinDivertException {
+        if (overlapped != null) {
+            throw new WinDivertException(ERROR_INVALID_PARAMETER, "Overlapped I/O is not supported");
+        }
+        Handle h = lookup(handle);
+        h.checkSend();
+        if (pAddr == null) {
+            throw new WinDivertException(ERROR_INVALID_PARAMETER, "Invalid address");
+        }
+        int offset = 0;
+        int index = 0;
+        long now = nanoTime();
+        while (offset < packetLen) {
+            int length = WinDivert.ipPacketLength(pPacket, offset, packetLen - offset);
+            if (length <= 0 || (index + 1) * WinDivertAddress.SIZE > addrLen) {
+                throw new WinDivertException(ERROR_INVALID_PARAMETER, "Malformed packet batch at offset " + offset);
+            }
+            deliver(new Frame(pPacket.getByteArray(offset, length),
+                    pAddr.getByteArray(index * WinDivertAddress.SIZE, WinDivertAddress.SIZE), now), h.priority, h);
+            offset += length;
+            index++;
+        }
+        return offset;
+    }
+
+    @Override
+    public CompletableFuture<Integer> recvExAsync(final HANDLE handle, final Pointer pPacket, final int packetLen,
+                                                  final Pointer pAddr, final IntByReference pAddrLen) {
+        return submit(new Operation() {
+            @Override
+            public int run() throws WinDivertException {
+                return recvEx(handle, pPacket, packetLen, 0L, pAddr, pAddrLen, null);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Integer> sendExAsync(final HANDLE handle, final Pointer pPacket, final int packetLen,
+                                                  final Pointer pAddr, final int addrLen) {
+        return submit(new Operation() {
+            @Override
+            public int run() throws WinDivertException {
+                return sendEx(handle, pPacket, packetLen, 0L, pAddr, addrLen, null);
+            }
+        });
+    }
+
+    private CompletableFuture<Integer> submit(final Operation operation) {
+        final CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+        final Future<?> task = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.complete(operation.run());
+                } catch (WinDivertException e) {
+                    future.completeExceptionally(e);
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        future.whenComplete((n, t) -> {
+            if (t instanceof CancellationException)
+                task.cancel(true);
+        });
+        return future;
+    }
+
+    @Override
+    public void shutdown(HANDLE handle, ShutdownType how) throws WinDivertException {
+        Handle h = lookup(handle);
+        h.lock.lock();
+        try {
+            if (how == ShutdownType.RECV || how == ShutdownType.BOTH)
+                h.recvShutdown = true;
+            if (how == ShutdownType.SEND || how == ShutdownType.BOTH)
+                h.sendShutdown = true;
+            h.notEmpty.signalAll();
+        } finally {
+            h.lock.unlock();
+        }
+    }
+
+    @Override
+    public void close(HANDLE handle) {
+        Handle h;
+        synchronized (this) {
+            h = handles.remove(Pointer.nativeValue(handle.getPointer()));
+            if (h == null) {
+                return;
+            }
+            updatePriorities();
+        }
+        h.lock.lock();
+        try {
+            h.closed = true;
+            h.queue.clear();
+            h.queuedBytes = 0;
+            h.notEmpty.signalAll();
+        } finally {
+            h.lock.unlock();
+        }
+    }
+
+    @Override
+    public void setParam(HANDLE handle, Param param, long value) {
+        Handle h = lookupUnchecked(handle);
+        h.lock.lock();
+        try {
+            h.params[param.ordinal()] = value;
+        } finally {
+            h.lock.unlock();
+        }
+    }
+
+    @Override
+    public long getParam(HANDLE handle, Param param) {
+        Handle h = lookupUnchecked(handle);
+        h.lock.lock();
+        try {
+            return h.params[param.ordinal()];
+        } finally {
+            h.lock.unlock();
+        }
+    }
+
+    /**
+     * Calculates the checksums in Java through the {@link com.github.ffalcinelli.jdivert.headers.Header headers}.
+     */
+    @Override
+    public void calcChecksums(Pointer pPacket, int packetLen, Pointer pAddr, long flags) throws WinDivertException {
+        try {
+            // Checksums are computed in place, straight into the native buffer
+            new Packet(pPacket.getByteBuffer(0, packetLen), null).calculateAllCheckSumsLocal(flags);
+        } catch (RuntimeException e) {
+            throw new WinDivertException(ERROR_INVALID_PARAMETER, "Unable to calculate checksums: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("InMemoryWinDivertBackend{handles=%d, injected=%d, dropped=%d, transmitted=%d, loopback=%s}"
+                , handles.size()
+                , getInjectedCount()
+                , getDroppedCount()
+                , getTransmittedCount()
+                , loopback
+        );
+    }
+
+    /**
+     * Hands a packet to the handles whose priority is lower than the given one, then to the network.
+     */
+    private void deliver(Frame frame, int belowPriority, Handle sender) {
+        if (sender == null) {
+            injected.incrementAndGet();
+        }
+        for (Handle h : byPriority) {
+            if (h.priority >= belowPriority || h == sender || !h.accepts()) {
+                continue;
+            }
+            if ((h.flags & Flag.DROP.getValue()) != 0) {
+                return;
+            }
+            h.offer(frame);
+            if ((h.flags & Flag.SNIFF.getValue()) == 0) {
+                return;
+            }
+        }
+        if (loopback && sender != null) {
+            deliver(new Frame(frame.packet, frame.address, nanoTime()), Integer.MAX_VALUE, null);
+        } else {
+            transmitted.incrementAndGet();
+            network.add(frame);
+        }
+    }
+
+    private void updatePriorities() {
+        Handle[] sorted = handles.values().toArray(new Handle[0]);
+        Arrays.sort(sorted, BY_PRIORITY);
+        byPriority = sorted;
+    }
+
+    private Handle lookup(HANDLE handle) throws WinDivertException {
+        Handle h = handle != null ? handles.get(Pointer.nativeValue(handle.getPointer())) : null;
+        if (h == null) {
+            throw new WinDivertException(ERROR_INVALID_HANDLE, "The handle is invalid");
+        }
+        return h;
+    }
+
+    private Handle lookupUnchecked(HANDLE handle) {
+        try {
+            return lookup(handle);
+        } catch (WinDivertException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    private static byte[] toBytes(WinDivertAddress address) {
+        address.write();
+        return address.getPointer().getByteArray(0, WinDivertAddress.SIZE);
+    }
+
+    private interface Operation {
+        int run() throws WinDivertException;
+    }
+
+    private static final class Frame {
+        final byte[] packet;
+        final byte[] address;
+        final long enqueued;
+
+        Frame(byte[] packet, byte[] address, long enqueued) {
+            this.packet = packet;
+            this.address = address;
+            this.enqueued = enqueued;
+        }
+    }
+
+    private final class Handle {
+        final long id;
+        final int priority;
+        final long flags;
+        final boolean matchAll;
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition notEmpty = lock.newCondition();
+        final ArrayDeque<Frame> queue = new ArrayDeque<Frame>();
+        final long[] params = new long[Param.values().length];
+        long queuedBytes;
+        boolean recvShutdown;
+        boolean sendShutdown;
+        boolean closed;
+
+        Handle(long id, int priority, long flags, boolean matchAll) {
+            this.id = id;
+            this.priority = priority;
+            this.flags = flags;
+            this.matchAll = matchAll;
+            for (Param param : Param.values()) {
+                params[param.ordinal()] = param.getDefault();
+            }
+        }
+
+        boolean accepts() {
+            return matchAll && !recvShutdown && !closed && (flags & Flag.SEND_ONLY.getValue()) == 0;
+        }
+
+        void checkSend() throws WinDivertException {
+            if (sendShutdown || (flags & Flag.RECV_ONLY.getValue()) != 0) {
+                throw new WinDivertException(ERROR_INVALID_PARAMETER, "The handle cannot send");
+            }
+        }
+
+        void offer(Frame frame) {
+            lock.lock();
+            try {
+                expire();
+                if (queue.size() >= params[Param.QUEUE_LEN.ordinal()]
+                        || queuedBytes + frame.packet.length > params[Param.QUEUE_SIZE.ordinal()]) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                queue.addLast(frame);
+                queuedBytes += frame.packet.length;
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Waits for at least one packet, then takes as many packets as fit in maxPackets and maxBytes.
+         */
+        List<Frame> take(int maxPackets, int maxBytes) throws WinDivertException {
+            lock.lock();
+            try {
+                expire();
+                while (queue.isEmpty()) {
+                    if (closed)
+                        throw new WinDivertException(ERROR_OPERATION_ABORTED, "The handle has been closed");
+                    if (recvShutdown)
+                        throw new WinDivertException(ERROR_NO_DATA, "The handle has been shut down");
+                    try {
+                        notEmpty.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new WinDivertException(ERROR_OPERATION_ABORTED, "The operation has been cancelled");
+                    }
+                    expire();
+                }
+                List<Frame> frames = new ArrayList<Frame>(Math.min(maxPackets, queue.size()));
+                int bytes = 0;
+                while (!queue.isEmpty() && frames.size() < maxPackets) {
+                    Frame frame = queue.peekFirst();
+                    if (!frames.isEmpty() && bytes + frame.packet.length > maxBytes)
+                        break;
+                    queue.pollFirst();
+                    queuedBytes -= frame.packet.length;
+                    bytes += frame.packet.length;
+                    frames.add(frame);
+                }
+                return frames;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Discards the packets which have been waiting longer than QUEUE_TIME. Must be called holding the lock.
+         */
+        private void expire() {
+            long deadline = nanoTime() - TimeUnit.MILLISECONDS.toNanos(params[Param.QUEUE_TIME.ordinal()]);
+            Frame head;
+            while ((head = queue.peekFirst()) != null && head.enqueued - deadline < 0) {
+                queue.pollFirst();
+                queuedBytes -= head.packet.length;
+                dropped.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.windivert;
+
+import com.github.ffalcinelli.jdivert.Enums.Layer;
+import com.github.ffalcinelli.jdivert.Enums.Param;
+import com.github.ffalcinelli.jdivert.Enums.ShutdownType;
+import com.github.ffalcinelli.jdivert.exceptions.WinDivertException;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.LongByReference;
+
+import java.util.concurrent.CompletableFuture;
+
+import static com.github.ffalcinelli.jdivert.exceptions.WinDivertException.throwExceptionOnGetLastError;
+import static com.sun.jna.platform.win32.WinNT.HANDLE;
+
+/**
+ * {@link WinDivertBackend} calling the WinDivert driver through {@link WinDivertDLL}.
+ * <p>
+ * The DLL is deployed and loaded the first time a method of this backend is called, not when the class is loaded.
+ * </p>
+ * Asynchronous operations use overlapped I/O, completed by a daemon thread started with the first of them.
+ */
+public class JnaWinDivertBackend implements WinDivertBackend {
+
+    private static final JnaWinDivertBackend INSTANCE = new JnaWinDivertBackend();
+
+    private OverlappedReaper reaper;
+
+    /**
+     * @return The shared instance of this backend.
+     */
+    public static JnaWinDivertBackend getInstance() {
+        return INSTANCE;
+    }
+
+    protected WinDivertDLL dll() {
+        return WinDivertDLL.INSTANCE;
+    }
+
+    private synchronized OverlappedReaper reaper() throws WinDivertException {
+        if (reaper == null) {
+            reaper = new OverlappedReaper();
+        }
+        return reaper;
+    }
+
+    /**
+     * Starts an overlapped call, the future failing whenever the reaper cannot be started.
+     */
+    private CompletableFuture<Integer> submit(HANDLE handle, OverlappedReaper.OverlappedCall call, Object... keepAlive) {
+        try {
+            return reaper().submit(handle, call, keepAlive);
+        } catch (WinDivertException e) {
+            CompletableFuture<Integer> failed = new CompletableFuture<Integer>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    @Override
+    public HANDLE open(String filter, Layer layer, short priority, long flags) throws WinDivertException {
+        HANDLE handle = dll().WinDivertOpen(filter, layer.getValue(), priority, flags);
+        throwExceptionOnGetLastError();
+        return handle;
+    }
+
+    @Override
+    public int recv(HANDLE handle, Pointer pPacket, int packetLen, Pointer pAddr) throws WinDivertException {
+        IntByReference recvLen = new IntByReference();
+        dll().WinDivertRecv(handle, pPacket, packetLen, recvLen, pAddr);
+        throwExceptionOnGetLastError();
+        return recvLen.getValue();
+    }
+
+    @Override
+    public int recvEx(HANDLE handle, Pointer pPacket, int packetLen, long flags, Pointer pAddr, IntByReference pAddrLen,
+                      Pointer overlapped) throws WinDivertException {
+        IntByReference recvLen = new IntByReference();
+        dll().WinDivertRecvEx(handle, pPacket, packetLen, recvLen, flags, pAddr, pAddrLen, overlapped);
+        throwExceptionOnGetLastError();
+        return recvLen.getValue();
+    }
+
+    @Override
+    public int send(HANDLE handle, Pointer pPacket, int packetLen, Pointer pAddr) throws WinDivertException {
+        IntByReference sendLen = new IntByReference();
+        dll().WinDivertSend(handle, pPacket, packetLen, sendLen, pAddr);
+        throwExceptionOnGetLastError();
+        return sendLen.getValue();
+    }
+
+    @Override
+    public int sendEx(HANDLE handle, Pointer pPacket, int packetLen, long flags, Pointer pAddr, int addrLen,
+                      Pointer overlapped) throws WinDivertException {
+        IntByReference sendLen = new IntByReference();
+        dll().WinDivertSendEx(handle, pPacket, packetLen, sendLen, flags, pAddr, addrLen, overlapped);
+        throwExceptionOnGetLastError();
+        return sendLen.getValue();
+    }
+
+    @Override
+    public CompletableFuture<Integer> recvExAsync(final HANDLE handle, final Pointer pPacket, final int packetLen,
+                                                  final Pointer pAddr, final IntByReference pAddrLen) {
+        return submit(handle, (overlapped, recvLen) -> dll().WinDivertRecvEx(handle, pPacket, packetLen,
+                recvLen, 0L, pAddr, pAddrLen, overlapped).booleanValue(), pPacket, pAddr, pAddrLen);
+    }
+
+    @Override
+    public CompletableFuture<Integer> sendExAsync(final HANDLE handle, final Pointer pPacket, final int packetLen,
+                                                  final Pointer pAddr, final int addrLen) {
+        return submit(handle, (overlapped, sendLen) -> dll().WinDivertSendEx(handle, pPacket, packetLen,
+                sendLen, 0L, pAddr, addrLen, overlapped).booleanValue(), pPacket, pAddr);
+    }
+
+    @Override
+    public void shutdown(HANDLE handle, ShutdownType how) throws WinDivertException {
+        dll().WinDivertShutdown(handle, how.getValue());
+        throwExceptionOnGetLastError();
+    }
+
+    @Override
+    public void close(HANDLE handle) {
+        dll().WinDivertClose(handle);
+    }
+
+    @Override
+    public void setParam(HANDLE handle, Param param, long value) {
+        dll().WinDivertSetParam(handle, param.getValue(), value);
+    }
+
+    @Override
+    public long getParam(HANDLE handle, Param param) {
+        LongByReference value = new LongByReference();
+        dll().WinDivertGetParam(handle, param.getValue(), value);
+        return value.getValue();
+    }
+
+    @Override
+    public void calcChecksums(Pointer pPacket, int packetLen, Pointer pAddr, long flags) throws WinDivertException {
+        dll().WinDivertHelperCalcChecksums(pPacket, packetLen, pAddr, flags);
+        throwExceptionOnGetLastError();
+    }
+
+    @Override
+    public String toString() {
+        return "JnaWinDivertBackend";
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.windivert;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link BufferPool} carving all of its buffers out of a single native region.
+ * <p>
+ * The region is allocated once and split into fixed size slots, grouped in classes of increasing slot size. Slots are
+ * {@link Memory#share(long, long) shared views} of the region: handing one out or back never allocates, and the
+ * whole region is freed at once when the arena becomes unreachable.
+ * </p>
+ * A request is served by the smallest class whose slots are large enough and have one free. When there is none
+ * (an <i>overflow</i>) a standalone {@link Memory} is allocated instead.
+ */
+public class NativeArena implements BufferPool {
+
+    private final Memory region;
+    private final long[] slotSizes;
+    // Offset in the region of the first slot of each class, plus the region size as last element
+    private final long[] classOffsets;
+    private final int[] firstSlot;
+    private final AtomicReferenceArray<Memory> slots;
+
+    private final LongAdder overflows = new LongAdder();
+    private final LongAdder overflowBytes = new LongAdder();
+
+    /**
+     * @param slotSizes  The slot size of each class, in increasing order.
+     * @param slotCounts How many slots each class has.
+     */
+    public NativeArena(long[] slotSizes, int[] slotCounts) {
+        if (slotSizes.length == 0 || slotSizes.length != slotCounts.length) {
+            throw new IllegalArgumentException("A slot count is required for each slot size");
+        }
+        this.slotSizes = slotSizes.clone();
+        this.classOffsets = new long[slotSizes.length + 1];
+        this.firstSlot = new int[slotSizes.length + 1];
+        for (int c = 0; c < slotSizes.length; c++) {
+            if (slotSizes[c] <= 0 || slotCounts[c] < 0 || (c > 0 && slotSizes[c] <= slotSizes[c - 1])) {
+                throw new IllegalArgumentException("Slot sizes must be positive and increasing, slot counts non negative");
+            }
+            // Keep every slot 8 bytes aligned
+            long slotSize = (slotSizes[c] + 7) & ~7L;
+            classOffsets[c + 1] = classOffsets[c] + slotSize * slotCounts[c];
+            firstSlot[c + 1] = firstSlot[c] + slotCounts[c];
+        }
+        this.region = new Memory(Math.max(classOffsets[slotSizes.length], 1));
+        this.slots = new AtomicReferenceArray<Memory>(firstSlot[slotSizes.length]);
+        for (int c = 0; c < slotSizes.length; c++) {
+            long stride = slotStride(c);
+            for (int i = firstSlot[c]; i < firstSlot[c + 1]; i++) {
+                slots.set(i, (Memory) region.share(classOffsets[c] + (i - firstSlot[c]) * stride, slotSizes[c]));
+            }
+        }
+    }
+
+    private long slotStride(int sizeClass) {
+        return (slotSizes[sizeClass] + 7) & ~7L;
+    }
+
+    @Override
+    public Memory allocate(long size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("The buffer size must be greater than 0");
+        }
+        for (int c = 0; c < slotSizes.length; c++) {
+            if (slotSizes[c] < size)
+                continue;
+            int from = firstSlot[c];
+            int count = firstSlot[c + 1] - from;
+            int start = count > 0 ? (int) (Thread.currentThread().getId() % count) : 0;
+            for (int n = 0; n < count; n++) {
+                int i = from + (start + n) % count;
+                Memory slot = slots.get(i);
+                if (slot != null && slots.compareAndSet(i, slot, null)) {
+                    return slot;
+                }
+            }
+        }
+        overflows.increment();
+        overflowBytes.add(size);
+        return new Memory(size);
+    }
+
+    @Override
+    public void release(Memory buffer) {
+        long offset = Pointer.nativeValue(buffer) - Pointer.nativeValue(region);
+        if (offset < 0 || offset >= region.size()) {
+            overflowBytes.add(-buffer.size());
+            return;
+        }
+        int c = 0;
+        while (offset >= classOffsets[c + 1]) {
+            c++;
+        }
+        slots.set(firstSlot[c] + (int) ((offset - classOffsets[c]) / slotStride(c)), buffer);
+    }
+
+    /**
+     * @return The size of the arena region plus the overflow buffers currently borrowed.
+     */
+    @Override
+    public long getNativeFootprint() {
+        return region.size() + overflowBytes.sum();
+    }
+
+    /**
+     * @return How many requests could not be served from the arena.
+     */
+    public long getOverflowCount() {
+        return overflows.sum();
+    }
+
+    /**
+     * @return How many slots are currently free.
+     */
+    public int getFreeSlotCount() {
+        int free = 0;
+        for (int i = 0; i < slots.length(); i++) {
+            if (slots.get(i) != null)
+                free++;
+        }
+        return free;
+    }
+
+    public int getSlotCount() {
+        return slots.length();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NativeArena{size=%d, slots=%d, free=%d, overflows=%d}"
+                , region.size()
+                , getSlotCount()
+                , getFreeSlotCount()
+                , getOverflowCount()
+        );
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.windivert;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free pool of native {@link Memory} buffers.
+ * <p>
+ * Requests are rounded up to a power of two size class, from {@value #MIN_CLASS_SIZE} bytes up to a maximum class
+ * size ({@value #DEFAULT_MAX_CLASS_SIZE} bytes by default). Each size class is split into stripes of slots, the
+ * stripe being picked from the calling thread, so that concurrent threads seldom touch the same slots.
+ * </p><p>
+ * The allocator never blocks: when no pooled buffer is available a new one is allocated (a <i>miss</i>) and when
+ * the stripes of a class are full a released buffer is simply left to the garbage collector. Requests larger than
+ * the maximum class size are never pooled.
+ * </p>
+ * With leak detection enabled, buffers which become unreachable without having been {@link #release(Memory)
+ * released} are reported by {@link #getLeakCount()} and {@link #pollLeak()}, along with the stack trace of their
+ * allocation.
+ */
+public class NativeBufferAllocator implements BufferPool {
+
+    public static final int MIN_CLASS_SIZE = 64;
+    public static final int DEFAULT_MAX_CLASS_SIZE = 64 * 1024;
+    public static final int DEFAULT_SLOTS_PER_STRIPE = 8;
+
+    private final int minShift;
+    private final int maxClassSize;
+    private final int stripeMask;
+    private final int slotsPerStripe;
+    // classes[sizeClass] holds stripes * slotsPerStripe slots, stripe after stripe
+    private final AtomicReferenceArray<Memory>[] classes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder unpooled = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+    private final LongAdder footprint = new LongAdder();
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder released = new LongAdder();
+
+    private volatile boolean leakDetection;
+    private final ReferenceQueue<Memory> collected = new ReferenceQueue<Memory>();
+    private final ConcurrentHashMap<Long, Tracker> tracked = new ConcurrentHashMap<Long, Tracker>();
+    private final ConcurrentLinkedQueue<Throwable> leaks = new ConcurrentLinkedQueue<Throwable>();
+    private final AtomicLong leakCount = new AtomicLong();
+
+    /**
+     * Creates an allocator with size classes up to {@value #DEFAULT_MAX_CLASS_SIZE} bytes.
+     */
+    public NativeBufferAllocator() {
+        this(DEFAULT_MAX_CLASS_SIZE, DEFAULT_SLOTS_PER_STRIPE);
+    }
+
+    /**
+     * @param maxClassSize   The largest pooled size, rounded up to a power of two.
+     * @param slotsPerStripe How many free buffers of each size class a stripe can hold.
+     */
+    public NativeBufferAllocator(int maxClassSize, int slotsPerStripe) {
+        if (maxClassSize < MIN_CLASS_SIZE || maxClassSize > 1 << 30) {
+            throw new IllegalArgumentException(String.format("The max class size must be in range %d, %d", MIN_CLASS_SIZE, 1 << 30));
+        }
+        if (slotsPerStripe < 1) {
+            throw new IllegalArgumentException("The slots per stripe must be greater than 0");
+        }
+        this.minShift = Integer.numberOfTrailingZeros(MIN_CLASS_SIZE);
+        this.maxClassSize = roundUp(maxClassSize);
+        this.stripeMask = roundUp(Runtime.getRuntime().availableProcessors()) - 1;
+        this.slotsPerStripe = slotsPerStripe;
+        int count = Integer.numberOfTrailingZeros(this.maxClassSize) - minShift + 1;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        AtomicReferenceArray<Memory>[] classes = new AtomicReferenceArray[count];
+        for (int i = 0; i < count; i++) {
+            classes[i] = new AtomicReferenceArray<Memory>((stripeMask + 1) * slotsPerStripe);
+        }
+        this.classes = classes;
+    }
+
+    @Override
+    public Memory allocate(long size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("The buffer size must be greater than 0");
+        }
+        if (leakDetection) {
+            expungeCollected();
+        }
+        Memory buffer;
+        if (size > maxClassSize) {
+            unpooled.increment();
+            buffer = new Memory(size);
+            footprint.add(size);
+        } else {
+            int sizeClass = sizeClass(size);
+            buffer = take(classes[sizeClass]);
+            if (buffer != null) {
+                hits.increment();
+            } else {
+                misses.increment();
+                buffer = new Memory(classSize(sizeClass));
+                footprint.add(buffer.size());
+            }
+        }
+        allocated.increment();
+        if (leakDetection) {
+            tracked.put(Pointer.nativeValue(buffer), new Tracker(buffer, collected));
+        }
+        return buffer;
+    }
+
+    @Override
+    public void release(Memory buffer) {
+        released.increment();
+        if (!tracked.isEmpty()) {
+            Tracker tracker = tracked.remove(Pointer.nativeValue(buffer));
+            if (tracker != null) {
+                tracker.clear();
+            }
+        }
+        long size = buffer.size();
+        if (size < MIN_CLASS_SIZE || size > maxClassSize || (size & (size - 1)) != 0
+                || !put(classes[sizeClass(size)], buffer)) {
+            discarded.increment();
+            footprint.add(-size);
+        }
+    }
+
+    private Memory take(AtomicReferenceArray<Memory> slots) {
+        int stripes = stripeMask + 1;
+        int stripe = stripe();
+        for (int s = 0; s < stripes; s++) {
+            int base = ((stripe + s) & stripeMask) * slotsPerStripe;
+            for (int i = base; i < base + slotsPerStripe; i++) {
+                Memory buffer = slots.get(i);
+                if (buffer != null && slots.compareAndSet(i, buffer, null)) {
+                    return buffer;
+                }
+            }
+        }
+        return null;
+    }
+
+    private boolean put(AtomicReferenceArray<Memory> slots, Memory buffer) {
+        int stripes = stripeMask + 1;
+        int stripe = stripe();
+        for (int s = 0; s < stripes; s++) {
+            int base = ((stripe + s) & stripeMask) * slotsPerStripe;
+            for (int i = base; i < base + slotsPerStripe; i++) {
+                if (slots.get(i) == null && slots.compareAndSet(i, null, buffer)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private int stripe() {
+        long id = Thread.currentThread().getId();
+        return (int) (id ^ (id >>> 16)) & stripeMask;
+    }
+
+    private int sizeClass(long size) {
+        int shift = 64 - Long.numberOfLeadingZeros(size - 1);
+        return Math.max(shift - minShift, 0);
+    }
+
+    private int classSize(int sizeClass) {
+        return 1 << (sizeClass + minShift);
+    }
+
+    private static int roundUp(int value) {
+        return value <= 1 ? 1 : Integer.highestOneBit(value - 1) << 1;
+    }
+
+    /**
+     * Enables or disables the detection of buffers never released. Detection has a cost on each allocation and only
+     * covers buffers allocated while enabled.
+     *
+     * @param leakDetection Whether to track allocated buffers.
+     */
+    public void setLeakDetection(boolean leakDetection) {
+        this.leakDetection = leakDetection;
+    }
+
+    public boolean isLeakDetection() {
+        return leakDetection;
+    }
+
+    /**
+     * @return How many tracked buffers have been garbage collected without being released so far.
+     */
+    public long getLeakCount() {
+        expungeCollected();
+        return leakCount.get();
+    }
+
+    /**
+     * Retrieves the allocation site of the next leaked buffer.
+     *
+     * @return A {@link Throwable} whose stack trace is the allocation site, or {@code null} if no leak is pending.
+     */
+    public Throwable pollLeak() {
+        expungeCollected();
+        return leaks.poll();
+    }
+
+    private void expungeCollected() {
+        Tracker tracker;
+        while ((tracker = (Tracker) collected.poll()) != null) {
+            if (tracked.remove(tracker.address, tracker)) {
+                leakCount.incrementAndGet();
+                leaks.add(tracker.allocation);
+            }
+        }
+    }
+
+    /**
+     * @return How many requests have been served with a pooled buffer.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return How many pooled size requests required a new buffer.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return How many requests were larger than the maximum class size.
+     */
+    public long getUnpooledCount() {
+        return unpooled.sum();
+    }
+
+    /**
+     * @return How many released buffers have been left to the garbage collector.
+     */
+    public long getDiscardedCount() {
+        return discarded.sum();
+    }
+
+    /**
+     * @return How many buffers have been allocated and not released yet.
+     */
+    public long getOutstandingCount() {
+        return allocated.sum() - released.sum();
+    }
+
+    /**
+     * Buffers discarded on release are no longer accounted, even before the garbage collector actually frees them.
+     */
+    @Override
+    public long getNativeFootprint() {
+        return footprint.sum();
+    }
+
+    public int getMaxClassSize() {
+        return maxClassSize;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NativeBufferAllocator{maxClassSize=%d, stripes=%d, hits=%d, misses=%d, unpooled=%d, outstanding=%d, leaks=%d}"
+                , maxClassSize
+                , stripeMask + 1
+                , getHitCount()
+                , getMissCount()
+                , getUnpooledCount()
+                , getOutstandingCount()
+                , leakCount.get()
+        );
+    }
+
+    private static final class Tracker extends WeakReference<Memory> {
+        final long address;
+        final Throwable allocation;
+
+        Tracker(Memory buffer, ReferenceQueue<Memory> queue) {
+            super(buffer, queue);
+            this.address = Pointer.nativeValue(buffer);
+            this.allocation = new Throwable(String.format("Buffer of %d bytes allocated here was never released", buffer.size()));
+        }
+    }
+}
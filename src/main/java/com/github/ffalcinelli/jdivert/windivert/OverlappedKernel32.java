@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.windivert;
+
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.win32.StdCallLibrary;
+
+import static com.sun.jna.platform.win32.WinNT.HANDLE;
+
+/**
+ * The overlapped I/O functions of {@code kernel32} not mapped by {@link com.sun.jna.platform.win32.Kernel32}.
+ */
+interface OverlappedKernel32 extends StdCallLibrary {
+    OverlappedKernel32 INSTANCE = (OverlappedKernel32) Native.loadLibrary("kernel32", OverlappedKernel32.class);
+
+    int ERROR_IO_INCOMPLETE = 996;
+    int ERROR_IO_PENDING = 997;
+
+    boolean GetOverlappedResult(
+            HANDLE hFile,
+            Pointer lpOverlapped,
+            IntByReference lpNumberOfBytesTransferred,
+            boolean bWait
+    );
+
+    boolean CancelIoEx(
+            HANDLE hFile,
+            Pointer lpOverlapped
+    );
+}
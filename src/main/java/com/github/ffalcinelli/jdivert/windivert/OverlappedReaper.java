@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.windivert;
+
+import com.github.ffalcinelli.jdivert.exceptions.WinDivertException;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.platform.win32.Kernel32;
+import com.sun.jna.platform.win32.WinBase;
+import com.sun.jna.ptr.IntByReference;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static com.sun.jna.platform.win32.WinNT.HANDLE;
+
+/**
+ * Starts overlapped driver calls and completes their futures from a single daemon thread.
+ * <p>
+ * Each operation gets its own manual reset event. The reaping loop waits on the events of the pending operations
+ * (at most {@code MAXIMUM_WAIT_OBJECTS - 1} at once, polling when there are more) and collects every completed
+ * operation with {@code GetOverlappedResult}.
+ * </p>
+ */
+final class OverlappedReaper implements Runnable {
+
+    /**
+     * A driver call started with the given {@code OVERLAPPED} structure.
+     */
+    interface OverlappedCall {
+        boolean start(Pointer overlapped, IntByReference length);
+    }
+
+    private static final int MAXIMUM_WAIT_OBJECTS = 64;
+    private static final int POLL_MILLIS = 10;
+
+    private final Kernel32 kernel32 = Kernel32.INSTANCE;
+    private final OverlappedKernel32 overlappedKernel32 = OverlappedKernel32.INSTANCE;
+    private final HANDLE wakeup;
+    private final ConcurrentLinkedQueue<Operation> submitted = new ConcurrentLinkedQueue<Operation>();
+    private final List<Operation> pending = new ArrayList<Operation>();
+
+    /**
+     * @throws WinDivertException Whenever the event waking the reaping loop up cannot be created.
+     */
+    OverlappedReaper() throws WinDivertException {
+        wakeup = kernel32.CreateEvent(null, false, false, null);
+        if (wakeup == null) {
+            throw new WinDivertException(Native.getLastError());
+        }
+        Thread thread = new Thread(this, "jdivert-overlapped-reaper");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts the given call.
+     *
+     * @param handle    The handle the call operates on.
+     * @param call      The call to start.
+     * @param keepAlive Memory the driver may access until the operation completes.
+     * @return The future of the number of bytes transferred, failed without starting the call whenever its event
+     * cannot be created.
+     */
+    CompletableFuture<Integer> submit(HANDLE handle, OverlappedCall call, Object... keepAlive) {
+        HANDLE event = kernel32.CreateEvent(null, true, false, null);
+        if (event == null) {
+            CompletableFuture<Integer> failed = new CompletableFuture<Integer>();
+            failed.completeExceptionally(new WinDivertException(Native.getLastError()));
+            return failed;
+        }
+        final Operation op = new Operation(handle, event, keepAlive);
+        IntByReference length = new IntByReference();
+        if (call.start(op.overlapped.getPointer(), length)) {
+            op.complete(length.getValue());
+        } else {
+            int lastError = Native.getLastError();
+            if (lastError != OverlappedKernel32.ERROR_IO_PENDING) {
+                op.fail(lastError);
+            } else {
+                op.future.whenComplete((n, t) -> {
+                    if (t instanceof CancellationException)
+                        overlappedKernel32.CancelIoEx(op.handle, op.overlapped.getPointer());
+                });
+                submitted.add(op);
+                kernel32.SetEvent(wakeup);
+            }
+        }
+        return op.future;
+    }
+
+    @Override
+    public void run() {
+        IntByReference length = new IntByReference();
+        while (true) {
+            Operation op;
+            while ((op = submitted.poll()) != null) {
+                pending.add(op);
+            }
+            int watched = Math.min(pending.size(), MAXIMUM_WAIT_OBJECTS - 1);
+            HANDLE[] events = new HANDLE[watched + 1];
+            events[0] = wakeup;
+            for (int i = 0; i < watched; i++) {
+                events[i + 1] = pending.get(i).event;
+            }
+            kernel32.WaitForMultipleObjects(events.length, events, false,
+                    watched < pending.size() ? POLL_MILLIS : WinBase.INFINITE);
+
+            for (Iterator<Operation> it = pending.iterator(); it.hasNext(); ) {
+                op = it.next();
+                if (overlappedKernel32.GetOverlappedResult(op.handle, op.overlapped.getPointer(), length, false)) {
+                    op.complete(length.getValue());
+                } else {
+                    int lastError = Native.getLastError();
+                    if (lastError == OverlappedKernel32.ERROR_IO_INCOMPLETE)
+                        continue;
+                    op.fail(lastError);
+                }
+                it.remove();
+            }
+        }
+    }
+
+    private final class Operation {
+        final HANDLE handle;
+        final HANDLE event;
+        final WinBase.OVERLAPPED overlapped = new WinBase.OVERLAPPED();
+        final CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+        // Referenced until completion so that the driver never writes into freed memory
+        Object[] keepAlive;
+
+        Operation(HANDLE handle, HANDLE event, Object[] keepAlive) {
+            this.handle = handle;
+            this.event = event;
+            this.keepAlive = keepAlive;
+            overlapped.hEvent = event;
+            overlapped.write();
+        }
+
+        void complete(int length) {
+            release();
+            future.complete(length);
+        }
+
+        void fail(int lastError) {
+            release();
+            future.completeExceptionally(new WinDivertException(lastError));
+        }
+
+        private void release() {
+            kernel32.CloseHandle(event);
+            keepAlive = null;
+        }
+    }
+}
@@ -27,18 +27,21 @@ import com.github.ffalcinelli.jdivert.Enums.Layer;
 import com.github.ffalcinelli.jdivert.Enums.Param;
 import com.github.ffalcinelli.jdivert.exceptions.WinDivertException;
 import com.sun.jna.Memory;
-import com.sun.jna.Structure;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
 import com.sun.jna.ptr.IntByReference;
-import com.sun.jna.ptr.LongByReference;
 
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.github.ffalcinelli.jdivert.Enums.*;
-import static com.github.ffalcinelli.jdivert.exceptions.WinDivertException.throwExceptionOnGetLastError;
 import static com.sun.jna.platform.win32.WinNT.HANDLE;
 
 /**
@@ -52,7 +55,7 @@ public class WinDivert {
     public static int DEFAULT_PACKET_BUFFER_SIZE = 1500;
     public static int DEFAULT_BATCH_MAX = 255;
     
-    private WinDivertDLL dll = WinDivertDLL.INSTANCE;
+    private final WinDivertBackend backend;
     private String filter;
     private Layer layer;
     private int priority;
@@ -65,13 +68,12 @@ public class WinDivert {
     private int maxBatchSendMessages = DEFAULT_BATCH_MAX;
     private int maxBatchRecvMessages = DEFAULT_BATCH_MAX;
     
-    private boolean usePooledBuffers;
-    private BlockingQueue<Memory> recvBufferQ;
-    private BlockingQueue<Memory> sendBufferQ;
-    
-    private boolean useBatchPooledBuffers;
-    private BlockingQueue<Memory> batchRecvBufferQ;
-    private BlockingQueue<Memory> batchSendBufferQ;
+    private volatile NativeBufferAllocator allocator;
+    private boolean sharedAllocator;
+    private volatile NativeArena arena;
+    private volatile boolean usePooledBuffers;
+    private volatile boolean useBatchPooledBuffers;
+    private volatile boolean zeroCopyRecv;
     
     
     /**
@@ -95,6 +97,35 @@ public class WinDivert {
      * @param flags    Additional {@link Enums.Flag flags}
      */
     public WinDivert(String filter, Layer layer, int priority, Flag... flags) {
+        this(JnaWinDivertBackend.getInstance(), filter, layer, priority, flags);
+    }
+
+    /**
+     * Create a new WinDivert instance based upon the given filter for
+     * {@link Enums.Layer#NETWORK NETWORK} layer with priority set to 0 and in
+     * {@link Enums.Flag#DEFAULT DEFAULT} mode, talking to the given backend.
+     *
+     * @param backend The {@link WinDivertBackend backend} to use instead of the WinDivert driver.
+     * @param filter  The filter string expressed using <a href="https://www.reqrypt.org/windivert-doc.html#filter_language">WinDivert filter language.</a>
+     */
+    public WinDivert(WinDivertBackend backend, String filter) {
+        this(backend, filter, Layer.NETWORK, 0, Flag.DEFAULT);
+    }
+
+    /**
+     * Create a new WinDivert instance based upon the given parameters
+     *
+     * @param backend  The {@link WinDivertBackend backend} to use instead of the WinDivert driver.
+     * @param filter   The filter string expressed using <a href="https://www.reqrypt.org/windivert-doc.html#filter_language">WinDivert filter language.</a>
+     * @param layer    The {@link Enums.Layer layer}
+     * @param priority The priority of the handle
+     * @param flags    Additional {@link Enums.Flag flags}
+     */
+    public WinDivert(WinDivertBackend backend, String filter, Layer layer, int priority, Flag... flags) {
+        if (backend == null) {
+            throw new IllegalArgumentException("A backend is required");
+        }
+        this.backend = backend;
         this.filter = filter;
         this.layer = layer;
         this.priority = priority;
@@ -114,14 +145,7 @@ public class WinDivert {
      * @param size Size of the buffer
      */
     public void setSendBufferSize(int size) {
-    	if(this.sendBufferSize == size) return;
-    	
     	this.sendBufferSize = size;
-    	if(this.usePooledBuffers) {
-    		BlockingQueue<Memory> q = new ArrayBlockingQueue<Memory>(this.sendBufferQ.size());
-    		for(int i = 0; i<sendBufferQ.size(); i++) q.add(new Memory(size));
-    		this.sendBufferQ = q;
-    	}
     }
     
     /**
@@ -129,142 +153,180 @@ public class WinDivert {
      * @param size Size of buffer
      */
     public void setRecvBufferSize(int size) {
-    	if(this.recvBufferSize == size) return;
-    	
     	this.recvBufferSize = size;
-    	if(this.usePooledBuffers) {
-    		BlockingQueue<Memory> q = new ArrayBlockingQueue<Memory>(this.recvBufferQ.size());
-    		for(int i = 0; i<recvBufferQ.size(); i++) q.add(new Memory(size));
-    		this.recvBufferQ = q;
-    	}
     }
     
     public void setMaxRecvBatchMessages(int maxRecv) {
-    	if(this.maxBatchRecvMessages == maxRecv) return;
-    	
     	this.maxBatchRecvMessages = maxRecv;
-    	if(this.useBatchPooledBuffers) {
-    		BlockingQueue<Memory> q = new ArrayBlockingQueue<Memory>(this.batchRecvBufferQ.size());
-    		int size = maxRecv * this.recvBufferSize;
-    		for(int i = 0; i<batchRecvBufferQ.size(); i++) q.add(new Memory(size));
-    		this.batchRecvBufferQ = q;
-    	}
     }
     
     public void setMaxSendBatchMessages(int maxSend) {
-    	if(this.maxBatchSendMessages == maxSend) return;
-    	
     	this.maxBatchSendMessages = maxSend;
-    	if(this.useBatchPooledBuffers) {
-    		BlockingQueue<Memory> q = new ArrayBlockingQueue<Memory>(this.batchSendBufferQ.size());
-    		int size = maxSend * this.sendBufferSize;
-    		for(int i = 0; i<batchSendBufferQ.size(); i++) q.add(new Memory(size));
-    		this.batchSendBufferQ = q;
-    	}
     }
     
+    /**
+     * Pools the batch Memory buffers, used by {@link #recvEx(int) recvEx} and {@link #sendEx(Packet...) sendEx}, to be
+     * reused across calls. A receive buffer holds {@code maxRecvMessages} packets of the
+     * {@link #setRecvBufferSize(int) receive buffer size} and stays borrowed until all the packets received into it
+     * have been {@link Packet#release() released}.
+     *
+     * @param usePooled	True if you want to use pooled batch memory buffers, false otherwise
+     * @param pooledRcv	Number of batch memory buffers for receiving messages
+     * @param pooledSend	Number of batch memory buffers for sending messages
+     * @param maxRecvMessages	Max number of messages received with a single batch call
+     * @param maxSendMessages	Max number of messages sent with a single batch call
+     * @see #setBufferAllocator(NativeBufferAllocator)
+     */
     public void setUseBatchPooledBuffers(boolean usePooled, int pooledRcv, int pooledSend, int maxRecvMessages, int maxSendMessages) {
-    	if(this.useBatchPooledBuffers == usePooled) return;
-    	
-    	if(!usePooled) {
-    		this.useBatchPooledBuffers = usePooled;
-    		
-    		this.batchRecvBufferQ = null;
-    		this.batchSendBufferQ = null;
-    	}
-    	else {
+    	if(usePooled) {
     		if(pooledRcv < 1 || pooledSend < 1) throw new IllegalArgumentException("Number of pooled batch receive and pooled batch send memory buffers must be greater than 0");
     		if(maxRecvMessages < 1 || maxSendMessages < 1) throw new IllegalArgumentException("Max number of batch received messages and batch sent messages must be greater than 0");
     		
-	    	this.batchRecvBufferQ = new ArrayBlockingQueue<Memory>(pooledRcv);
-	    	for(int i = 0; i<pooledRcv; i++) batchRecvBufferQ.add(new Memory(this.recvBufferSize));
-    		
-	    	this.batchSendBufferQ = new ArrayBlockingQueue<Memory>(pooledSend);
-	    	for(int i = 0; i<pooledSend; i++) batchSendBufferQ.add(new Memory(this.sendBufferSize));
-	    	
-	    	//must be set at the end of this if case to avoid nullpointer race condition with pooled queues being accessed.
-	    	this.usePooledBuffers = usePooled;
+    		this.maxBatchRecvMessages = maxRecvMessages;
+    		this.maxBatchSendMessages = maxSendMessages;
+    		ensureAllocator(pooledRcv + pooledSend, Math.max((long) maxRecvMessages * this.recvBufferSize,
+    				(long) maxSendMessages * this.sendBufferSize));
     	}
+    	this.useBatchPooledBuffers = usePooled;
     }
     
     /**
-     * For efficient use of resources. This method creates a pool of Memory buffers to be reused when sending or receiving messages.
-     * More efficient than creating a new memory buffer every call. For applications that use a single thread to send and a single thread to receive,
-     * a send and receive pool of size 1 is sufficient. 
+     * For efficient use of resources. This method pools the Memory buffers used when sending or receiving messages.
+     * More efficient than creating a new memory buffer every call.
+     * <p>
+     * Buffers come from a {@link NativeBufferAllocator}, which never blocks: the numbers of buffers only bound how
+     * many free buffers of each size are kept, per allocator stripe.
+     * </p>
      * 
      * @param usePooled	True if you want to use pooled memory buffers, false otherwise
      * @param numRcv	Number of memory buffers for receiving messages	
      * @param numSend	Number of memory buffers for sending messages
+     * @see #setBufferAllocator(NativeBufferAllocator)
      */
     public void setUsePooledBuffers(boolean usePooled, int numRcv, int numSend) {
-    	if(this.usePooledBuffers == usePooled) return;
-    	
-    	if(!usePooled) {
-    		//must be set at beginning of this if case to avoid nullpointer race condition with pooled queues being accessed
-    		this.usePooledBuffers = usePooled;
-    		
-    		this.recvBufferQ = null;
-    		this.sendBufferQ = null;
-    	}else {
+    	if(usePooled) {
     		if(numRcv < 1 || numSend < 1) throw new IllegalArgumentException("Number of receive pooled buffers and send pooled buffers must be greater than 0");
     		
-	    	this.recvBufferQ = new ArrayBlockingQueue<Memory>(numRcv);
-	    	for(int i = 0; i<numRcv; i++) recvBufferQ.add(new Memory(this.recvBufferSize));
-    		
-	    	this.sendBufferQ = new ArrayBlockingQueue<Memory>(numSend);
-	    	for(int i = 0; i<numSend; i++) sendBufferQ.add(new Memory(this.sendBufferSize));
-	    	
-	    	//must be set at the end of this if case to avoid nullpointer race condition with pooled queues being accessed.
-	    	this.usePooledBuffers = usePooled;
+    		ensureAllocator(numRcv + numSend, Math.max(this.recvBufferSize, this.sendBufferSize));
     	}
+    	this.usePooledBuffers = usePooled;
     }
     
-    private Memory getSendBuffer(int size) throws InterruptedException {
-    	if(!this.usePooledBuffers || size > this.sendBufferSize) {
-    		return new Memory(size);
-    	}
-    	else {
-    		return this.sendBufferQ.take();
-    	}
+    /**
+     * Makes {@link #recv(int) recv} hand out packets viewing the native receive buffer through a direct
+     * {@link java.nio.ByteBuffer}, instead of copying them into a heap array.
+     * <p>
+     * The receive buffer stays borrowed from the {@link #setUsePooledBuffers(boolean, int, int) pool} or
+     * {@link #setUseArenaBuffers(boolean, int, int) arena} until the packet is {@link Packet#release() released}.
+     * Modified packets can be {@link #send(Packet) sent} straight from that buffer.
+     * </p>
+     *
+     * @param zeroCopy	True if you want received packets to view the native buffer, false to copy them
+     */
+    public void setUseZeroCopyRecv(boolean zeroCopy) {
+    	this.zeroCopyRecv = zeroCopy;
     }
     
-    private Memory getRecvBuffer(int size) throws InterruptedException {
-    	if(!this.usePooledBuffers || size > this.recvBufferSize) {
-    		return new Memory(size);
-    	}
-    	else {
-    		return this.recvBufferQ.take();
-    	}
+    /**
+     * Sets the allocator pooled buffers are taken from, e.g. to share it among several handles.
+     * 
+     * @param allocator	The allocator to use
+     */
+    public void setBufferAllocator(NativeBufferAllocator allocator) {
+    	if(allocator == null) throw new IllegalArgumentException("An allocator is required");
+    	this.allocator = allocator;
+    	this.sharedAllocator = true;
     }
     
-    private void returnSendBuffer(Memory m) {
-    	if(m.size() == this.sendBufferSize) {
-    		this.sendBufferQ.add(m);
-    	}
+    /**
+     * @return The allocator pooled buffers are taken from, {@code null} if pooling has never been enabled
+     */
+    public NativeBufferAllocator getBufferAllocator() {
+    	return allocator;
     }
     
-    private void returnRecvBuffer(Memory m) {
-    	if(m.size() == this.recvBufferSize) {
-    		this.recvBufferQ.add(m);
-    	}
+    private void ensureAllocator(int retained, long largest) {
+    	NativeBufferAllocator current = this.allocator;
+    	if(sharedAllocator || (current != null && current.getMaxClassSize() >= largest)) return;
+    	
+    	int maxClassSize = (int) Math.min(Math.max(largest, NativeBufferAllocator.DEFAULT_MAX_CLASS_SIZE), 1 << 30);
+    	this.allocator = new NativeBufferAllocator(maxClassSize, retained);
     }
     
-    private Memory getBatchSendBuffer(int numMessages) throws InterruptedException {
-    	if(!this.useBatchPooledBuffers || numMessages > this.maxBatchSendMessages) {
-    		return new Memory(numMessages * this.sendBufferSize);
+    /**
+     * Carves every receive, send and batch buffer of this handle out of a single native region, instead of a separate
+     * {@link Memory} per buffer. Once enabled, the arena takes precedence over the
+     * {@link #setUsePooledBuffers(boolean, int, int) pooled} and {@link #setBufferAllocator(NativeBufferAllocator)
+     * allocator} settings.
+     * <p>
+     * Packet slots are sized after the larger of the {@link #setRecvBufferSize(int) receive} and
+     * {@link #setSendBufferSize(int) send} buffer sizes, batch slots after the larger batch of the
+     * {@link #setMaxRecvBatchMessages(int) max batch receive} and {@link #setMaxSendBatchMessages(int) max batch send}
+     * messages, so sizes should be set beforehand. When every suitable slot is borrowed, a standalone buffer is
+     * allocated instead, see {@link NativeArena#getOverflowCount()}. Buffers of {@link #recvAsync(int) asynchronous}
+     * operations are never taken from the arena.
+     * </p>
+     *
+     * @param useArena	True if you want to take buffers from an arena, false otherwise
+     * @param numPacket	Number of slots for single packet receive and send buffers
+     * @param numBatch	Number of slots for batch receive and send buffers
+     */
+    public void setUseArenaBuffers(boolean useArena, int numPacket, int numBatch) {
+    	if(!useArena) {
+    		this.arena = null;
+    		return;
     	}
-    	else {
-    		return this.batchSendBufferQ.take();
+    	if(numPacket < 0 || numBatch < 0 || numPacket + numBatch < 1) throw new IllegalArgumentException("Number of arena slots must be greater than 0");
+    	
+    	long packetSize = Math.max(this.recvBufferSize, this.sendBufferSize);
+    	long batchSize = Math.max((long) this.maxBatchRecvMessages * this.recvBufferSize,
+    			(long) this.maxBatchSendMessages * this.sendBufferSize);
+    	if(batchSize <= packetSize) {
+    		this.arena = new NativeArena(new long[]{packetSize}, new int[]{numPacket + numBatch});
+    	} else {
+    		this.arena = new NativeArena(new long[]{packetSize, batchSize}, new int[]{numPacket, numBatch});
     	}
     }
     
-    private Memory getBatchRecvBuffer(int numMessages) throws InterruptedException {
-    	if(!this.useBatchPooledBuffers || numMessages > this.maxBatchRecvMessages) {
-    		return new Memory(numMessages * this.recvBufferSize);
-    	}
-    	else {
-    		return this.batchRecvBufferQ.take();
-    	}
+    /**
+     * @return The arena buffers are taken from, {@code null} if arena mode is not enabled
+     */
+    public NativeArena getArena() {
+    	return arena;
+    }
+    
+    /**
+     * Reports the native memory currently held on behalf of this handle: the whole arena region plus its overflow
+     * buffers in {@link #setUseArenaBuffers(boolean, int, int) arena mode}, otherwise the
+     * {@link NativeBufferAllocator#getNativeFootprint() allocator footprint}, which is shared by every handle using the
+     * same allocator.
+     *
+     * @return The native footprint in bytes, 0 if buffers are neither pooled nor taken from an arena
+     */
+    public long getNativeFootprint() {
+    	BufferPool pool = arena;
+    	if(pool == null && (usePooledBuffers || useBatchPooledBuffers)) pool = allocator;
+    	return pool != null ? pool.getNativeFootprint() : 0;
+    }
+    
+    private BufferPool packetPool() {
+    	NativeArena current = arena;
+    	if(current != null) return current;
+    	return usePooledBuffers ? allocator : null;
+    }
+    
+    private BufferPool batchPool() {
+    	NativeArena current = arena;
+    	if(current != null) return current;
+    	return useBatchPooledBuffers ? allocator : null;
+    }
+    
+    private static Memory allocate(BufferPool pool, long size) {
+    	return pool != null ? pool.allocate(size) : new Memory(size);
+    }
+    
+    private static void release(BufferPool pool, Memory buffer) {
+    	if(pool != null) pool.release(buffer);
     }
 
     /**
@@ -293,8 +355,7 @@ public class WinDivert {
         if (isOpen()) {
             throw new IllegalStateException("The instance is already in open state");
         }
-        handle = dll.WinDivertOpen(filter, layer.getValue(), (short) priority, flags);
-        throwExceptionOnGetLastError();
+        handle = backend.open(filter, layer, (short) priority, flags);
         //Allow call chaining
         return this;
     }
@@ -324,11 +385,44 @@ public class WinDivert {
      */
     public void close() {
         if (isOpen()) {
-            dll.WinDivertClose(handle);
+            backend.close(handle);
             handle = null;
         }
     }
 
+    /**
+     * Shuts down the handle opened by {@link #open() open} for the given direction.<br>
+     * After a receive shutdown, no new packets are queued and {@link #recv() recv} fails once the queue is drained.
+     * <p>
+     * The remapped function is {@code WinDivertShutdown}:
+     * </p>
+     * <pre>{@code
+     * BOOL WinDivertShutdown(
+     *      __in HANDLE handle,
+     *      __in WINDIVERT_SHUTDOWN how
+     * );
+     * }</pre>
+     * <p>
+     * For more info on the C call visit: <a href="http://reqrypt.org/windivert-doc.html#divert_shutdown">http://reqrypt.org/windivert-doc.html#divert_shutdown</a>
+     *
+     * @param how Which direction to shut down
+     * @throws WinDivertException Whenever the DLL call sets a LastError different by 0 (Success) or 997 (Overlapped I/O
+     *                            is in progress)
+     */
+    public void shutdown(ShutdownType how) throws WinDivertException {
+        if (!isOpen()) {
+            throw new IllegalStateException("WinDivert handle not in OPEN state");
+        }
+        backend.shutdown(handle, how);
+    }
+
+    /**
+     * @return The {@link WinDivertBackend backend} this instance talks to.
+     */
+    public WinDivertBackend getBackend() {
+        return backend;
+    }
+
     /**
      * Receives a diverted packet that matched the filter.<br>
      * The return value is a {@link com.github.ffalcinelli.jdivert.Packet packet}.
@@ -350,7 +444,7 @@ public class WinDivert {
      * @return A {@link com.github.ffalcinelli.jdivert.Packet Packet} instance
      * @throws WinDivertException Whenever the DLL call sets a LastError different by 0 (Success) or 997 (Overlapped I/O
      *                            is in progress)
-     * @throws InterruptedException Only thrown if current thread is interrupted while waiting for a memory buffer from the pooled buffer queue.
+     * @throws InterruptedException Never thrown since pooled buffers are never waited for, kept for compatibility.
      */
     public Packet recv() throws WinDivertException, InterruptedException {
         return recv(recvBufferSize);
@@ -378,50 +472,180 @@ public class WinDivert {
      * @return A {@link com.github.ffalcinelli.jdivert.Packet Packet} instance
      * @throws WinDivertException Whenever the DLL call sets a LastError different by 0 (Success) or 997 (Overlapped I/O
      *                            is in progress)
-     * @throws InterruptedException Only thrown if current thread is interrupted while waiting for a memory buffer from the pooled buffer queue.
+     * @throws InterruptedException Never thrown since pooled buffers are never waited for, kept for compatibility.
      */
     public Packet recv(int bufsize) throws WinDivertException, InterruptedException {
-        WinDivertAddress address = new WinDivertAddress();
-        Memory buffer = this.getRecvBuffer(bufsize);
+        Memory address = IoSlots.get().address;
+        BufferPool pool = packetPool();
+        Memory buffer = allocate(pool, bufsize);
+        boolean viewed = false;
         try {
-	        IntByReference recvLen = new IntByReference();
-	        
-	        dll.WinDivertRecv(handle, buffer, bufsize, recvLen, address.getPointer());
-	        throwExceptionOnGetLastError();
-	        address.read();
+	        int recvLen = backend.recv(handle, buffer, bufsize, address);
 	
-	        return new Packet(buffer.getByteArray(0, recvLen.getValue()), address);
+	        Packet packet;
+	        if (zeroCopyRecv) {
+	        	packet = new Packet(buffer.getByteBuffer(0, recvLen), null, pool != null ? new BufferLease(pool, buffer, 1) : null);
+	        	viewed = true;
+	        } else {
+	        	packet = new Packet(buffer.getByteArray(0, recvLen), null);
+	        }
+	        packet.readAddress(address, 0);
+	        return packet;
         }finally {
-        	if(this.usePooledBuffers) this.returnRecvBuffer(buffer);
+        	if (!viewed) release(pool, buffer);
         }
     }
     
+    /**
+     * Receives a diverted packet, waiting at most the given time.
+     *
+     * @param timeout The maximum time to wait
+     * @param unit    The time unit of the timeout argument
+     * @return The received {@link com.github.ffalcinelli.jdivert.Packet Packet}
+     * @throws WinDivertException Whenever the DLL call sets a LastError different by 0 (Success) or 997 (Overlapped I/O
+     *                            is in progress)
+     * @throws InterruptedException If the current thread is interrupted while waiting, the receive is cancelled.
+     * @throws TimeoutException If no packet arrived in time, the receive is cancelled.
+     */
+    public Packet recv(long timeout, TimeUnit unit) throws WinDivertException, InterruptedException, TimeoutException {
+        CompletableFuture<Packet> future = recvAsync();
+        try {
+            return await(future, timeout, unit);
+        } catch (TimeoutException e) {
+            if (future.cancel(true)) {
+                throw e;
+            }
+        } catch (InterruptedException e) {
+            if (future.cancel(true)) {
+                throw e;
+            }
+            Thread.currentThread().interrupt();
+        }
+        // Completed while being cancelled
+        return await(future, 0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Receives a diverted packet without blocking the calling thread, see {@link #recvAsync(int)}.
+     *
+     * @return The future of the received {@link com.github.ffalcinelli.jdivert.Packet Packet}
+     */
+    public CompletableFuture<Packet> recvAsync() {
+        return recvAsync(recvBufferSize);
+    }
+
+    /**
+     * Receives a diverted packet without blocking the calling thread.<br>
+     * Several receives may be in flight at the same time, each one completes with a different packet.
+     * <p>
+     * The packet views the native buffer it has been received into. Cancelling the returned future cancels the
+     * pending receive, a packet completing in the meanwhile is lost. The future completes exceptionally with a {@link WinDivertException} whenever the driver
+     * signals an error.
+     * </p>
+     *
+     * @param bufsize The size of the receive buffer
+     * @return The future of the received {@link com.github.ffalcinelli.jdivert.Packet Packet}
+     */
+    public CompletableFuture<Packet> recvAsync(int bufsize) {
+        if (!isOpen()) {
+            throw new IllegalStateException("WinDivert handle not in OPEN state");
+        }
+        final Memory buffer = new Memory(bufsize);
+        // Both buffers are owned by the pending operation, per thread slots cannot be used
+        final Memory address = new Memory(WinDivertAddress.SIZE);
+        CompletableFuture<Integer> io = backend.recvExAsync(handle, buffer, bufsize, address,
+                new IntByReference(WinDivertAddress.SIZE));
+        return cancelling(io, io.thenApply(recvLen -> {
+            Packet packet = new Packet(buffer.getByteBuffer(0, recvLen), null);
+            packet.readAddress(address, 0);
+            return packet;
+        }));
+    }
+
+    /**
+     * Receives up to {@link #setMaxRecvBatchMessages(int) max batch receive messages} diverted packets with a single
+     * driver call.
+     *
+     * @return The received packets, see {@link #recvEx(int)}
+     * @throws WinDivertException Whenever the DLL call sets a LastError different by 0 (Success) or 997 (Overlapped I/O
+     *                            is in progress)
+     * @throws InterruptedException Never thrown since pooled buffers are never waited for, kept for compatibility.
+     */
     public Packet[] recvEx() throws InterruptedException, WinDivertException {
     	return recvEx(this.maxBatchRecvMessages);
     }
     
-    public Packet[] recvEx(int batchSize) throws InterruptedException, WinDivertException {    	
-    	/*TODO pool arrays of windivertaddress to be used by batch processing only, then copy correct amount received after receive call*/
-    	Structure[] addrArray = new WinDivertAddress().toArray(batchSize);
-    	
-    	Memory buffer = this.getBatchRecvBuffer(batchSize);
-    	
-    	IntByReference recvLen = new IntByReference();
-    	IntByReference pAddrLen = new IntByReference(addrArray[0].size() * addrArray.length);
-    	
-    	dll.WinDivertRecvEx(handle, buffer, (int)buffer.size(), recvLen, 0L, addrArray[0].getPointer(), pAddrLen, null);
-    	throwExceptionOnGetLastError();
-    	
-    	Packet[] packets = new Packet[pAddrLen.getValue()];
+    /**
+     * Receives up to {@code batchSize} diverted packets with a single driver call.<br>
+     * Blocks until at least one packet is available.
+     * <p>
+     * Packets are not copied: each one views its own slice of a single batch buffer, found by walking the IPv4 total
+     * length and IPv6 payload length fields, and is matched to its own {@link WinDivertAddress}. When batch buffers are
+     * {@link #setUseBatchPooledBuffers(boolean, int, int, int, int) pooled}, the buffer returns to the pool once every
+     * packet of the batch has been {@link Packet#release() released}.
+     * </p><p>
+     * The remapped function is {@code WinDivertRecvEx}:
+     * </p>
+     * <pre>{@code
+     * BOOL WinDivertRecvEx(
+     *      __in HANDLE handle,
+     *      __out PVOID pPacket,
+     *      __in UINT packetLen,
+     *      __out_opt UINT *pRecvLen,
+     *      __in UINT64 flags,
+     *      __out PWINDIVERT_ADDRESS pAddr,
+     *      __inout_opt UINT *pAddrLen,
+     *      __inout_opt LPOVERLAPPED lpOverlapped
+     * );
+     * }</pre>
+     * <p>
+     * For more info on the C call visit: <a href="http://reqrypt.org/windivert-doc.html#divert_recv_ex">http://reqrypt.org/windivert-doc.html#divert_recv_ex</a>
+     *
+     * @param batchSize The max number of packets to receive
+     * @return The received packets
+     * @throws WinDivertException Whenever the DLL call sets a LastError different by 0 (Success) or 997 (Overlapped I/O
+     *                            is in progress)
+     * @throws InterruptedException Never thrown since pooled buffers are never waited for, kept for compatibility.
+     */
+    public Packet[] recvEx(int batchSize) throws InterruptedException, WinDivertException {
+    	if (batchSize < 1) {
+    		throw new IllegalArgumentException("The batch size must be greater than 0");
+    	}
+    	IoSlots slots = IoSlots.get();
+    	Memory addresses = slots.addresses(batchSize);
+    	BufferPool pool = batchPool();
+    	Memory buffer = allocate(pool, (long) batchSize * this.recvBufferSize);
+    	IntByReference pAddrLen = slots.addrLen;
+    	pAddrLen.setValue(WinDivertAddress.SIZE * batchSize);
     	
-    	/*int offset = 0;
-    	for(int i = 0; i<packets.length; i++) {
-    		WinDivertAddress addr = (WinDivertAddress) addrArray[i];
-    		addr.read();
-    		packets[i] = new Packet(buffer.getByteArray(offset, arraySize))
-    	}*/
+    	int recvLen;
+    	try {
+    		recvLen = backend.recvEx(handle, buffer, (int) buffer.size(), 0L, addresses, pAddrLen, null);
+    	} catch (WinDivertException e) {
+    		release(pool, buffer);
+    		throw e;
+    	}
     	
-    	return packets;
+    	int count = Math.min(pAddrLen.getValue() / WinDivertAddress.SIZE, batchSize);
+    	BufferLease lease = new BufferLease(pool, buffer, count);
+    	Packet[] packets = new Packet[count];
+    	int offset = 0;
+    	int received = 0;
+    	while (received < count) {
+    		int length = ipPacketLength(buffer, offset, recvLen - offset);
+    		if (length <= 0) {
+    			break;
+    		}
+    		Packet packet = new Packet(buffer.getByteBuffer(offset, length), null, lease);
+    		packet.readAddress(addresses, (long) received * WinDivertAddress.SIZE);
+    		packets[received++] = packet;
+    		offset += length;
+    	}
+    	// Give back the shares of packets which could not be parsed
+    	for (int i = received; i < count; i++) {
+    		lease.run();
+    	}
+    	return received < count ? Arrays.copyOf(packets, received) : packets;
     }
 
     /**
@@ -450,7 +674,7 @@ public class WinDivert {
      * @return The number of bytes actually sent
      * @throws WinDivertException Whenever the DLL call sets a LastError different by 0 (Success) or 997 (Overlapped I/O
      *                            is in progress)
-     * @throws InterruptedException Only thrown if current thread is interrupted while waiting for a memory buffer from the pooled buffer queue.
+     * @throws InterruptedException Never thrown since pooled buffers are never waited for, kept for compatibility.
      */
     public int send(Packet packet) throws WinDivertException, InterruptedException {
         return send(packet, true);
@@ -466,6 +690,8 @@ public class WinDivert {
      * <p>
      * The injected packet may be one received from {@link com.github.ffalcinelli.jdivert.windivert.WinDivert#recv() recv}, or a modified version, or a completely new packet.
      * Injected packets can be captured and diverted again by other WinDivert handles with lower priorities.
+     * Packets viewing native memory, e.g. received with {@link #setUseZeroCopyRecv(boolean) zero copy}, are sent
+     * straight from it without any copy.
      * </p><p>
      * The remapped function is {@code WinDivertSend}:
      * </p>
@@ -487,29 +713,180 @@ public class WinDivert {
      * @return The number of bytes actually sent
      * @throws WinDivertException Whenever the DLL call sets a LastError different by 0 (Success) or 997 (Overlapped I/O
      *                            is in progress)
-     * @throws InterruptedException Only thrown if current thread is interrupted while waiting for a memory buffer from the pooled buffer queue.
+     * @throws InterruptedException Never thrown since pooled buffers are never waited for, kept for compatibility.
      */
     public int send(Packet packet, boolean recalculateChecksum, CalcChecksumsOption... options) throws WinDivertException, InterruptedException {
-        if (recalculateChecksum) recalculateChecksum(packet, options);
+        if (recalculateChecksum) recalculateChecksum(backend, packet, options);
         
-        WinDivertAddress address = packet.getWinDivertAddress();
-        IntByReference sendLen = new IntByReference();
+        Memory address = IoSlots.get().address;
+        
+        ByteBuffer view = packet.getByteBuffer();
+        if (view.isDirect()) {
+        	// Sent straight from the native buffer the packet views
+        	packet.writeAddress(address, 0);
+        	return backend.send(handle, Native.getDirectBufferPointer(view).share(packet.getOffset()), packet.getLength(), address);
+        }
         
         byte[] raw = packet.getRaw(false);
-        Memory buffer = this.getSendBuffer(raw.length);
+        BufferPool pool = packetPool();
+        Memory buffer = allocate(pool, raw.length);
         try {
 	        buffer.write(0, raw, 0, raw.length);
-	        address.write();
+	        packet.writeAddress(address, 0);
 	        
-	        //System.out.println(address.toString());
-	        
-	        dll.WinDivertSend(handle, buffer, raw.length, sendLen, address.getPointer());
-	        throwExceptionOnGetLastError();
-	        
-	        return sendLen.getValue();
+	        return backend.send(handle, buffer, raw.length, address);
         }finally {
-        	if(this.usePooledBuffers) this.returnSendBuffer(buffer);
+        	release(pool, buffer);
+        }
+    }
+
+    /**
+     * Injects several packets into the headers stack, recalculating their checksums.
+     *
+     * @param packets The {@link com.github.ffalcinelli.jdivert.Packet packets} to send
+     * @return The number of bytes actually sent by each driver call, see {@link #sendEx(Packet[], boolean, CalcChecksumsOption...)}
+     * @throws WinDivertException Whenever the DLL call sets a LastError different by 0 (Success) or 997 (Overlapped I/O
+     *                            is in progress)
+     * @throws InterruptedException Never thrown since pooled buffers are never waited for, kept for compatibility.
+     */
+    public int[] sendEx(Packet... packets) throws WinDivertException, InterruptedException {
+        return sendEx(packets, true);
+    }
+
+    /**
+     * Injects several packets into the headers stack with as few driver calls as possible.
+     * <p>
+     * Packets are packed one after the other into a batch buffer, taken from the batch send pool when
+     * {@link #setUseBatchPooledBuffers(boolean, int, int, int, int) pooled}, and their {@link WinDivertAddress addresses}
+     * into one contiguous array. A new driver call is issued every {@link #setMaxSendBatchMessages(int) max batch send
+     * messages} packets or whenever the next packet does not fit the batch buffer. Checksums are recalculated in Java,
+     * straight into the batch buffer.
+     * </p><p>
+     * The remapped function is {@code WinDivertSendEx}:
+     * </p>
+     * <pre>{@code
+     * BOOL WinDivertSendEx(
+     *      __in HANDLE handle,
+     *      __in const VOID *pPacket,
+     *      __in UINT packetLen,
+     *      __out_opt UINT *pSendLen,
+     *      __in UINT64 flags,
+     *      __in const WINDIVERT_ADDRESS *pAddr,
+     *      __in UINT addrLen,
+     *      __inout_opt LPOVERLAPPED lpOverlapped
+     * );
+     * }</pre>
+     * <p>
+     * For more info on the C call visit: <a href="http://reqrypt.org/windivert-doc.html#divert_send_ex">http://reqrypt.org/windivert-doc.html#divert_send_ex</a>
+     *
+     * @param packets             The {@link com.github.ffalcinelli.jdivert.Packet packets} to send
+     * @param recalculateChecksum Whether to recalculate the checksums or pass the {@link com.github.ffalcinelli.jdivert.Packet packets} as they are.
+     * @param options             A set of {@link Enums.CalcChecksumsOption options} to use when recalculating checksums.
+     * @return The number of bytes actually sent by each driver call, in order
+     * @throws WinDivertException Whenever the DLL call sets a LastError different by 0 (Success) or 997 (Overlapped I/O
+     *                            is in progress)
+     * @throws InterruptedException Never thrown since pooled buffers are never waited for, kept for compatibility.
+     */
+    public int[] sendEx(Packet[] packets, boolean recalculateChecksum, CalcChecksumsOption... options) throws WinDivertException, InterruptedException {
+        long checksumFlags = 0;
+        for (CalcChecksumsOption option : options) {
+            checksumFlags |= option.getValue();
+        }
+        int[] sent = new int[packets.length];
+        int batches = 0;
+        int next = 0;
+        while (next < packets.length) {
+            int count = Math.min(this.maxBatchSendMessages, packets.length - next);
+            long capacity = (long) this.maxBatchSendMessages * this.sendBufferSize;
+            int fitting = 0;
+            long bytes = 0;
+            while (fitting < count && bytes + packets[next + fitting].getLength() <= capacity) {
+                bytes += packets[next + fitting].getLength();
+                fitting++;
+            }
+            if (fitting == 0) {
+                // A packet larger than a whole batch buffer is sent on its own
+                bytes = packets[next].getLength();
+                fitting = 1;
+            }
+            count = fitting;
+            BufferPool pool = batchPool();
+            Memory buffer = allocate(pool, bytes);
+            try {
+                sent[batches++] = sendBatch(buffer, packets, next, count, recalculateChecksum, checksumFlags);
+            } finally {
+                release(pool, buffer);
+            }
+            next += count;
+        }
+        return Arrays.copyOf(sent, batches);
+    }
+
+    private int sendBatch(Memory buffer, Packet[] packets, int from, int count, boolean recalculateChecksum,
+                          long checksumFlags) throws WinDivertException {
+        IoSlots slots = IoSlots.get();
+        Memory addresses = slots.addresses(count);
+        ByteBuffer batch = buffer.getByteBuffer(0, buffer.size());
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            Packet packet = packets[from + i];
+            int length = packet.getLength();
+            ByteBuffer src = packet.getByteBuffer();
+            batch.position(offset);
+            if (src.hasArray()) {
+                batch.put(src.array(), src.arrayOffset() + packet.getOffset(), length);
+            } else {
+                src = src.duplicate();
+                src.limit(packet.getOffset() + length).position(packet.getOffset());
+                batch.put(src);
+            }
+            if (recalculateChecksum) {
+                // Computed in Java straight into the batch, sparing a helper call per packet
+                slots.packet.rebind(batch, offset, length, null).calculateAllCheckSumsLocal(checksumFlags);
+            }
+            packet.writeAddress(addresses, (long) i * WinDivertAddress.SIZE);
+            offset += length;
         }
+        return backend.sendEx(handle, buffer, offset, 0L, addresses, count * WinDivertAddress.SIZE, null);
+    }
+
+    /**
+     * Injects a packet without blocking the calling thread, recalculating its checksums.
+     *
+     * @param packet The {@link com.github.ffalcinelli.jdivert.Packet Packet} to send
+     * @return The future of the number of bytes actually sent
+     * @throws WinDivertException Whenever the checksums cannot be recalculated
+     */
+    public CompletableFuture<Integer> sendAsync(Packet packet) throws WinDivertException {
+        return sendAsync(packet, true);
+    }
+
+    /**
+     * Injects a packet without blocking the calling thread.
+     * <p>
+     * The packet is copied before this method returns and may be reused right away. Cancelling the returned future
+     * cancels the pending send. The future completes exceptionally with a {@link WinDivertException} whenever the
+     * driver signals an error.
+     * </p>
+     *
+     * @param packet              The {@link com.github.ffalcinelli.jdivert.Packet Packet} to send
+     * @param recalculateChecksum Whether to recalculate the checksums or pass the {@link com.github.ffalcinelli.jdivert.Packet packet} as is.
+     * @param options             A set of {@link Enums.CalcChecksumsOption options} to use when recalculating checksums.
+     * @return The future of the number of bytes actually sent
+     * @throws WinDivertException Whenever the checksums cannot be recalculated
+     */
+    public CompletableFuture<Integer> sendAsync(Packet packet, boolean recalculateChecksum, CalcChecksumsOption... options) throws WinDivertException {
+        if (!isOpen()) {
+            throw new IllegalStateException("WinDivert handle not in OPEN state");
+        }
+        if (recalculateChecksum) recalculateChecksum(backend, packet, options);
+
+        byte[] raw = packet.getRaw(false);
+        Memory buffer = new Memory(raw.length);
+        buffer.write(0, raw, 0, raw.length);
+        Memory addr = new Memory(WinDivertAddress.SIZE);
+        packet.writeAddress(addr, 0);
+        return backend.sendExAsync(handle, buffer, raw.length, addr, WinDivertAddress.SIZE);
     }
 
     /**
@@ -534,9 +911,7 @@ public class WinDivert {
         if (!isOpen()) {
             throw new IllegalStateException("WinDivert handle not in OPEN state");
         }
-        LongByReference value = new LongByReference();
-        dll.WinDivertGetParam(handle, param.getValue(), value);
-        return value.getValue();
+        return backend.getParam(handle, param);
     }
 
     /**
@@ -564,7 +939,7 @@ public class WinDivert {
         if (param.getMin() > value || param.getMax() < value) {
             throw new IllegalArgumentException(String.format("%s must be in range %d, %d", param, param.getMin(), param.getMax()));
         }
-        dll.WinDivertSetParam(handle, param.getValue(), value);
+        backend.setParam(handle, param, value);
     }
     
     /**
@@ -576,17 +951,34 @@ public class WinDivert {
      *                            is in progress).
      */
     public static void recalculateChecksum(Packet p, Enums.CalcChecksumsOption... options) throws WinDivertException {
+        recalculateChecksum(JnaWinDivertBackend.getInstance(), p, options);
+    }
+
+    /**
+     * Recalculates the checksum fields matching the given {@link Enums.CalcChecksumsOption options} using the helper
+     * of the given {@link WinDivertBackend backend}.
+     *
+     * @param backend The backend providing the checksum helper
+     * @param p Packet to calculate checksums for
+     * @param options Drive the recalculateChecksum function.
+     * @throws WinDivertException Whenever the helper call fails.
+     */
+    public static void recalculateChecksum(WinDivertBackend backend, Packet p, Enums.CalcChecksumsOption... options) throws WinDivertException {
         long flags = 0;
         for (Enums.CalcChecksumsOption option : options) {
             flags |= option.getValue();
         }
+        ByteBuffer view = p.getByteBuffer();
+        if (view.isDirect()) {
+            backend.calcChecksums(Native.getDirectBufferPointer(view).share(p.getOffset()), p.getLength(), null, flags);
+            return;
+        }
         byte[] rawBytes = p.getRaw(false);
         Memory memory = new Memory(rawBytes.length);
         memory.write(0, rawBytes, 0, rawBytes.length);
-        WinDivertDLL.INSTANCE.WinDivertHelperCalcChecksums(memory, rawBytes.length, null, flags);
-        throwExceptionOnGetLastError();
+        backend.calcChecksums(memory, rawBytes.length, null, flags);
         
-        Util.setBytesAtOffset(ByteBuffer.wrap(rawBytes), 0, rawBytes.length,
+        Util.setBytesAtOffset(p.getByteBuffer(), p.getOffset(), rawBytes.length,
                 memory.getByteArray(0, rawBytes.length));
     }
     
@@ -620,9 +1012,9 @@ public class WinDivert {
     @Override
     public String toString() {
 
-        return String.format("WinDivert{handle=%s, dll=%s, filter=%s, layer=%s, priority=%d, mode=%s, state=%s}"
+        return String.format("WinDivert{handle=%s, backend=%s, filter=%s, layer=%s, priority=%d, mode=%s, state=%s}"
                 , handle
-                , dll
+                , backend
                 , filter
                 , layer
                 , priority
@@ -630,4 +1022,105 @@ public class WinDivert {
                 , isOpen() ? "OPEN" : "CLOSED"
         );
     }
+
+    /**
+     * Makes cancelling {@code derived} cancel the {@code source} operation too.
+     */
+    private static <T> CompletableFuture<T> cancelling(final CompletableFuture<?> source, CompletableFuture<T> derived) {
+        derived.whenComplete((result, t) -> {
+            if (t instanceof CancellationException)
+                source.cancel(true);
+        });
+        return derived;
+    }
+
+    private static <T> T await(CompletableFuture<T> future, long timeout, TimeUnit unit) throws WinDivertException, InterruptedException, TimeoutException {
+        try {
+            return future.get(timeout, unit);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof WinDivertException)
+                throw (WinDivertException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Reads the length of the IP packet starting at the given offset from its IPv4 total length or IPv6 payload
+     * length field.
+     *
+     * @return The packet length, or -1 if it does not look like an IP packet fitting into {@code remaining} bytes.
+     */
+    static int ipPacketLength(Pointer buffer, long offset, int remaining) {
+        if (remaining < 20) {
+            return -1;
+        }
+        int version = (buffer.getByte(offset) & 0xF0) >> 4;
+        int length;
+        if (version == 4) {
+            length = ((buffer.getByte(offset + 2) & 0xFF) << 8) | (buffer.getByte(offset + 3) & 0xFF);
+            if (length < 20)
+                return -1;
+        } else if (version == 6 && remaining >= 40) {
+            length = 40 + (((buffer.getByte(offset + 4) & 0xFF) << 8) | (buffer.getByte(offset + 5) & 0xFF));
+        } else {
+            return -1;
+        }
+        return length <= remaining ? length : -1;
+    }
+
+    /**
+     * Native address buffers reused by the blocking calls of a thread, so that receiving or sending allocates no
+     * {@link WinDivertAddress} structure.
+     */
+    private static final class IoSlots {
+        private static final ThreadLocal<IoSlots> SLOTS = ThreadLocal.withInitial(IoSlots::new);
+
+        final Memory address = new Memory(WinDivertAddress.SIZE);
+        final IntByReference addrLen = new IntByReference();
+        // Views the packets of a send batch while their checksums are computed
+        final Packet packet = new Packet();
+        private Memory addresses = address;
+
+        static IoSlots get() {
+            return SLOTS.get();
+        }
+
+        /**
+         * @return A buffer large enough for {@code count} addresses.
+         */
+        Memory addresses(int count) {
+            long size = (long) count * WinDivertAddress.SIZE;
+            if (addresses.size() < size) {
+                addresses = new Memory(size);
+            }
+            return addresses;
+        }
+    }
+
+    /**
+     * Hands a receive or batch buffer back to the pool once each packet sliced from it has been released.
+     */
+    private static final class BufferLease implements Runnable {
+        private final BufferPool pool;
+        private final Memory buffer;
+        private final AtomicInteger shares;
+
+        BufferLease(BufferPool pool, Memory buffer, int shares) {
+            this.pool = pool;
+            this.buffer = buffer;
+            this.shares = new AtomicInteger(shares);
+            if (shares == 0) {
+                release(pool, buffer);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (shares.decrementAndGet() == 0) {
+                release(pool, buffer);
+            }
+        }
+    }
 }
@@ -45,7 +45,16 @@ public class WinDivertAddress extends Structure {
 	private static final int UDPCHECKSUM_OFFSET = 23;
 	
 	
-	public WinDef.LONGLONG timestamp;
+	/**
+	 * Size in bytes of the native {@code WINDIVERT_ADDRESS} structure.
+	 */
+	public static final int SIZE = 80;
+	
+	/*
+	 * 64 bit fields use fixed width types: WinDef.LONGLONG/ULONGLONG are sized after the platform LONG and
+	 * cannot be mapped on non Windows hosts.
+	 */
+	public long timestamp;
 	public WinDef.UINT data1;
 	public WinDef.UINT reserved2;
 	
@@ -289,7 +298,7 @@ public class WinDivertAddress extends Structure {
 
         WinDivertAddress that = (WinDivertAddress) o;
 
-        return timestamp.longValue() == that.timestamp.longValue() &&
+        return timestamp == that.timestamp &&
         		data1.intValue() == that.data1.intValue() &&
         		LayerUnion == null ? (that.LayerUnion == null) : LayerUnion.equals(that.LayerUnion);
     }
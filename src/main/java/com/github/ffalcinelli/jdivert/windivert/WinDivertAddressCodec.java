@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.windivert;
+
+import com.github.ffalcinelli.jdivert.Enums.Layer;
+import com.sun.jna.Pointer;
+
+/**
+ * Reads and writes the native {@code WINDIVERT_ADDRESS} layout with plain {@link Pointer} accessors at fixed offsets,
+ * bypassing the reflective {@link com.sun.jna.Structure} marshalling of {@link WinDivertAddress}.
+ * <p>
+ * Only the {@link Layer#NETWORK NETWORK} and {@link Layer#NETWORK_FORWARD NETWORK_FORWARD} layers carry packets, so
+ * an address is fully described by its timestamp, its flags bitfield and the interface indexes of the network union:
+ * </p>
+ * <pre>{@code
+ *  0  INT64  Timestamp
+ *  8  UINT32 Layer:8, Event:8, Sniffed:1, Outbound:1, Loopback:1, Impostor:1,
+ *            IPv6:1, IPChecksum:1, TCPChecksum:1, UDPChecksum:1, Reserved1:8
+ * 12  UINT32 Reserved2
+ * 16  UINT32 Network.IfIdx
+ * 20  UINT32 Network.SubIfIdx
+ * 24  ...    rest of the 64 bytes union
+ * }</pre>
+ */
+public final class WinDivertAddressCodec {
+
+    public static final int TIMESTAMP_OFFSET = 0;
+    public static final int FLAGS_OFFSET = 8;
+    public static final int RESERVED_OFFSET = 12;
+    public static final int IF_IDX_OFFSET = 16;
+    public static final int SUB_IF_IDX_OFFSET = 20;
+
+    private static final int LAYER_SHIFT = 0;
+    private static final int EVENT_SHIFT = 8;
+    private static final int SNIFFED_BIT = 1 << 16;
+    private static final int OUTBOUND_BIT = 1 << 17;
+    private static final int LOOPBACK_BIT = 1 << 18;
+    private static final int IMPOSTER_BIT = 1 << 19;
+    private static final int IPV6_BIT = 1 << 20;
+    private static final int IPCHECKSUM_BIT = 1 << 21;
+    private static final int TCPCHECKSUM_BIT = 1 << 22;
+    private static final int UDPCHECKSUM_BIT = 1 << 23;
+
+    private WinDivertAddressCodec() {
+    }
+
+    public static long getTimestamp(Pointer pAddr, long offset) {
+        return pAddr.getLong(offset + TIMESTAMP_OFFSET);
+    }
+
+    public static int getFlags(Pointer pAddr, long offset) {
+        return pAddr.getInt(offset + FLAGS_OFFSET);
+    }
+
+    public static int getIfIdx(Pointer pAddr, long offset) {
+        return pAddr.getInt(offset + IF_IDX_OFFSET);
+    }
+
+    public static int getSubIfIdx(Pointer pAddr, long offset) {
+        return pAddr.getInt(offset + SUB_IF_IDX_OFFSET);
+    }
+
+    /**
+     * Writes a whole network layer address, clearing the reserved fields and the unused part of the union.
+     *
+     * @param pAddr     The native buffer.
+     * @param offset    The offset of the address in the buffer.
+     * @param timestamp The timestamp.
+     * @param flags     The flags bitfield.
+     * @param ifIdx     The interface index.
+     * @param subIfIdx  The sub-interface index.
+     */
+    public static void write(Pointer pAddr, long offset, long timestamp, int flags, int ifIdx, int subIfIdx) {
+        pAddr.setLong(offset + TIMESTAMP_OFFSET, timestamp);
+        pAddr.setInt(offset + FLAGS_OFFSET, flags);
+        pAddr.setInt(offset + RESERVED_OFFSET, 0);
+        pAddr.setInt(offset + IF_IDX_OFFSET, ifIdx);
+        pAddr.setInt(offset + SUB_IF_IDX_OFFSET, subIfIdx);
+        pAddr.setMemory(offset + SUB_IF_IDX_OFFSET + 4, WinDivertAddress.SIZE - SUB_IF_IDX_OFFSET - 4, (byte) 0);
+    }
+
+    /**
+     * Writes the given address from its Java fields. Addresses of layers not carrying packets fall back to the
+     * reflective {@link WinDivertAddress#write()}.
+     *
+     * @param pAddr   The native buffer.
+     * @param offset  The offset of the address in the buffer.
+     * @param address The address to write.
+     */
+    public static void write(Pointer pAddr, long offset, WinDivertAddress address) {
+        int flags = getFlags(address);
+        if (!isNetworkLayer(flags)) {
+            address.write();
+            pAddr.write(offset, address.getPointer().getByteArray(0, WinDivertAddress.SIZE), 0, WinDivertAddress.SIZE);
+            return;
+        }
+        WinDivertDataNetwork network = address.LayerUnion != null ? address.LayerUnion.Network : null;
+        write(pAddr, offset, address.timestamp, flags,
+                network != null && network.IfIdx != null ? network.IfIdx.intValue() : 0,
+                network != null && network.SubIfIdx != null ? network.SubIfIdx.intValue() : 0);
+    }
+
+    /**
+     * Builds a {@link WinDivertAddress} structure out of the given fields.
+     *
+     * @param timestamp The timestamp.
+     * @param flags     The flags bitfield.
+     * @param ifIdx     The interface index.
+     * @param subIfIdx  The sub-interface index.
+     * @return A new structure, already read from its own native memory.
+     */
+    public static WinDivertAddress toStructure(long timestamp, int flags, int ifIdx, int subIfIdx) {
+        WinDivertAddress address = new WinDivertAddress();
+        write(address.getPointer(), 0, timestamp, flags, ifIdx, subIfIdx);
+        address.read();
+        return address;
+    }
+
+    /**
+     * @param address The address.
+     * @return The flags bitfield of the given address.
+     */
+    public static int getFlags(WinDivertAddress address) {
+        return address.data1 != null ? address.data1.intValue() : 0;
+    }
+
+    public static Layer getLayer(int flags) {
+        return Layer.getInstance((flags >>> LAYER_SHIFT) & 0xFF);
+    }
+
+    public static int getEvent(int flags) {
+        return (flags >>> EVENT_SHIFT) & 0xFF;
+    }
+
+    public static boolean isNetworkLayer(int flags) {
+        int layer = (flags >>> LAYER_SHIFT) & 0xFF;
+        return layer == Layer.NETWORK.getValue() || layer == Layer.NETWORK_FORWARD.getValue();
+    }
+
+    public static boolean isSniffed(int flags) {
+        return (flags & SNIFFED_BIT) != 0;
+    }
+
+    public static boolean isOutbound(int flags) {
+        return (flags & OUTBOUND_BIT) != 0;
+    }
+
+    public static int setOutbound(int flags, boolean outbound) {
+        return outbound ? flags | OUTBOUND_BIT : flags & ~OUTBOUND_BIT;
+    }
+
+    public static boolean isLoopback(int flags) {
+        return (flags & LOOPBACK_BIT) != 0;
+    }
+
+    public static boolean isImposter(int flags) {
+        return (flags & IMPOSTER_BIT) != 0;
+    }
+
+    public static boolean isIPv6(int flags) {
+        return (flags & IPV6_BIT) != 0;
+    }
+
+    public static boolean isIPChecksum(int flags) {
+        return (flags & IPCHECKSUM_BIT) != 0;
+    }
+
+    public static boolean isTCPChecksum(int flags) {
+        return (flags & TCPCHECKSUM_BIT) != 0;
+    }
+
+    public static boolean isUDPChecksum(int flags) {
+        return (flags & UDPCHECKSUM_BIT) != 0;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.windivert;
+
+import com.github.ffalcinelli.jdivert.Enums.Layer;
+import com.github.ffalcinelli.jdivert.Enums.Param;
+import com.github.ffalcinelli.jdivert.Enums.ShutdownType;
+import com.github.ffalcinelli.jdivert.exceptions.WinDivertException;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.IntByReference;
+
+import java.util.concurrent.CompletableFuture;
+
+import static com.sun.jna.platform.win32.WinNT.HANDLE;
+
+/**
+ * The driver a {@link WinDivert} handle talks to.
+ * <p>
+ * Methods mirror the WinDivert C API, but errors are reported by throwing a {@link WinDivertException} instead of
+ * through {@code GetLastError}, and output lengths are returned instead of being written to a reference.
+ * </p>
+ * Two implementations are shipped:
+ * <ul>
+ * <li>{@link JnaWinDivertBackend} - the real driver, loaded through {@link WinDivertDLL}</li>
+ * <li>{@link InMemoryWinDivertBackend} - a pure Java driver, useful to run and measure packet pipelines anywhere</li>
+ * </ul>
+ */
+public interface WinDivertBackend {
+
+    /**
+     * See {@code WinDivertOpen}.
+     *
+     * @param filter   The filter string.
+     * @param layer    The {@link Layer layer}.
+     * @param priority The handle priority.
+     * @param flags    The bitmask of {@link com.github.ffalcinelli.jdivert.Enums.Flag flags}.
+     * @return The opened handle.
+     * @throws WinDivertException Whenever the driver refuses to open the handle.
+     */
+    HANDLE open(String filter, Layer layer, short priority, long flags) throws WinDivertException;
+
+    /**
+     * See {@code WinDivertRecv}.
+     *
+     * @param handle    The handle to read from.
+     * @param pPacket   The buffer receiving the packet.
+     * @param packetLen The size of {@code pPacket}.
+     * @param pAddr     The buffer receiving the {@link WinDivertAddress}, may be {@code null}.
+     * @return The number of bytes written into {@code pPacket}.
+     * @throws WinDivertException Whenever the driver signals an error.
+     */
+    int recv(HANDLE handle, Pointer pPacket, int packetLen, Pointer pAddr) throws WinDivertException;
+
+    /**
+     * See {@code WinDivertRecvEx}.
+     *
+     * @param handle     The handle to read from.
+     * @param pPacket    The buffer receiving the packets, one after the other.
+     * @param packetLen  The size of {@code pPacket}.
+     * @param flags      Reserved, must be 0.
+     * @param pAddr      The buffer receiving an array of {@link WinDivertAddress}.
+     * @param pAddrLen   In: the size of {@code pAddr}, out: the number of address bytes written.
+     * @param overlapped An optional {@code OVERLAPPED} structure.
+     * @return The number of bytes written into {@code pPacket}.
+     * @throws WinDivertException Whenever the driver signals an error.
+     */
+    int recvEx(HANDLE handle, Pointer pPacket, int packetLen, long flags, Pointer pAddr, IntByReference pAddrLen,
+               Pointer overlapped) throws WinDivertException;
+
+    /**
+     * See {@code WinDivertSend}.
+     *
+     * @param handle    The handle to inject from.
+     * @param pPacket   The packet to inject.
+     * @param packetLen The length of the packet.
+     * @param pAddr     The {@link WinDivertAddress} of the packet.
+     * @return The number of bytes injected.
+     * @throws WinDivertException Whenever the driver signals an error.
+     */
+    int send(HANDLE handle, Pointer pPacket, int packetLen, Pointer pAddr) throws WinDivertException;
+
+    /**
+     * See {@code WinDivertSendEx}.
+     *
+     * @param handle     The handle to inject from.
+     * @param pPacket    The packets to inject, one after the other.
+     * @param packetLen  The overall length of the packets.
+     * @param flags      Reserved, must be 0.
+     * @param pAddr      The array of {@link WinDivertAddress}, one per packet.
+     * @param addrLen    The size of {@code pAddr}.
+     * @param overlapped An optional {@code OVERLAPPED} structure.
+     * @return The number of bytes injected.
+     * @throws WinDivertException Whenever the driver signals an error.
+     */
+    int sendEx(HANDLE handle, Pointer pPacket, int packetLen, long flags, Pointer pAddr, int addrLen,
+               Pointer overlapped) throws WinDivertException;
+
+    /**
+     * Starts an overlapped {@code WinDivertRecvEx} receiving a single packet.
+     * <p>
+     * The buffers must not be touched until the returned future completes. Cancelling the future cancels the pending
+     * operation.
+     * </p>
+     *
+     * @param handle    The handle to read from.
+     * @param pPacket   The buffer receiving the packet.
+     * @param packetLen The size of {@code pPacket}.
+     * @param pAddr     The buffer receiving the {@link WinDivertAddress}.
+     * @param pAddrLen  In: the size of {@code pAddr}, out: the number of address bytes written.
+     * @return A future completed with the number of bytes written into {@code pPacket}, or exceptionally with a
+     * {@link WinDivertException}.
+     */
+    CompletableFuture<Integer> recvExAsync(HANDLE handle, Pointer pPacket, int packetLen, Pointer pAddr,
+                                           IntByReference pAddrLen);
+
+    /**
+     * Starts an overlapped {@code WinDivertSendEx}.
+     * <p>
+     * The buffers must not be touched until the returned future completes. Cancelling the future cancels the pending
+     * operation.
+     * </p>
+     *
+     * @param handle    The handle to inject from.
+     * @param pPacket   The packets to inject, one after the other.
+     * @param packetLen The overall length of the packets.
+     * @param pAddr     The array of {@link WinDivertAddress}, one per packet.
+     * @param addrLen   The size of {@code pAddr}.
+     * @return A future completed with the number of bytes injected, or exceptionally with a {@link WinDivertException}.
+     */
+    CompletableFuture<Integer> sendExAsync(HANDLE handle, Pointer pPacket, int packetLen, Pointer pAddr, int addrLen);
+
+    /**
+     * See {@code WinDivertShutdown}.
+     *
+     * @param handle The handle to shut down.
+     * @param how    Which direction to shut down.
+     * @throws WinDivertException Whenever the driver signals an error.
+     */
+    void shutdown(HANDLE handle, ShutdownType how) throws WinDivertException;
+
+    /**
+     * See {@code WinDivertClose}.
+     *
+     * @param handle The handle to close.
+     */
+    void close(HANDLE handle);
+
+    /**
+     * See {@code WinDivertSetParam}.
+     *
+     * @param handle The handle.
+     * @param param  The {@link Param param} to set.
+     * @param value  The value for the parameter.
+     */
+    void setParam(HANDLE handle, Param param, long value);
+
+    /**
+     * See {@code WinDivertGetParam}.
+     *
+     * @param handle The handle.
+     * @param param  The {@link Param param} to get.
+     * @return The value for the parameter.
+     */
+    long getParam(HANDLE handle, Param param);
+
+    /**
+     * See {@code WinDivertHelperCalcChecksums}.
+     *
+     * @param pPacket   The packet whose checksums are recalculated in place.
+     * @param packetLen The length of the packet.
+     * @param pAddr     The {@link WinDivertAddress} of the packet, may be {@code null}.
+     * @param flags     The bitmask of {@link com.github.ffalcinelli.jdivert.Enums.CalcChecksumsOption options}.
+     * @throws WinDivertException Whenever the checksums cannot be calculated.
+     */
+    void calcChecksums(Pointer pPacket, int packetLen, Pointer pAddr, long flags) throws WinDivertException;
+}
@@ -8,10 +8,10 @@ import com.sun.jna.platform.win32.WinDef;
 
 public class WinDivertDataReflect extends Structure {
 
-	public WinDef.LONGLONG Timestamp;
+	public long Timestamp;
 	public WinDef.UINT ProcessId;
 	public WinDef.UINT Layer;
-	public WinDef.ULONGLONG Flags;
+	public WinDef.DWORDLONG Flags;
 	public WinDef.SHORT Priority;
 	
 	@Override
@@ -8,8 +8,8 @@ import com.sun.jna.platform.win32.WinDef;
 
 public class WinDivertDataSocket extends Structure {
 
-	public WinDef.ULONGLONG Endpoint;
-	public WinDef.ULONGLONG ParentEndpoint;
+	public WinDef.DWORDLONG Endpoint;
+	public WinDef.DWORDLONG ParentEndpoint;
 	public WinDef.UINT ProcessId;
 	public WinDef.UINT[] LocalAddr = new WinDef.UINT[4];
 	public WinDef.UINT[] RemoteAddr = new WinDef.UINT[4];
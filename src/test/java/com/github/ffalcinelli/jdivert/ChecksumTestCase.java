@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert;
+
+import com.sun.jna.Memory;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static com.github.ffalcinelli.jdivert.Util.parseHexBinary;
+import static org.junit.Assert.assertEquals;
+
+public class ChecksumTestCase {
+
+    @Test
+    public void ipv4Header() {
+        byte[] raw = parseHexBinary("45000051476040008006f005c0a856a936f274fd");
+        assertEquals(0xf005, Checksum.compute(ByteBuffer.wrap(raw), 0, raw.length, 10, 0));
+        // Summing the whole header, checksum included, yields all ones
+        assertEquals(0xFFFF, Checksum.fold(Checksum.sum(raw, 0, raw.length)));
+    }
+
+    @Test
+    public void matchesLocalChecksum() {
+        Random random = new Random(42);
+        for (int length = 4; length < 300; length++) {
+            byte[] data = new byte[length + 3];
+            random.nextBytes(data);
+            int from = length % 3;
+            int expected = Util.computeChecksumLocal(data.clone(), from, from + 2, from + length, 0x1234);
+
+            ByteBuffer heap = ByteBuffer.wrap(data.clone());
+            assertEquals(expected, Checksum.compute(heap, from, from + length, from + 2, 0x1234));
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length).order(ByteOrder.LITTLE_ENDIAN);
+            direct.put(data);
+            assertEquals(expected, Checksum.compute(direct, from, from + length, from + 2, 0x1234));
+        }
+    }
+
+    @Test
+    public void memory() {
+        byte[] data = new byte[1501];
+        new Random(7).nextBytes(data);
+        Memory memory = new Memory(data.length + 1);
+        memory.write(1, data, 0, data.length);
+        assertEquals(Checksum.fold(Checksum.sum(data, 0, data.length)), Checksum.fold(Checksum.sum(memory, 1, data.length)));
+    }
+
+    @Test
+    public void fold() {
+        assertEquals(0x0001, Checksum.fold(0x10000L));
+        assertEquals(0xFFFF, Checksum.fold(0xFFFFL));
+        assertEquals(0x0002, Checksum.fold(0xFFFF0000FFFFL + 2));
+    }
+}
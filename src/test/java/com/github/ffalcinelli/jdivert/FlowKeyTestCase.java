@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+import static com.github.ffalcinelli.jdivert.Util.parseHexBinary;
+import static org.junit.Assert.*;
+
+public class FlowKeyTestCase {
+
+    private static final String TCP4 = "45000051476040008006f005c0a856a936f274fdd84201bb0876cfd0c19f9320501800ff8dba0000170303" +
+            "00240000000000000c2f53831a37ed3c3a632f47440594cab95283b558bf82cb7784344c3314";
+    private static final String FIXED6 = "fe800000000000000000000000000001fe800000000000000000000000000002";
+    private static final String UDP = "04d20035000c0000deadbeef";
+
+    @Test
+    public void ipv4() {
+        Packet packet = new Packet(parseHexBinary(TCP4), null);
+        FlowKey key = packet.extractFlowKey(null);
+        assertEquals(4, key.getVersion());
+        assertEquals(6, key.getProtocol());
+        assertEquals(0, key.getSrcAddrHigh());
+        assertEquals(0xc0a856a9L, key.getSrcAddrLow());
+        assertEquals(0x36f274fdL, key.getDstAddrLow());
+        assertEquals(55362, key.getSrcPort());
+        assertEquals(443, key.getDstPort());
+        assertEquals("FlowKey {version=4, protocol=6, src=192.168.86.169:55362, dst=54.242.116.253:443}", key.toString());
+    }
+
+    @Test
+    public void reuse() {
+        FlowKey key = new FlowKey();
+        Packet packet = new Packet(parseHexBinary(TCP4), null);
+        assertSame(key, packet.extractFlowKey(key));
+        FlowKey stored = key.copy();
+        packet.rebind(ByteBuffer.wrap(parseHexBinary("60000000000c1140" + FIXED6 + UDP)), 0, 52, null);
+        packet.extractFlowKey(key);
+        assertNotEquals(stored, key);
+        assertEquals(6, key.getVersion());
+        assertEquals(17, key.getProtocol());
+        assertEquals(0xfe80000000000000L, key.getSrcAddrHigh());
+        assertEquals(2, key.getDstAddrLow());
+        assertEquals(1234, key.getSrcPort());
+        assertEquals(53, key.getDstPort());
+    }
+
+    @Test
+    public void canonical() {
+        FlowKey forward = new FlowKey().set(6, 17, 0, 1, 1234, 0, 2, 53);
+        FlowKey backward = new FlowKey().set(6, 17, 0, 2, 53, 0, 1, 1234);
+        assertNotEquals(forward, backward);
+
+        assertTrue(forward.isCanonical());
+        assertFalse(forward.canonicalize().isReversed());
+        assertTrue(backward.canonicalize().isReversed());
+        assertEquals(forward, backward);
+        assertEquals(forward.hashCode(), backward.hashCode());
+
+        // Unsigned ordering of addresses, ports breaking ties
+        assertTrue(new FlowKey().set(4, 6, 0, 0x7fffffffL, 80, 0, 0xc0000001L, 80).isCanonical());
+        assertFalse(new FlowKey().set(6, 6, -1, 0, 80, 1, 0, 80).isCanonical());
+        assertFalse(new FlowKey().set(4, 6, 0, 1, 8080, 0, 1, 80).isCanonical());
+    }
+
+    @Test
+    public void hashSpread() {
+        Set<Integer> buckets = new HashSet<Integer>();
+        FlowKey key = new FlowKey();
+        for (int port = 0; port < 1024; port++)
+            buckets.add(key.set(4, 6, 0, 0x0a000001L, 40000 + port, 0, 0x0a000002L, 80).hashCode() & 1023);
+        // Sequential ports must not collapse into a few buckets
+        assertTrue(buckets.size() > 600);
+    }
+
+    @Test
+    public void noPorts() {
+        // ICMP echo request
+        Packet icmp = new Packet(parseHexBinary("4500003C5C8800007F011181C0A801010A00020F00005552000100096162636465666768696A6B6C6D6E6F7071727374757677616263646566676869"), null);
+        FlowKey key = icmp.extractFlowKey(null);
+        assertEquals(1, key.getProtocol());
+        assertEquals(0, key.getSrcPort());
+        assertEquals(0, key.getDstPort());
+
+        // Non-first IPv6 fragment of a UDP datagram
+        Packet fragment = new Packet(parseHexBinary("6000000000102c40" + FIXED6 + "1100000812345678" + "0102030405060708"), null);
+        key = fragment.extractFlowKey(key);
+        assertEquals(17, key.getProtocol());
+        assertEquals(0, key.getSrcPort());
+    }
+
+    @Test
+    public void ipv6Extensions() {
+        Packet packet = new Packet(parseHexBinary("60000000001c0040" + FIXED6 + "3c00010400000000" + "1100010400000000" + UDP), null);
+        FlowKey key = packet.extractFlowKey(null);
+        assertEquals(17, key.getProtocol());
+        assertEquals(1234, key.getSrcPort());
+        assertEquals(53, key.getDstPort());
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class IpLiteralsTestCase {
+
+    @Test
+    public void ipv4() {
+        assertEquals(0xC0A80101, IpLiterals.parseIpv4("192.168.1.1"));
+        assertEquals(0, IpLiterals.parseIpv4("0.0.0.0"));
+        assertEquals(-1, IpLiterals.parseIpv4("255.255.255.255"));
+        assertEquals("192.168.1.1", IpLiterals.appendIpv4(new StringBuilder(), 0xC0A80101).toString());
+        assertEquals("255.255.255.255", IpLiterals.appendIpv4(new StringBuilder(), -1).toString());
+    }
+
+    @Test
+    public void invalidIpv4() {
+        for (String literal : new String[]{"", "1.2.3", "1.2.3.4.5", "256.1.1.1", "1..2.3", "1.2.3.4.", "a.b.c.d", "1.2.3.0004"}) {
+            try {
+                IpLiterals.parseIpv4(literal);
+                fail(literal);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void ipv6() throws UnknownHostException {
+        String[] literals = {"::", "::1", "1::", "fe80::1:2", "2001:db8:0:0:1:0:0:1", "2001:DB8::8:800:200C:417A",
+                "::ffff:10.0.0.1", "1:2:3:4:5:6:7:8", "1:2:3:4:5:6:1.2.3.4", "ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff"};
+        long[] address = new long[2];
+        for (String literal : literals) {
+            IpLiterals.parseIpv6(literal, address);
+            byte[] expected = InetAddress.getByName(literal).getAddress();
+            if (expected.length == 4) {
+                // Mapped addresses are returned as IPv4 ones
+                expected = new byte[]{0, 0, 0, 0, 0, 0, 0, 0, 0, 0, -1, -1, expected[0], expected[1], expected[2], expected[3]};
+            }
+            assertArrayEquals(literal, expected, toBytes(address));
+        }
+    }
+
+    @Test
+    public void invalidIpv6() {
+        long[] address = new long[2];
+        for (String literal : new String[]{"", ":", ":1", "1:", "1:::2", "1::2::3", "1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8:9",
+                "12345::", "1:2:3:4:5:6:7::8", "::1.2.3", "1.2.3.4", "fe80::1%eth0", "g::"}) {
+            try {
+                IpLiterals.parseIpv6(literal, address);
+                fail(literal);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void formatIpv6() throws UnknownHostException {
+        long[] address = new long[2];
+        IpLiterals.parseIpv6("2001:db8::ff00:42:8329", address);
+        String expected = InetAddress.getByName("2001:db8::ff00:42:8329").getHostAddress();
+        assertEquals(expected, IpLiterals.appendIpv6(new StringBuilder(), address[0], address[1]).toString());
+    }
+
+    private static byte[] toBytes(long[] address) {
+        byte[] bytes = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (address[0] >>> (56 - 8 * i));
+            bytes[i + 8] = (byte) (address[1] >>> (56 - 8 * i));
+        }
+        return bytes;
+    }
+}
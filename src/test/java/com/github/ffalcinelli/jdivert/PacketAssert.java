@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Assertions on {@link Packet packets} shared among test cases.
+ */
+public final class PacketAssert {
+
+    private PacketAssert() {
+    }
+
+    /**
+     * Asserts the checksums of the packet are the ones computed locally from scratch.
+     */
+    public static void assertChecksums(Packet packet) {
+        byte[] bytes = packet.getRaw(true);
+        Packet copy = new Packet(bytes.clone(), null);
+        copy.calculateAllCheckSumsLocal();
+        assertArrayEquals(bytes, copy.getRaw(false));
+    }
+}
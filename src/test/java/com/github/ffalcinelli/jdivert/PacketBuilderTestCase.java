@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert;
+
+import com.github.ffalcinelli.jdivert.headers.Tcp;
+import org.junit.Test;
+
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+import static com.github.ffalcinelli.jdivert.PacketAssert.assertChecksums;
+import static com.github.ffalcinelli.jdivert.Util.parseHexBinary;
+import static com.github.ffalcinelli.jdivert.headers.Tcp.Flag.*;
+import static org.junit.Assert.*;
+
+public class PacketBuilderTestCase {
+
+    private static final int SRC = IpLiterals.parseIpv4("192.168.1.10");
+    private static final int DST = IpLiterals.parseIpv4("10.0.0.1");
+
+    @Test
+    public void tcpIpv4() throws UnknownHostException {
+        PacketBuilder builder = new PacketBuilder(1500);
+        Packet packet = builder.ipv4(SRC, DST).ttl(128).identification(0x1234)
+                .tcp(443, 55362).seq(0xFFFFFFF0L).ack(42).tcpFlag(RST, true).tcpFlag(ACK, true).window(0)
+                .payload(parseHexBinary("cafe"))
+                .inbound(7, 1)
+                .build();
+        assertTrue(packet.isIpv4());
+        assertTrue(packet.isTcp());
+        assertEquals("192.168.1.10", packet.getSrcAddr());
+        assertEquals("10.0.0.1", packet.getDstAddr());
+        assertEquals(443, (int) packet.getSrcPort());
+        assertEquals(55362, (int) packet.getDstPort());
+        assertEquals(128, packet.getIpv4().getTTL());
+        assertEquals(0x1234, packet.getIpv4().getID());
+        assertEquals(42, packet.getLength());
+        assertEquals(42, packet.getIpv4().getTotalLength());
+        Tcp tcp = packet.getTcp();
+        assertEquals(0xFFFFFFF0L, tcp.getSeqNumber() & 0xFFFFFFFFL);
+        assertEquals(42, tcp.getAckNumber());
+        assertTrue(tcp.is(RST));
+        assertTrue(tcp.is(ACK));
+        assertFalse(tcp.is(SYN));
+        assertEquals(5, tcp.getDataOffset());
+        assertArrayEquals(parseHexBinary("cafe"), packet.getPayload());
+        assertFalse(packet.isOutbound());
+        assertEquals(7, packet.getInterfaceIndex());
+        assertChecksums(packet);
+    }
+
+    @Test
+    public void template() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1501);
+        PacketBuilder builder = new PacketBuilder(buffer, 1).ipv4(SRC, DST).tcp(80, 1024).tcpFlags(0x12);
+        Packet first = builder.seq(1).build();
+        assertTrue(first.isOutbound());
+        assertChecksums(first);
+
+        // Only the varying fields are set again
+        Packet second = builder.tcp(80, 1025).seq(2).build();
+        assertSame(first, second);
+        assertEquals(1025, (int) second.getDstPort());
+        assertEquals(2, second.getTcp().getSeqNumber());
+        assertEquals(0x12, second.getTcp().getFlags());
+        assertChecksums(second);
+
+        // Odd sized payload, then none
+        assertChecksums(builder.payload(ByteBuffer.wrap(parseHexBinary("0102030405"))).build());
+        assertEquals(40, builder.payload(new byte[0]).build().getLength());
+    }
+
+    @Test
+    public void udpIpv6() {
+        long[] src = new long[2];
+        long[] dst = new long[2];
+        IpLiterals.parseIpv6("fe80::1", src);
+        IpLiterals.parseIpv6("2001:db8::53", dst);
+        Packet packet = new PacketBuilder(1500).ipv6(src[0], src[1], dst[0], dst[1]).ttl(1)
+                .udp(5353, 53).payload(parseHexBinary("deadbeef")).build();
+        assertTrue(packet.isIpv6());
+        assertTrue(packet.isUdp());
+        assertEquals(1, packet.getIpv6().getHopLimit());
+        assertEquals(12, packet.getIpv6().getPayloadLength());
+        assertEquals(12, packet.getUdp().getLength());
+        assertEquals(5353, (int) packet.getSrcPort());
+        assertNotEquals(0, packet.getUdp().getChecksum());
+        assertChecksums(packet);
+    }
+
+    @Test
+    public void icmp() {
+        PacketBuilder builder = new PacketBuilder(1500);
+        Packet echo = builder.ipv4(SRC, DST).icmp(8, 0, 0x00010001).payload(parseHexBinary("6162636465")).build();
+        assertTrue(echo.isIcmpv4());
+        assertEquals(8, echo.getIcmpv4().getType());
+        assertChecksums(echo);
+
+        // Another version starts afresh
+        Packet echo6 = builder.ipv6(0, 1, 0, 1).icmp(128, 0, 0x00010001).build();
+        assertTrue(echo6.isIcmpv6());
+        assertEquals(48, echo6.getLength());
+        assertChecksums(echo6);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void noUpperLayer() {
+        new PacketBuilder(1500).ipv4(SRC, DST).build();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void notTcp() {
+        new PacketBuilder(1500).ipv4(SRC, DST).udp(53, 53).seq(1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void payloadTooLarge() {
+        new PacketBuilder(64).ipv4(SRC, DST).udp(53, 53).payload(new byte[64]);
+    }
+}
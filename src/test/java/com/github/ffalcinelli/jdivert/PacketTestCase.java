@@ -18,6 +18,9 @@
 package com.github.ffalcinelli.jdivert;
 
 import com.github.ffalcinelli.jdivert.exceptions.WinDivertException;
+import com.github.ffalcinelli.jdivert.headers.Ipv4;
+import com.github.ffalcinelli.jdivert.headers.Ipv6;
+import com.github.ffalcinelli.jdivert.headers.Tcp;
 import com.github.ffalcinelli.jdivert.windivert.WinDivert;
 import com.github.ffalcinelli.jdivert.windivert.WinDivertAddress;
 import com.sun.jna.platform.win32.WinDef;
@@ -25,9 +28,13 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import static com.github.ffalcinelli.jdivert.Enums.CalcChecksumsOption.NO_TCP_CHECKSUM;
+import static com.github.ffalcinelli.jdivert.Enums.Protocol;
 import static com.github.ffalcinelli.jdivert.Enums.Direction.OUTBOUND;
+import static com.github.ffalcinelli.jdivert.PacketAssert.assertChecksums;
 import static com.github.ffalcinelli.jdivert.Util.parseHexBinary;
 import static com.github.ffalcinelli.jdivert.Util.printHexBinary;
 import static com.github.ffalcinelli.jdivert.headers.Tcp.Flag.FIN;
@@ -118,6 +125,260 @@ public class PacketTestCase {
         assertNotEquals(packet.hashCode(), p3.hashCode());
     }
 
+    @Test
+    public void rebind() {
+        byte[] icmp = parseHexBinary("4500003C5C8800007F011181C0A801010A00020F00005552000100096162636465666768696A6B6C6D6E6F7071727374757677616263646566676869");
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1 + raw.length + icmp.length);
+        buffer.position(1);
+        buffer.put(raw).put(icmp);
+
+        Packet flyweight = new Packet().rebind(buffer, 1, raw.length, addr);
+        Tcp tcp = flyweight.getTcp();
+        assertEquals(packet.getSrcPort(), flyweight.getSrcPort());
+        assertEquals(packet.getDstAddr(), flyweight.getDstAddr());
+        assertArrayEquals(payload, flyweight.getPayload());
+        assertArrayEquals(raw, flyweight.getRaw(false));
+        assertEquals(packet, flyweight);
+
+        // Checksums of a packet starting at an odd index
+        flyweight.setSrcPort(8080);
+        packet.setSrcPort(8080);
+        flyweight.calculateAllCheckSumsLocal();
+        packet.calculateAllCheckSumsLocal();
+        assertEquals(packet.getTcp().getChecksum(), tcp.getChecksum());
+        assertEquals(packet.getIpv4().getChecksum(), flyweight.getIpv4().getChecksum());
+
+        flyweight.rebind(buffer, 1 + raw.length, icmp.length, null);
+        assertTrue(flyweight.isIcmpv4());
+        assertNull(flyweight.getTcp());
+        assertEquals(0x5552, flyweight.getIcmpv4().getChecksum());
+        assertFalse(flyweight.isOutbound());
+
+        flyweight.rebind(buffer, 1, raw.length, addr);
+        assertSame(tcp, flyweight.getTcp());
+        assertEquals(8080, (int) flyweight.getSrcPort());
+    }
+
+    @Test
+    public void incrementalChecksums() throws UnknownHostException {
+        packet.calculateAllCheckSumsLocal();
+        packet.setIncrementalChecksums(true);
+        packet.setSrcAddr(localhost);
+        packet.setDstPort(8080);
+        packet.getIpv4().setTTL(12);
+        packet.getTcp().set(FIN, true);
+        packet.getTcp().setSeqNumber(0x12345678);
+        int ipCksum = packet.getIpv4().getChecksum();
+        int tcpCksum = packet.getTcp().getChecksum();
+        packet.calculateAllCheckSumsLocal();
+        assertEquals(packet.getIpv4().getChecksum(), ipCksum);
+        assertEquals(packet.getTcp().getChecksum(), tcpCksum);
+
+        // Odd sized change, in a packet starting at an odd index
+        byte[] udp = parseHexBinary("4500004281bf000040112191c0a82b09c0a82b01c9dd0035002ef268528e01000001000000000000013801380138013807696e2d61646472046172706100000c0001");
+        ByteBuffer buffer = ByteBuffer.allocate(udp.length + 1);
+        buffer.position(1);
+        buffer.put(udp);
+        Packet p = new Packet().rebind(buffer, 1, udp.length, addr);
+        p.calculateAllCheckSumsLocal();
+        p.setIncrementalChecksums(true);
+        p.setDstAddr("10.0.0.1");
+        p.setSrcPort(53);
+        p.getUdp().setData(parseHexBinary("01020304050607"));
+        int udpCksum = p.getUdp().getChecksum();
+        p.calculateAllCheckSumsLocal();
+        assertEquals(p.getUdp().getChecksum(), udpCksum);
+
+        // Nothing adjusted unless asked
+        p.setIncrementalChecksums(false);
+        p.setSrcPort(5353);
+        assertEquals(udpCksum, p.getUdp().getChecksum());
+    }
+
+    @Test
+    public void lazyHeaders() {
+        // Set before any header is decoded, applied when they are
+        packet.setIncrementalChecksums(true);
+        assertTrue(packet.isTcp());
+        assertTrue(packet.isIpv4());
+        Tcp tcp = packet.getTcp();
+        assertSame(tcp, packet.getTcp());
+        assertSame(tcp, packet.getProtocolHeader());
+        assertTrue(tcp.isIncrementalChecksum());
+        assertTrue(packet.getIpHeader().isIncrementalChecksum());
+        assertEquals(40, packet.getHeadersLength());
+    }
+
+    @Test
+    public void incrementalChecksumsBeforeTransport() throws UnknownHostException {
+        packet.calculateAllCheckSumsLocal();
+        byte[] bytes = packet.getRaw(true);
+        // The transport header is not accessed before the pseudo-header changes
+        Packet p = new Packet(bytes.clone(), addr);
+        p.setIncrementalChecksums(true);
+        p.getIpv4().setSrcAddrStr(localhost);
+        assertChecksums(p);
+        // Nor when the IP header was decoded first
+        p = new Packet(bytes.clone(), addr);
+        p.getIpv4();
+        p.setIncrementalChecksums(true);
+        p.getIpv4().setDstAddrStr(localhost);
+        assertChecksums(p);
+    }
+
+    @Test
+    public void localChecksumsIpv6() throws UnknownHostException {
+        byte[] udp = parseHexBinary("60000000002711403ffe050700000001020086fffe0580da3ffe0501481900000000000000000042095d0035002746b700060100000100000000000003777777057961686f6f03636f6d00000f0001");
+        Packet p = new Packet(udp.clone(), addr);
+        p.getUdp().setChecksum(0);
+        p.calculateAllCheckSumsLocal();
+        assertArrayEquals(udp, p.getRaw(false));
+
+        p.setIncrementalChecksums(true);
+        p.setSrcAddr("::1");
+        int cksum = p.getUdp().getChecksum();
+        p.calculateAllCheckSumsLocal();
+        assertEquals(p.getUdp().getChecksum(), cksum);
+    }
+
+    @Test
+    public void resizePayload() {
+        // No tailroom: the first growth copies the packet
+        packet.insertPayload(0, parseHexBinary("0102"));
+        assertNotSame(raw, packet.getByteBuffer().array());
+        assertEquals(83, packet.getLength());
+        assertEquals(83, packet.getIpv4().getTotalLength());
+        assertEquals(Packet.DEFAULT_TAILROOM, packet.getTailroom());
+        assertChecksums(packet);
+        packet.setPayload(parseHexBinary("0102030405"));
+        assertEquals(45, packet.getIpv4().getTotalLength());
+        assertArrayEquals(parseHexBinary("0102030405"), packet.getPayload());
+        assertChecksums(packet);
+
+        // Then in place
+        ByteBuffer buffer = packet.getByteBuffer();
+        packet.insertPayload(2, parseHexBinary("aabb"));
+        assertSame(buffer, packet.getByteBuffer());
+        assertArrayEquals(parseHexBinary("0102aabb030405"), packet.getPayload());
+        packet.removePayload(0, 3);
+        assertArrayEquals(parseHexBinary("bb030405"), packet.getPayload());
+        packet.replacePayload(1, 2, parseHexBinary("ffeeddcc"), 1, 2);
+        assertArrayEquals(parseHexBinary("bbeedd05"), packet.getPayload());
+        assertEquals(44, packet.getIpv4().getTotalLength());
+        assertEquals(44, packet.getLength());
+        assertEquals(40, packet.getHeadersLength());
+        assertChecksums(packet);
+
+        packet.setPayload(new byte[0]);
+        assertEquals(40, packet.getIpv4().getTotalLength());
+        assertChecksums(packet);
+    }
+
+    @Test
+    public void resizeIntoHeadroom() {
+        byte[] udp = parseHexBinary("4500004281bf000040112191c0a82b09c0a82b01c9dd0035002ef268528e01000001000000000000013801380138013807696e2d61646472046172706100000c0001");
+        ByteBuffer buffer = ByteBuffer.allocateDirect(udp.length + 8);
+        buffer.position(4);
+        buffer.put(udp);
+        Packet p = new Packet().rebind(buffer, 4, udp.length, addr, 4, 4);
+        // Inserting at the start of the payload moves the headers backwards
+        p.insertPayload(0, parseHexBinary("cafe"));
+        assertEquals(2, p.getHeadroom());
+        assertEquals(4, p.getTailroom());
+        assertEquals(0x44, p.getIpv4().getTotalLength());
+        assertEquals(0x30, p.getUdp().getLength());
+        assertEquals(0xcafe528e, p.getByteBuffer().getInt(2 + 28));
+        assertChecksums(p);
+        // Removing near the end moves the trailing bytes
+        p.removePayload(34, 6);
+        assertEquals(2, p.getHeadroom());
+        assertEquals(10, p.getTailroom());
+        assertEquals(0x2a, p.getUdp().getLength());
+        assertChecksums(p);
+    }
+
+    @Test
+    public void resizeWithinBatch() {
+        byte[] udp = parseHexBinary("4500004281bf000040112191c0a82b09c0a82b01c9dd0035002ef268528e01000001000000000000013801380138013807696e2d61646472046172706100000c0001");
+        ByteBuffer batch = ByteBuffer.allocateDirect(2 * udp.length + 16);
+        batch.put(udp).put(udp);
+        Packet first = new Packet().rebind(batch, 0, udp.length, addr);
+        Packet second = new Packet().rebind(batch, udp.length, udp.length, addr);
+        assertEquals(0, second.getHeadroom());
+        assertEquals(0, second.getTailroom());
+        // The room around a packet of a batch belongs to its neighbours
+        first.insertPayload(8, parseHexBinary("cafebabe"));
+        assertNotSame(batch, first.getByteBuffer());
+        assertEquals(udp.length + 4, first.getLength());
+        assertChecksums(first);
+        second.insertPayload(8, parseHexBinary("cafebabe"));
+        assertNotSame(batch, second.getByteBuffer());
+        for (int i = 0; i < udp.length; i++)
+            assertEquals(udp[i], batch.get(udp.length + i));
+        assertEquals(0, batch.get(2 * udp.length));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void removeTooMuch() {
+        packet.removePayload(1, payload.length);
+    }
+
+    @Test
+    public void fragmentIpv4() {
+        packet.getIpv4().set(Ipv4.Flag.DF, false);
+        packet.setMtu(60);
+        Packet small = new Packet(raw.clone(), addr);
+        assertSame(small, small.fragment(100)[0]);
+        Packet[] fragments = packet.fragment();
+        assertEquals(2, fragments.length);
+        byte[] reassembled = new byte[raw.length - 20];
+        for (int i = 0; i < fragments.length; i++) {
+            Packet f = fragments[i];
+            assertTrue(f.getLength() <= 60);
+            assertEquals(f.getLength(), f.getIpv4().getTotalLength());
+            assertEquals(i * 5, f.getIpv4().getFragmentOffset());
+            assertEquals(i == 0, f.getIpv4().is(Ipv4.Flag.MF));
+            assertEquals(packet.getIpv4().getID(), f.getIpv4().getID());
+            assertTrue(f.isOutbound());
+            byte[] bytes = f.getRaw(false);
+            assertEquals(0xFFFF, Checksum.fold(Checksum.sum(bytes, 0, 20)));
+            System.arraycopy(bytes, 20, reassembled, i * 40, bytes.length - 20);
+        }
+        assertArrayEquals(Arrays.copyOfRange(raw, 20, raw.length), reassembled);
+        // The first fragment still shows the TCP header
+        assertEquals(packet.getSrcPort(), fragments[0].getSrcPort());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void dontFragment() {
+        packet.getIpv4().set(Ipv4.Flag.DF, true);
+        packet.fragment(60);
+    }
+
+    @Test
+    public void fragmentIpv6() {
+        // Hop-by-hop options then UDP
+        byte[] udp = parseHexBinary("60000000002c0040fe800000000000000000000000000001fe800000000000000000000000000002" +
+                "1100010400000000" + "04d200350024000000000000000000000000000000000000000000000000000000000000");
+        Packet p = new Packet(udp, addr);
+        Packet[] fragments = p.fragment(80);
+        assertEquals(2, fragments.length);
+        Ipv6 first = fragments[0].getIpv6();
+        assertTrue(first.isFragment());
+        assertEquals(48, first.findExtension(Protocol.FRAGMENT));
+        assertEquals(Protocol.HOPOPT.getValue(), first.getExtensionType(0));
+        assertEquals(80, fragments[0].getLength());
+        assertEquals(40, first.getPayloadLength());
+        assertTrue(fragments[0].isUdp());
+        assertEquals(1234, (int) fragments[0].getSrcPort());
+        Ipv6 second = fragments[1].getIpv6();
+        assertEquals(Protocol.FRAGMENT, second.getNextHeaderProtocol());
+        assertEquals(0x0018, fragments[1].getByteBuffer().getShort(50));
+        assertEquals(fragments[0].getByteBuffer().getInt(52), fragments[1].getByteBuffer().getInt(52));
+        assertEquals(0x0001, fragments[0].getByteBuffer().getShort(50));
+        assertEquals(68, fragments[1].getLength());
+    }
+
     @Test(expected = IllegalStateException.class)
     public void noDstPort() {
         Packet p = new Packet(parseHexBinary("4500003C5C8800007F011181C0A801010A00020F00005552000100096162636465666768696A6B6C6D6E6F7071727374757677616263646566676869"), addr);
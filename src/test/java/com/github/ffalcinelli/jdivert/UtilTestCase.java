@@ -65,4 +65,35 @@ public class UtilTestCase {
         assertArrayEquals(new byte[]{0x1, 0x2, 0x3, 0x4, 0x0, 0x0}, Util.zeroPadArray(source, 6));
         assertArrayEquals(new byte[]{0x1, 0x2}, Util.zeroPadArray(source, 2));
     }
+
+    @Test
+    public void adjustChecksum() {
+        // The example of RFC 1624, where eqn. 3 yields 0x0000 and not 0xFFFF
+        assertEquals(0x0000, Util.adjustChecksum(0xDD2F, (~0x5555 & 0xFFFF) + 0x3285));
+        assertEquals(0xDD2F, Util.adjustChecksum(0xDD2F, 0));
+    }
+
+    @Test
+    public void udpChecksum() {
+        assertEquals(0xFFFF, Util.udpChecksum(0));
+        assertEquals(0x1234, Util.udpChecksum(0x1234));
+        // No checksum stays so, while a computed zero is sent as all ones
+        assertEquals(0, Util.adjustUdpChecksum(0, 0x1234));
+        assertEquals(0xFFFF, Util.adjustUdpChecksum(0xDD2F, (~0x5555 & 0xFFFF) + 0x3285));
+    }
+
+    @Test
+    public void moveBytes() {
+        for (ByteBuffer buffer : new ByteBuffer[]{ByteBuffer.allocate(32), ByteBuffer.allocateDirect(32)}) {
+            for (int i = 0; i < 20; i++)
+                buffer.put(i, (byte) i);
+            // Overlapping, forwards then backwards
+            Util.moveBytes(buffer, 0, 3, 20);
+            for (int i = 0; i < 20; i++)
+                assertEquals(i, buffer.get(i + 3));
+            Util.moveBytes(buffer, 3, 1, 20);
+            for (int i = 0; i < 20; i++)
+                assertEquals(i, buffer.get(i + 1));
+        }
+    }
 }
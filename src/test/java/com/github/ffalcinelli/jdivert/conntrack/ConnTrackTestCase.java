@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.conntrack;
+
+import com.github.ffalcinelli.jdivert.FlowKey;
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.PacketBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.github.ffalcinelli.jdivert.headers.Tcp.Flag.*;
+import static org.junit.Assert.*;
+
+public class ConnTrackTestCase {
+
+    private static final int CLIENT = 0x0A000001;
+    private static final int SERVER = 0x0A000002;
+
+    private ConnTrack conntrack;
+    private PacketBuilder builder;
+    private Connection conn;
+
+    @Before
+    public void setUp() {
+        conntrack = new ConnTrack(1024, 4);
+        builder = new PacketBuilder(256);
+        conn = new Connection();
+    }
+
+    private Packet tcp(boolean fromClient, int clientPort, int flags) {
+        if (fromClient)
+            builder.ipv4(CLIENT, SERVER).tcp(clientPort, 80);
+        else
+            builder.ipv4(SERVER, CLIENT).tcp(80, clientPort);
+        return builder.tcpFlags(flags).build();
+    }
+
+    private ConnState track(Packet packet, long now) {
+        assertSame(conn, conntrack.track(packet, now, conn));
+        return conn.getState();
+    }
+
+    @Test
+    public void tcpLifecycle() {
+        assertEquals(ConnState.SYN_SENT, track(tcp(true, 40000, SYN.mask()), 0));
+        assertTrue(conn.isCreated());
+        assertFalse(conn.isReply());
+        assertEquals(40000, conn.getKey().getSrcPort());
+        assertEquals(ConnState.SYN_RECEIVED, track(tcp(false, 40000, maskOf(SYN, ACK)), 1));
+        assertFalse(conn.isCreated());
+        assertTrue(conn.isReply());
+        assertEquals(80, conn.getKey().getSrcPort());
+        assertEquals(ConnState.ESTABLISHED, track(tcp(true, 40000, ACK.mask()), 2));
+        assertEquals(ConnState.ESTABLISHED, track(tcp(false, 40000, ACK.mask()), 3));
+        assertEquals(ConnState.FIN_WAIT, track(tcp(false, 40000, maskOf(FIN, ACK)), 4));
+        assertEquals(ConnState.FIN_WAIT, track(tcp(true, 40000, ACK.mask()), 5));
+        assertEquals(ConnState.TIME_WAIT, track(tcp(true, 40000, maskOf(FIN, ACK)), 6));
+        assertEquals(7, conn.getPackets());
+        assertEquals(7 * 40, conn.getBytes());
+        assertEquals(6, conn.getLastSeen());
+        assertEquals(1, conntrack.size());
+        // The ports are reused
+        assertEquals(ConnState.SYN_SENT, track(tcp(true, 40000, SYN.mask()), 7));
+        assertFalse(conn.isCreated());
+    }
+
+    @Test
+    public void reset() {
+        track(tcp(true, 40000, SYN.mask()), 0);
+        assertEquals(ConnState.CLOSED, track(tcp(false, 40000, maskOf(RST, ACK)), 0));
+        assertEquals(ConnState.CLOSED, track(tcp(true, 40000, ACK.mask()), 0));
+    }
+
+    @Test
+    public void midstream() {
+        assertEquals(ConnState.ESTABLISHED, track(tcp(false, 40000, ACK.mask()), 0));
+        assertTrue(conn.isCreated());
+        // The first packet seen defines the original direction
+        assertFalse(conn.isReply());
+        track(tcp(true, 40000, ACK.mask()), 0);
+        assertTrue(conn.isReply());
+    }
+
+    @Test
+    public void udp() {
+        Packet query = builder.ipv4(CLIENT, SERVER).udp(5353, 53).build();
+        assertEquals(ConnState.NEW, track(query, 0));
+        assertEquals(ConnState.NEW, track(query, 0));
+        Packet answer = builder.ipv4(SERVER, CLIENT).udp(53, 5353).build();
+        assertEquals(ConnState.REPLIED, track(answer, 0));
+        assertTrue(conn.isReply());
+    }
+
+    @Test
+    public void lookup() {
+        track(tcp(true, 40000, SYN.mask()), 0);
+        FlowKey key = tcp(false, 40000, ACK.mask()).extractFlowKey(null);
+        FlowKey before = key.copy();
+        Connection found = conntrack.lookup(key, 0, null);
+        assertNotNull(found);
+        assertEquals(ConnState.SYN_SENT, found.getState());
+        assertTrue(found.isReply());
+        assertEquals(before, key);
+        assertEquals(80, key.getSrcPort());
+        assertEquals(1, found.getPackets());
+        // The view key may be the one looked up
+        FlowKey viewKey = found.getKey();
+        assertSame(found, conntrack.lookup(viewKey, 0, found));
+        assertEquals(80, viewKey.getSrcPort());
+        assertNull(conntrack.lookup(tcp(true, 40001, ACK.mask()).extractFlowKey(null), 0, null));
+    }
+
+    @Test
+    public void timeouts() {
+        conntrack.setTimeout(ConnState.SYN_SENT, 100);
+        track(tcp(true, 40000, SYN.mask()), 0);
+        track(tcp(true, 40001, SYN.mask()), 50);
+        track(tcp(true, 40001, maskOf(SYN, ACK)), 60);
+        FlowKey key = tcp(true, 40000, SYN.mask()).extractFlowKey(null);
+        assertNotNull(conntrack.lookup(key, 99, null));
+        assertNull(conntrack.lookup(key, 100, null));
+        // Expired connections are replaced when seen again
+        track(tcp(true, 40000, ACK.mask()), 100);
+        assertTrue(conn.isCreated());
+        assertEquals(ConnState.ESTABLISHED, conn.getState());
+        assertEquals(1, conn.getPackets());
+
+        assertEquals(0, conntrack.expire(159, Integer.MAX_VALUE));
+        assertEquals(1, conntrack.expire(160, Integer.MAX_VALUE));
+        assertEquals(1, conntrack.size());
+    }
+
+    @Test
+    public void full() {
+        conntrack = new ConnTrack(4, 1);
+        for (int port = 1; port <= 4; port++)
+            assertNotNull(conntrack.track(tcp(true, port, SYN.mask()), 0, null));
+        assertNull(conntrack.track(tcp(true, 5, SYN.mask()), 0, null));
+        assertNotNull(conntrack.track(tcp(false, 4, maskOf(SYN, ACK)), 0, null));
+        assertTrue(conntrack.remove(tcp(true, 2, ACK.mask()).extractFlowKey(null)));
+        assertFalse(conntrack.remove(tcp(true, 2, ACK.mask()).extractFlowKey(null)));
+        assertNotNull(conntrack.track(tcp(true, 5, SYN.mask()), 0, null));
+    }
+
+    @Test
+    public void removeKeepsProbeChains() {
+        // Room for an uneven split among the shards
+        conntrack = new ConnTrack(4000, 2);
+        for (int port = 1; port <= 3000; port++)
+            assertNotNull(conntrack.track(tcp(true, port, SYN.mask()), 0, null));
+        for (int port = 1; port <= 3000; port += 2)
+            assertTrue(conntrack.remove(tcp(false, port, ACK.mask()).extractFlowKey(null)));
+        assertEquals(1500, conntrack.size());
+        for (int port = 1; port <= 3000; port++) {
+            Connection found = conntrack.lookup(tcp(true, port, ACK.mask()).extractFlowKey(null), 0, conn);
+            assertEquals(port % 2 == 0, found != null);
+        }
+    }
+
+    @Test
+    public void sweepWithBudget() {
+        conntrack = new ConnTrack(1000, 1);
+        conntrack.setTimeout(ConnState.SYN_SENT, 10);
+        for (int port = 1; port <= 500; port++)
+            conntrack.track(tcp(true, port, SYN.mask()), 0, conn);
+        int removed = 0;
+        int rounds = 0;
+        while (conntrack.size() > 0) {
+            removed += conntrack.expire(10, 256);
+            rounds++;
+        }
+        assertEquals(500, removed);
+        assertTrue(rounds > 1);
+        assertTrue(conntrack.getFootprint() >= 1000 * 64);
+    }
+
+    @Test
+    public void concurrentShards() throws InterruptedException {
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    PacketBuilder own = new PacketBuilder(256);
+                    Connection view = new Connection();
+                    for (int port = 0; port < 200; port++) {
+                        Packet packet = own.ipv4(CLIENT + thread, SERVER).tcp(port, 80).tcpFlags(SYN.mask()).build();
+                        conntrack.track(packet, 0, view);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(800, conntrack.size());
+    }
+}
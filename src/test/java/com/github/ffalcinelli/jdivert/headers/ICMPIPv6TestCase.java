@@ -78,4 +78,17 @@ public class ICMPIPv6TestCase extends IPv6TestCase {
         assertTrue(icmpHdr.equals(icmp2));
         assertEquals(icmpHdr.hashCode(), icmp2.hashCode());
     }
+
+    @Test
+    public void localChecksum() {
+        Icmpv6 icmp = (Icmpv6) Header.buildHeaders(rawData)[1];
+        icmp.setChecksum(0);
+        icmp.calculateChecksum();
+        assertEquals(0x1352, icmp.getChecksum());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void localChecksumWithoutIp() {
+        icmpHdr.calculateChecksum();
+    }
 }
@@ -21,6 +21,7 @@ import com.github.ffalcinelli.jdivert.Enums;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 
 import static com.github.ffalcinelli.jdivert.Enums.Protocol.ROUTING;
@@ -210,4 +211,18 @@ public abstract class IPv4TestCase extends IPTestCase {
         assertEquals(12, ipv4Hdr.getFragmentOffset());
         assertTrue(ipv4Hdr.toString().contains("fragOff=" + ipv4Hdr.getFragmentOffset()));
     }
+
+    @Test
+    public void primitiveAddresses() throws UnknownHostException {
+        ipv4Hdr.setSrcAddrStr(localhost);
+        assertEquals(0x7F000001, ipv4Hdr.getSrcAddrV4());
+        ipv4Hdr.setDstAddrV4(0x0A000001);
+        assertEquals("10.0.0.1", ipv4Hdr.getDstAddrStr());
+        assertEquals("10.0.0.1", ipv4Hdr.appendDstAddr(new StringBuilder()).toString());
+    }
+
+    @Test(expected = UnknownHostException.class)
+    public void noResolution() throws UnknownHostException {
+        ipv4Hdr.setSrcAddrStr("localhost");
+    }
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.headers;
+
+import com.github.ffalcinelli.jdivert.Checksum;
+import com.github.ffalcinelli.jdivert.Packet;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static com.github.ffalcinelli.jdivert.Enums.Protocol;
+import static com.github.ffalcinelli.jdivert.Util.parseHexBinary;
+import static org.junit.Assert.*;
+
+public class IPv6ExtensionsTestCase {
+
+    private static final String FIXED = "fe800000000000000000000000000001fe800000000000000000000000000002";
+    private static final String UDP = "04d20035000c0000deadbeef";
+
+    @Test
+    public void optionsChain() {
+        // Hop-by-hop then destination options, each padded with PadN
+        byte[] raw = parseHexBinary("60000000001c0040" + FIXED + "3c00010400000000" + "1100010400000000" + UDP);
+        Packet packet = new Packet(raw, null);
+        Ipv6 ipv6 = packet.getIpv6();
+        assertEquals(2, ipv6.getExtensionCount());
+        assertEquals(40, ipv6.getExtensionOffset(0));
+        assertEquals(Protocol.HOPOPT.getValue(), ipv6.getExtensionType(0));
+        assertEquals(48, ipv6.getExtensionOffset(1));
+        assertEquals(Protocol.DSTOPTS.getValue(), ipv6.getExtensionType(1));
+        assertEquals(48, ipv6.findExtension(Protocol.DSTOPTS));
+        assertEquals(-1, ipv6.findExtension(Protocol.ROUTING));
+        assertFalse(ipv6.isFragment());
+        assertEquals(Protocol.UDP, ipv6.getNextHeaderProtocol());
+        assertEquals(56, ipv6.getUpperLayerOffset());
+
+        assertTrue(packet.isUdp());
+        assertEquals(1234, (int) packet.getSrcPort());
+        assertEquals(53, (int) packet.getDstPort());
+        assertArrayEquals(parseHexBinary("deadbeef"), packet.getPayload());
+
+        // The pseudo-header length only counts the upper layer
+        packet.calculateAllCheckSumsLocal();
+        long sum = ipv6.getPseudoHeaderSum(Protocol.UDP, 12) + Checksum.sum(packet.getRaw(false), 56, 68);
+        assertEquals(0xFFFF, Checksum.fold(sum));
+
+        ipv6.setProtocol(Protocol.TCP);
+        assertEquals(Protocol.HOPOPT.getValue(), packet.getRaw(false)[6]);
+        assertEquals(Protocol.TCP.getValue(), packet.getRaw(false)[48]);
+    }
+
+    @Test
+    public void firstFragment() {
+        byte[] raw = parseHexBinary("6000000000142c40" + FIXED + "1100000112345678" + UDP);
+        Packet packet = new Packet(raw, null);
+        assertTrue(packet.getIpv6().isFragment());
+        assertEquals(48, packet.getIpv6().getUpperLayerOffset());
+        assertTrue(packet.isUdp());
+        assertEquals(1234, (int) packet.getSrcPort());
+    }
+
+    @Test
+    public void nextFragment() {
+        byte[] raw = parseHexBinary("6000000000102c40" + FIXED + "1100000812345678" + "0102030405060708");
+        Packet packet = new Packet(raw, null);
+        assertTrue(packet.getIpv6().isFragment());
+        assertEquals(Protocol.FRAGMENT, packet.getIpv6().getNextHeaderProtocol());
+        assertNull(packet.getProtocolHeader());
+        assertNull(packet.getSrcPort());
+        assertArrayEquals(parseHexBinary("0102030405060708"), packet.getPayload());
+        packet.calculateAllCheckSumsLocal();
+    }
+
+    @Test
+    public void truncatedChain() {
+        // The hop-by-hop options claim 16 bytes while only 8 are left
+        byte[] raw = parseHexBinary("6000000000080040" + FIXED + "1101010400000000");
+        Ipv6 ipv6 = new Ipv6(ByteBuffer.wrap(raw));
+        assertEquals(0, ipv6.getExtensionCount());
+        assertEquals(40, ipv6.getUpperLayerOffset());
+    }
+
+    @Test
+    public void rebind() {
+        byte[] raw = parseHexBinary("60000000001c0040" + FIXED + "3c00010400000000" + "1100010400000000" + UDP);
+        Packet packet = new Packet().rebind(ByteBuffer.wrap(raw), 0, raw.length, null);
+        assertEquals(2, packet.getIpv6().getExtensionCount());
+        packet.rebind(ByteBuffer.wrap(parseHexBinary("60000000000c1140" + FIXED + UDP)), 0, 52, null);
+        assertEquals(0, packet.getIpv6().getExtensionCount());
+        assertEquals(1234, (int) packet.getSrcPort());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void noSuchExtension() {
+        new Ipv6(ByteBuffer.wrap(parseHexBinary("60000000000c1140" + FIXED + UDP))).getExtensionOffset(0);
+    }
+}
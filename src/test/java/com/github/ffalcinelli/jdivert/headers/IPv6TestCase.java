@@ -21,6 +21,7 @@ import com.github.ffalcinelli.jdivert.Enums;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 
 import static com.github.ffalcinelli.jdivert.Enums.Protocol.ROUTING;
@@ -90,4 +91,19 @@ public abstract class IPv6TestCase extends IPTestCase {
         assertTrue(ipHdr.equals(ipHdr2));
         assertEquals(ipHdr.hashCode(), ipHdr2.hashCode());
     }
+
+    @Test
+    public void primitiveAddresses() throws UnknownHostException {
+        ipv6Hdr.setSrcAddrStr("::1");
+        assertEquals(0L, ipv6Hdr.getSrcAddrHigh());
+        assertEquals(1L, ipv6Hdr.getSrcAddrLow());
+        assertEquals(localhost, ipv6Hdr.getSrcAddrStr());
+        ipv6Hdr.setDstAddr(0xfe80000000000000L, 0x2L);
+        assertEquals("fe80:0:0:0:0:0:0:2", ipv6Hdr.getDstAddrStr());
+    }
+
+    @Test(expected = UnknownHostException.class)
+    public void noIpv4Literal() throws UnknownHostException {
+        ipv6Hdr.setSrcAddrStr("127.0.0.1");
+    }
 }
@@ -116,6 +116,15 @@ public class TCPIPv4TestCase extends IPv4TestCase {
         assertEquals(0x01FF, tcpHdr.getFlags());
     }
 
+    @Test
+    public void flagMasks() {
+        for (Tcp.Flag flag : Tcp.Flag.values()) {
+            tcpHdr.setFlags(flag.mask());
+            assertTrue(flag.name() + " is not true", tcpHdr.is(flag));
+        }
+        assertEquals(0x12, Tcp.Flag.maskOf(Tcp.Flag.SYN, Tcp.Flag.ACK));
+    }
+
     @Test
     public void windowSize() {
         assertEquals(windowSize, tcpHdr.getWindowSize());
@@ -166,4 +166,11 @@ public class TCPIPv6TestCase extends IPv6TestCase {
         assertTrue(tcpHdr.equals(tcpHdr2));
         assertEquals(tcpHdr.hashCode(), tcpHdr2.hashCode());
     }
+
+    @Test
+    public void localChecksum() {
+        tcpHdr.setChecksum(0);
+        tcpHdr.calculateChecksum();
+        assertEquals(tcpCksum, tcpHdr.getChecksum());
+    }
 }
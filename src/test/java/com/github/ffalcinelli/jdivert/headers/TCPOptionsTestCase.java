@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.headers;
+
+import com.github.ffalcinelli.jdivert.Packet;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.github.ffalcinelli.jdivert.Util.parseHexBinary;
+import static org.junit.Assert.*;
+
+public class TCPOptionsTestCase {
+
+    private static final String IPV4 = "4500003c0000400040060000c0a80001c0a80002";
+    private static final String TCP = "04d2005000000001000000000000ffff00000000";
+
+    private Packet packet;
+    private Tcp tcp;
+
+    private static Packet syn(String options) {
+        int dataOffset = 5 + options.length() / 8;
+        String tcp = TCP.substring(0, 24) + Integer.toHexString(dataOffset) + "002" + TCP.substring(28);
+        byte[] raw = parseHexBinary(IPV4 + tcp + options);
+        raw[3] = (byte) raw.length;
+        Packet packet = new Packet(raw, null);
+        packet.calculateAllCheckSumsLocal();
+        return packet;
+    }
+
+    @Before
+    public void setUp() {
+        // MSS, SACK permitted, timestamps, NOP, window scale
+        packet = syn("020405b4" + "0402" + "080a0000006400000000" + "01" + "030307");
+        tcp = packet.getTcp();
+    }
+
+    @Test
+    public void iterate() {
+        TcpOptions options = tcp.options();
+        assertTrue(options.next());
+        assertEquals(TcpOptions.MSS, options.getKind());
+        assertEquals(20, options.getOffset());
+        assertEquals(1460, options.getMss());
+        assertTrue(options.next());
+        assertEquals(TcpOptions.SACK_PERMITTED, options.getKind());
+        assertEquals(2, options.getLength());
+        assertTrue(options.next());
+        assertEquals(TcpOptions.TIMESTAMPS, options.getKind());
+        assertEquals(100, options.getTimestampValue());
+        assertEquals(0, options.getTimestampEchoReply());
+        // The NOP is skipped
+        assertTrue(options.next());
+        assertEquals(TcpOptions.WINDOW_SCALE, options.getKind());
+        assertEquals(37, options.getOffset());
+        assertEquals(7, options.getWindowScale());
+        assertFalse(options.next());
+        assertSame(options, tcp.options());
+    }
+
+    @Test
+    public void accessors() {
+        assertEquals(1460, tcp.getMSS());
+        assertEquals(7, tcp.getWindowScale());
+        assertTrue(tcp.isSackPermitted());
+
+        Tcp bare = syn("").getTcp();
+        assertEquals(-1, bare.getMSS());
+        assertEquals(-1, bare.getWindowScale());
+        assertFalse(bare.isSackPermitted());
+    }
+
+    @Test
+    public void sack() {
+        Tcp ack = syn("0101050a000003e8000007d0").getTcp();
+        TcpOptions options = ack.options();
+        assertTrue(options.find(TcpOptions.SACK));
+        assertEquals(1, options.getSackBlockCount());
+        assertEquals(1000, options.getSackLeftEdge(0));
+        assertEquals(2000, options.getSackRightEdge(0));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void noSuchSackBlock() {
+        TcpOptions options = syn("0101050a000003e8000007d0").getTcp().options();
+        options.find(TcpOptions.SACK);
+        options.getSackLeftEdge(1);
+    }
+
+    @Test
+    public void malformed() {
+        // A zero length option ends the walk instead of looping
+        Tcp broken = syn("0200000001010101").getTcp();
+        assertFalse(broken.options().next());
+        assertEquals(-1, broken.getMSS());
+        // So does one running past the header
+        assertEquals(-1, syn("02080000").getTcp().getMSS());
+    }
+
+    @Test
+    public void clampMss() {
+        packet.setIncrementalChecksums(true);
+        assertFalse(tcp.clampMSS(1500));
+        assertTrue(tcp.clampMSS(1360));
+        assertEquals(1360, tcp.getMSS());
+        int cksum = tcp.getChecksum();
+        packet.calculateAllCheckSumsLocal();
+        assertEquals(tcp.getChecksum(), cksum);
+    }
+
+    @Test
+    public void stripTimestamps() {
+        packet.setIncrementalChecksums(true);
+        assertTrue(tcp.stripTimestamps());
+        assertFalse(tcp.stripTimestamps());
+        assertEquals(60, packet.getLength());
+        assertEquals(7, tcp.getWindowScale());
+        int cksum = tcp.getChecksum();
+        packet.calculateAllCheckSumsLocal();
+        assertEquals(tcp.getChecksum(), cksum);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void wrongKind() {
+        TcpOptions options = tcp.options();
+        options.next();
+        options.getWindowScale();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void noCurrentOption() {
+        tcp.options().getKind();
+    }
+}
@@ -91,4 +91,11 @@ public class UDPIPv6TestCase extends IPv6TestCase {
         assertTrue(udp.equals(udpHdr2));
         assertEquals(udp.hashCode(), udpHdr2.hashCode());
     }
+
+    @Test
+    public void localChecksum() {
+        udp.setChecksum(0);
+        udp.calculateChecksum();
+        assertEquals(0x46b7, udp.getChecksum());
+    }
 }
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.ffalcinelli.jdivert.nat;
+
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.PacketBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.github.ffalcinelli.jdivert.Enums.Protocol;
+import static com.github.ffalcinelli.jdivert.PacketAssert.assertChecksums;
+import static com.github.ffalcinelli.jdivert.headers.Tcp.Flag.*;
+import static org.junit.Assert.*;
+
+public class NatTestCase {
+
+    private static final int CLIENT = 0xC0A80105;
+    private static final int LAN = 0xC0A80100;
+    private static final int PUBLIC = 0x0A000001;
+    private static final int SERVER = 0x08080808;
+    private static final int BACKEND = 0xC0A80164;
+
+    private Nat nat;
+    private PacketBuilder builder;
+
+    @Before
+    public void setUp() {
+        nat = new Nat(1024);
+        builder = new PacketBuilder(256);
+    }
+
+    private Packet tcp(int src, int srcPort, int dst, int dstPort, int flags) {
+        return builder.ipv4(src, dst).tcp(srcPort, dstPort).tcpFlags(flags).payload(new byte[]{1, 2, 3}).build();
+    }
+
+    private static void assertEndpoints(Packet packet, int src, int srcPort, int dst, int dstPort) {
+        assertEquals(src, packet.getIpv4().getSrcAddrV4());
+        assertEquals(srcPort, (int) packet.getSrcPort());
+        assertEquals(dst, packet.getIpv4().getDstAddrV4());
+        assertEquals(dstPort, (int) packet.getDstPort());
+        assertChecksums(packet);
+    }
+
+    @Test
+    public void snat() {
+        nat.addRule(NatRule.snat(LAN, 24, PUBLIC));
+        Packet out = tcp(CLIENT, 40000, SERVER, 80, SYN.mask());
+        assertTrue(nat.translate(out, 0));
+        // The original port is kept while free
+        assertEndpoints(out, PUBLIC, 40000, SERVER, 80);
+        Packet in = tcp(SERVER, 80, PUBLIC, 40000, maskOf(SYN, ACK));
+        assertTrue(nat.translate(in, 0));
+        assertEndpoints(in, SERVER, 80, CLIENT, 40000);
+        assertEquals(1, nat.getMappingCount());
+
+        // Another host of the network using the same port
+        Packet other = tcp(CLIENT + 1, 40000, SERVER, 80, SYN.mask());
+        assertTrue(nat.translate(other, 0));
+        int port = other.getSrcPort();
+        assertNotEquals(40000, port);
+        assertEndpoints(other, PUBLIC, port, SERVER, 80);
+        Packet otherIn = tcp(SERVER, 80, PUBLIC, port, maskOf(SYN, ACK));
+        assertTrue(nat.translate(otherIn, 0));
+        assertEndpoints(otherIn, SERVER, 80, CLIENT + 1, 40000);
+    }
+
+    @Test
+    public void unmatched() {
+        nat.addRule(NatRule.snat(LAN, 24, PUBLIC));
+        Packet outside = tcp(SERVER, 80, PUBLIC, 40000, ACK.mask());
+        assertFalse(nat.translate(outside, 0));
+        assertEndpoints(outside, SERVER, 80, PUBLIC, 40000);
+        Packet icmp = builder.ipv4(CLIENT, SERVER).icmp(8, 0, 0).build();
+        assertFalse(nat.translate(icmp, 0));
+        assertEquals(0, nat.getMappingCount());
+    }
+
+    @Test
+    public void dnat() {
+        nat.addRule(NatRule.dnat(PUBLIC, 32, BACKEND));
+        Packet query = builder.ipv4(SERVER, PUBLIC).udp(5353, 53).payload(new byte[]{1, 2, 3, 4}).build();
+        assertTrue(nat.translate(query, 0));
+        assertEndpoints(query, SERVER, 5353, BACKEND, 53);
+        Packet answer = builder.ipv4(BACKEND, SERVER).udp(53, 5353).payload(new byte[]{5, 6}).build();
+        assertTrue(nat.translate(answer, 0));
+        assertEndpoints(answer, PUBLIC, 53, SERVER, 5353);
+    }
+
+    @Test
+    public void portForward() {
+        nat.addRule(NatRule.portForward(Protocol.TCP, PUBLIC, 8080, BACKEND, 80));
+        assertFalse(nat.translate(tcp(SERVER, 50000, PUBLIC, 8081, SYN.mask()), 0));
+        Packet in = tcp(SERVER, 50000, PUBLIC, 8080, SYN.mask());
+        assertTrue(nat.translate(in, 0));
+        assertEndpoints(in, SERVER, 50000, BACKEND, 80);
+        Packet out = tcp(BACKEND, 80, SERVER, 50000, maskOf(SYN, ACK));
+        assertTrue(nat.translate(out, 0));
+        assertEndpoints(out, PUBLIC, 8080, SERVER, 50000);
+    }
+
+    @Test
+    public void snatAndDnatTogether() {
+        // Hairpinning: a client of the network reaching a server of the same network by its public address
+        nat.addRule(NatRule.portForward(Protocol.TCP, PUBLIC, 8080, BACKEND, 80));
+        nat.addRule(NatRule.snat(LAN, 24, PUBLIC));
+        Packet out = tcp(CLIENT, 40000, PUBLIC, 8080, SYN.mask());
+        assertTrue(nat.translate(out, 0));
+        assertEndpoints(out, PUBLIC, 40000, BACKEND, 80);
+        Packet back = tcp(BACKEND, 80, PUBLIC, 40000, maskOf(SYN, ACK));
+        assertTrue(nat.translate(back, 0));
+        assertEndpoints(back, PUBLIC, 8080, CLIENT, 40000);
+    }
+
+    @Test
+    public void udpChecksumLeftOut() {
+        nat.addRule(NatRule.snat(LAN, 24, PUBLIC));
+        Packet query = builder.ipv4(CLIENT, SERVER).udp(5353, 53).payload(new byte[]{1, 2, 3, 4}).build();
+        query.getUdp().setChecksum(0);
+        assertTrue(nat.translate(query, 0));
+        assertEquals(PUBLIC, query.getIpv4().getSrcAddrV4());
+        assertEquals(0, query.getUdp().getChecksum());
+    }
+
+    @Test
+    public void replyCollision() {
+        // Both flows would be answered by the same endpoints
+        nat.addRule(NatRule.dnat(PUBLIC, 30, BACKEND));
+        assertTrue(nat.translate(tcp(SERVER, 50000, PUBLIC, 80, SYN.mask()), 0));
+        assertFalse(nat.translate(tcp(SERVER, 50000, PUBLIC + 1, 80, SYN.mask()), 0));
+        assertEquals(1, nat.getCollisionCount());
+        assertEquals(1, nat.getMappingCount());
+    }
+
+    @Test
+    public void portExhaustion() {
+        nat = new Nat(1024, 2000, 2001);
+        nat.addRule(NatRule.snat(LAN, 24, PUBLIC));
+        assertTrue(nat.translate(tcp(CLIENT, 40000, SERVER, 80, SYN.mask()), 0));
+        assertTrue(nat.translate(tcp(CLIENT, 40001, SERVER, 80, SYN.mask()), 0));
+        assertFalse(nat.translate(tcp(CLIENT, 40002, SERVER, 80, SYN.mask()), 0));
+        // Ports of each protocol are apart
+        assertTrue(nat.translate(builder.ipv4(CLIENT, SERVER).udp(40002, 53).build(), 0));
+        assertEquals(1, nat.getExhaustedCount());
+        assertTrue(nat.remove(tcp(SERVER, 80, PUBLIC, 2000, ACK.mask()).extractFlowKey(null)));
+        Packet again = tcp(CLIENT, 40002, SERVER, 80, SYN.mask());
+        assertTrue(nat.translate(again, 0));
+        assertEquals(2000, (int) again.getSrcPort());
+    }
+
+    @Test
+    public void mappingLimit() {
+        nat = new Nat(2);
+        nat.addRule(NatRule.dnat(PUBLIC, 32, BACKEND));
+        assertTrue(nat.translate(tcp(SERVER, 1, PUBLIC, 80, SYN.mask()), 0));
+        assertTrue(nat.translate(tcp(SERVER, 2, PUBLIC, 80, SYN.mask()), 0));
+        assertFalse(nat.translate(tcp(SERVER, 3, PUBLIC, 80, SYN.mask()), 0));
+        assertEquals(2, nat.getMappingCount());
+        assertEquals(1, nat.getExhaustedCount());
+    }
+
+    @Test
+    public void timeouts() {
+        nat = new Nat(1024, 2000, 2000);
+        nat.addRule(NatRule.snat(LAN, 24, PUBLIC));
+        nat.setTcpTimeout(1000);
+        nat.setClosingTimeout(100);
+        assertTrue(nat.translate(tcp(CLIENT, 40000, SERVER, 80, SYN.mask()), 0));
+        assertTrue(nat.translate(tcp(SERVER, 80, PUBLIC, 2000, maskOf(SYN, ACK)), 500));
+        assertEquals(0, nat.expire(1499));
+        // A FIN shortens the lifetime
+        assertTrue(nat.translate(tcp(CLIENT, 40000, SERVER, 80, maskOf(FIN, ACK)), 1400));
+        assertEquals(0, nat.expire(1499));
+        assertEquals(1, nat.expire(1500));
+        assertEquals(0, nat.getMappingCount());
+        assertFalse(nat.translate(tcp(SERVER, 80, PUBLIC, 2000, ACK.mask()), 1500));
+
+        // Expired mappings are replaced on lookup, releasing their port
+        assertTrue(nat.translate(tcp(CLIENT, 40001, SERVER, 80, SYN.mask()), 2000));
+        Packet again = tcp(CLIENT, 40001, SERVER, 80, ACK.mask());
+        assertTrue(nat.translate(again, 3000));
+        assertEquals(2000, (int) again.getSrcPort());
+        assertEquals(1, nat.getMappingCount());
+        assertEquals(2, nat.getExpiredCount());
+    }
+
+    @Test
+    public void ignoresFragments() {
+        nat.addRule(NatRule.snat(LAN, 24, PUBLIC));
+        Packet packet = tcp(CLIENT, 40000, SERVER, 80, SYN.mask());
+        packet.getIpv4().setFragmentOffset(1);
+        assertFalse(nat.translate(packet, 0));
+        assertEquals(0, nat.getMappingCount());
+    }
+
+    @Test
+    public void concurrentFlows() throws InterruptedException {
+        nat = new Nat(4096);
+        nat.addRule(NatRule.snat(LAN, 24, PUBLIC));
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    PacketBuilder own = new PacketBuilder(256);
+                    for (int port = 0; port < 500; port++) {
+                        // Every thread asks for the same ports
+                        Packet packet = own.ipv4(CLIENT + thread, SERVER).tcp(10000 + port, 80).tcpFlags(SYN.mask()).build();
+                        assertTrue(nat.translate(packet, 0));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(2000, nat.getMappingCount());
+    }
+}
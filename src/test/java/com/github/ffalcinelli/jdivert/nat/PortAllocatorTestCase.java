@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.ffalcinelli.jdivert.nat;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class PortAllocatorTestCase {
+
+    @Test
+    public void allocatesWholeRange() {
+        // Not a multiple of the word size
+        PortAllocator ports = new PortAllocator(1000, 1099);
+        BitSet seen = new BitSet();
+        for (int i = 0; i < 100; i++) {
+            int port = ports.allocate();
+            assertTrue(port >= 1000 && port <= 1099);
+            assertFalse(seen.get(port));
+            seen.set(port);
+        }
+        assertEquals(-1, ports.allocate());
+        assertEquals(0, ports.getAvailable());
+        ports.release(1042);
+        assertEquals(1042, ports.allocate());
+    }
+
+    @Test
+    public void preferred() {
+        PortAllocator ports = new PortAllocator(1024, 0xFFFF);
+        assertEquals(40000, ports.allocate(40000));
+        assertTrue(ports.isAllocated(40000));
+        int other = ports.allocate(40000);
+        assertNotEquals(40000, other);
+        assertTrue(ports.isAllocated(other));
+        // Out of range
+        assertNotEquals(80, ports.allocate(80));
+        assertEquals(0xFFFF - 1024 + 1 - 3, ports.getAvailable());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void doubleRelease() {
+        PortAllocator ports = new PortAllocator(1024, 2047);
+        ports.release(ports.allocate());
+        ports.release(1024);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidRange() {
+        new PortAllocator(2000, 1999);
+    }
+
+    @Test
+    public void concurrent() throws InterruptedException {
+        final PortAllocator ports = new PortAllocator(1, 0xFFFF);
+        final AtomicInteger[] owners = new AtomicInteger[0x10000];
+        for (int i = 0; i < owners.length; i++)
+            owners[i] = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int port;
+                    while ((port = ports.allocate()) >= 0)
+                        owners[port].incrementAndGet();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        for (int port = 1; port <= 0xFFFF; port++)
+            assertEquals(1, owners[port].get());
+        assertEquals(0, ports.getAvailable());
+    }
+}
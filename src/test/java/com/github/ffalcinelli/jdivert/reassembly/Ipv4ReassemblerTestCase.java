@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.reassembly;
+
+import com.github.ffalcinelli.jdivert.Checksum;
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.PacketBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class Ipv4ReassemblerTestCase {
+
+    private static final int SRC = 0xC0A80001;
+    private static final int DST = 0xC0A80002;
+
+    private Ipv4Reassembler reassembler;
+    private byte[] original;
+    private Packet[] fragments;
+
+    private static Packet datagram(int id, int payloadLength) {
+        byte[] payload = new byte[payloadLength];
+        for (int i = 0; i < payload.length; i++)
+            payload[i] = (byte) i;
+        return new PacketBuilder(2048).ipv4(SRC, DST).identification(id).udp(1234, 53).payload(payload)
+                .inbound(3, 1).build();
+    }
+
+    /**
+     * Copies a fragment, its data overwritten with the given value.
+     */
+    private static Packet filled(Packet fragment, byte value) {
+        byte[] raw = fragment.getRaw(true);
+        for (int i = 20; i < raw.length; i++)
+            raw[i] = value;
+        return new Packet(raw, null);
+    }
+
+    @Before
+    public void setUp() {
+        reassembler = new Ipv4Reassembler(4, 256 * 1024, 1000);
+        Packet packet = datagram(42, 1000);
+        original = packet.getRaw(true);
+        // 248 bytes of data per fragment: 5 fragments for 1008 bytes
+        fragments = packet.fragment(268);
+        assertEquals(5, fragments.length);
+    }
+
+    private void assertReassembled(Packet packet) {
+        assertNotNull(packet);
+        assertArrayEquals(original, packet.getRaw(true));
+        ByteBuffer raw = packet.getByteBuffer();
+        assertEquals(0xFFFF, Checksum.fold(Checksum.sum(raw, packet.getOffset(), packet.getOffset() + 20)));
+        assertEquals(3, packet.getInterfaceIndex());
+        assertEquals(1, packet.getSubInterfaceIndex());
+        assertEquals(0, reassembler.getPendingCount());
+        assertEquals(0, reassembler.getUsedBytes());
+    }
+
+    @Test
+    public void inOrder() {
+        for (int i = 0; i < fragments.length - 1; i++)
+            assertNull(reassembler.reassemble(fragments[i], 0));
+        assertEquals(1, reassembler.getPendingCount());
+        assertTrue(reassembler.getUsedBytes() > 0);
+        Packet packet = reassembler.reassemble(fragments[fragments.length - 1], 0);
+        assertReassembled(packet);
+        assertEquals(1, reassembler.getReassembledCount());
+        assertEquals(1234, packet.getSrcPort().intValue());
+        packet.release();
+    }
+
+    @Test
+    public void outOfOrder() {
+        int[] order = {4, 1, 3, 0};
+        for (int i : order)
+            assertNull(reassembler.reassemble(fragments[i], 0));
+        assertReassembled(reassembler.reassemble(fragments[2], 0));
+    }
+
+    @Test
+    public void passThrough() {
+        Packet whole = datagram(7, 100);
+        assertSame(whole, reassembler.reassemble(whole, 0));
+        assertEquals(0, reassembler.getPendingCount());
+    }
+
+    @Test
+    public void interleaved() {
+        Packet[] others = datagram(43, 600).fragment(268);
+        for (int i = 0; i < fragments.length - 1; i++) {
+            assertNull(reassembler.reassemble(fragments[i], 0));
+            if (i < others.length - 1)
+                assertNull(reassembler.reassemble(others[i], 0));
+        }
+        assertEquals(2, reassembler.getPendingCount());
+        Packet other = reassembler.reassemble(others[2], 0);
+        assertNotNull(other);
+        assertEquals(43, other.getIpv4().getID());
+        assertEquals(1, reassembler.getPendingCount());
+        assertReassembled(reassembler.reassemble(fragments[4], 0));
+    }
+
+    @Test
+    public void duplicateDropped() {
+        assertNull(reassembler.reassemble(fragments[0], 0));
+        assertNull(reassembler.reassemble(fragments[0], 0));
+        assertEquals(0, reassembler.getPendingCount());
+        assertEquals(1, reassembler.getDroppedCount());
+    }
+
+    @Test
+    public void overlapFirst() {
+        reassembler.setOverlapPolicy(OverlapPolicy.FIRST);
+        for (int i = 0; i < fragments.length - 1; i++)
+            assertNull(reassembler.reassemble(fragments[i], 0));
+        // Rewritten data overlapping the second fragment is ignored
+        assertNull(reassembler.reassemble(filled(fragments[1], (byte) 0xEE), 0));
+        assertReassembled(reassembler.reassemble(fragments[4], 0));
+    }
+
+    @Test
+    public void overlapLast() {
+        reassembler.setOverlapPolicy(OverlapPolicy.LAST);
+        for (int i = 0; i < fragments.length; i++) {
+            if (i != 1)
+                assertNull(reassembler.reassemble(fragments[i], 0));
+        }
+        assertNull(reassembler.reassemble(filled(fragments[2], (byte) 0xEE), 0));
+        Packet packet = reassembler.reassemble(fragments[1], 0);
+        assertNotNull(packet);
+        byte[] raw = packet.getRaw(true);
+        assertEquals(original.length, raw.length);
+        assertEquals((byte) 0xEE, raw[20 + 2 * 248]);
+        assertEquals(original[20 + 248], raw[20 + 248]);
+    }
+
+    @Test
+    public void timeout() {
+        assertNull(reassembler.reassemble(fragments[0], 0));
+        assertNull(reassembler.reassemble(fragments[1], 999));
+        assertEquals(1, reassembler.getPendingCount());
+        reassembler.expire(1000);
+        assertEquals(0, reassembler.getPendingCount());
+        assertEquals(0, reassembler.getUsedBytes());
+        assertEquals(1, reassembler.getTimedOutCount());
+        // The late fragments start a new datagram, never completed
+        for (int i = 2; i < fragments.length; i++)
+            assertNull(reassembler.reassemble(fragments[i], 1000));
+        assertEquals(1, reassembler.getPendingCount());
+    }
+
+    @Test
+    public void datagramLimit() {
+        for (int id = 0; id < 5; id++)
+            assertNull(reassembler.reassemble(datagram(id, 600).fragment(268)[0], id));
+        assertEquals(4, reassembler.getPendingCount());
+        assertEquals(1, reassembler.getEvictedCount());
+    }
+
+    @Test
+    public void memoryCap() {
+        reassembler = new Ipv4Reassembler(16, 2 * (60 + 64 * 1024), 1000);
+        // The last fragment sizes the buffer to the whole datagram: 64 KiB each
+        for (int id = 0; id < 3; id++) {
+            Packet[] big = datagram(id, 1500).fragment(268);
+            Packet last = big[big.length - 1];
+            last.getByteBuffer().putShort(last.getOffset() + 6, (short) (40000 / 8));
+            Checksum.compute(last.getByteBuffer(), last.getOffset(), last.getOffset() + 20, last.getOffset() + 10, 0);
+            assertNull(reassembler.reassemble(last, 0));
+        }
+        assertEquals(2, reassembler.getPendingCount());
+        assertEquals(1, reassembler.getEvictedCount());
+        assertTrue(reassembler.getUsedBytes() <= 2 * (60 + 64 * 1024));
+    }
+
+    @Test
+    public void tooManyHoles() {
+        Packet[] many = datagram(9, 40 * 8 * 2).fragment(28);
+        for (int i = 0; i < Ipv4Reassembler.MAX_RANGES; i++)
+            assertNull(reassembler.reassemble(many[2 * i], 0));
+        assertEquals(1, reassembler.getPendingCount());
+        assertNull(reassembler.reassemble(many[2 * Ipv4Reassembler.MAX_RANGES], 0));
+        assertEquals(0, reassembler.getPendingCount());
+        assertEquals(1, reassembler.getDroppedCount());
+    }
+
+    @Test
+    public void tinyFragment() {
+        Packet tcp = new PacketBuilder(2048).ipv4(SRC, DST).identification(5).tcp(1234, 80).payload(new byte[100])
+                .build();
+        // 16 bytes of data per fragment hide part of the TCP header
+        assertNull(reassembler.reassemble(tcp.fragment(36)[0], 0));
+        assertEquals(1, reassembler.getDroppedCount());
+        assertEquals(0, reassembler.getPendingCount());
+    }
+
+    @Test
+    public void conflictingLength() {
+        assertNull(reassembler.reassemble(fragments[4], 0));
+        Packet shorter = new Packet(fragments[3].getRaw(true), null);
+        // Clear the more fragments flag: the datagram would end earlier
+        ByteBuffer raw = shorter.getByteBuffer();
+        raw.putShort(6, (short) (raw.getShort(6) & ~0x2000));
+        assertNull(reassembler.reassemble(shorter, 0));
+        assertEquals(0, reassembler.getPendingCount());
+        assertEquals(1, reassembler.getDroppedCount());
+    }
+
+    @Test
+    public void refragment() {
+        reassembler.setRefragment(true);
+        Packet packet = null;
+        for (Packet fragment : fragments)
+            packet = reassembler.reassemble(fragment, 0);
+        assertNotNull(packet);
+        assertEquals(268, packet.getMtu());
+        Packet[] again = packet.fragment();
+        assertEquals(fragments.length, again.length);
+        for (int i = 0; i < again.length; i++)
+            assertArrayEquals(fragments[i].getRaw(true), again[i].getRaw(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void memoryCapTooSmall() {
+        new Ipv4Reassembler(4, 1024);
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.reassembly;
+
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.PacketBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static com.github.ffalcinelli.jdivert.Enums.Protocol;
+import static com.github.ffalcinelli.jdivert.Util.parseHexBinary;
+import static org.junit.Assert.*;
+
+public class Ipv6ReassemblerTestCase {
+
+    private static final long PREFIX = 0xFE80000000000000L;
+
+    private Ipv6Reassembler reassembler;
+    private byte[] original;
+    private Packet[] fragments;
+
+    private static Packet datagram(int payloadLength) {
+        byte[] payload = new byte[payloadLength];
+        for (int i = 0; i < payload.length; i++)
+            payload[i] = (byte) i;
+        return new PacketBuilder(2048).ipv6(PREFIX, 1, PREFIX, 2).udp(1234, 53).payload(payload).inbound(3, 1)
+                .build();
+    }
+
+    @Before
+    public void setUp() {
+        reassembler = new Ipv6Reassembler(4, 256 * 1024, 1000);
+        Packet packet = datagram(1000);
+        original = packet.getRaw(true);
+        // 232 bytes of data per fragment: 5 fragments for 1008 bytes
+        fragments = packet.fragment(280);
+        assertEquals(5, fragments.length);
+        assertEquals(Protocol.FRAGMENT, fragments[1].getIpv6().getNextHeaderProtocol());
+    }
+
+    private void assertReassembled(byte[] expected, Packet packet) {
+        assertNotNull(packet);
+        assertArrayEquals(expected, packet.getRaw(true));
+        assertFalse(packet.getIpv6().isFragment());
+        assertTrue(packet.isUdp());
+        assertEquals(53, packet.getDstPort().intValue());
+        assertEquals(3, packet.getInterfaceIndex());
+        assertEquals(0, reassembler.getPendingCount());
+        assertEquals(0, reassembler.getUsedBytes());
+    }
+
+    @Test
+    public void inOrder() {
+        for (int i = 0; i < fragments.length - 1; i++)
+            assertNull(reassembler.reassemble(fragments[i], 0));
+        assertEquals(1, reassembler.getPendingCount());
+        Packet packet = reassembler.reassemble(fragments[4], 0);
+        assertReassembled(original, packet);
+        assertEquals(1, reassembler.getReassembledCount());
+        packet.release();
+    }
+
+    @Test
+    public void outOfOrder() {
+        int[] order = {3, 4, 0, 2};
+        for (int i : order)
+            assertNull(reassembler.reassemble(fragments[i], 0));
+        assertReassembled(original, reassembler.reassemble(fragments[1], 0));
+    }
+
+    @Test
+    public void extensionHeaders() {
+        // Hop-by-hop options then UDP: the options stay, the fragment header goes
+        byte[] raw = parseHexBinary("60000000002c0040fe800000000000000000000000000001fe800000000000000000000000000002" +
+                "1100010400000000" + "04d200350024000000000000000000000000000000000000000000000000000000000000");
+        Packet[] parts = new Packet(raw, null).fragment(80);
+        assertEquals(2, parts.length);
+        parts[0].setAddress(0, 0, 3, 0);
+        assertNull(reassembler.reassemble(parts[1], 0));
+        assertReassembled(raw, reassembler.reassemble(parts[0], 0));
+    }
+
+    @Test
+    public void passThrough() {
+        Packet whole = datagram(100);
+        assertSame(whole, reassembler.reassemble(whole, 0));
+        Packet ipv4 = new PacketBuilder(128).ipv4(1, 2).udp(1, 2).build();
+        assertSame(ipv4, reassembler.reassemble(ipv4, 0));
+        assertEquals(0, reassembler.getPendingCount());
+    }
+
+    @Test
+    public void atomic() {
+        // Pending fragments with the same identification are left alone
+        assertNull(reassembler.reassemble(fragments[1], 0));
+        Packet lone = new Packet(fragments[0].getRaw(true), null);
+        ByteBuffer raw = lone.getByteBuffer();
+        // Clear the more fragments flag and shrink to 16 bytes of data
+        raw.putShort(42, (short) 0);
+        raw.putShort(4, (short) 24);
+        lone = new Packet(raw, null);
+        Packet packet = reassembler.reassemble(lone, 0);
+        assertNotNull(packet);
+        assertEquals(56, packet.getLength());
+        assertEquals(16, packet.getIpv6().getPayloadLength());
+        assertTrue(packet.isUdp());
+        assertEquals(1, reassembler.getPendingCount());
+    }
+
+    @Test
+    public void overlapDropped() {
+        assertNull(reassembler.reassemble(fragments[2], 0));
+        assertNull(reassembler.reassemble(fragments[2], 0));
+        assertEquals(0, reassembler.getPendingCount());
+        assertEquals(1, reassembler.getDroppedCount());
+    }
+
+    @Test
+    public void incompleteHeaderChain() {
+        // Eight bytes of data hold the whole UDP header
+        Packet[] tiny = datagram(100).fragment(56);
+        Packet first = new Packet(tiny[0].getRaw(true), null);
+        assertTrue(first.isUdp());
+        assertNull(reassembler.reassemble(first, 0));
+        assertEquals(0, reassembler.getDroppedCount());
+
+        Packet tcp = new PacketBuilder(512).ipv6(PREFIX, 1, PREFIX, 2).tcp(1234, 80).payload(new byte[100])
+                .build();
+        // 8 bytes of data hide most of the TCP header
+        assertNull(reassembler.reassemble(tcp.fragment(56)[0], 0));
+        assertEquals(1, reassembler.getDroppedCount());
+        assertEquals(1, reassembler.getPendingCount());
+    }
+
+    @Test
+    public void timeout() {
+        assertNull(reassembler.reassemble(fragments[0], 0));
+        reassembler.expire(999);
+        assertEquals(1, reassembler.getPendingCount());
+        assertNull(reassembler.reassemble(fragments[1], 1000));
+        assertEquals(1, reassembler.getTimedOutCount());
+        // The second fragment started a new datagram
+        assertEquals(1, reassembler.getPendingCount());
+    }
+
+    @Test
+    public void refragment() {
+        reassembler.setRefragment(true);
+        Packet packet = null;
+        for (Packet fragment : fragments)
+            packet = reassembler.reassemble(fragment, 0);
+        assertNotNull(packet);
+        assertEquals(280, packet.getMtu());
+        Packet[] again = packet.fragment();
+        assertEquals(fragments.length, again.length);
+        for (int i = 0; i < again.length; i++)
+            assertEquals(fragments[i].getLength(), again[i].getLength());
+    }
+}
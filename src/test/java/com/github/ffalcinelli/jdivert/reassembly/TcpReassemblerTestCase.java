@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.reassembly;
+
+import com.github.ffalcinelli.jdivert.FlowKey;
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.PacketBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.github.ffalcinelli.jdivert.headers.Tcp.Flag.*;
+import static org.junit.Assert.*;
+
+public class TcpReassemblerTestCase {
+
+    private static final int CLIENT = 0x0A000001;
+    private static final int SERVER = 0x0A000002;
+
+    private final StringBuilder upstream = new StringBuilder();
+    private final StringBuilder downstream = new StringBuilder();
+    private final List<FlowKey> closed = new ArrayList<>();
+    private ByteBuffer lastBuffer;
+    private TcpReassembler reassembler;
+    private PacketBuilder builder;
+
+    @Before
+    public void setUp() {
+        reassembler = new TcpReassembler(new StreamListener() {
+            @Override
+            public void onData(FlowKey stream, ByteBuffer buffer, int offset, int length) {
+                byte[] bytes = new byte[length];
+                for (int i = 0; i < length; i++)
+                    bytes[i] = buffer.get(offset + i);
+                StringBuilder sb = stream.getSrcPort() == 80 ? downstream : upstream;
+                sb.append(new String(bytes, StandardCharsets.US_ASCII));
+                lastBuffer = buffer;
+            }
+
+            @Override
+            public void onClose(FlowKey flow) {
+                closed.add(flow.copy());
+            }
+        }, 16, 64 * 1024);
+        builder = new PacketBuilder(2048).ipv4(CLIENT, SERVER).tcp(40000, 80);
+    }
+
+    private Packet segment(boolean fromClient, long seq, int flags, String data) {
+        if (fromClient)
+            builder.ipv4(CLIENT, SERVER).tcp(40000, 80);
+        else
+            builder.ipv4(SERVER, CLIENT).tcp(80, 40000);
+        return builder.seq(seq).tcpFlags(flags).payload(data.getBytes(StandardCharsets.US_ASCII)).build();
+    }
+
+    private boolean feed(boolean fromClient, long seq, int flags, String data) {
+        return reassembler.process(segment(fromClient, seq, flags, data), 0);
+    }
+
+    private void handshake() {
+        feed(true, 1000, SYN.mask(), "");
+        feed(false, 5000, maskOf(SYN, ACK), "");
+    }
+
+    @Test
+    public void inOrder() {
+        handshake();
+        assertTrue(feed(true, 1001, ACK.mask(), "GET / "));
+        Packet packet = segment(true, 1007, ACK.mask(), "HTTP/1.1");
+        assertTrue(reassembler.process(packet, 0));
+        feed(false, 5001, ACK.mask(), "HTTP/1.1 200");
+        assertEquals("GET / HTTP/1.1", upstream.toString());
+        assertEquals("HTTP/1.1 200", downstream.toString());
+        // Delivered straight from the packet
+        assertSame(packet.getByteBuffer(), lastBuffer);
+        assertEquals(0, reassembler.getQueuedBytes());
+        assertEquals(1, reassembler.getFlowCount());
+    }
+
+    @Test
+    public void outOfOrder() {
+        handshake();
+        feed(true, 1011, ACK.mask(), "klmno");
+        feed(true, 1006, ACK.mask(), "fghij");
+        assertEquals("", upstream.toString());
+        // Only bytes following a chunk are appended to it
+        assertEquals(2 * TcpReassembler.CHUNK_SIZE, reassembler.getQueuedBytes());
+        feed(true, 1001, ACK.mask(), "abcde");
+        assertEquals("abcdefghijklmno", upstream.toString());
+        assertEquals(0, reassembler.getQueuedBytes());
+    }
+
+    @Test
+    public void overlaps() {
+        handshake();
+        feed(true, 1009, ACK.mask(), "XXXX");
+        // Overlaps the queued bytes, which win
+        feed(true, 1006, ACK.mask(), "fghijklm");
+        // Retransmits bytes already delivered along with new ones
+        feed(true, 1001, ACK.mask(), "abcde");
+        feed(true, 1001, ACK.mask(), "abcdefghijklmnop");
+        assertEquals("abcdefghXXXXmnop", upstream.toString());
+    }
+
+    @Test
+    public void midstream() {
+        assertTrue(feed(true, 77, ACK.mask(), "lo"));
+        feed(true, 75, ACK.mask(), "hell");
+        assertEquals("lo", upstream.toString());
+        feed(true, 79, ACK.mask(), " world");
+        assertEquals("lo world", upstream.toString());
+    }
+
+    @Test
+    public void sequenceWrap() {
+        feed(true, 0xFFFFFFFEL, SYN.mask(), "");
+        feed(true, 0x00000001L, ACK.mask(), "cd");
+        feed(true, 0xFFFFFFFFL, ACK.mask(), "ab");
+        assertEquals("abcd", upstream.toString());
+    }
+
+    @Test
+    public void depth() {
+        reassembler.setDepth(10);
+        handshake();
+        assertTrue(feed(true, 1001, ACK.mask(), "abcdef"));
+        feed(true, 1013, ACK.mask(), "mn");
+        assertFalse(feed(true, 1007, ACK.mask(), "ghijkl"));
+        assertEquals("abcdefghij", upstream.toString());
+        assertEquals(1, reassembler.getTruncatedCount());
+        assertEquals(0, reassembler.getQueuedBytes());
+        assertFalse(feed(false, 5001, ACK.mask(), "ignored"));
+        assertEquals("", downstream.toString());
+        assertEquals(1, reassembler.getFlowCount());
+    }
+
+    @Test
+    public void flowCap() {
+        reassembler.setMaxFlowBytes(TcpReassembler.CHUNK_SIZE);
+        handshake();
+        feed(true, 1101, ACK.mask(), "far");
+        // Contiguous bytes share the chunk
+        feed(true, 1104, ACK.mask(), "ther");
+        feed(true, 3101, ACK.mask(), "too far");
+        assertEquals(1, reassembler.getDroppedCount());
+        assertEquals(TcpReassembler.CHUNK_SIZE, reassembler.getQueuedBytes());
+    }
+
+    @Test
+    public void globalCap() {
+        reassembler = new TcpReassembler(new StreamListener() {
+            @Override
+            public void onData(FlowKey stream, ByteBuffer buffer, int offset, int length) {
+            }
+
+            @Override
+            public void onClose(FlowKey flow) {
+            }
+        }, 16, TcpReassembler.CHUNK_SIZE);
+        handshake();
+        feed(true, 1101, ACK.mask(), "queued");
+        feed(false, 5101, ACK.mask(), "dropped");
+        assertEquals(1, reassembler.getDroppedCount());
+        assertEquals(TcpReassembler.CHUNK_SIZE, reassembler.getAllocatedBytes());
+    }
+
+    @Test
+    public void finishes() {
+        handshake();
+        feed(true, 1001, maskOf(ACK, FIN), "bye");
+        assertEquals(1, reassembler.getFlowCount());
+        assertFalse(feed(false, 5001, maskOf(ACK, FIN), ""));
+        assertEquals(0, reassembler.getFlowCount());
+        assertEquals(1, closed.size());
+        assertTrue(closed.get(0).isCanonical());
+        // The last acknowledgment does not start a new flow
+        assertFalse(feed(true, 1005, ACK.mask(), ""));
+        assertEquals(0, reassembler.getFlowCount());
+    }
+
+    @Test
+    public void finAfterHole() {
+        handshake();
+        feed(false, 5001, maskOf(ACK, FIN), "");
+        feed(true, 1004, maskOf(ACK, FIN), "def");
+        assertEquals(1, reassembler.getFlowCount());
+        feed(true, 1001, ACK.mask(), "abc");
+        assertEquals("abcdef", upstream.toString());
+        assertEquals(0, reassembler.getFlowCount());
+    }
+
+    @Test
+    public void reset() {
+        handshake();
+        feed(true, 1001, ACK.mask(), "abc");
+        assertFalse(feed(false, 5001, RST.mask(), ""));
+        assertEquals(0, reassembler.getFlowCount());
+        assertEquals(1, closed.size());
+    }
+
+    @Test
+    public void timeoutAndEviction() {
+        reassembler.setIdleTimeout(1000);
+        handshake();
+        assertTrue(reassembler.process(segment(true, 1001, ACK.mask(), "a"), 500));
+        reassembler.expire(1499);
+        assertEquals(1, reassembler.getFlowCount());
+        reassembler.expire(1500);
+        assertEquals(0, reassembler.getFlowCount());
+        assertEquals(1, reassembler.getTimedOutCount());
+
+        reassembler = new TcpReassembler(new StreamListener() {
+            @Override
+            public void onData(FlowKey stream, ByteBuffer buffer, int offset, int length) {
+            }
+
+            @Override
+            public void onClose(FlowKey flow) {
+                closed.add(flow.copy());
+            }
+        }, 1, 64 * 1024);
+        handshake();
+        builder.ipv4(CLIENT + 1, SERVER).tcp(40000, 80).seq(1).tcpFlags(SYN.mask()).payload(new byte[0]);
+        reassembler.process(builder.build(), 0);
+        assertEquals(1, reassembler.getFlowCount());
+        assertEquals(1, reassembler.getEvictedCount());
+        assertEquals(2, closed.size());
+    }
+
+    @Test
+    public void ignoresOtherProtocols() {
+        Packet udp = new PacketBuilder(128).ipv4(CLIENT, SERVER).udp(53, 53).build();
+        assertFalse(reassembler.process(udp, 0));
+        assertEquals(0, reassembler.getFlowCount());
+    }
+}
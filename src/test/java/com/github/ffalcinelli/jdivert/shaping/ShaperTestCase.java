@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.shaping;
+
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.PacketBuilder;
+import com.github.ffalcinelli.jdivert.exceptions.WinDivertException;
+import com.github.ffalcinelli.jdivert.windivert.InMemoryWinDivertBackend;
+import com.github.ffalcinelli.jdivert.windivert.NativeBufferAllocator;
+import com.github.ffalcinelli.jdivert.windivert.WinDivert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ShaperTestCase {
+
+    private static final int CLIENT = 0x0A000001;
+    private static final int SERVER = 0x0A000002;
+    private static final long MS = 1000000L;
+
+    private long now;
+    private InMemoryWinDivertBackend backend;
+    private WinDivert divert;
+    private NativeBufferAllocator pool;
+    private PacketBuilder builder;
+    private Shaper shaper;
+    private final List<Packet> transmitted = new ArrayList<>();
+
+    @Before
+    public void setUp() throws WinDivertException {
+        backend = new InMemoryWinDivertBackend();
+        divert = new WinDivert(backend, "true").open();
+        pool = new NativeBufferAllocator();
+        builder = new PacketBuilder(2048);
+    }
+
+    @After
+    public void tearDown() {
+        if (shaper != null)
+            shaper.close();
+        divert.close();
+    }
+
+    /**
+     * A shaper on the test clock, UDP packets being shaped by the given class and the others not.
+     */
+    private Shaper shaper(final TrafficClass cls) {
+        return new Shaper(divert, new PacketClassifier() {
+            @Override
+            public TrafficClass classify(Packet packet) {
+                return packet.isUdp() ? cls : null;
+            }
+        }, pool, MS) {
+            @Override
+            protected long nanoTime() {
+                return now;
+            }
+        };
+    }
+
+    /**
+     * A 100 bytes UDP packet, numbered by its first payload byte.
+     */
+    private Packet udp(int src, int srcPort, int number) {
+        byte[] payload = new byte[72];
+        payload[0] = (byte) number;
+        return builder.ipv4(src, SERVER).udp(srcPort, 53).payload(payload).inbound(7, 1).build();
+    }
+
+    private int transmitted() {
+        Packet packet;
+        while ((packet = backend.pollTransmitted()) != null)
+            transmitted.add(packet);
+        return transmitted.size();
+    }
+
+    @Test
+    public void burstThenRate() throws Exception {
+        TrafficClass cls = new TrafficClass(1000, 200, ShapingKey.FLOW);
+        shaper = shaper(cls);
+        for (int i = 0; i < 5; i++)
+            assertTrue(shaper.submit(udp(CLIENT, 5000, i)));
+        assertEquals(2, transmitted());
+        assertEquals(3, shaper.getQueuedPackets());
+        assertEquals(300, cls.getQueuedBytes());
+        now = 99 * MS;
+        assertEquals(0, shaper.poll());
+        now = 100 * MS;
+        assertEquals(1, shaper.poll());
+        // Waiting in the queue does not lose bandwidth
+        now = 300 * MS;
+        assertEquals(2, shaper.poll());
+        assertEquals(5, transmitted());
+        assertEquals(0, shaper.getQueuedPackets());
+        assertEquals(0, cls.getQueuedBytes());
+        for (int i = 0; i < 5; i++) {
+            Packet packet = transmitted.get(i);
+            assertEquals(i, packet.getPayload()[0]);
+            assertEquals(100, packet.getLength());
+            assertEquals(7, packet.getInterfaceIndex());
+            assertEquals(1, packet.getSubInterfaceIndex());
+            assertFalse(packet.isOutbound());
+        }
+    }
+
+    @Test
+    public void flowsApart() throws Exception {
+        TrafficClass cls = new TrafficClass(1000, 100, ShapingKey.FLOW);
+        shaper = shaper(cls);
+        shaper.submit(udp(CLIENT, 5000, 0));
+        shaper.submit(udp(CLIENT, 5000, 1));
+        shaper.submit(udp(CLIENT, 5001, 2));
+        assertEquals(2, transmitted());
+        assertEquals(2, transmitted.get(1).getPayload()[0]);
+        assertEquals(2, shaper.getFlowCount());
+        // Not classified
+        shaper.submit(builder.ipv4(CLIENT, SERVER).tcp(5000, 80).build());
+        assertEquals(3, transmitted());
+    }
+
+    @Test
+    public void sharedBySource() throws Exception {
+        TrafficClass cls = new TrafficClass(1000, 100, ShapingKey.SOURCE);
+        shaper = shaper(cls);
+        shaper.submit(udp(CLIENT, 5000, 0));
+        shaper.submit(udp(CLIENT, 5001, 1));
+        shaper.submit(udp(CLIENT + 1, 5000, 2));
+        assertEquals(2, transmitted());
+        assertEquals(1, shaper.getQueuedPackets());
+        now = 100 * MS;
+        assertEquals(1, shaper.poll());
+    }
+
+    @Test
+    public void queueLimit() throws Exception {
+        TrafficClass cls = new TrafficClass(1000, 200, ShapingKey.FLOW);
+        cls.setQueueLimit(250);
+        shaper = shaper(cls);
+        for (int i = 0; i < 4; i++)
+            assertTrue(shaper.submit(udp(CLIENT, 5000, i)));
+        assertFalse(shaper.submit(udp(CLIENT, 5000, 4)));
+        assertEquals(1, cls.getDroppedCount());
+        assertEquals(200, cls.getQueuedBytes());
+    }
+
+    @Test
+    public void packetsLargerThanBurst() throws Exception {
+        TrafficClass cls = new TrafficClass(1000, 0, ShapingKey.FLOW);
+        shaper = shaper(cls);
+        shaper.submit(udp(CLIENT, 5000, 0));
+        shaper.submit(udp(CLIENT, 5000, 1));
+        assertEquals(1, transmitted());
+        now = 100 * MS;
+        assertEquals(1, shaper.poll());
+    }
+
+    @Test
+    public void flowLimit() throws Exception {
+        TrafficClass cls = new TrafficClass(1000, 100, ShapingKey.FLOW);
+        cls.setMaxFlows(1);
+        shaper = shaper(cls);
+        assertTrue(shaper.submit(udp(CLIENT, 5000, 0)));
+        assertFalse(shaper.submit(udp(CLIENT, 5001, 1)));
+        assertEquals(1, cls.getDroppedCount());
+        // The first bucket is full again, thus reclaimed
+        now = 100 * MS;
+        assertTrue(shaper.submit(udp(CLIENT, 5001, 2)));
+        assertEquals(1, shaper.getFlowCount());
+        assertEquals(2, transmitted());
+    }
+
+    @Test
+    public void manyIdleFlows() throws Exception {
+        TrafficClass cls = new TrafficClass(1000000, 1500, ShapingKey.FLOW);
+        shaper = shaper(cls);
+        for (int flow = 0; flow < 100000; flow++)
+            assertTrue(shaper.submit(udp(CLIENT + (flow >> 14), 1024 + (flow & 0x3FFF), 0)));
+        assertEquals(0, shaper.getQueuedPackets());
+        assertEquals(100000, shaper.getFlowCount());
+        assertEquals(0, shaper.poll());
+        // New flows reclaim the idle buckets
+        now = 1000 * MS;
+        for (int flow = 0; flow < 100; flow++)
+            shaper.submit(udp(0x0B000001, 1024 + flow, 0));
+        assertEquals(100000 + 100 - 4 * 100, shaper.getFlowCount());
+    }
+
+    @Test
+    public void closeDropsQueued() throws Exception {
+        TrafficClass cls = new TrafficClass(1000, 100, ShapingKey.FLOW);
+        shaper = shaper(cls);
+        for (int i = 0; i < 4; i++)
+            shaper.submit(udp(CLIENT, 5000, i));
+        assertEquals(3, pool.getOutstandingCount());
+        shaper.close();
+        assertTrue(shaper.isClosed());
+        assertEquals(0, pool.getOutstandingCount());
+        assertEquals(3, cls.getDroppedCount());
+        assertEquals(0, cls.getQueuedBytes());
+        assertEquals(0, shaper.getFlowCount());
+        try {
+            shaper.submit(udp(CLIENT, 5000, 4));
+            fail("A closed shaper accepts no packets");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void scheduler() throws Exception {
+        final TrafficClass cls = new TrafficClass(100000, 100, ShapingKey.FLOW);
+        shaper = new Shaper(divert, new PacketClassifier() {
+            @Override
+            public TrafficClass classify(Packet packet) {
+                return cls;
+            }
+        });
+        shaper.start();
+        long start = System.nanoTime();
+        for (int i = 0; i < 20; i++)
+            shaper.submit(udp(CLIENT, 5000, i));
+        long deadline = start + 5000 * MS;
+        while (transmitted() < 20 && System.nanoTime() < deadline)
+            Thread.sleep(1);
+        assertEquals(20, transmitted());
+        // A packet per millisecond
+        assertTrue(System.nanoTime() - start >= 19 * MS);
+        for (int i = 0; i < 20; i++)
+            assertEquals(i, transmitted.get(i).getPayload()[0]);
+    }
+}
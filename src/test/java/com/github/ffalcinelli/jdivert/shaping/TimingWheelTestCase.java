@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.shaping;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TimingWheelTestCase {
+
+    private static List<TimingWheel.Timer> expired(TimingWheel wheel, long tick) {
+        List<TimingWheel.Timer> timers = new ArrayList<>();
+        for (TimingWheel.Timer timer = wheel.advance(tick); timer != null; timer = timer.next)
+            timers.add(timer);
+        return timers;
+    }
+
+    @Test
+    public void expiresOnDeadline() {
+        TimingWheel wheel = new TimingWheel(0);
+        TimingWheel.Timer soon = new TimingWheel.Timer();
+        TimingWheel.Timer later = new TimingWheel.Timer();
+        wheel.schedule(soon, 5);
+        wheel.schedule(later, 5000);
+        assertEquals(2, wheel.size());
+        assertEquals(5, wheel.nextTick());
+        assertTrue(expired(wheel, 4).isEmpty());
+        List<TimingWheel.Timer> timers = expired(wheel, 5);
+        assertEquals(1, timers.size());
+        assertSame(soon, timers.get(0));
+        assertFalse(soon.isScheduled());
+        assertTrue(expired(wheel, 4999).isEmpty());
+        assertSame(later, expired(wheel, 6000).get(0));
+        assertEquals(0, wheel.size());
+        assertEquals(Long.MAX_VALUE, wheel.nextTick());
+    }
+
+    @Test
+    public void pastDeadlines() {
+        TimingWheel wheel = new TimingWheel(100);
+        TimingWheel.Timer timer = new TimingWheel.Timer();
+        wheel.schedule(timer, 10);
+        assertTrue(expired(wheel, 100).isEmpty());
+        assertSame(timer, expired(wheel, 101).get(0));
+    }
+
+    @Test
+    public void cancelAndMove() {
+        TimingWheel wheel = new TimingWheel(0);
+        TimingWheel.Timer timer = new TimingWheel.Timer();
+        TimingWheel.Timer other = new TimingWheel.Timer();
+        wheel.schedule(timer, 10);
+        wheel.schedule(other, 10);
+        wheel.cancel(timer);
+        wheel.cancel(timer);
+        assertEquals(1, wheel.size());
+        wheel.schedule(other, 100000);
+        assertEquals(1, wheel.size());
+        assertTrue(expired(wheel, 99999).isEmpty());
+        assertEquals(1, expired(wheel, 100000).size());
+    }
+
+    @Test
+    public void beyondHorizon() {
+        TimingWheel wheel = new TimingWheel(0);
+        TimingWheel.Timer timer = new TimingWheel.Timer();
+        long deadline = 3 * TimingWheel.HORIZON + 17;
+        wheel.schedule(timer, deadline);
+        assertTrue(expired(wheel, deadline - 1).isEmpty());
+        assertTrue(timer.isScheduled());
+        assertSame(timer, expired(wheel, deadline).get(0));
+    }
+
+    @Test
+    public void randomized() {
+        Random random = new Random(42);
+        TimingWheel wheel = new TimingWheel(0);
+        TimingWheel.Timer[] timers = new TimingWheel.Timer[2000];
+        for (int i = 0; i < timers.length; i++) {
+            timers[i] = new TimingWheel.Timer();
+            // Spread over all of the levels
+            long range = 1L << (6 * (1 + random.nextInt(TimingWheel.LEVELS)));
+            wheel.schedule(timers[i], (long) (random.nextDouble() * range));
+        }
+        long now = 0;
+        int fired = 0;
+        while (wheel.size() > 0) {
+            long next = now + 1 + random.nextInt(5000);
+            for (TimingWheel.Timer timer = wheel.advance(next); timer != null; timer = timer.next) {
+                // Neither early nor late
+                assertTrue(timer.getDeadline() <= next);
+                assertTrue(timer.getDeadline() > now || now == 0);
+                fired++;
+            }
+            for (TimingWheel.Timer timer : timers) {
+                if (timer.isScheduled())
+                    assertTrue(timer.getDeadline() > next);
+            }
+            now = next;
+        }
+        assertEquals(timers.length, fired);
+    }
+
+    @Test
+    public void skipsIdleTicks() {
+        TimingWheel wheel = new TimingWheel(0);
+        TimingWheel.Timer timer = new TimingWheel.Timer();
+        wheel.schedule(timer, 1000000);
+        // Only the slots holding the timer are visited before the deadline
+        long next = wheel.nextTick();
+        assertEquals((1000000 >> 18) << 18, next);
+        assertTrue(expired(wheel, next).isEmpty());
+        assertTrue(wheel.nextTick() > next);
+        assertSame(timer, expired(wheel, 1000000).get(0));
+    }
+}
@@ -0,0 +1,477 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.windivert;
+
+import com.github.ffalcinelli.jdivert.Enums.CalcChecksumsOption;
+import com.github.ffalcinelli.jdivert.Enums.Param;
+import com.github.ffalcinelli.jdivert.Enums.ShutdownType;
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.Util;
+import com.github.ffalcinelli.jdivert.exceptions.WinDivertException;
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.IntByReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.github.ffalcinelli.jdivert.Enums.Flag.DROP;
+import static com.github.ffalcinelli.jdivert.Enums.Flag.SNIFF;
+import static com.github.ffalcinelli.jdivert.Enums.Layer.NETWORK;
+import static com.sun.jna.platform.win32.WinNT.HANDLE;
+import static org.junit.Assert.*;
+
+public class InMemoryWinDivertBackendTestCase {
+
+    private long now;
+    private InMemoryWinDivertBackend backend;
+    private WinDivert w;
+
+    /**
+     * Builds an IPv4/UDP packet 127.0.0.1:12345 -> 127.0.0.1:53 of the given total length.
+     */
+    static byte[] udpPacket(int length) {
+        byte[] packet = new byte[length];
+        System.arraycopy(Util.parseHexBinary("450000000000400040110000" + "7f0000017f000001" + "30390035"),
+                0, packet, 0, 24);
+        packet[2] = (byte) (length >> 8);
+        packet[3] = (byte) length;
+        packet[24] = (byte) ((length - 20) >> 8);
+        packet[25] = (byte) (length - 20);
+        return packet;
+    }
+
+    @Before
+    public void setUp() {
+        backend = new InMemoryWinDivertBackend() {
+            @Override
+            protected long nanoTime() {
+                return now;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        if (w != null)
+            w.close();
+    }
+
+    @Test
+    public void passThroughWithoutHandles() {
+        backend.inject(udpPacket(32));
+        assertEquals(1, backend.getInjectedCount());
+        assertEquals(1, backend.getTransmittedCount());
+        Packet packet = backend.pollTransmitted();
+        assertNotNull(packet);
+        assertEquals(53, (int) packet.getDstPort());
+        assertTrue(packet.getWinDivertAddress().isOutbound());
+        assertNull(backend.pollTransmitted());
+    }
+
+    @Test
+    public void recvAndSend() throws Exception {
+        w = new WinDivert(backend, "true").open();
+        assertTrue(w.toString().contains("InMemoryWinDivertBackend"));
+        backend.inject(udpPacket(32));
+        assertEquals(0, backend.getTransmittedCount());
+
+        Packet packet = w.recv();
+        assertEquals(12345, (int) packet.getSrcPort());
+        packet.setDstPort(5353);
+        assertEquals(32, w.send(packet));
+
+        Packet sent = backend.pollTransmitted();
+        assertEquals(5353, (int) sent.getDstPort());
+        assertEquals(sent.getUdp().getChecksum(), packet.getUdp().getChecksum());
+    }
+
+    @Test
+    public void priorityOrder() throws Exception {
+        HANDLE low = backend.open("true", NETWORK, (short) -10, 0);
+        HANDLE high = backend.open("true", NETWORK, (short) 10, 0);
+        backend.inject(udpPacket(32));
+        assertEquals(1, backend.getQueueLength(high));
+        assertEquals(0, backend.getQueueLength(low));
+
+        reinject(high);
+        assertEquals(0, backend.getQueueLength(high));
+        assertEquals(1, backend.getQueueLength(low));
+        reinject(low);
+        assertEquals(1, backend.getTransmittedCount());
+    }
+
+    @Test
+    public void sniffAndDrop() throws Exception {
+        HANDLE sniff = backend.open("true", NETWORK, (short) 0, SNIFF.getValue());
+        backend.inject(udpPacket(32));
+        assertEquals(1, backend.getQueueLength(sniff));
+        assertEquals(1, backend.getTransmittedCount());
+        backend.close(sniff);
+
+        HANDLE drop = backend.open("true", NETWORK, (short) 0, DROP.getValue());
+        backend.inject(udpPacket(32));
+        assertEquals(0, backend.getQueueLength(drop));
+        assertEquals(1, backend.getTransmittedCount());
+    }
+
+    @Test
+    public void falseFilterMatchesNothing() throws Exception {
+        HANDLE handle = backend.open("false", NETWORK, (short) 0, 0);
+        backend.inject(udpPacket(32));
+        assertEquals(0, backend.getQueueLength(handle));
+        assertEquals(1, backend.getTransmittedCount());
+    }
+
+    @Test
+    public void queueLenDrops() throws Exception {
+        HANDLE handle = backend.open("true", NETWORK, (short) 0, 0);
+        assertEquals(Param.QUEUE_LEN.getDefault(), backend.getParam(handle, Param.QUEUE_LEN));
+        backend.setParam(handle, Param.QUEUE_LEN, 32);
+        for (int i = 0; i < 40; i++)
+            backend.inject(udpPacket(32));
+        assertEquals(32, backend.getQueueLength(handle));
+        assertEquals(8, backend.getDroppedCount());
+    }
+
+    @Test
+    public void queueSizeDrops() throws Exception {
+        HANDLE handle = backend.open("true", NETWORK, (short) 0, 0);
+        backend.setParam(handle, Param.QUEUE_SIZE, 65535);
+        for (int i = 0; i < 50; i++)
+            backend.inject(udpPacket(1500));
+        assertEquals(65535 / 1500, backend.getQueueLength(handle));
+        assertEquals(50 - 65535 / 1500, backend.getDroppedCount());
+    }
+
+    @Test
+    public void queueTimeDrops() throws Exception {
+        w = new WinDivert(backend, "true").open();
+        w.setParam(Param.QUEUE_TIME, 100);
+        backend.inject(udpPacket(32));
+        now += TimeUnit.MILLISECONDS.toNanos(50);
+        backend.inject(udpPacket(33));
+        now += TimeUnit.MILLISECONDS.toNanos(60);
+
+        assertEquals(33, w.recv().getRaw(false).length);
+        assertEquals(1, backend.getDroppedCount());
+    }
+
+    @Test
+    public void recvExBatch() throws Exception {
+        HANDLE handle = backend.open("true", NETWORK, (short) 0, 0);
+        backend.inject(udpPacket(32));
+        backend.inject(udpPacket(48));
+        backend.inject(udpPacket(64));
+        Memory buffer = new Memory(100);
+        Memory addresses = new Memory(4 * WinDivertAddress.SIZE);
+        IntByReference addrLen = new IntByReference((int) addresses.size());
+
+        assertEquals(80, backend.recvEx(handle, buffer, (int) buffer.size(), 0, addresses, addrLen, null));
+        assertEquals(2 * WinDivertAddress.SIZE, addrLen.getValue());
+        assertEquals(32, WinDivert.ipPacketLength(buffer, 0, 80));
+        assertEquals(48, WinDivert.ipPacketLength(buffer, 32, 48));
+        assertEquals(1, backend.getQueueLength(handle));
+    }
+
+    @Test
+    public void recvExSlicesOneBuffer() throws Exception {
+        w = new WinDivert(backend, "true").open();
+        WinDivertAddress inbound = WinDivertAddress.createInboundNetworkWinDivertAddress(7, 0, false, true, true, true);
+        backend.inject(udpPacket(32));
+        backend.inject(udpPacket(48), inbound);
+        backend.inject(udpPacket(64));
+
+        Packet[] packets = w.recvEx(8);
+        assertEquals(3, packets.length);
+        assertEquals(32, packets[0].getRaw(false).length);
+        assertEquals(48, packets[1].getRaw(false).length);
+        assertEquals(64, packets[2].getRaw(false).length);
+        assertTrue(packets[0].getWinDivertAddress().isOutbound());
+        assertTrue(packets[1].getWinDivertAddress().isInbound());
+        assertTrue(packets[1].getByteBuffer().isDirect());
+
+        packets[1].setDstPort(5353);
+        packets[1].getUdp().calculateChecksum();
+        assertEquals(48, w.send(packets[1]));
+        assertEquals(5353, (int) backend.pollTransmitted().getDstPort());
+        for (Packet packet : packets)
+            packet.release();
+    }
+
+    @Test
+    public void zeroCopyRecv() throws Exception {
+        w = new WinDivert(backend, "true").open();
+        w.setUsePooledBuffers(true, 1, 1);
+        w.setUseZeroCopyRecv(true);
+        NativeBufferAllocator allocator = w.getBufferAllocator();
+        backend.inject(udpPacket(32));
+        Packet packet = w.recv();
+        assertTrue(packet.getByteBuffer().isDirect());
+        assertEquals(1, allocator.getOutstandingCount());
+
+        packet.setDstPort(5353);
+        assertEquals(32, w.send(packet));
+        Packet sent = backend.pollTransmitted();
+        assertEquals(5353, (int) sent.getDstPort());
+        int checksum = sent.getUdp().getChecksum();
+        sent.getUdp().calculateChecksum();
+        assertEquals(checksum, sent.getUdp().getChecksum());
+
+        packet.release();
+        assertEquals(0, allocator.getOutstandingCount());
+    }
+
+    @Test
+    public void recvExReturnsPooledBuffer() throws Exception {
+        w = new WinDivert(backend, "true").open();
+        w.setUseBatchPooledBuffers(true, 1, 1, 4, 4);
+        NativeBufferAllocator allocator = w.getBufferAllocator();
+        backend.inject(udpPacket(32));
+        backend.inject(udpPacket(32));
+        Packet[] packets = w.recvEx();
+        assertEquals(2, packets.length);
+        assertEquals(1, allocator.getOutstandingCount());
+        packets[0].release();
+        packets[0].release();
+        assertEquals(1, allocator.getOutstandingCount());
+
+        backend.inject(udpPacket(40));
+        Packet[] next = w.recvEx();
+        assertEquals(40, next[0].getRaw(false).length);
+        assertEquals("A borrowed buffer must not be reused", 0, allocator.getHitCount());
+        assertEquals(2, allocator.getOutstandingCount());
+        packets[1].release();
+        next[0].release();
+        assertEquals(0, allocator.getOutstandingCount());
+
+        backend.inject(udpPacket(40));
+        w.recvEx()[0].release();
+        assertEquals(1, allocator.getHitCount());
+    }
+
+    @Test
+    public void arenaBuffers() throws Exception {
+        w = new WinDivert(backend, "true").open();
+        w.setMaxRecvBatchMessages(4);
+        w.setMaxSendBatchMessages(4);
+        assertEquals(0, w.getNativeFootprint());
+        w.setUseArenaBuffers(true, 2, 1);
+        NativeArena arena = w.getArena();
+        assertEquals(2 * 1504 + 4 * 1500, w.getNativeFootprint());
+
+        backend.inject(udpPacket(32));
+        backend.inject(udpPacket(32));
+        Packet[] packets = w.recvEx();
+        assertEquals(2, packets.length);
+        assertEquals(2, arena.getFreeSlotCount());
+        for (Packet packet : packets)
+            packet.release();
+        assertEquals(3, arena.getFreeSlotCount());
+
+        backend.inject(udpPacket(40));
+        Packet packet = w.recv();
+        assertEquals(40, w.send(packet, false));
+        assertEquals(1, w.sendEx(new Packet[]{packet, packet}, false).length);
+        assertEquals(3, backend.getTransmittedCount());
+        assertEquals(3, arena.getFreeSlotCount());
+        assertEquals(0, arena.getOverflowCount());
+
+        w.setUseArenaBuffers(false, 0, 0);
+        assertNull(w.getArena());
+        assertEquals(0, w.getNativeFootprint());
+    }
+
+    @Test
+    public void sendExPacksBatches() throws Exception {
+        w = new WinDivert(backend, "true").open();
+        w.setMaxSendBatchMessages(2);
+        Packet[] packets = new Packet[5];
+        for (int i = 0; i < packets.length; i++) {
+            packets[i] = new Packet(udpPacket(32 + i), WinDivertAddress.createOutboundNetworkWinDivertAddress(false, true, true, true));
+        }
+        assertArrayEquals(new int[]{65, 69, 36}, w.sendEx(packets));
+        for (int i = 0; i < packets.length; i++) {
+            Packet sent = backend.pollTransmitted();
+            assertEquals(32 + i, sent.getRaw(false).length);
+            int checksum = sent.getIpv4().getChecksum();
+            sent.getIpv4().calculateChecksum();
+            assertEquals(checksum, sent.getIpv4().getChecksum());
+        }
+    }
+
+    @Test
+    public void sendExChecksumsLocally() throws Exception {
+        final int[] helperCalls = new int[1];
+        backend = new InMemoryWinDivertBackend() {
+            @Override
+            public void calcChecksums(Pointer pPacket, int packetLen, Pointer pAddr, long flags) throws WinDivertException {
+                helperCalls[0]++;
+                super.calcChecksums(pPacket, packetLen, pAddr, flags);
+            }
+        };
+        w = new WinDivert(backend, "true").open();
+        WinDivertAddress address = WinDivertAddress.createOutboundNetworkWinDivertAddress(false, true, true, true);
+        byte[] heap = new byte[3 + 32];
+        System.arraycopy(udpPacket(32), 0, heap, 3, 32);
+        ByteBuffer direct = ByteBuffer.allocateDirect(40);
+        direct.put(udpPacket(40));
+        Packet[] packets = {new Packet().rebind(ByteBuffer.wrap(heap), 3, 32, address), new Packet(direct, address)};
+        packets[0].getUdp().setChecksum(0x1234);
+        assertArrayEquals(new int[]{72}, w.sendEx(packets, true, CalcChecksumsOption.NO_UDP_CHECKSUM));
+        assertEquals(0, helperCalls[0]);
+        for (Packet packet : packets) {
+            Packet sent = backend.pollTransmitted();
+            assertEquals(packet.getLength(), sent.getLength());
+            assertEquals(packet.getUdp().getChecksum(), sent.getUdp().getChecksum());
+            int checksum = sent.getIpv4().getChecksum();
+            assertNotEquals(0, checksum);
+            sent.getIpv4().calculateChecksum();
+            assertEquals(checksum, sent.getIpv4().getChecksum());
+        }
+    }
+
+    @Test
+    public void sendExSplitsOnPooledCapacity() throws Exception {
+        w = new WinDivert(backend, "true").open();
+        w.setUseBatchPooledBuffers(true, 1, 1, 2, 2);
+        WinDivertAddress address = WinDivertAddress.createOutboundNetworkWinDivertAddress(false, true, true, true);
+        Packet small = new Packet(udpPacket(1000), address);
+        Packet large = new Packet(udpPacket(4000), address);
+        assertArrayEquals(new int[]{1000, 4000, 1000}, w.sendEx(new Packet[]{small, large, small}, false));
+        assertEquals(3, backend.getTransmittedCount());
+    }
+
+    @Test
+    public void sendExBatch() throws Exception {
+        HANDLE handle = backend.open("true", NETWORK, (short) 0, 0);
+        Memory buffer = new Memory(80);
+        buffer.write(0, udpPacket(32), 0, 32);
+        buffer.write(32, udpPacket(48), 0, 48);
+        WinDivertAddress address = WinDivertAddress.createOutboundNetworkWinDivertAddress(false, true, true, true);
+        address.write();
+        Memory addresses = new Memory(2 * WinDivertAddress.SIZE);
+        addresses.write(0, address.getPointer().getByteArray(0, WinDivertAddress.SIZE), 0, WinDivertAddress.SIZE);
+        addresses.write(WinDivertAddress.SIZE, address.getPointer().getByteArray(0, WinDivertAddress.SIZE), 0, WinDivertAddress.SIZE);
+
+        assertEquals(80, backend.sendEx(handle, buffer, 80, 0, addresses, (int) addresses.size(), null));
+        assertEquals(32, backend.pollTransmitted().getRaw(false).length);
+        assertEquals(48, backend.pollTransmitted().getRaw(false).length);
+    }
+
+    @Test
+    public void recvAsyncInFlight() throws Exception {
+        w = new WinDivert(backend, "true").open();
+        List<CompletableFuture<Packet>> futures = new ArrayList<CompletableFuture<Packet>>();
+        for (int i = 0; i < 3; i++)
+            futures.add(w.recvAsync());
+        for (CompletableFuture<Packet> future : futures)
+            assertFalse(future.isDone());
+
+        for (int i = 0; i < 3; i++)
+            backend.inject(udpPacket(32 + i));
+        int total = 0;
+        for (CompletableFuture<Packet> future : futures)
+            total += future.get(5, TimeUnit.SECONDS).getRaw(false).length;
+        assertEquals(32 + 33 + 34, total);
+    }
+
+    @Test
+    public void recvTimeout() throws Exception {
+        w = new WinDivert(backend, "true").open();
+        try {
+            w.recv(50, TimeUnit.MILLISECONDS);
+            fail("No packet has been injected");
+        } catch (TimeoutException e) {
+        }
+        backend.inject(udpPacket(40));
+        assertEquals(40, w.recv(5, TimeUnit.SECONDS).getRaw(false).length);
+    }
+
+    @Test
+    public void sendAsync() throws Exception {
+        w = new WinDivert(backend, "true").open();
+        backend.inject(udpPacket(32));
+        Packet packet = w.recv(5, TimeUnit.SECONDS);
+        packet.setDstPort(5353);
+        assertEquals(32, (int) w.sendAsync(packet).get(5, TimeUnit.SECONDS));
+        assertEquals(5353, (int) backend.pollTransmitted().getDstPort());
+    }
+
+    @Test
+    public void recvAsyncFailsOnClose() throws Exception {
+        w = new WinDivert(backend, "true").open();
+        CompletableFuture<Packet> future = w.recvAsync();
+        w.close();
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Closing the handle must abort pending receives");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof WinDivertException);
+        }
+    }
+
+    @Test
+    public void shutdownRecv() throws Exception {
+        w = new WinDivert(backend, "true").open();
+        backend.inject(udpPacket(32));
+        w.shutdown(ShutdownType.RECV);
+        backend.inject(udpPacket(32));
+        assertEquals(1, backend.getTransmittedCount());
+        assertNotNull(w.recv());
+        try {
+            w.recv();
+            fail("A shut down handle with an empty queue must not block");
+        } catch (WinDivertException e) {
+            assertEquals(InMemoryWinDivertBackend.ERROR_NO_DATA, e.getCode());
+        }
+    }
+
+    @Test
+    public void loopback() throws Exception {
+        backend.setLoopback(true);
+        w = new WinDivert(backend, "true").open();
+        backend.inject(udpPacket(32));
+        w.send(w.recv());
+        assertEquals(0, backend.getTransmittedCount());
+        assertEquals(2, backend.getInjectedCount());
+        assertNotNull(w.recv());
+    }
+
+    @Test(expected = WinDivertException.class)
+    public void closedHandle() throws Exception {
+        HANDLE handle = backend.open("true", NETWORK, (short) 0, 0);
+        backend.close(handle);
+        backend.getQueueLength(handle);
+    }
+
+    private void reinject(HANDLE handle) throws WinDivertException {
+        Memory buffer = new Memory(WinDivert.DEFAULT_PACKET_BUFFER_SIZE);
+        Memory address = new Memory(WinDivertAddress.SIZE);
+        int length = backend.recv(handle, buffer, (int) buffer.size(), address);
+        backend.send(handle, buffer, length, address);
+    }
+}
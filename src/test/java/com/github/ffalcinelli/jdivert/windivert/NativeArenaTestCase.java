@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.windivert;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class NativeArenaTestCase {
+
+    @Test
+    public void slotsShareOneRegion() {
+        NativeArena arena = new NativeArena(new long[]{1500, 6000}, new int[]{2, 1});
+        assertEquals(3, arena.getSlotCount());
+        assertEquals(2 * 1504 + 6000, arena.getNativeFootprint());
+        Memory first = arena.allocate(100);
+        Memory second = arena.allocate(1500);
+        Memory batch = arena.allocate(3000);
+        assertEquals(1500, first.size());
+        assertEquals(1500, second.size());
+        assertEquals(6000, batch.size());
+        long distance = Math.abs(Pointer.nativeValue(second) - Pointer.nativeValue(first));
+        assertEquals(1504, distance);
+        assertEquals(0, arena.getFreeSlotCount());
+        assertEquals(0, arena.getOverflowCount());
+    }
+
+    @Test
+    public void fallsBackToLargerSlots() {
+        NativeArena arena = new NativeArena(new long[]{64, 1024}, new int[]{1, 1});
+        Memory small = arena.allocate(64);
+        assertEquals(1024, arena.allocate(10).size());
+        arena.release(small);
+        assertSame(small, arena.allocate(10));
+    }
+
+    @Test
+    public void overflow() {
+        NativeArena arena = new NativeArena(new long[]{64}, new int[]{1});
+        Memory slot = arena.allocate(64);
+        Memory overflow = arena.allocate(64);
+        Memory large = arena.allocate(100);
+        assertEquals(2, arena.getOverflowCount());
+        assertEquals(64 + 64 + 100, arena.getNativeFootprint());
+        arena.release(overflow);
+        arena.release(large);
+        assertEquals(64, arena.getNativeFootprint());
+        assertEquals(0, arena.getFreeSlotCount());
+        arena.release(slot);
+        assertEquals(1, arena.getFreeSlotCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wrongSlotSizes() {
+        new NativeArena(new long[]{1024, 64}, new int[]{1, 1});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wrongSize() {
+        new NativeArena(new long[]{64}, new int[]{1}).allocate(0);
+    }
+}
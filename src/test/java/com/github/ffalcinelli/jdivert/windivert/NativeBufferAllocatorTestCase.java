@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.windivert;
+
+import com.sun.jna.Memory;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class NativeBufferAllocatorTestCase {
+
+    @Test
+    public void sizeClasses() {
+        NativeBufferAllocator allocator = new NativeBufferAllocator();
+        assertEquals(64, allocator.allocate(1).size());
+        assertEquals(64, allocator.allocate(64).size());
+        assertEquals(2048, allocator.allocate(1500).size());
+        assertEquals(65536, allocator.allocate(65536).size());
+        assertEquals(65537, allocator.allocate(65537).size());
+        assertEquals(1, allocator.getUnpooledCount());
+        assertEquals(4, allocator.getMissCount());
+        assertEquals(5, allocator.getOutstandingCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wrongSize() {
+        new NativeBufferAllocator().allocate(0);
+    }
+
+    @Test
+    public void reuse() {
+        NativeBufferAllocator allocator = new NativeBufferAllocator();
+        Memory buffer = allocator.allocate(1500);
+        allocator.release(buffer);
+        assertEquals(0, allocator.getOutstandingCount());
+        assertSame(buffer, allocator.allocate(1024 + 1));
+        assertEquals(1, allocator.getHitCount());
+        assertNotSame(buffer, allocator.allocate(1500));
+        assertEquals(2, allocator.getMissCount());
+    }
+
+    @Test
+    public void neverBlocksWhenFull() {
+        NativeBufferAllocator allocator = new NativeBufferAllocator(1024, 1);
+        List<Memory> buffers = new ArrayList<Memory>();
+        for (int i = 0; i < 1000; i++)
+            buffers.add(allocator.allocate(512));
+        for (Memory buffer : buffers)
+            allocator.release(buffer);
+        assertEquals(0, allocator.getOutstandingCount());
+        assertTrue(allocator.getDiscardedCount() > 0);
+        long discarded = allocator.getDiscardedCount();
+        // Odd sized buffers are never pooled
+        allocator.release(new Memory(100));
+        assertEquals(discarded + 1, allocator.getDiscardedCount());
+    }
+
+    @Test
+    public void concurrentUse() throws Exception {
+        final NativeBufferAllocator allocator = new NativeBufferAllocator();
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final byte mark = (byte) t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < 10000; i++) {
+                            Memory buffer = allocator.allocate(1500);
+                            buffer.setByte(0, mark);
+                            Thread.yield();
+                            if (buffer.getByte(0) != mark)
+                                throw new AssertionError("A buffer has been handed to two threads");
+                            allocator.release(buffer);
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+        assertNull(failure.get());
+        assertEquals(0, allocator.getOutstandingCount());
+        assertEquals(40000, allocator.getHitCount() + allocator.getMissCount());
+    }
+
+    @Test
+    public void leakDetection() throws Exception {
+        NativeBufferAllocator allocator = new NativeBufferAllocator();
+        allocator.setLeakDetection(true);
+        allocator.release(allocator.allocate(128));
+        allocator.allocate(256);
+        for (int i = 0; i < 50 && allocator.getLeakCount() == 0; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertEquals(1, allocator.getLeakCount());
+        Throwable leak = allocator.pollLeak();
+        assertTrue(leak.getMessage().contains("256"));
+        boolean allocatedHere = false;
+        for (StackTraceElement element : leak.getStackTrace())
+            allocatedHere |= "leakDetection".equals(element.getMethodName());
+        assertTrue(allocatedHere);
+        assertNull(allocator.pollLeak());
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.windivert;
+
+import com.github.ffalcinelli.jdivert.Enums.Layer;
+import com.github.ffalcinelli.jdivert.Packet;
+import com.sun.jna.Memory;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class WinDivertAddressCodecTestCase {
+
+    @Test
+    public void matchesStructureLayout() {
+        WinDivertAddress address = WinDivertAddress.createInboundNetworkWinDivertAddress(7, 3, true, true, false, true);
+        address.timestamp = 123456789L;
+        address.setIsLoopback(true);
+        address.write();
+
+        Memory encoded = new Memory(2 * WinDivertAddress.SIZE);
+        encoded.setMemory(0, encoded.size(), (byte) 0xFF);
+        WinDivertAddressCodec.write(encoded, WinDivertAddress.SIZE, address);
+        // The reflective write leaves the union empty as no union type is set
+        assertArrayEquals(address.getPointer().getByteArray(0, WinDivertAddressCodec.IF_IDX_OFFSET),
+                encoded.getByteArray(WinDivertAddress.SIZE, WinDivertAddressCodec.IF_IDX_OFFSET));
+        assertArrayEquals(new byte[WinDivertAddress.SIZE - 24], encoded.getByteArray(WinDivertAddress.SIZE + 24, WinDivertAddress.SIZE - 24));
+
+        int flags = WinDivertAddressCodec.getFlags(encoded, WinDivertAddress.SIZE);
+        assertEquals(123456789L, WinDivertAddressCodec.getTimestamp(encoded, WinDivertAddress.SIZE));
+        assertEquals(7, WinDivertAddressCodec.getIfIdx(encoded, WinDivertAddress.SIZE));
+        assertEquals(3, WinDivertAddressCodec.getSubIfIdx(encoded, WinDivertAddress.SIZE));
+        assertEquals(Layer.NETWORK, WinDivertAddressCodec.getLayer(flags));
+        assertFalse(WinDivertAddressCodec.isOutbound(flags));
+        assertTrue(WinDivertAddressCodec.isLoopback(flags));
+        assertTrue(WinDivertAddressCodec.isImposter(flags));
+        assertTrue(WinDivertAddressCodec.isIPChecksum(flags));
+        assertFalse(WinDivertAddressCodec.isTCPChecksum(flags));
+        assertTrue(WinDivertAddressCodec.isUDPChecksum(flags));
+        assertTrue(WinDivertAddressCodec.isOutbound(WinDivertAddressCodec.setOutbound(flags, true)));
+    }
+
+    @Test
+    public void toStructure() {
+        int flags = WinDivertAddressCodec.setOutbound(Layer.NETWORK_FORWARD.getValue(), true);
+        WinDivertAddress address = WinDivertAddressCodec.toStructure(42L, flags, 5, 1);
+        assertEquals(42L, address.timestamp);
+        assertEquals(Layer.NETWORK_FORWARD, address.getLayerType());
+        assertTrue(address.isOutbound());
+        assertEquals(5, address.LayerUnion.Network.IfIdx.intValue());
+        assertEquals(1, address.LayerUnion.Network.SubIfIdx.intValue());
+    }
+
+    @Test
+    public void packetAddress() {
+        Memory encoded = new Memory(WinDivertAddress.SIZE);
+        WinDivertAddressCodec.write(encoded, 0, 99L, WinDivertAddressCodec.setOutbound(0, true), 4, 2);
+        Packet packet = new Packet(InMemoryWinDivertBackendTestCase.udpPacket(32), null);
+        packet.readAddress(encoded, 0);
+        assertEquals(99L, packet.getTimestamp());
+        assertTrue(packet.isOutbound());
+        assertEquals(4, packet.getInterfaceIndex());
+
+        // Changes to the structure are reflected by the packet
+        packet.getWinDivertAddress().setIsOutbound(false);
+        assertFalse(packet.isOutbound());
+        Memory copy = new Memory(WinDivertAddress.SIZE);
+        packet.writeAddress(copy, 0);
+        assertFalse(WinDivertAddressCodec.isOutbound(WinDivertAddressCodec.getFlags(copy, 0)));
+        assertEquals(2, WinDivertAddressCodec.getSubIfIdx(copy, 0));
+    }
+}